@@ -0,0 +1,240 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.benchmark;
+
+import edu.kit.datamanager.gemma.configuration.GemmaConfiguration;
+import edu.kit.datamanager.gemma.plugin.GemmaHandler;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Helpers shared by all benchmarks, e.g. for creating a handler using the
+ * sample mapping of the README.
+ *
+ * @author jejkal
+ */
+public final class BenchmarkSupport{
+
+  /**
+   * The sample mapping from the README.
+   */
+  public static final String SAMPLE_MAPPING = "{\n"
+          + "  \"$schema\": \"http://json-schema.org/draft-07/schema#\",\n"
+          + "  \"$id\": \"http://example.com/product.schema.json\",\n"
+          + "  \"title\": \"Simple Mapping\",\n"
+          + "  \"description\": \"Data resource mapping from json\",\n"
+          + "  \"type\": \"object\",\n"
+          + "  \"properties\":{\n"
+          + "  \"Publisher\":{\n"
+          + "   \"path\": \"publisher\",\n"
+          + "   \"type\": \"string\"\n"
+          + "   },\n"
+          + "   \"Publication Date\":{\n"
+          + "   \"path\": \"publicationDate\",\n"
+          + "   \"type\": \"string\"\n"
+          + "   }\n"
+          + "  }\n"
+          + "}\n";
+
+  /**
+   * Data resource matching the sample mapping.
+   */
+  public static final String SAMPLE_RESOURCE = "{\"id\":\"benchmark\",\"publisher\":\"The publisher\",\"publicationDate\":\"2019\"}";
+
+  /**
+   * Content type mapped in addition to data resource metadata.
+   */
+  public static final String CONTENT_TYPE = "application/json";
+
+  /**
+   * Name of the system property providing the Python executable for the
+   * Gemma engine.
+   */
+  public static final String PYTHON_PROPERTY = "gemma.benchmark.python";
+
+  /**
+   * Name of the system property providing the Gemma main script for the
+   * Gemma engine.
+   */
+  public static final String GEMMA_PROPERTY = "gemma.benchmark.gemma";
+
+  /**
+   * Engine name selecting the Gemma engine with GEMMA_STUB instead of Gemma.
+   */
+  public static final String STUB_ENGINE = "stub";
+
+  /**
+   * Python script providing Gemma's command line interface
+   * '{mappingFile} {inputFile} {outputFile}'. It copies the values of all
+   * properties of the mapping from their dot-separated 'path' in the input
+   * document, which is sufficient for the sample mapping. Thus, process start
+   * and I/O are measured without requiring a Gemma installation.
+   */
+  public static final String GEMMA_STUB = "import json\n"
+          + "import sys\n"
+          + "with open(sys.argv[1]) as f:\n"
+          + "    mapping = json.load(f)\n"
+          + "with open(sys.argv[2]) as f:\n"
+          + "    document = json.load(f)\n"
+          + "result = {}\n"
+          + "for name, prop in mapping.get('properties', {}).items():\n"
+          + "    value = document\n"
+          + "    for key in prop.get('path', '').split('.'):\n"
+          + "        value = value.get(key) if isinstance(value, dict) else None\n"
+          + "    result[name] = value\n"
+          + "with open(sys.argv[3], 'w') as f:\n"
+          + "    json.dump(result, f)\n";
+
+  private BenchmarkSupport(){
+  }
+
+  /**
+   * Create a temporary mappings location containing the sample mapping.
+   *
+   * @return The mappings location.
+   *
+   * @throws IOException If the mapping cannot be written.
+   */
+  public static Path createMappingsLocation() throws IOException{
+    Path mappingsLocation = Files.createTempDirectory("gemma-benchmark");
+    Files.write(mappingsLocation.resolve("simple_mapping.json"), SAMPLE_MAPPING.getBytes(StandardCharsets.UTF_8));
+    return mappingsLocation;
+  }
+
+  /**
+   * Create and configure a handler using the sample mapping for data resource
+   * metadata and for CONTENT_TYPE. The Gemma engine requires the system
+   * properties PYTHON_PROPERTY and GEMMA_PROPERTY.
+   *
+   * @param repository The repository stub.
+   * @param mappingsLocation The mappings location.
+   * @param engine The engine, either 'java', 'gemma' or 'stub'.
+   * @param streaming TRUE to enable streaming mode.
+   *
+   * @return The configured handler.
+   *
+   * @throws IOException If the Gemma stub cannot be written.
+   */
+  public static GemmaHandler createHandler(StubRepository repository, Path mappingsLocation, String engine, boolean streaming) throws IOException{
+    return createHandler(createConfiguration(repository, mappingsLocation, engine, streaming));
+  }
+
+  /**
+   * Create a configuration using the sample mapping for data resource metadata
+   * and for CONTENT_TYPE. For engine 'stub', the Gemma engine is configured
+   * with GEMMA_STUB instead of the script provided via GEMMA_PROPERTY.
+   *
+   * @param repository The repository stub.
+   * @param mappingsLocation The mappings location.
+   * @param engine The engine, either 'java', 'gemma' or 'stub'.
+   * @param streaming TRUE to enable streaming mode.
+   *
+   * @return The configuration.
+   *
+   * @throws IOException If the Gemma stub cannot be written.
+   */
+  public static GemmaConfiguration createConfiguration(StubRepository repository, Path mappingsLocation, String engine, boolean streaming) throws IOException{
+    GemmaConfiguration configuration = new GemmaConfiguration();
+    configuration.setRepositoryBaseUrl(repository.getBaseUrl());
+    configuration.setMappingsLocation(mappingsLocation.toString());
+    Map<String, List<String>> mappings = new HashMap<>();
+    mappings.put(GemmaHandler.DATA_RESOURCE_CONTENT_TYPE, List.of("simple_mapping.json"));
+    mappings.put(CONTENT_TYPE, List.of("simple_mapping.json"));
+    configuration.setSchemaMappings(mappings);
+    configuration.setPythonLocation(System.getProperty(PYTHON_PROPERTY, "python3"));
+    if(STUB_ENGINE.equals(engine)){
+      configuration.setDefaultEngine("gemma");
+      configuration.setGemmaLocation(createGemmaStub(mappingsLocation).toString());
+    } else{
+      configuration.setDefaultEngine(engine);
+      configuration.setGemmaLocation(System.getProperty(GEMMA_PROPERTY));
+    }
+    configuration.setStreaming(streaming);
+    return configuration;
+  }
+
+  /**
+   * Create a handler for 'configuration' and configure it.
+   *
+   * @param configuration The configuration.
+   *
+   * @return The configured handler.
+   */
+  public static GemmaHandler createHandler(GemmaConfiguration configuration){
+    GemmaHandler handler = new GemmaHandler(configuration);
+    if(!handler.configure()){
+      throw new IllegalStateException("Failed to configure handler for engine " + configuration.getDefaultEngine() + ". The Gemma engine requires the system properties " + PYTHON_PROPERTY + " and " + GEMMA_PROPERTY + ".");
+    }
+    return handler;
+  }
+
+  /**
+   * Write GEMMA_STUB to 'directory'.
+   *
+   * @param directory The directory, e.g. the mappings location.
+   *
+   * @return The stub script.
+   *
+   * @throws IOException If the script cannot be written.
+   */
+  public static Path createGemmaStub(Path directory) throws IOException{
+    Path script = directory.resolve("gemma_stub.py");
+    Files.write(script, GEMMA_STUB.getBytes(StandardCharsets.UTF_8));
+    return script;
+  }
+
+  /**
+   * Write a JSON document of approx. 'size' bytes matching the sample mapping.
+   *
+   * @param file The destination file.
+   * @param size The approx. document size in bytes.
+   *
+   * @throws IOException If the document cannot be written.
+   */
+  public static void writeDocument(Path file, long size) throws IOException{
+    try(Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)){
+      writer.write("{\"publisher\":\"The publisher\",\"publicationDate\":\"2019\",\"descriptions\":[");
+      long written = 0;
+      for(int i = 0; written < size; i++){
+        String entry = (i > 0 ? "," : "") + "{\"description\":\"Description " + i + " of the benchmark document.\"}";
+        writer.write(entry);
+        written += entry.length();
+      }
+      writer.write("]}");
+    }
+  }
+
+  /**
+   * Delete 'directory' recursively.
+   *
+   * @param directory The directory.
+   *
+   * @throws IOException If the directory cannot be deleted.
+   */
+  public static void deleteRecursively(Path directory) throws IOException{
+    try(Stream<Path> paths = Files.walk(directory)){
+      paths.sorted(Comparator.reverseOrder()).forEach((p) -> p.toFile().delete());
+    }
+  }
+}
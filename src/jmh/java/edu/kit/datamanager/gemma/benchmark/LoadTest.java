@@ -0,0 +1,609 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.benchmark;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import edu.kit.datamanager.entities.messaging.BasicMessage;
+import edu.kit.datamanager.entities.messaging.DataResourceMessage;
+import edu.kit.datamanager.gemma.configuration.GemmaConfiguration;
+import edu.kit.datamanager.gemma.plugin.GemmaHandler;
+import edu.kit.datamanager.messaging.client.handler.IMessageHandler.RESULT;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.springframework.beans.BeanWrapper;
+import org.springframework.beans.BeanWrapperImpl;
+
+/**
+ * Load test replaying a stream of messages into a GemmaHandler at a fixed rate
+ * against a StubRepository. The stream is either synthetic, i.e. a weighted
+ * mix of metadata, content, unmapped and echo events, or recorded, i.e. one
+ * JSON message per line as published by the repository.
+ *
+ * The latency of a message is measured from its scheduled send time until the
+ * first mapping result of its resource arrives at the repository stub, or
+ * until handle() returns if the message was not accepted. As it is measured
+ * from the scheduled send time, waiting for a busy sender is included. All
+ * messages sent within the warmup period are excluded from the results.
+ * Messages still waiting for a result after 'drainTimeout' are reported as
+ * incomplete, e.g. if they were skipped as unchanged or merged by the event
+ * coalescer after their resource was uploaded.
+ *
+ * Settings are read from system properties with prefix 'gemma.loadtest.'.
+ * Handler configuration properties can be overridden via the properties used
+ * in application.properties, e.g. '-Drepo.plugin.gemma.pipelineLanes=4'.
+ * CPU time and heap usage are obtained for this JVM, i.e. they include the
+ * repository stub and the load generator, but not Python processes.
+ *
+ * @author jejkal
+ */
+public class LoadTest{
+
+  /**
+   * Prefix of all load test properties.
+   */
+  public static final String PROPERTY_PREFIX = "gemma.loadtest.";
+
+  /**
+   * Prefix of handler configuration properties.
+   */
+  public static final String CONFIGURATION_PREFIX = "repo.plugin.gemma.";
+
+  private static final ObjectMapper MAPPER = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false).enable(SerializationFeature.INDENT_OUTPUT);
+
+  public enum EVENT{
+    /**
+     * Data resource metadata event, which is mapped and uploaded.
+     */
+    METADATA,
+    /**
+     * Content event for a local file of CONTENT_TYPE, which is mapped and
+     * uploaded.
+     */
+    CONTENT,
+    /**
+     * Content event for a content type without mapping, which is rejected.
+     */
+    UNMAPPED,
+    /**
+     * Content event for an uploaded mapping result, which is rejected.
+     */
+    ECHO;
+  }
+
+  private final double rate;
+  private final long duration;
+  private final long warmup;
+  private final long drainTimeout;
+  private final int senders;
+  private final int entities;
+  private final Map<EVENT, Integer> mix;
+  private final long contentSize;
+  private final String engine;
+  private final boolean streaming;
+  private final long repositoryLatency;
+  private final Path replay;
+  private final double replaySpeed;
+  private final Path report;
+  private final Properties properties;
+
+  private final Map<String, ArrayDeque<Pending>> pending = new HashMap<>();
+  private final LatencyRecorder latencies = new LatencyRecorder();
+  private final Map<RESULT, AtomicLong> results = new EnumMap<>(RESULT.class);
+  private final AtomicLong incomplete = new AtomicLong();
+  private final AtomicLong maxHeap = new AtomicLong();
+  private final AtomicLong heapSamples = new AtomicLong();
+  private final AtomicLong heapSum = new AtomicLong();
+  private final AtomicLong lastCompleted = new AtomicLong();
+  private volatile boolean measuring = false;
+  private volatile long measurementStart;
+  private volatile long cpuStart;
+  private volatile long gcStart;
+
+  /**
+   * Create a load test using the system properties with prefix
+   * PROPERTY_PREFIX.
+   *
+   * @param properties The properties, e.g. the system properties.
+   */
+  public LoadTest(Properties properties){
+    this.properties = properties;
+    rate = Double.parseDouble(properties.getProperty(PROPERTY_PREFIX + "rate", "100"));
+    duration = TimeUnit.SECONDS.toNanos(Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "duration", "60")));
+    warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "warmup", "10")));
+    drainTimeout = TimeUnit.SECONDS.toNanos(Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "drainTimeout", "30")));
+    senders = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "senders", "1"));
+    entities = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "entities", "0"));
+    mix = parseMix(properties.getProperty(PROPERTY_PREFIX + "mix", "metadata=70,content=20,unmapped=5,echo=5"));
+    contentSize = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "contentSize", "4096"));
+    engine = properties.getProperty(PROPERTY_PREFIX + "engine", "java");
+    streaming = Boolean.parseBoolean(properties.getProperty(PROPERTY_PREFIX + "streaming", "false"));
+    repositoryLatency = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "repositoryLatency", "0"));
+    String replayProperty = properties.getProperty(PROPERTY_PREFIX + "replay");
+    replay = (replayProperty != null) ? Paths.get(replayProperty) : null;
+    replaySpeed = Double.parseDouble(properties.getProperty(PROPERTY_PREFIX + "replaySpeed", "0"));
+    report = Paths.get(properties.getProperty(PROPERTY_PREFIX + "report", "build/reports/loadtest/results.json"));
+    for(RESULT result : RESULT.values()){
+      results.put(result, new AtomicLong());
+    }
+  }
+
+  public static void main(String[] args) throws Exception{
+    Map<String, Object> results = new LoadTest(System.getProperties()).run();
+    System.out.println(MAPPER.writeValueAsString(results));
+    System.exit(0);
+  }
+
+  /**
+   * Run the load test and write the report.
+   *
+   * @return The results.
+   *
+   * @throws IOException If the test environment cannot be set up or the
+   * report cannot be written.
+   * @throws InterruptedException If the test was interrupted.
+   */
+  public Map<String, Object> run() throws IOException, InterruptedException{
+    StubRepository repository = new StubRepository(BenchmarkSupport.SAMPLE_RESOURCE);
+    repository.setLatency(repositoryLatency);
+    repository.setUploadListener(this::uploaded);
+    Path mappingsLocation = BenchmarkSupport.createMappingsLocation();
+    Path content = mappingsLocation.resolve("content.json");
+    BenchmarkSupport.writeDocument(content, contentSize);
+    GemmaHandler handler = null;
+    try{
+      GemmaConfiguration configuration = BenchmarkSupport.createConfiguration(repository, mappingsLocation, engine, streaming);
+      applyOverrides(configuration, properties);
+      handler = BenchmarkSupport.createHandler(configuration);
+      List<BasicMessage> messages = (replay != null) ? readMessages(replay) : createMessages(content);
+      Map<String, Object> results = execute(handler, messages, repository);
+      results.put("configuration", describe(configuration));
+      if(report.getParent() != null){
+        Files.createDirectories(report.getParent());
+      }
+      MAPPER.writeValue(report.toFile(), results);
+      return results;
+    } finally{
+      if(handler != null){
+        handler.shutdown();
+      }
+      repository.stop();
+      BenchmarkSupport.deleteRecursively(mappingsLocation);
+    }
+  }
+
+  /**
+   * Send all messages, wait for outstanding results and collect the results.
+   *
+   * @param handler The handler.
+   * @param messages The messages, which are sent repeatedly until 'duration'
+   * has elapsed unless a recording is replayed at its original speed.
+   * @param repository The repository stub.
+   *
+   * @return The results.
+   *
+   * @throws InterruptedException If the test was interrupted.
+   */
+  private Map<String, Object> execute(GemmaHandler handler, List<BasicMessage> messages, StubRepository repository) throws InterruptedException{
+    long[] schedule = createSchedule(messages);
+    long end = (schedule != null) ? schedule[schedule.length - 1] + 1 : warmup + duration;
+    long start = System.nanoTime();
+    AtomicLong next = new AtomicLong();
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+    ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor((r) -> {
+      Thread t = new Thread(r, "loadtest-sampler");
+      t.setDaemon(true);
+      return t;
+    });
+    sampler.scheduleAtFixedRate(() -> {
+      if(measuring){
+        long used = memory.getHeapMemoryUsage().getUsed();
+        maxHeap.accumulateAndGet(used, Math::max);
+        heapSum.addAndGet(used);
+        heapSamples.incrementAndGet();
+      }
+    }, 0, 100, TimeUnit.MILLISECONDS);
+
+    sampler.schedule(() -> {
+      measurementStart = System.nanoTime();
+      cpuStart = os.getProcessCpuTime();
+      gcStart = getGcTime();
+      measuring = true;
+    }, warmup, TimeUnit.NANOSECONDS);
+
+    ExecutorService senderPool = Executors.newFixedThreadPool(senders, (r) -> new Thread(r, "loadtest-sender"));
+    for(int i = 0; i < senders; i++){
+      senderPool.submit(() -> {
+        long index;
+        while(true){
+          index = next.getAndIncrement();
+          long offset;
+          if(schedule != null){
+            if(index >= schedule.length){
+              break;
+            }
+            offset = schedule[(int) index];
+          } else{
+            offset = (rate > 0) ? (long) (index * 1_000_000_000d / rate) : System.nanoTime() - start;
+          }
+          if(offset >= end){
+            break;
+          }
+          long scheduled = start + offset;
+          long wait;
+          while((wait = scheduled - System.nanoTime()) > 0){
+            LockSupport.parkNanos(wait);
+          }
+          send(handler, messages.get((int) (index % messages.size())), scheduled, offset >= warmup);
+        }
+      });
+    }
+    senderPool.shutdown();
+    senderPool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    long sent = Math.min(next.get() - senders, (schedule != null) ? schedule.length : Long.MAX_VALUE);
+    long sendEnd = System.nanoTime();
+
+    long drainEnd = sendEnd + drainTimeout;
+    while(getPending() > 0 && System.nanoTime() < drainEnd){
+      Thread.sleep(10);
+    }
+    measuring = false;
+    long measurementEnd = System.nanoTime();
+    long cpuTime = os.getProcessCpuTime() - cpuStart;
+    long gcTime = getGcTime() - gcStart;
+    sampler.shutdownNow();
+    incomplete.addAndGet(getPending());
+
+    //throughput is related to the last result, CPU usage to the entire measurement
+    double seconds = Math.max(1, lastCompleted.get() - measurementStart) / 1e9;
+    double cpuSeconds = (measurementEnd - measurementStart) / 1e9;
+    long[] sorted = latencies.toSortedArray();
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("messages", sent);
+    result.put("measured", sorted.length);
+    result.put("incomplete", incomplete.get());
+    Map<String, Long> resultCounts = new LinkedHashMap<>();
+    results.forEach((k, v) -> resultCounts.put(k.toString(), v.get()));
+    result.put("results", resultCounts);
+    result.put("uploads", repository.getUploads());
+    result.put("seconds", seconds);
+    result.put("throughput", sorted.length / seconds);
+    result.put("offeredRate", (schedule != null) ? null : rate);
+    Map<String, Object> latency = new LinkedHashMap<>();
+    latency.put("p50", percentile(sorted, 0.5));
+    latency.put("p99", percentile(sorted, 0.99));
+    latency.put("p999", percentile(sorted, 0.999));
+    latency.put("max", (sorted.length > 0) ? sorted[sorted.length - 1] / 1e6 : 0);
+    result.put("latencyMillis", latency);
+    Map<String, Object> cpu = new LinkedHashMap<>();
+    cpu.put("utilization", cpuTime / 1e9 / cpuSeconds / Runtime.getRuntime().availableProcessors());
+    cpu.put("millisPerMessage", (sorted.length > 0) ? cpuTime / 1e6 / sorted.length : 0);
+    cpu.put("gcMillis", gcTime);
+    cpu.put("processors", Runtime.getRuntime().availableProcessors());
+    result.put("cpu", cpu);
+    Map<String, Object> heap = new LinkedHashMap<>();
+    heap.put("maxUsedBytes", maxHeap.get());
+    heap.put("avgUsedBytes", (heapSamples.get() > 0) ? heapSum.get() / heapSamples.get() : 0);
+    heap.put("maxBytes", memory.getHeapMemoryUsage().getMax());
+    result.put("heap", heap);
+    return result;
+  }
+
+  /**
+   * Send a single message. If it is not accepted, its latency is recorded
+   * immediately, otherwise as soon as a result of its resource is uploaded.
+   *
+   * @param handler The handler.
+   * @param message The message.
+   * @param scheduled The scheduled send time.
+   * @param measured TRUE if the message was sent after the warmup period.
+   */
+  private void send(GemmaHandler handler, BasicMessage message, long scheduled, boolean measured){
+    Pending entry = new Pending(scheduled, measured);
+    synchronized(pending){
+      pending.computeIfAbsent(message.getEntityId(), (k) -> new ArrayDeque<>()).add(entry);
+    }
+    RESULT result;
+    try{
+      result = handler.handle(message);
+    } catch(RuntimeException ex){
+      result = RESULT.FAILED;
+    }
+    results.get(result).incrementAndGet();
+    if(!RESULT.SUCCEEDED.equals(result)){
+      boolean removed;
+      synchronized(pending){
+        ArrayDeque<Pending> queue = pending.get(message.getEntityId());
+        removed = queue != null && queue.remove(entry);
+        if(queue != null && queue.isEmpty()){
+          pending.remove(message.getEntityId());
+        }
+      }
+      if(removed){
+        record(entry, System.nanoTime());
+      }
+    }
+  }
+
+  /**
+   * Upload listener completing all pending messages of the uploaded resource.
+   *
+   * @param path The upload request path.
+   */
+  private void uploaded(String path){
+    long now = System.nanoTime();
+    String relative = path.substring(path.indexOf("/dataresources/") + "/dataresources/".length());
+    int separator = relative.indexOf('/');
+    String entityId = (separator > 0) ? relative.substring(0, separator) : relative;
+    ArrayDeque<Pending> queue;
+    synchronized(pending){
+      queue = pending.remove(entityId);
+    }
+    if(queue != null){
+      for(Pending entry : queue){
+        record(entry, now);
+      }
+    }
+  }
+
+  private void record(Pending entry, long completed){
+    if(entry.measured){
+      latencies.add(completed - entry.scheduled);
+      lastCompleted.accumulateAndGet(completed, Math::max);
+    }
+  }
+
+  private long getPending(){
+    synchronized(pending){
+      return pending.values().stream().mapToLong(ArrayDeque::size).sum();
+    }
+  }
+
+  /**
+   * Create the send schedule of a recording replayed at its original speed
+   * scaled by 'replaySpeed', i.e. the offset of each message relative to the
+   * first one based on the message timestamps.
+   *
+   * @param messages The messages.
+   *
+   * @return The offsets in nanoseconds or null, if messages are sent at
+   * 'rate'.
+   */
+  private long[] createSchedule(List<BasicMessage> messages){
+    if(replay == null || replaySpeed <= 0){
+      return null;
+    }
+    long[] schedule = new long[messages.size()];
+    long first = messages.get(0).getTimestamp();
+    for(int i = 0; i < schedule.length; i++){
+      schedule[i] = (long) (TimeUnit.MILLISECONDS.toNanos(Math.max(0, messages.get(i).getTimestamp() - first)) / replaySpeed);
+    }
+    return schedule;
+  }
+
+  /**
+   * Create a shuffled list of synthetic messages following 'mix'. Each message
+   * addresses its own resource, unless 'entities' is set, in which case
+   * messages are distributed over 'entities' resources. Echo events address
+   * the resource of the preceding metadata event.
+   *
+   * @param content The content file referenced by content events.
+   *
+   * @return The messages.
+   */
+  private List<BasicMessage> createMessages(Path content){
+    int total = mix.values().stream().mapToInt(Integer::intValue).sum();
+    int count = Math.max(total, (entities > 0) ? entities : 10000);
+    List<EVENT> events = new ArrayList<>();
+    for(Map.Entry<EVENT, Integer> entry : mix.entrySet()){
+      for(long i = 0; i < (long) count * entry.getValue() / total; i++){
+        events.add(entry.getKey());
+      }
+    }
+    Random random = new Random(42);
+    Collections.shuffle(events, random);
+    List<BasicMessage> messages = new ArrayList<>();
+    String lastMetadata = null;
+    for(int i = 0; i < events.size(); i++){
+      String entityId = "loadtest-" + ((entities > 0) ? random.nextInt(entities) : i);
+      if(EVENT.METADATA.equals(events.get(i))){
+        lastMetadata = entityId;
+      } else if(EVENT.ECHO.equals(events.get(i)) && lastMetadata != null){
+        //echo events follow the upload of a previous metadata event
+        entityId = lastMetadata;
+      }
+      messages.add(createMessage(events.get(i), entityId, content));
+    }
+    return messages;
+  }
+
+  private BasicMessage createMessage(EVENT event, String entityId, Path content){
+    if(EVENT.METADATA.equals(event)){
+      BasicMessage message = new BasicMessage();
+      message.setEntityId(entityId);
+      message.setAction("UPDATE");
+      return message;
+    }
+    String contentType = BenchmarkSupport.CONTENT_TYPE;
+    String path = "data/" + entityId + ".json";
+    if(EVENT.UNMAPPED.equals(event)){
+      contentType = "text/plain";
+      path = "data/readme.txt";
+    } else if(EVENT.ECHO.equals(event)){
+      path = GemmaHandler.GENERATED_PATH + entityId + "_metadata.elastic.json";
+    }
+    DataResourceMessage message = new DataResourceMessage();
+    message.setEntityId(entityId);
+    message.setAction("ADD");
+    message.setSubCategory(DataResourceMessage.SUB_CATEGORY.DATA.getValue());
+    Map<String, String> metadata = new HashMap<>();
+    metadata.put(DataResourceMessage.CONTENT_TYPE_PROPERTY, contentType);
+    metadata.put(DataResourceMessage.CONTENT_URI_PROPERTY, content.toUri().toString());
+    metadata.put(DataResourceMessage.CONTENT_PATH_PROPERTY, path);
+    message.setMetadata(metadata);
+    return message;
+  }
+
+  /**
+   * Read a recording containing one JSON message per line.
+   *
+   * @param recording The recording.
+   *
+   * @return The messages.
+   *
+   * @throws IOException If the recording cannot be read.
+   */
+  private List<BasicMessage> readMessages(Path recording) throws IOException{
+    List<BasicMessage> messages = new ArrayList<>();
+    try(BufferedReader reader = Files.newBufferedReader(recording, StandardCharsets.UTF_8)){
+      String line;
+      while((line = reader.readLine()) != null){
+        if(!line.trim().isEmpty()){
+          messages.add(MAPPER.readValue(line, BasicMessage.class));
+        }
+      }
+    }
+    if(messages.isEmpty()){
+      throw new IOException("Recording " + recording + " contains no messages.");
+    }
+    return messages;
+  }
+
+  /**
+   * Apply all properties with prefix CONFIGURATION_PREFIX to 'configuration'.
+   *
+   * @param configuration The configuration.
+   * @param properties The properties.
+   */
+  private static void applyOverrides(GemmaConfiguration configuration, Properties properties){
+    BeanWrapper wrapper = new BeanWrapperImpl(configuration);
+    for(String name : properties.stringPropertyNames()){
+      if(name.startsWith(CONFIGURATION_PREFIX)){
+        wrapper.setPropertyValue(name.substring(CONFIGURATION_PREFIX.length()), properties.getProperty(name));
+      }
+    }
+  }
+
+  private Map<String, Object> describe(GemmaConfiguration configuration){
+    Map<String, Object> description = new LinkedHashMap<>();
+    description.put("engine", engine);
+    description.put("streaming", configuration.isStreaming());
+    description.put("senders", senders);
+    description.put("mix", (replay != null) ? replay.toString() : mix.toString());
+    description.put("contentSize", contentSize);
+    description.put("repositoryLatency", repositoryLatency);
+    description.put("pipelineLanes", configuration.getPipelineLanes());
+    description.put("workerPoolSize", configuration.getWorkerPoolSize());
+    description.put("debounceWindow", configuration.getDebounceWindow());
+    return description;
+  }
+
+  private static Map<EVENT, Integer> parseMix(String value){
+    Map<EVENT, Integer> result = new EnumMap<>(EVENT.class);
+    for(String part : value.split(",")){
+      String[] entry = part.split("=");
+      if(entry.length != 2){
+        throw new IllegalArgumentException("Invalid mix entry '" + part + "'. Expected {event}={weight}.");
+      }
+      int weight = Integer.parseInt(entry[1].trim());
+      if(weight > 0){
+        result.put(EVENT.valueOf(entry[0].trim().toUpperCase()), weight);
+      }
+    }
+    if(result.isEmpty()){
+      throw new IllegalArgumentException("Mix " + value + " contains no events.");
+    }
+    return result;
+  }
+
+  private static double percentile(long[] sorted, double quantile){
+    if(sorted.length == 0){
+      return 0;
+    }
+    int index = (int) Math.ceil(quantile * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+  }
+
+  private static long getGcTime(){
+    long time = 0;
+    for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+      time += Math.max(0, gc.getCollectionTime());
+    }
+    return time;
+  }
+
+  /**
+   * A message waiting for its result.
+   */
+  private static class Pending{
+
+    private final long scheduled;
+    private final boolean measured;
+
+    Pending(long scheduled, boolean measured){
+      this.scheduled = scheduled;
+      this.measured = measured;
+    }
+  }
+
+  /**
+   * Growable array of latencies in nanoseconds.
+   */
+  private static class LatencyRecorder{
+
+    private long[] values = new long[1024];
+    private int size = 0;
+
+    synchronized void add(long value){
+      if(size == values.length){
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+    }
+
+    synchronized long[] toSortedArray(){
+      long[] result = Arrays.copyOf(values, size);
+      Arrays.sort(result);
+      return result;
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.benchmark;
+
+import edu.kit.datamanager.entities.messaging.DataResourceMessage;
+import edu.kit.datamanager.gemma.plugin.GemmaHandler;
+import edu.kit.datamanager.messaging.client.handler.IMessageHandler.RESULT;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end mapping and upload of local content using the sample mapping of
+ * the README, i.e. reading the input, applying the mapping and uploading the
+ * result to a repository stub, across different input sizes.
+ *
+ * @author jejkal
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MappingBenchmark{
+
+  @Param({"1024", "1048576", "16777216"})
+  public long inputBytes;
+
+  @Param({"java"})
+  public String engine;
+
+  @Param({"false", "true"})
+  public boolean streaming;
+
+  private StubRepository repository;
+  private Path mappingsLocation;
+  private GemmaHandler handler;
+  private DataResourceMessage message;
+
+  @Setup
+  public void setup() throws IOException{
+    repository = new StubRepository(BenchmarkSupport.SAMPLE_RESOURCE);
+    mappingsLocation = BenchmarkSupport.createMappingsLocation();
+    Path input = mappingsLocation.resolve("input.json");
+    BenchmarkSupport.writeDocument(input, inputBytes);
+    handler = BenchmarkSupport.createHandler(repository, mappingsLocation, engine, streaming);
+
+    message = new DataResourceMessage();
+    message.setEntityId("benchmark");
+    message.setSubCategory(DataResourceMessage.SUB_CATEGORY.DATA.getValue());
+    Map<String, String> metadata = new HashMap<>();
+    metadata.put(DataResourceMessage.CONTENT_TYPE_PROPERTY, BenchmarkSupport.CONTENT_TYPE);
+    metadata.put(DataResourceMessage.CONTENT_URI_PROPERTY, input.toUri().toString());
+    metadata.put(DataResourceMessage.CONTENT_PATH_PROPERTY, "input.json");
+    message.setMetadata(metadata);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException{
+    repository.stop();
+    BenchmarkSupport.deleteRecursively(mappingsLocation);
+  }
+
+  @Benchmark
+  public RESULT mapAndUpload(){
+    RESULT result = handler.handle(message);
+    if(!RESULT.SUCCEEDED.equals(result)){
+      throw new IllegalStateException("Mapping failed with result " + result + ".");
+    }
+    return result;
+  }
+}
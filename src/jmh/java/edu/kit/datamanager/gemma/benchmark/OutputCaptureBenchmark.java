@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.benchmark;
+
+import edu.kit.datamanager.gemma.util.ProcessResult;
+import edu.kit.datamanager.gemma.util.PythonUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of capturing process output via PythonUtils.execute for scripts
+ * writing 'outputBytes' in lines of 80 bytes to stdout and stderr. Output
+ * beyond 'maxCapture' is discarded, so the difference to PythonSpawnBenchmark
+ * shows the capture costs.
+ *
+ * @author jejkal
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OutputCaptureBenchmark{
+
+  private static final String SCRIPT = "import sys\n"
+          + "lines = int(sys.argv[1]) // 80\n"
+          + "sys.stdout.write(('o' * 79 + '\\n') * lines)\n"
+          + "sys.stderr.write(('e' * 79 + '\\n') * lines)\n";
+
+  @Param({"python3"})
+  public String python;
+
+  @Param({"0", "65536", "1048576"})
+  public int outputBytes;
+
+  @Param({"65536"})
+  public int maxCapture;
+
+  private Path script;
+
+  @Setup
+  public void setup() throws IOException{
+    script = Files.createTempFile("gemma-benchmark", ".py");
+    Files.write(script, SCRIPT.getBytes(StandardCharsets.UTF_8));
+    PythonUtils.setMaxCapture(maxCapture);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException{
+    Files.deleteIfExists(script);
+    PythonUtils.setMaxCapture(PythonUtils.DEFAULT_MAX_CAPTURE);
+  }
+
+  @Benchmark
+  public int capture(){
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ProcessResult result = PythonUtils.execute(python, script.toString(), out, out, PythonUtils.DEFAULT_TIMEOUT, Integer.toString(outputBytes));
+    return result.getExitCode() + out.size();
+  }
+}
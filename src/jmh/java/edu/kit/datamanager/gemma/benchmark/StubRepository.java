@@ -0,0 +1,160 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Minimal repository stub listening on a random local port. GET requests
+ * return a fixed data resource, all other requests are answered with 201
+ * after reading the request body. Optionally, all responses are delayed by a
+ * fixed latency and received uploads are reported to a listener.
+ *
+ * @author jejkal
+ */
+public class StubRepository{
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final byte[] resource;
+  private final AtomicLong uploads = new AtomicLong(0);
+  private final AtomicLong uploadedBytes = new AtomicLong(0);
+  private volatile long latency = 0;
+  private volatile Consumer<String> uploadListener;
+
+  /**
+   * Create and start a repository stub.
+   *
+   * @param resource The data resource returned for all GET requests.
+   *
+   * @throws IOException If the server cannot be started.
+   */
+  public StubRepository(String resource) throws IOException{
+    this.resource = resource.getBytes(StandardCharsets.UTF_8);
+    //avoid delayed ACKs of small responses dominating all measurements
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/api/v1/dataresources/", this::handle);
+    executor = Executors.newCachedThreadPool();
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  /**
+   * Get the base URL to be used as repositoryBaseUrl.
+   *
+   * @return The base URL.
+   */
+  public String getBaseUrl(){
+    return "http://localhost:" + server.getAddress().getPort() + "/api/v1/dataresources/";
+  }
+
+  /**
+   * Set the time in milliseconds all responses are delayed by, e.g. in order
+   * to emulate a remote repository.
+   *
+   * @param latency The latency in milliseconds.
+   */
+  public void setLatency(long latency){
+    this.latency = latency;
+  }
+
+  /**
+   * Set a listener notified with the request path of each received upload,
+   * e.g. '/api/v1/dataresources/{id}/data/generated/{file}', after the
+   * request body was read.
+   *
+   * @param uploadListener The listener or null.
+   */
+  public void setUploadListener(Consumer<String> uploadListener){
+    this.uploadListener = uploadListener;
+  }
+
+  /**
+   * Get the number of received uploads.
+   *
+   * @return The number of uploads.
+   */
+  public long getUploads(){
+    return uploads.get();
+  }
+
+  /**
+   * Get the number of received upload bytes, including multipart overhead.
+   *
+   * @return The number of bytes.
+   */
+  public long getUploadedBytes(){
+    return uploadedBytes.get();
+  }
+
+  /**
+   * Stop the server.
+   */
+  public void stop(){
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException{
+    try(InputStream in = exchange.getRequestBody()){
+      delay();
+      if("GET".equals(exchange.getRequestMethod())){
+        exchange.sendResponseHeaders(200, resource.length);
+        try(OutputStream out = exchange.getResponseBody()){
+          out.write(resource);
+        }
+        return;
+      }
+      byte[] buffer = new byte[8192];
+      long count = 0;
+      int read;
+      while((read = in.read(buffer)) != -1){
+        count += read;
+      }
+      uploads.incrementAndGet();
+      uploadedBytes.addAndGet(count);
+      Consumer<String> listener = uploadListener;
+      if(listener != null){
+        listener.accept(exchange.getRequestURI().getPath());
+      }
+      exchange.sendResponseHeaders(201, -1);
+    } finally{
+      exchange.close();
+    }
+  }
+
+  private void delay(){
+    if(latency > 0){
+      try{
+        Thread.sleep(latency);
+      } catch(InterruptedException ex){
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
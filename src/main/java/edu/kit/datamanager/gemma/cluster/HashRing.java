@@ -0,0 +1,110 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.cluster;
+
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Consistent hash ring assigning keys to members. Each member is placed on
+ * the ring at 'virtualNodes' positions, a key is owned by the member at the
+ * next position clockwise from the key's hash. Thus, if a member joins or
+ * leaves, only the keys of the affected ring segments change their owner. As
+ * positions only depend on the member ids, all instances seeing the same
+ * members compute the same assignment.
+ *
+ * @author jejkal
+ */
+public class HashRing{
+
+  private static final double RING_SIZE = 0x1p64;
+
+  private final TreeMap<Long, String> ring = new TreeMap<>();
+  private final TreeSet<String> members;
+
+  /**
+   * Default constructor.
+   *
+   * @param members The member ids.
+   * @param virtualNodes The number of positions per member.
+   */
+  public HashRing(Collection<String> members, int virtualNodes){
+    this.members = new TreeSet<>(members);
+    //insert in sorted order, so colliding positions are resolved equally on all instances
+    for(String member : this.members){
+      for(int i = 0; i < virtualNodes; i++){
+        ring.putIfAbsent(hash(member + "#" + i), member);
+      }
+    }
+  }
+
+  /**
+   * Get the owner of 'key'.
+   *
+   * @param key The key, e.g. a resource id.
+   *
+   * @return The owning member or null if the ring has no members.
+   */
+  public String getOwner(String key){
+    if(ring.isEmpty()){
+      return null;
+    }
+    Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+    return (entry != null) ? entry.getValue() : ring.firstEntry().getValue();
+  }
+
+  /**
+   * Get all members in lexicographical order.
+   *
+   * @return The members.
+   */
+  public Collection<String> getMembers(){
+    return Collections.unmodifiableSet(members);
+  }
+
+  /**
+   * Get the fraction of all keys owned by 'member'.
+   *
+   * @param member The member.
+   *
+   * @return The share between 0 and 1.
+   */
+  public double getShare(String member){
+    if(ring.isEmpty()){
+      return 0;
+    }
+    double share = 0;
+    long previous = ring.lastKey();
+    for(Entry<Long, String> entry : ring.entrySet()){
+      if(entry.getValue().equals(member)){
+        //the segment (previous, position] is owned by the member at position, differences are unsigned
+        long length = entry.getKey() - previous;
+        share += (length > 0) ? length : length + RING_SIZE;
+      }
+      previous = entry.getKey();
+    }
+    return (ring.size() == 1) ? 1 : share / RING_SIZE;
+  }
+
+  private static long hash(String value){
+    return Hashing.murmur3_128().hashString(value, StandardCharsets.UTF_8).asLong();
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.cluster;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Backend shared by all plugin instances of a cluster for announcing their
+ * membership. Each instance sends heartbeats periodically. Members without a
+ * heartbeat within the member timeout are considered as left.
+ *
+ * @author jejkal
+ */
+public interface IMembershipBackend{
+
+  /**
+   * Get the backend name as used in the 'partitionBackend' configuration
+   * property.
+   *
+   * @return The backend name.
+   */
+  String getName();
+
+  /**
+   * Announce 'nodeId' as live member and obtain all live members. Members
+   * whose last heartbeat is older than 'memberTimeout' are not returned and
+   * may be removed from the backend.
+   *
+   * @param nodeId The id of the calling member.
+   * @param memberTimeout The time in milliseconds after which a member without
+   * heartbeat is considered as left.
+   *
+   * @return The ids of all live members, including 'nodeId'.
+   *
+   * @throws IOException If the backend is not available.
+   */
+  Set<String> heartbeat(String nodeId, long memberTimeout) throws IOException;
+
+  /**
+   * Remove 'nodeId' from the members, e.g. before shutting down, such that its
+   * partitions are taken over without waiting for the member timeout.
+   *
+   * @param nodeId The id of the leaving member.
+   *
+   * @throws IOException If the backend is not available.
+   */
+  void leave(String nodeId) throws IOException;
+
+  /**
+   * Release all resources.
+   */
+  void close();
+}
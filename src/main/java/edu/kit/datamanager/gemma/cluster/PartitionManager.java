@@ -0,0 +1,283 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.cluster;
+
+import edu.kit.datamanager.entities.messaging.BasicMessage;
+import edu.kit.datamanager.gemma.util.GemmaMetrics;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Partitioning of resources across multiple plugin instances receiving the
+ * same messages. All instances announce themselves at a shared membership
+ * backend every 'heartbeatInterval' milliseconds and assign resources to the
+ * live members via a consistent hash ring over the resource id. Each instance
+ * only processes messages of resources it owns.
+ *
+ * Membership changes are only noticed with the next heartbeat, or after
+ * 'memberTimeout' if a member stopped without leaving. In order not to lose
+ * messages skipped in the meantime, skipped messages are kept for this period.
+ * If the ring changes, all kept messages of resources now owned by this
+ * instance are handed over for processing. Thus, during a rebalance, messages
+ * may be processed twice, but are not lost. Handed over messages are
+ * processed on a separate thread, so a large handoff never delays the next
+ * heartbeat.
+ *
+ * @author jejkal
+ */
+public class PartitionManager{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(PartitionManager.class);
+
+  private final String nodeId;
+  private final IMembershipBackend backend;
+  private final long heartbeatInterval;
+  private final long memberTimeout;
+  private final int virtualNodes;
+  private final int handoffMaxMessages;
+  private final Consumer<List<BasicMessage>> handoff;
+  private final ArrayDeque<SkippedMessage> skipped = new ArrayDeque<>();
+  private volatile HashRing ring;
+  private ScheduledExecutorService scheduler;
+  private volatile ExecutorService handoffExecutor;
+
+  /**
+   * Default constructor.
+   *
+   * @param nodeId The id of this instance, which has to be unique within the
+   * cluster.
+   * @param backend The membership backend.
+   * @param heartbeatInterval The time in milliseconds between two heartbeats.
+   * @param memberTimeout The time in milliseconds after which a member without
+   * heartbeat is considered as left.
+   * @param virtualNodes The number of ring positions per member.
+   * @param handoffMaxMessages The max. number of skipped messages kept for a
+   * handoff.
+   * @param handoff The consumer processing messages handed over after a
+   * rebalance. It is called on a dedicated thread, one handoff at a time.
+   */
+  public PartitionManager(String nodeId, IMembershipBackend backend, long heartbeatInterval, long memberTimeout, int virtualNodes, int handoffMaxMessages, Consumer<List<BasicMessage>> handoff){
+    this.nodeId = nodeId;
+    this.backend = backend;
+    this.heartbeatInterval = heartbeatInterval;
+    this.memberTimeout = memberTimeout;
+    this.virtualNodes = virtualNodes;
+    this.handoffMaxMessages = handoffMaxMessages;
+    this.handoff = handoff;
+    this.ring = new HashRing(Collections.singleton(nodeId), virtualNodes);
+  }
+
+  /**
+   * Join the cluster and start sending heartbeats. If the backend is not
+   * available, this instance owns all resources until the first successful
+   * heartbeat.
+   */
+  public synchronized void start(){
+    if(scheduler != null){
+      return;
+    }
+    handoffExecutor = Executors.newSingleThreadExecutor((r) -> {
+      Thread t = new Thread(r, "gemma-partition-handoff");
+      t.setDaemon(true);
+      return t;
+    });
+    heartbeat();
+    scheduler = Executors.newSingleThreadScheduledExecutor((r) -> {
+      Thread t = new Thread(r, "gemma-partition");
+      t.setDaemon(true);
+      return t;
+    });
+    scheduler.scheduleWithFixedDelay(this::heartbeat, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Check if resource 'entityId' is owned by this instance.
+   *
+   * @param entityId The resource id.
+   *
+   * @return TRUE if messages of the resource are processed by this instance.
+   */
+  public boolean isOwned(String entityId){
+    return nodeId.equals(ring.getOwner(entityId));
+  }
+
+  /**
+   * Check if the resource of 'message' is owned by this instance. If not, the
+   * message is remembered in order to hand it over if this instance becomes
+   * the owner. Both happen atomically with respect to a rebalance, so no
+   * message is missed by the handoff.
+   *
+   * @param message The message.
+   *
+   * @return TRUE if the message has to be processed by this instance, FALSE if
+   * it is skipped.
+   */
+  public boolean claim(BasicMessage message){
+    long now = System.currentTimeMillis();
+    synchronized(skipped){
+      if(isOwned(message.getEntityId())){
+        return true;
+      }
+      expire(now);
+      skipped.addLast(new SkippedMessage(now, message));
+      if(skipped.size() > handoffMaxMessages){
+        skipped.removeFirst();
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Get the id of this instance.
+   *
+   * @return The node id.
+   */
+  public String getNodeId(){
+    return nodeId;
+  }
+
+  /**
+   * Get the number of live members including this instance.
+   *
+   * @return The number of members.
+   */
+  public int getMembers(){
+    return ring.getMembers().size();
+  }
+
+  /**
+   * Get the fraction of all resources owned by this instance.
+   *
+   * @return The share between 0 and 1.
+   */
+  public double getShare(){
+    return ring.getShare(nodeId);
+  }
+
+  /**
+   * Stop sending heartbeats and leave the cluster, such that the remaining
+   * members take over immediately.
+   */
+  public synchronized void close(){
+    if(scheduler != null){
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+    if(handoffExecutor != null){
+      handoffExecutor.shutdownNow();
+      handoffExecutor = null;
+    }
+    try{
+      backend.leave(nodeId);
+    } catch(IOException ex){
+      LOGGER.warn("Failed to leave cluster. Remaining members take over after the member timeout.", ex);
+    }
+    backend.close();
+  }
+
+  /**
+   * Send a heartbeat and rebalance if the members have changed.
+   */
+  private void heartbeat(){
+    Set<String> members;
+    try{
+      members = new HashSet<>(backend.heartbeat(nodeId, memberTimeout));
+    } catch(IOException | RuntimeException ex){
+      LOGGER.warn("Failed to send heartbeat to " + backend.getName() + " backend. Keeping current partitions.", ex);
+      return;
+    }
+    members.add(nodeId);
+    HashRing previous = ring;
+    if(members.equals(new HashSet<>(previous.getMembers()))){
+      return;
+    }
+    HashRing next = new HashRing(members, virtualNodes);
+    LOGGER.info("Cluster members changed from {} to {}. Instance {} owns {}% of all resources.", previous.getMembers(), next.getMembers(), nodeId, String.format("%.1f", next.getShare(nodeId) * 100));
+    GemmaMetrics.count(GemmaMetrics.PARTITION_REBALANCES);
+
+    List<BasicMessage> takenOver = new ArrayList<>();
+    synchronized(skipped){
+      ring = next;
+      expire(System.currentTimeMillis());
+      Iterator<SkippedMessage> it = skipped.iterator();
+      while(it.hasNext()){
+        BasicMessage message = it.next().message;
+        if(nodeId.equals(next.getOwner(message.getEntityId()))){
+          takenOver.add(message);
+          it.remove();
+          GemmaMetrics.count(GemmaMetrics.PARTITION_HANDOFF);
+        }
+      }
+    }
+    if(!takenOver.isEmpty()){
+      LOGGER.info("Taking over {} message(s) skipped before the rebalance.", takenOver.size());
+      ExecutorService executor = handoffExecutor;
+      if(executor == null){
+        LOGGER.warn("Partition manager is closed. Dropping {} message(s) taken over after rebalance.", takenOver.size());
+        return;
+      }
+      try{
+        executor.execute(() -> {
+          try{
+            handoff.accept(takenOver);
+          } catch(RuntimeException ex){
+            LOGGER.error("Failed to process messages taken over after rebalance.", ex);
+          }
+        });
+      } catch(RejectedExecutionException ex){
+        LOGGER.warn("Partition manager is closed. Dropping {} message(s) taken over after rebalance.", takenOver.size());
+      }
+    }
+  }
+
+  /**
+   * Drop all skipped messages older than a member timeout and a heartbeat
+   * interval, which is the longest time until a membership change is noticed.
+   */
+  private void expire(long now){
+    while(!skipped.isEmpty() && now - skipped.peekFirst().skipped > memberTimeout + heartbeatInterval){
+      skipped.removeFirst();
+    }
+  }
+
+  /**
+   * A message skipped at a certain time.
+   */
+  private static class SkippedMessage{
+
+    private final long skipped;
+    private final BasicMessage message;
+
+    SkippedMessage(long skipped, BasicMessage message){
+      this.skipped = skipped;
+      this.message = message;
+    }
+  }
+}
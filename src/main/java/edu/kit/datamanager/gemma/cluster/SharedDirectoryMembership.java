@@ -0,0 +1,138 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.cluster;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Membership backend using a directory shared by all instances, e.g. a local
+ * directory for testing or a network file system. Each member owns a file
+ * '{nodeId}.member' containing the time of its last heartbeat. All accesses
+ * are serialized via a lock on the file '.lock', which also removes members
+ * whose heartbeat has expired. As heartbeats are compared with the local
+ * clock, the clocks of all hosts have to be synchronized.
+ *
+ * @author jejkal
+ */
+public class SharedDirectoryMembership implements IMembershipBackend{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(SharedDirectoryMembership.class);
+
+  public static final String NAME = "directory";
+
+  private static final String MEMBER_SUFFIX = ".member";
+
+  /**
+   * File locks are held by the JVM, thus instances within the same JVM are
+   * serialized locally.
+   */
+  private static final Object LOCAL_LOCK = new Object();
+
+  private final Path directory;
+
+  /**
+   * Default constructor.
+   *
+   * @param directory The shared directory.
+   */
+  public SharedDirectoryMembership(Path directory){
+    this.directory = directory;
+  }
+
+  @Override
+  public String getName(){
+    return NAME;
+  }
+
+  @Override
+  public Set<String> heartbeat(String nodeId, long memberTimeout) throws IOException{
+    synchronized(LOCAL_LOCK){
+      Files.createDirectories(directory);
+      try(FileChannel channel = FileChannel.open(directory.resolve(".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)){
+        FileLock lock = channel.lock();
+        try{
+          long now = System.currentTimeMillis();
+          Path memberFile = getMemberFile(nodeId);
+          Path tmp = directory.resolve(memberFile.getFileName() + ".tmp");
+          Files.write(tmp, Long.toString(now).getBytes(StandardCharsets.UTF_8));
+          Files.move(tmp, memberFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+          Set<String> members = new HashSet<>();
+          try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + MEMBER_SUFFIX)){
+            for(Path file : files){
+              String fileName = file.getFileName().toString();
+              String member = URLDecoder.decode(fileName.substring(0, fileName.length() - MEMBER_SUFFIX.length()), StandardCharsets.UTF_8);
+              long lastHeartbeat;
+              try{
+                lastHeartbeat = Long.parseLong(new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim());
+              } catch(NumberFormatException ex){
+                LOGGER.warn("Removing invalid member file {}.", file);
+                Files.deleteIfExists(file);
+                continue;
+              }
+              if(now - lastHeartbeat > memberTimeout){
+                LOGGER.info("Member {} did not send a heartbeat for {} ms. Removing member.", member, now - lastHeartbeat);
+                Files.deleteIfExists(file);
+                continue;
+              }
+              members.add(member);
+            }
+          }
+          return members;
+        } finally{
+          lock.release();
+        }
+      }
+    }
+  }
+
+  @Override
+  public void leave(String nodeId) throws IOException{
+    synchronized(LOCAL_LOCK){
+      try(FileChannel channel = FileChannel.open(directory.resolve(".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)){
+        FileLock lock = channel.lock();
+        try{
+          Files.deleteIfExists(getMemberFile(nodeId));
+        } finally{
+          lock.release();
+        }
+      }
+    }
+  }
+
+  @Override
+  public void close(){
+    //no resources are held between calls
+  }
+
+  private Path getMemberFile(String nodeId){
+    return directory.resolve(URLEncoder.encode(nodeId, StandardCharsets.UTF_8) + MEMBER_SUFFIX);
+  }
+}
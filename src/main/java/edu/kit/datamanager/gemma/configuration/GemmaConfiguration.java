@@ -16,6 +16,9 @@
 package edu.kit.datamanager.gemma.configuration;
 
 import edu.kit.datamanager.configuration.GenericPluginProperties;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
@@ -30,7 +33,7 @@ import org.springframework.context.annotation.Configuration;
 @Data
 public class GemmaConfiguration extends GenericPluginProperties{
 
-  private Map<String, String> schemaMappings;
+  private Map<String, List<String>> schemaMappings;
 
   private String mappingsLocation;
 
@@ -38,4 +41,132 @@ public class GemmaConfiguration extends GenericPluginProperties{
 
   private String gemmaLocation;
 
+  private int repositoryMaxConnections = 20;
+
+  private long repositoryKeepAlive = 30000;
+
+  private int repositoryConnectTimeout = 5000;
+
+  private int repositoryReadTimeout = 30000;
+
+  private boolean compressUploads = false;
+
+  private int repositoryFailureThreshold = 5;
+
+  private long repositoryOpenDuration = 30000;
+
+  private int retryMaxAttempts = 3;
+
+  private long retryInitialBackoff = 1000;
+
+  private long retryMaxBackoff = 60000;
+
+  private String failureJournalLocation;
+
+  private String outputSink = "repository";
+
+  private String elasticsearchUrl;
+
+  private String elasticsearchIndex = "gemma";
+
+  private int elasticsearchBulkMaxDocuments = 500;
+
+  private long elasticsearchBulkMaxBytes = 5L * 1024L * 1024L;
+
+  private long elasticsearchFlushInterval = 1000;
+
+  private int elasticsearchRetries = 3;
+
+  private int elasticsearchTimeout = 30000;
+
+  private Map<String, String> engines = new HashMap<>();
+
+  private String defaultEngine = "gemma";
+
+  private Map<String, Long> mappingTimeouts = new HashMap<>();
+
+  private long defaultMappingTimeout = 30000;
+
+  private int maxOutputCapture = 64 * 1024;
+
+  private int workerPoolSize = 0;
+
+  private int workerMaxJobs = 500;
+
+  private long workerHealthCheckInterval = 30000;
+
+  private int pipelineLanes = 0;
+
+  private int pipelineCapacity = 100;
+
+  private long pipelineSubmitTimeout = 10000;
+
+  private long pipelineShutdownTimeout = 30000;
+
+  private int pipelineInteractiveLanes = 1;
+
+  private int pipelineBulkLanes = 1;
+
+  private long bulkSizeThreshold = 16L * 1024L * 1024L;
+
+  private long bulkMemoryBudget = 0;
+
+  private double bulkMemoryFactor = 2.0;
+
+  private long debounceWindow = 0;
+
+  private int debounceMaxPending = 10000;
+
+  private String workspaceLocation;
+
+  private long workspaceQuota = 0;
+
+  private long workspaceTimeout = 60000;
+
+  private boolean streaming = false;
+
+  private int streamBufferSize = 64 * 1024;
+
+  private String contentHashIndexLocation;
+
+  private int contentHashIndexMaxEntries = 100000;
+
+  private boolean fieldDependencyTracking = false;
+
+  private String partitionBackend;
+
+  private String partitionDirectory;
+
+  private String partitionNodeId;
+
+  private long partitionHeartbeatInterval = 2000;
+
+  private long partitionMemberTimeout = 10000;
+
+  private int partitionVirtualNodes = 128;
+
+  private int partitionHandoffMaxMessages = 10000;
+
+  private List<String> remoteContentSchemes = new ArrayList<>();
+
+  private long remoteContentMaxSize = 1024L * 1024L * 1024L;
+
+  private int remoteContentMaxConnections = 20;
+
+  private int remoteContentTimeout = 30000;
+
+  private int remoteContentRetries = 3;
+
+  private long uploadRegistryTtl = 600000;
+
+  private int uploadRegistryMaxEntries = 10000;
+
+  private int reindexConcurrency = 4;
+
+  private double reindexRate = 0;
+
+  private int reindexPageSize = 50;
+
+  private String reindexCheckpointLocation;
+
 }
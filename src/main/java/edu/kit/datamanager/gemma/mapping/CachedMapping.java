@@ -0,0 +1,118 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.mapping;
+
+import java.nio.file.Path;
+
+/**
+ * A mapping file loaded into the mapping cache. Besides the file location,
+ * the cached mapping holds the compiled mapping definition, a hash of the
+ * file content, which serves as mapping version, and the location of a
+ * snapshot of the content for engines reading the mapping from disk. If multiple mappings are
+ * configured for a content type, all but the first one have a projection name
+ * distinguishing their output.
+ *
+ * @author jejkal
+ */
+public class CachedMapping{
+
+  private final String contentType;
+  private final String projection;
+  private final Path path;
+  private final Path snapshotPath;
+  private final String hash;
+  private final MappingDefinition definition;
+  private final String compileError;
+
+  CachedMapping(String contentType, String projection, Path path, Path snapshotPath, String hash, MappingDefinition definition, String compileError){
+    this.contentType = contentType;
+    this.projection = projection;
+    this.path = path;
+    this.snapshotPath = snapshotPath;
+    this.hash = hash;
+    this.definition = definition;
+    this.compileError = compileError;
+  }
+
+  /**
+   * Get the content type this mapping is registered for.
+   *
+   * @return The content type.
+   */
+  public String getContentType(){
+    return contentType;
+  }
+
+  /**
+   * Get the projection name, which is the mapping filename without extension.
+   *
+   * @return The projection name or null for the first mapping of a content
+   * type.
+   */
+  public String getProjection(){
+    return projection;
+  }
+
+  /**
+   * Get the location of the mapping file.
+   *
+   * @return The mapping file path.
+   */
+  public Path getPath(){
+    return path;
+  }
+
+  /**
+   * Get the location of an unmodifiable copy of the mapping file content this
+   * mapping was loaded from. In contrast to the mapping file itself, the
+   * snapshot always matches the hash, even if the mapping file was changed
+   * afterwards.
+   *
+   * @return The snapshot path.
+   */
+  public Path getSnapshotPath(){
+    return snapshotPath;
+  }
+
+  /**
+   * Get the SHA-256 hash of the mapping file content, which can be used as
+   * version of the mapping.
+   *
+   * @return The hex-encoded hash.
+   */
+  public String getHash(){
+    return hash;
+  }
+
+  /**
+   * Get the compiled mapping definition used by the native engine.
+   *
+   * @return The definition or null if the mapping uses features not supported
+   * by the native engine.
+   */
+  public MappingDefinition getDefinition(){
+    return definition;
+  }
+
+  /**
+   * Get the reason why the mapping could not be compiled.
+   *
+   * @return The error message or null if the mapping was compiled.
+   */
+  public String getCompileError(){
+    return compileError;
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.mapping;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Source paths read by a set of mappings, obtained from their compiled
+ * definitions. As the result of a mapping only depends on the values at these
+ * paths, two documents having the same fingerprint produce the same mapping
+ * results, even if they differ in fields no mapping reads.
+ *
+ * @author jejkal
+ */
+public class FieldDependencies{
+
+  /**
+   * Prefix of all fingerprints, which distinguishes them from plain content
+   * hashes.
+   */
+  public static final String FINGERPRINT_PREFIX = "fields:";
+
+  private final Set<String> paths;
+  private final Set<String> pathPrefixes;
+
+  private FieldDependencies(Set<String> paths, Set<String> pathPrefixes){
+    this.paths = Collections.unmodifiableSet(new TreeSet<>(paths));
+    this.pathPrefixes = Collections.unmodifiableSet(pathPrefixes);
+  }
+
+  /**
+   * Collect the source paths of all provided mappings.
+   *
+   * @param mappings The mappings.
+   *
+   * @return The dependencies or null, if any mapping has no compiled
+   * definition, i.e. its source paths are unknown.
+   */
+  public static FieldDependencies of(List<CachedMapping> mappings){
+    Set<String> paths = new HashSet<>();
+    Set<String> prefixes = new HashSet<>();
+    for(CachedMapping mapping : mappings){
+      if(mapping.getDefinition() == null){
+        return null;
+      }
+      paths.addAll(mapping.getDefinition().getPaths());
+      prefixes.addAll(mapping.getDefinition().getPathPrefixes());
+    }
+    return new FieldDependencies(paths, prefixes);
+  }
+
+  /**
+   * Get all source paths in lexicographical order.
+   *
+   * @return The source paths.
+   */
+  public Set<String> getPaths(){
+    return paths;
+  }
+
+  /**
+   * Compute the fingerprint of the values located at all source paths of
+   * 'document'. Parts of the document not leading to any source path are
+   * skipped while parsing.
+   *
+   * @param document The document.
+   * @param contentType The content type of the document.
+   *
+   * @return The fingerprint starting with FINGERPRINT_PREFIX.
+   *
+   * @throws IOException If the document cannot be read or parsed.
+   */
+  public String fingerprint(Path document, String contentType) throws IOException{
+    Map<String, List<JsonNode>> values;
+    try(InputStream in = Files.newInputStream(document)){
+      values = SourceValueCollector.collect(in, contentType, paths, pathPrefixes);
+    }
+    Hasher hasher = Hashing.sha256().newHasher();
+    for(String path : paths){
+      List<JsonNode> pathValues = values.getOrDefault(path, Collections.emptyList());
+      //include path and count, so values cannot be confused between paths
+      hasher.putString(path, StandardCharsets.UTF_8).putInt(pathValues.size());
+      for(JsonNode value : pathValues){
+        String serialized = value.toString();
+        hasher.putInt(serialized.length()).putString(serialized, StandardCharsets.UTF_8);
+      }
+    }
+    return FINGERPRINT_PREFIX + hasher.hash().toString();
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.mapping;
+
+import edu.kit.datamanager.gemma.util.ProcessResult;
+import edu.kit.datamanager.gemma.util.PythonUtils;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Mapping engine delegating to the Gemma Python implementation. Gemma reads
+ * the snapshot of the cached mapping version instead of the mapping file, so
+ * the output always matches the mapping hash. Multiple mappings of a content
+ * type are applied by a single worker request or Python process.
+ *
+ * @author jejkal
+ */
+public class GemmaMappingEngine implements IMappingEngine{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(GemmaMappingEngine.class);
+
+  public static final String NAME = "gemma";
+
+  private final String pythonLocation;
+  private final String gemmaLocation;
+
+  /**
+   * Default constructor.
+   *
+   * @param pythonLocation The absolute path to a local python executable.
+   * @param gemmaLocation The absolute path to the Gemma main script.
+   */
+  public GemmaMappingEngine(String pythonLocation, String gemmaLocation){
+    this.pythonLocation = pythonLocation;
+    this.gemmaLocation = gemmaLocation;
+  }
+
+  @Override
+  public int map(CachedMapping mapping, Path inputFile, String contentType, Path outputFile, OutputStream log, long timeout){
+    ProcessResult result = PythonUtils.runMapping(pythonLocation, gemmaLocation, log, timeout, mapping.getSnapshotPath().toAbsolutePath().toString(), inputFile.toAbsolutePath().toString(), outputFile.toAbsolutePath().toString());
+    if(!result.isSuccess()){
+      LOGGER.warn("Gemma mapping of {} with mapping {} failed: {}", inputFile, mapping.getPath(), result);
+    }
+    return result.getExitCode();
+  }
+
+  @Override
+  public int map(CachedMapping mapping, InputStream input, String contentType, OutputStream output, OutputStream log, long timeout){
+    ProcessResult result = PythonUtils.runMapping(pythonLocation, gemmaLocation, input, output, log, timeout, mapping.getSnapshotPath().toAbsolutePath().toString());
+    if(!result.isSuccess()){
+      LOGGER.warn("Gemma mapping of {} stream with mapping {} failed: {}", contentType, mapping.getPath(), result);
+    }
+    return result.getExitCode();
+  }
+
+  /**
+   * Apply all mappings in a single Gemma worker request, or a single Python
+   * process if the worker pool is not running, so the input is read once and
+   * the timeout applies to all mappings together.
+   */
+  @Override
+  public int map(List<CachedMapping> mappings, Path inputFile, String contentType, List<Path> outputFiles, OutputStream log, long timeout){
+    if(mappings.size() == 1){
+      return map(mappings.get(0), inputFile, contentType, outputFiles.get(0), log, timeout);
+    }
+    List<String> mappingFiles = new ArrayList<>();
+    List<String> outputs = new ArrayList<>();
+    for(int i = 0; i < mappings.size(); i++){
+      mappingFiles.add(mappings.get(i).getSnapshotPath().toAbsolutePath().toString());
+      outputs.add(outputFiles.get(i).toAbsolutePath().toString());
+    }
+    ProcessResult result = PythonUtils.runMapping(pythonLocation, gemmaLocation, log, timeout, mappingFiles, inputFile.toAbsolutePath().toString(), outputs);
+    if(!result.isSuccess()){
+      LOGGER.warn("Gemma mapping of {} with {} mappings failed: {}", inputFile, mappings.size(), result);
+    }
+    return result.getExitCode();
+  }
+
+  @Override
+  public String getName(){
+    return NAME;
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.mapping;
+
+import edu.kit.datamanager.gemma.util.PythonUtils;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Engine applying a Gemma mapping file to a content file.
+ *
+ * @author jejkal
+ */
+public interface IMappingEngine{
+
+  /**
+   * Apply the provided mapping to the content at 'inputFile' and write the
+   * result to 'outputFile'.
+   *
+   * @param mapping The mapping obtained from the mapping cache.
+   * @param inputFile The file containing the content to map.
+   * @param contentType The content type of the content in 'inputFile'.
+   * @param outputFile The file receiving the mapping result.
+   * @param log The stream receiving all output produced while mapping.
+   * @param timeout The timeout in milliseconds after which the mapping is
+   * aborted. Engines running in the current thread may ignore the timeout.
+   *
+   * @return 0 if the mapping succeeded, any other value otherwise.
+   */
+  int map(CachedMapping mapping, Path inputFile, String contentType, Path outputFile, OutputStream log, long timeout);
+
+  /**
+   * Apply the provided mapping to the content read from 'input' and write the
+   * result to 'output'. Neither stream is closed by this method.
+   *
+   * @param mapping The mapping obtained from the mapping cache.
+   * @param input The stream providing the content to map.
+   * @param contentType The content type of the content read from 'input'.
+   * @param output The stream receiving the mapping result.
+   * @param log The stream receiving all other output produced while mapping.
+   * @param timeout The timeout in milliseconds after which the mapping is
+   * aborted. Engines running in the current thread may ignore the timeout.
+   *
+   * @return 0 if the mapping succeeded, any other value otherwise.
+   */
+  int map(CachedMapping mapping, InputStream input, String contentType, OutputStream output, OutputStream log, long timeout);
+
+  /**
+   * Apply all provided mappings to the content at 'inputFile' and write each
+   * result to the output file at the same index. By default, the mappings are
+   * applied one after another, each with the time left until the timeout of
+   * all mappings. Engines able to apply multiple mappings in a single pass
+   * over the content should override this method.
+   *
+   * @param mappings The mappings obtained from the mapping cache.
+   * @param inputFile The file containing the content to map.
+   * @param contentType The content type of the content in 'inputFile'.
+   * @param outputFiles The files receiving the mapping results.
+   * @param log The stream receiving all output produced while mapping.
+   * @param timeout The timeout in milliseconds after which all mappings
+   * together are aborted. Engines running in the current thread may ignore
+   * the timeout.
+   *
+   * @return 0 if all mappings succeeded, the result of the first failed
+   * mapping otherwise.
+   */
+  default int map(List<CachedMapping> mappings, Path inputFile, String contentType, List<Path> outputFiles, OutputStream log, long timeout){
+    long deadline = System.currentTimeMillis() + timeout;
+    for(int i = 0; i < mappings.size(); i++){
+      long remaining = deadline - System.currentTimeMillis();
+      if(remaining <= 0){
+        return PythonUtils.TIMEOUT_ERROR;
+      }
+      int result = map(mappings.get(i), inputFile, contentType, outputFiles.get(i), log, remaining);
+      if(result != 0){
+        return result;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Get the name of the engine used for logging and configuration.
+   *
+   * @return The engine name.
+   */
+  String getName();
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.mapping;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory cache of all configured mapping files keyed by content type. Each
+ * content type may have multiple mappings, which are applied in a single pass
+ * over the content. All mapping files are loaded and validated once.
+ * Afterwards, the folder containing the mappings and all folders containing
+ * configured mapping files are watched and the mappings of a content type are
+ * reloaded as soon as one of their files changes. A changed mapping only
+ * replaces the cached version if it is valid, i.e. mappings of content types
+ * executed by the native engine have to compile. For engines reading mappings
+ * from disk, the content of each loaded version is copied to a snapshot file,
+ * so they never see a changed mapping file the cache has not accepted. Jobs
+ * acquire the mappings they use, and a snapshot is deleted as soon as it
+ * belongs neither to a cached mapping nor to a running job.
+ *
+ * @author jejkal
+ */
+public class MappingCache{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(MappingCache.class);
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private final Path mappingsLocation;
+  private final Map<String, List<String>> schemaMappings;
+  private final Set<String> nativeContentTypes;
+  private final Map<String, List<CachedMapping>> cache = new ConcurrentHashMap<>();
+  private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+  private WatchService watchService;
+  private Thread watcher;
+  private final Path configuredSnapshotLocation;
+  private Path snapshotLocation;
+  /**
+   * All snapshot files written by this cache with the number of running jobs
+   * using them.
+   */
+  private final Map<Path, Integer> snapshots = new HashMap<>();
+
+  /**
+   * Default constructor. Snapshots are written to a temporary directory.
+   *
+   * @param mappingsLocation The folder containing all mapping files.
+   * @param schemaMappings The map of content type to mapping filenames.
+   */
+  public MappingCache(String mappingsLocation, Map<String, List<String>> schemaMappings){
+    this(mappingsLocation, schemaMappings, Collections.emptySet());
+  }
+
+  /**
+   * Create a mapping cache validating the mappings of 'nativeContentTypes'
+   * for the native engine.
+   *
+   * @param mappingsLocation The folder containing all mapping files.
+   * @param schemaMappings The map of content type to mapping filenames.
+   * @param nativeContentTypes All content types executed by the native engine,
+   * whose mappings have to compile.
+   */
+  public MappingCache(String mappingsLocation, Map<String, List<String>> schemaMappings, Set<String> nativeContentTypes){
+    this(mappingsLocation, schemaMappings, nativeContentTypes, null);
+  }
+
+  /**
+   * Create a mapping cache writing snapshots to 'snapshotLocation'. The folder
+   * is used exclusively by this cache, i.e. files left behind by a previous
+   * run are removed as soon as the first snapshot is written.
+   *
+   * @param mappingsLocation The folder containing all mapping files.
+   * @param schemaMappings The map of content type to mapping filenames.
+   * @param nativeContentTypes All content types executed by the native engine,
+   * whose mappings have to compile.
+   * @param snapshotLocation The folder for mapping snapshots or null to use a
+   * temporary directory.
+   */
+  public MappingCache(String mappingsLocation, Map<String, List<String>> schemaMappings, Set<String> nativeContentTypes, Path snapshotLocation){
+    this.mappingsLocation = Paths.get(mappingsLocation).toAbsolutePath();
+    this.schemaMappings = schemaMappings;
+    this.nativeContentTypes = nativeContentTypes;
+    this.configuredSnapshotLocation = snapshotLocation;
+  }
+
+  /**
+   * Load all configured mapping files into the cache.
+   *
+   * @throws IOException If any mapping file cannot be read, is no valid JSON
+   * document or cannot be compiled for the native engine.
+   */
+  public void load() throws IOException{
+    for(String contentType : schemaMappings.keySet()){
+      update(contentType);
+    }
+  }
+
+  /**
+   * Get all mappings for the provided content type in configuration order. If
+   * the mappings were invalidated, e.g. because a file was deleted, they are
+   * loaded again.
+   *
+   * @param contentType The content type.
+   *
+   * @return The unmodifiable list of mappings or null if no valid mappings are
+   * available.
+   */
+  public List<CachedMapping> get(String contentType){
+    List<CachedMapping> mappings = cache.get(contentType);
+    if(mappings == null && schemaMappings.containsKey(contentType)){
+      try{
+        mappings = update(contentType);
+      } catch(IOException ex){
+        LOGGER.error("Failed to load mappings for content type " + contentType + ".", ex);
+      }
+    }
+    return mappings;
+  }
+
+  /**
+   * Get all mappings for the provided content type like {@link #get(String)}
+   * and keep their snapshots until they are released, even if the mappings
+   * are reloaded in the meantime.
+   *
+   * @param contentType The content type.
+   *
+   * @return The unmodifiable list of mappings or null if no valid mappings are
+   * available.
+   */
+  public synchronized List<CachedMapping> acquire(String contentType){
+    List<CachedMapping> mappings = get(contentType);
+    if(mappings != null){
+      for(CachedMapping mapping : mappings){
+        snapshots.merge(mapping.getSnapshotPath(), 1, Integer::sum);
+      }
+    }
+    return mappings;
+  }
+
+  /**
+   * Release mappings obtained via {@link #acquire(String)}. Snapshots of
+   * replaced mapping versions are deleted as soon as no job uses them.
+   *
+   * @param mappings The mappings to release.
+   */
+  public synchronized void release(List<CachedMapping> mappings){
+    for(CachedMapping mapping : mappings){
+      snapshots.computeIfPresent(mapping.getSnapshotPath(), (path, users) -> users - 1);
+    }
+    purge();
+  }
+
+  /**
+   * Stop watching the mappings location and delete all snapshots.
+   */
+  public synchronized void close(){
+    stopWatching();
+    cache.clear();
+    for(Path snapshot : snapshots.keySet()){
+      delete(snapshot);
+    }
+    snapshots.clear();
+    if(snapshotLocation != null && configuredSnapshotLocation == null){
+      delete(snapshotLocation);
+    }
+  }
+
+  /**
+   * Start watching the mappings location and all folders containing mapping
+   * files for changes. Modified mapping files are reloaded, deleted mapping
+   * files are removed from the cache. Folders are not watched recursively,
+   * i.e. only folders containing a mapping file at startup are watched.
+   *
+   * @throws IOException If the watch service cannot be registered.
+   */
+  public synchronized void startWatching() throws IOException{
+    if(watchService != null){
+      return;
+    }
+    watchService = FileSystems.getDefault().newWatchService();
+    Set<Path> directories = new HashSet<>();
+    directories.add(mappingsLocation);
+    for(List<String> filenames : schemaMappings.values()){
+      for(String filename : filenames){
+        directories.add(resolve(filename).getParent());
+      }
+    }
+    for(Path directory : directories){
+      watchedDirectories.put(directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), directory);
+    }
+    watcher = new Thread(this::watch, "gemma-mapping-watcher");
+    watcher.setDaemon(true);
+    watcher.start();
+    LOGGER.trace("Watching mapping folders {} for changes.", directories);
+  }
+
+  /**
+   * Stop watching the mappings location.
+   */
+  public synchronized void stopWatching(){
+    if(watchService != null){
+      try{
+        watchService.close();
+      } catch(IOException ex){
+        LOGGER.warn("Failed to close mapping watch service.", ex);
+      }
+      watchService = null;
+      watchedDirectories.clear();
+    }
+  }
+
+  private void watch(){
+    WatchService service = watchService;
+    while(true){
+      WatchKey key;
+      try{
+        key = service.take();
+      } catch(InterruptedException | ClosedWatchServiceException ex){
+        return;
+      }
+      for(WatchEvent<?> event : key.pollEvents()){
+        if(event.kind() == StandardWatchEventKinds.OVERFLOW){
+          LOGGER.trace("Watch events lost. Reloading all mappings.");
+          schemaMappings.keySet().forEach(this::reload);
+          continue;
+        }
+        Path directory = watchedDirectories.get(key);
+        if(directory == null){
+          continue;
+        }
+        Path changed = directory.resolve((Path) event.context());
+        String filename = mappingsLocation.relativize(changed).toString();
+        for(Entry<String, List<String>> entry : schemaMappings.entrySet()){
+          if(entry.getValue().stream().anyMatch((f) -> resolve(f).equals(changed))){
+            if(event.kind() == StandardWatchEventKinds.ENTRY_DELETE){
+              LOGGER.warn("Mapping file {} for content type {} was deleted.", filename, entry.getKey());
+              remove(entry.getKey());
+            } else{
+              reload(entry.getKey());
+            }
+          }
+        }
+      }
+      if(!key.reset()){
+        Path directory = watchedDirectories.remove(key);
+        LOGGER.warn("Mapping folder {} is no longer accessible. Stopped watching it for changes.", directory);
+        if(watchedDirectories.isEmpty()){
+          return;
+        }
+      }
+    }
+  }
+
+  private void reload(String contentType){
+    try{
+      List<CachedMapping> mappings = update(contentType);
+      for(CachedMapping mapping : mappings){
+        LOGGER.info("Reloaded mapping {} for content type {} with version {}.", mapping.getPath().getFileName(), contentType, mapping.getHash());
+      }
+    } catch(IOException ex){
+      LOGGER.warn("Failed to reload mappings for content type " + contentType + ". Keeping previous version.", ex);
+    }
+  }
+
+  /**
+   * Load the mappings of a content type, replace the cached version and
+   * delete snapshots no longer used. Loading and replacing is atomic with
+   * respect to the cleanup, so a new snapshot is never deleted before it is
+   * cached.
+   */
+  private synchronized List<CachedMapping> update(String contentType) throws IOException{
+    List<CachedMapping> mappings = loadMappings(contentType, schemaMappings.get(contentType));
+    cache.put(contentType, mappings);
+    purge();
+    return mappings;
+  }
+
+  private synchronized void remove(String contentType){
+    cache.remove(contentType);
+    purge();
+  }
+
+  /**
+   * Delete all snapshots which belong neither to a cached mapping nor to a
+   * running job.
+   */
+  private synchronized void purge(){
+    Set<Path> current = new HashSet<>();
+    for(List<CachedMapping> mappings : cache.values()){
+      for(CachedMapping mapping : mappings){
+        current.add(mapping.getSnapshotPath());
+      }
+    }
+    snapshots.entrySet().removeIf((entry) -> {
+      if(entry.getValue() > 0 || current.contains(entry.getKey())){
+        return false;
+      }
+      LOGGER.trace("Deleting unused mapping snapshot {}.", entry.getKey());
+      delete(entry.getKey());
+      return true;
+    });
+  }
+
+  private List<CachedMapping> loadMappings(String contentType, List<String> filenames) throws IOException{
+    if(filenames == null || filenames.isEmpty()){
+      throw new IOException("No mapping file configured for content type " + contentType + ".");
+    }
+    List<CachedMapping> mappings = new ArrayList<>();
+    Set<String> projections = new HashSet<>();
+    for(String filename : filenames){
+      String projection = null;
+      if(!mappings.isEmpty()){
+        projection = (filename.contains(".")) ? filename.substring(0, filename.lastIndexOf(".")) : filename;
+        if(!projections.add(projection)){
+          throw new IOException("Mapping files for content type " + contentType + " result in duplicate projection name " + projection + ".");
+        }
+      }
+      mappings.add(loadMapping(contentType, projection, filename));
+    }
+    return Collections.unmodifiableList(mappings);
+  }
+
+  private CachedMapping loadMapping(String contentType, String projection, String filename) throws IOException{
+    Path path = resolve(filename);
+    LOGGER.trace("Loading mapping file {} for content type {}.", path, contentType);
+    byte[] content = Files.readAllBytes(path);
+    JsonNode document = MAPPER.readTree(content);
+    if(document == null || !document.isObject()){
+      throw new IOException("Mapping file " + path + " does not contain a JSON object.");
+    }
+    MappingDefinition definition = null;
+    String compileError = null;
+    try{
+      definition = MappingDefinition.fromJson(document);
+    } catch(IOException ex){
+      compileError = ex.getMessage();
+    }
+    if(definition == null && nativeContentTypes.contains(contentType)){
+      throw new IOException("Mapping file " + path + " for content type " + contentType + " is not supported by the native engine: " + compileError);
+    }
+    String hash = Hashing.sha256().hashBytes(content).toString();
+    return new CachedMapping(contentType, projection, path, snapshot(path, hash, content), hash, definition, compileError);
+  }
+
+  /**
+   * Write the content of a mapping version to a snapshot file named by its
+   * hash. Existing snapshots are not modified, as they may be read by running
+   * mappings.
+   */
+  private synchronized Path snapshot(Path path, String hash, byte[] content) throws IOException{
+    if(snapshotLocation == null){
+      snapshotLocation = createSnapshotLocation();
+    }
+    Path snapshot = snapshotLocation.resolve(hash + "_" + path.getFileName());
+    if(!Files.exists(snapshot)){
+      Path tmp = snapshotLocation.resolve(snapshot.getFileName() + ".tmp");
+      Files.write(tmp, content);
+      Files.move(tmp, snapshot, StandardCopyOption.ATOMIC_MOVE);
+    }
+    snapshots.putIfAbsent(snapshot, 0);
+    return snapshot;
+  }
+
+  /**
+   * Create the snapshot folder and remove snapshots left behind by a previous
+   * run, e.g. after a crash.
+   */
+  private Path createSnapshotLocation() throws IOException{
+    if(configuredSnapshotLocation == null){
+      return Files.createTempDirectory("gemma-mappings");
+    }
+    Files.createDirectories(configuredSnapshotLocation);
+    int removed = 0;
+    try(DirectoryStream<Path> stale = Files.newDirectoryStream(configuredSnapshotLocation)){
+      for(Path snapshot : stale){
+        delete(snapshot);
+        removed++;
+      }
+    }
+    if(removed > 0){
+      LOGGER.info("Removed {} stale mapping snapshot(s) from {}.", removed, configuredSnapshotLocation);
+    }
+    return configuredSnapshotLocation;
+  }
+
+  private static void delete(Path path){
+    try{
+      Files.deleteIfExists(path);
+    } catch(IOException ex){
+      LOGGER.warn("Failed to delete mapping snapshot " + path + ".", ex);
+    }
+  }
+
+  private Path resolve(String filename){
+    return mappingsLocation.resolve(filename).normalize();
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.mapping;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Compiled representation of a Gemma mapping file. A mapping file contains a
+ * 'properties' object, where each property has the name of the output field
+ * and provides the dot-separated 'path' of the source value and the 'type' of
+ * the output value. Properties of type 'object' may contain nested
+ * 'properties' instead of a path.
+ *
+ * @author jejkal
+ */
+public class MappingDefinition{
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private final List<Field> fields;
+  private final Set<String> paths;
+  private final Set<String> pathPrefixes;
+
+  private MappingDefinition(List<Field> fields){
+    this.fields = Collections.unmodifiableList(fields);
+    Set<String> allPaths = new HashSet<>();
+    collectPaths(fields, allPaths);
+    this.paths = Collections.unmodifiableSet(allPaths);
+    Set<String> prefixes = new HashSet<>();
+    for(String path : allPaths){
+      int idx = path.indexOf('.');
+      while(idx > 0){
+        prefixes.add(path.substring(0, idx));
+        idx = path.indexOf('.', idx + 1);
+      }
+    }
+    this.pathPrefixes = Collections.unmodifiableSet(prefixes);
+  }
+
+  /**
+   * Load and compile the mapping file at 'mappingFile'.
+   *
+   * @param mappingFile The mapping file.
+   *
+   * @return The compiled mapping.
+   *
+   * @throws IOException If the file cannot be read or is not a valid mapping.
+   */
+  public static MappingDefinition load(Path mappingFile) throws IOException{
+    return fromJson(MAPPER.readTree(mappingFile.toFile()));
+  }
+
+  /**
+   * Compile the provided mapping document.
+   *
+   * @param mapping The mapping document.
+   *
+   * @return The compiled mapping.
+   *
+   * @throws IOException If the document is not a valid mapping.
+   */
+  public static MappingDefinition fromJson(JsonNode mapping) throws IOException{
+    if(mapping == null || !mapping.has("properties")){
+      throw new IOException("Invalid mapping, element 'properties' is missing.");
+    }
+    return new MappingDefinition(parseFields(mapping.get("properties"), "properties"));
+  }
+
+  private static List<Field> parseFields(JsonNode properties, String location) throws IOException{
+    if(!properties.isObject()){
+      throw new IOException("Invalid mapping, element '" + location + "' must be an object.");
+    }
+    List<Field> result = new ArrayList<>();
+    Iterator<Entry<String, JsonNode>> it = properties.fields();
+    while(it.hasNext()){
+      Entry<String, JsonNode> entry = it.next();
+      JsonNode property = entry.getValue();
+      String type = property.path("type").asText("string");
+      List<Field> children = Collections.emptyList();
+      String path = null;
+      if(property.has("properties")){
+        children = parseFields(property.get("properties"), location + "." + entry.getKey());
+      } else if(property.path("path").isTextual() && !property.get("path").asText().isEmpty()){
+        path = property.get("path").asText();
+      } else{
+        throw new IOException("Invalid mapping, property '" + location + "." + entry.getKey() + "' has no path.");
+      }
+      result.add(new Field(entry.getKey(), path, type, children));
+    }
+    return result;
+  }
+
+  private static void collectPaths(List<Field> fields, Set<String> paths){
+    for(Field field : fields){
+      if(field.getPath() != null){
+        paths.add(field.getPath());
+      }
+      collectPaths(field.getChildren(), paths);
+    }
+  }
+
+  /**
+   * Get all output fields of this mapping.
+   *
+   * @return The list of fields.
+   */
+  public List<Field> getFields(){
+    return fields;
+  }
+
+  /**
+   * Get all source paths read by this mapping.
+   *
+   * @return The set of source paths.
+   */
+  public Set<String> getPaths(){
+    return paths;
+  }
+
+  /**
+   * Get all proper prefixes of the source paths read by this mapping, e.g.
+   * 'a' and 'a.b' for the path 'a.b.c'. Used to skip irrelevant parts of the
+   * input document.
+   *
+   * @return The set of path prefixes.
+   */
+  public Set<String> getPathPrefixes(){
+    return pathPrefixes;
+  }
+
+  /**
+   * A single output field.
+   */
+  public static class Field{
+
+    private final String name;
+    private final String path;
+    private final String type;
+    private final List<Field> children;
+
+    Field(String name, String path, String type, List<Field> children){
+      this.name = name;
+      this.path = path;
+      this.type = type;
+      this.children = children;
+    }
+
+    public String getName(){
+      return name;
+    }
+
+    public String getPath(){
+      return path;
+    }
+
+    public String getType(){
+      return type;
+    }
+
+    public List<Field> getChildren(){
+      return children;
+    }
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.mapping;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import edu.kit.datamanager.gemma.util.PythonUtils;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Mapping engine applying Gemma mapping files directly inside the JVM. The
+ * content is parsed in a streaming fashion and only values referenced by the
+ * mapping are materialized. Multiple mappings are applied to the values
+ * collected in a single pass over the content.
+ *
+ * @author jejkal
+ */
+public class NativeMappingEngine implements IMappingEngine{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(NativeMappingEngine.class);
+
+  public static final String NAME = "java";
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  @Override
+  public int map(CachedMapping mapping, Path inputFile, String contentType, Path outputFile, OutputStream log, long timeout){
+    try(InputStream in = Files.newInputStream(inputFile); OutputStream out = Files.newOutputStream(outputFile)){
+      return map(mapping, in, contentType, out, log, timeout);
+    } catch(IOException ex){
+      return fail(mapping, inputFile.toString(), ex, log);
+    }
+  }
+
+  @Override
+  public int map(CachedMapping mapping, InputStream input, String contentType, OutputStream output, OutputStream log, long timeout){
+    try{
+      MappingDefinition definition = mapping.getDefinition();
+      if(definition == null){
+        throw new MappingException("Mapping " + mapping.getPath() + " is not supported by the native engine: " + mapping.getCompileError());
+      }
+      ObjectNode result = apply(definition, SourceValueCollector.collect(input, contentType, definition.getPaths(), definition.getPathPrefixes()));
+      MAPPER.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET).writeValue(output, result);
+      return 0;
+    } catch(IOException ex){
+      return fail(mapping, contentType + " stream", ex, log);
+    }
+  }
+
+  @Override
+  public int map(List<CachedMapping> mappings, Path inputFile, String contentType, List<Path> outputFiles, OutputStream log, long timeout){
+    if(mappings.size() == 1){
+      return map(mappings.get(0), inputFile, contentType, outputFiles.get(0), log, timeout);
+    }
+    Set<String> paths = new HashSet<>();
+    Set<String> prefixes = new HashSet<>();
+    for(CachedMapping mapping : mappings){
+      if(mapping.getDefinition() == null){
+        return fail(mapping, inputFile.toString(), new MappingException("Mapping " + mapping.getPath() + " is not supported by the native engine: " + mapping.getCompileError()), log);
+      }
+      paths.addAll(mapping.getDefinition().getPaths());
+      prefixes.addAll(mapping.getDefinition().getPathPrefixes());
+    }
+    Map<String, List<JsonNode>> values;
+    try(InputStream in = Files.newInputStream(inputFile)){
+      values = SourceValueCollector.collect(in, contentType, paths, prefixes);
+    } catch(IOException ex){
+      return fail(mappings.get(0), inputFile.toString(), ex, log);
+    }
+    for(int i = 0; i < mappings.size(); i++){
+      try(OutputStream out = Files.newOutputStream(outputFiles.get(i))){
+        MAPPER.writeValue(out, apply(mappings.get(i).getDefinition(), values));
+      } catch(IOException ex){
+        return fail(mappings.get(i), inputFile.toString(), ex, log);
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Log a failed mapping and return its error code. Content which cannot be
+   * parsed and mappings not supported by this engine result in MAPPING_ERROR,
+   * all other failures, e.g. while reading the content or writing the result,
+   * in EXECUTION_ERROR.
+   */
+  private int fail(CachedMapping mapping, String source, IOException ex, OutputStream log){
+    LOGGER.error("Failed to apply mapping " + mapping.getPath() + " to " + source + ".", ex);
+    if(log != null){
+      try{
+        log.write((ex.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+      } catch(IOException ignored){
+        //nothing to do
+      }
+    }
+    return (ex instanceof MappingException || ex instanceof JsonParseException) ? PythonUtils.MAPPING_ERROR : PythonUtils.EXECUTION_ERROR;
+  }
+
+  @Override
+  public String getName(){
+    return NAME;
+  }
+
+  /**
+   * Create the mapping result for 'mapping' from previously collected source
+   * values.
+   *
+   * @param mapping The mapping definition.
+   * @param values The source values collected for all paths of the mapping.
+   *
+   * @return The mapping result.
+   */
+  public static ObjectNode apply(MappingDefinition mapping, Map<String, List<JsonNode>> values){
+    return mapFields(mapping.getFields(), values);
+  }
+
+  private static ObjectNode mapFields(List<MappingDefinition.Field> fields, Map<String, List<JsonNode>> values){
+    ObjectNode result = JsonNodeFactory.instance.objectNode();
+    for(MappingDefinition.Field field : fields){
+      JsonNode value;
+      if(!field.getChildren().isEmpty()){
+        ObjectNode child = mapFields(field.getChildren(), values);
+        value = (child.size() > 0) ? child : null;
+      } else{
+        value = convert(field.getType(), values.get(field.getPath()));
+      }
+      if(value != null){
+        result.set(field.getName(), value);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Convert the source values of a field to the output type. Scalar types use
+   * the first value found, 'array' uses all values. Null values are ignored.
+   */
+  private static JsonNode convert(String type, List<JsonNode> values){
+    if(values == null){
+      return null;
+    }
+    values = values.stream().filter((v) -> !v.isNull()).collect(Collectors.toList());
+    if(values.isEmpty()){
+      return null;
+    }
+    JsonNode first = values.get(0);
+    switch(type){
+      case "array":
+        ArrayNode array = JsonNodeFactory.instance.arrayNode();
+        array.addAll(values);
+        return array;
+      case "string":
+        return JsonNodeFactory.instance.textNode(asText(first));
+      case "number":
+      case "integer":
+        if(first.isNumber()){
+          return first;
+        }
+        try{
+          String text = asText(first).trim();
+          if("integer".equals(type)){
+            return JsonNodeFactory.instance.numberNode(Long.parseLong(text));
+          }
+          return JsonNodeFactory.instance.numberNode(Double.parseDouble(text));
+        } catch(NumberFormatException ex){
+          return JsonNodeFactory.instance.textNode(asText(first));
+        }
+      case "boolean":
+        return first.isBoolean() ? first : JsonNodeFactory.instance.booleanNode(Boolean.parseBoolean(asText(first).trim()));
+      default:
+        return first;
+    }
+  }
+
+  private static String asText(JsonNode node){
+    return node.isValueNode() ? node.asText() : node.toString();
+  }
+
+  /**
+   * Exception for content or mappings which cannot be mapped by this engine.
+   */
+  static class MappingException extends IOException{
+
+    private static final long serialVersionUID = 1L;
+
+    MappingException(String message){
+      super(message);
+    }
+
+    MappingException(String message, Throwable cause){
+      super(message, cause);
+    }
+  }
+}
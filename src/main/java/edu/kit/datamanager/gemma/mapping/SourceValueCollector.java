@@ -0,0 +1,354 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.mapping;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming collector for all values located at a set of dot-separated source
+ * paths. JSON content is read using a Jackson streaming parser, XML content
+ * using StAX. Parts of the document not leading to any requested path are
+ * skipped without being materialized. Array indices are not part of a path,
+ * i.e. a path addressing elements inside an array collects the values of all
+ * array elements in document order.
+ *
+ * XML documents are addressed following the conventions of xmltodict, which is
+ * used by Gemma: element names include their namespace prefix, attributes are
+ * addressed as '@name' and the text of elements having attributes or child
+ * elements as '#text'.
+ *
+ * @author jejkal
+ */
+public class SourceValueCollector{
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final JsonFactory JSON_FACTORY = MAPPER.getFactory();
+  private static final XMLInputFactory XML_FACTORY;
+
+  static{
+    XML_FACTORY = XMLInputFactory.newFactory();
+    XML_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    XML_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    XML_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+  }
+
+  private SourceValueCollector(){
+  }
+
+  /**
+   * Check whether content of the provided content type is parsed as XML.
+   *
+   * @param contentType The content type.
+   *
+   * @return TRUE for XML content, FALSE for JSON content.
+   */
+  public static boolean isXml(String contentType){
+    return contentType != null && contentType.toLowerCase().contains("xml");
+  }
+
+  /**
+   * Collect all values at 'paths' from the provided content.
+   *
+   * @param in The content stream.
+   * @param contentType The content type used to select JSON or XML parsing.
+   * @param paths All paths to collect.
+   * @param prefixes All proper prefixes of 'paths'.
+   *
+   * @return A map of path to all values found at this path in document order.
+   * Paths without any value are not contained.
+   *
+   * @throws IOException If the content cannot be parsed.
+   */
+  public static Map<String, List<JsonNode>> collect(InputStream in, String contentType, Set<String> paths, Set<String> prefixes) throws IOException{
+    if(isXml(contentType)){
+      return collectXml(in, paths, prefixes);
+    }
+    return collectJson(in, paths, prefixes);
+  }
+
+  private static Map<String, List<JsonNode>> collectJson(InputStream in, Set<String> paths, Set<String> prefixes) throws IOException{
+    Map<String, List<JsonNode>> values = new HashMap<>();
+    Deque<Container> stack = new ArrayDeque<>();
+    String fieldName = null;
+    try(JsonParser parser = JSON_FACTORY.createParser(in)){
+      parser.setCodec(MAPPER);
+      JsonToken token;
+      while((token = parser.nextToken()) != null){
+        if(token == JsonToken.FIELD_NAME){
+          fieldName = parser.getCurrentName();
+          continue;
+        }
+        if(token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY){
+          stack.pop();
+          continue;
+        }
+        String path;
+        Container parent = stack.peek();
+        if(parent == null){
+          path = "";
+        } else if(parent.array){
+          path = parent.path;
+        } else{
+          path = parent.path.isEmpty() ? fieldName : parent.path + "." + fieldName;
+        }
+
+        boolean container = token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY;
+        if(!path.isEmpty() && paths.contains(path)){
+          JsonNode node = parser.readValueAsTree();
+          if(node == null){
+            node = JsonNodeFactory.instance.nullNode();
+          }
+          add(values, path, node);
+          if(container){
+            collectNested(node, path, paths, prefixes, values);
+          }
+        } else if(container){
+          if(path.isEmpty() || prefixes.contains(path)){
+            stack.push(new Container(path, token == JsonToken.START_ARRAY));
+          } else{
+            parser.skipChildren();
+          }
+        }
+      }
+    }
+    return values;
+  }
+
+  private static Map<String, List<JsonNode>> collectXml(InputStream in, Set<String> paths, Set<String> prefixes) throws IOException{
+    Map<String, List<JsonNode>> values = new HashMap<>();
+    Deque<XmlFrame> stack = new ArrayDeque<>();
+    XMLStreamReader reader = null;
+    try{
+      reader = XML_FACTORY.createXMLStreamReader(in);
+      while(reader.hasNext()){
+        int event = reader.next();
+        switch(event){
+          case XMLStreamConstants.START_ELEMENT:
+            XmlFrame parent = stack.peek();
+            String name = qualifiedName(reader);
+            String path = (parent == null) ? name : parent.path + "." + name;
+            if(paths.contains(path)){
+              JsonNode node = readElement(reader);
+              add(values, path, node);
+              collectNested(node, path, paths, prefixes, values);
+            } else if(prefixes.contains(path)){
+              for(int i = 0; i < reader.getAttributeCount(); i++){
+                String attributePath = path + ".@" + qualifiedAttributeName(reader, i);
+                if(paths.contains(attributePath)){
+                  add(values, attributePath, JsonNodeFactory.instance.textNode(reader.getAttributeValue(i)));
+                }
+              }
+              stack.push(new XmlFrame(path));
+            } else{
+              skipElement(reader);
+            }
+            break;
+          case XMLStreamConstants.CHARACTERS:
+          case XMLStreamConstants.CDATA:
+            if(!stack.isEmpty()){
+              stack.peek().text.append(reader.getText());
+            }
+            break;
+          case XMLStreamConstants.END_ELEMENT:
+            XmlFrame frame = stack.pop();
+            String textPath = frame.path + ".#text";
+            String text = frame.text.toString().trim();
+            if(!text.isEmpty() && paths.contains(textPath)){
+              add(values, textPath, JsonNodeFactory.instance.textNode(text));
+            }
+            break;
+          default:
+          //ignore all other events
+        }
+      }
+    } catch(XMLStreamException ex){
+      if(ex.getNestedException() instanceof IOException){
+        //reading the content failed, not parsing it
+        throw (IOException) ex.getNestedException();
+      }
+      throw new NativeMappingEngine.MappingException("Failed to parse XML content.", ex);
+    } finally{
+      if(reader != null){
+        try{
+          reader.close();
+        } catch(XMLStreamException ex){
+          //ignore
+        }
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Read the current element including all children into a JSON tree
+   * following the xmltodict conventions. When returning, the reader is
+   * positioned at the END_ELEMENT event of the element.
+   */
+  private static JsonNode readElement(XMLStreamReader reader) throws XMLStreamException{
+    ObjectNode node = JsonNodeFactory.instance.objectNode();
+    for(int i = 0; i < reader.getAttributeCount(); i++){
+      node.put("@" + qualifiedAttributeName(reader, i), reader.getAttributeValue(i));
+    }
+    StringBuilder text = new StringBuilder();
+    while(reader.hasNext()){
+      int event = reader.next();
+      if(event == XMLStreamConstants.START_ELEMENT){
+        String name = qualifiedName(reader);
+        JsonNode child = readElement(reader);
+        JsonNode existing = node.get(name);
+        if(existing == null){
+          node.set(name, child);
+        } else if(existing.isArray()){
+          ((ArrayNode) existing).add(child);
+        } else{
+          ArrayNode array = JsonNodeFactory.instance.arrayNode();
+          array.add(existing);
+          array.add(child);
+          node.set(name, array);
+        }
+      } else if(event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA){
+        text.append(reader.getText());
+      } else if(event == XMLStreamConstants.END_ELEMENT){
+        break;
+      }
+    }
+    String value = text.toString().trim();
+    if(node.size() == 0){
+      return value.isEmpty() ? JsonNodeFactory.instance.nullNode() : JsonNodeFactory.instance.textNode(value);
+    }
+    if(!value.isEmpty()){
+      node.put("#text", value);
+    }
+    return node;
+  }
+
+  private static void skipElement(XMLStreamReader reader) throws XMLStreamException{
+    int depth = 1;
+    while(depth > 0 && reader.hasNext()){
+      int event = reader.next();
+      if(event == XMLStreamConstants.START_ELEMENT){
+        depth++;
+      } else if(event == XMLStreamConstants.END_ELEMENT){
+        depth--;
+      }
+    }
+  }
+
+  private static String qualifiedName(XMLStreamReader reader){
+    String prefix = reader.getPrefix();
+    return (prefix == null || prefix.isEmpty()) ? reader.getLocalName() : prefix + ":" + reader.getLocalName();
+  }
+
+  private static String qualifiedAttributeName(XMLStreamReader reader, int index){
+    String prefix = reader.getAttributePrefix(index);
+    String local = reader.getAttributeLocalName(index);
+    return (prefix == null || prefix.isEmpty()) ? local : prefix + ":" + local;
+  }
+
+  /**
+   * Collect values for all requested paths located below 'basePath' from an
+   * already materialized subtree.
+   */
+  private static void collectNested(JsonNode node, String basePath, Set<String> paths, Set<String> prefixes, Map<String, List<JsonNode>> values){
+    if(!prefixes.contains(basePath)){
+      return;
+    }
+    String base = basePath + ".";
+    for(String path : paths){
+      if(path.startsWith(base)){
+        List<JsonNode> found = new ArrayList<>();
+        select(node, path.substring(base.length()).split("\\."), 0, found);
+        for(JsonNode value : found){
+          add(values, path, value);
+        }
+      }
+    }
+  }
+
+  /**
+   * Select all nodes at the path represented by 'segments' starting at
+   * 'index'. Arrays are traversed transparently.
+   *
+   * @param node The node to start at.
+   * @param segments The path segments.
+   * @param index The index of the current segment.
+   * @param result The list receiving all selected nodes.
+   */
+  public static void select(JsonNode node, String[] segments, int index, List<JsonNode> result){
+    if(node == null || node.isMissingNode()){
+      return;
+    }
+    if(node.isArray()){
+      for(JsonNode element : node){
+        select(element, segments, index, result);
+      }
+    } else if(index == segments.length){
+      result.add(node);
+    } else if(node.isObject()){
+      select(node.get(segments[index]), segments, index + 1, result);
+    }
+  }
+
+  private static void add(Map<String, List<JsonNode>> values, String path, JsonNode node){
+    List<JsonNode> list = values.computeIfAbsent(path, (k) -> new ArrayList<>());
+    if(node.isArray()){
+      node.forEach(list::add);
+    } else{
+      list.add(node);
+    }
+  }
+
+  private static class Container{
+
+    private final String path;
+    private final boolean array;
+
+    Container(String path, boolean array){
+      this.path = path;
+      this.array = array;
+    }
+  }
+
+  private static class XmlFrame{
+
+    private final String path;
+    private final StringBuilder text = new StringBuilder();
+
+    XmlFrame(String path){
+      this.path = path;
+    }
+  }
+}
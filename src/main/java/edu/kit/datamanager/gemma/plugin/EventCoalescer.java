@@ -0,0 +1,158 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.plugin;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalescer for bursts of events affecting the same data resource. The first
+ * job for a key is held back for the debounce window. All further jobs for the
+ * same key arriving within this window replace the pending job, so that the
+ * latest job is released once the window of the first job has elapsed.
+ * Metadata jobs are keyed by entity id, content jobs
+ * by entity id and relative path.
+ *
+ * @author jejkal
+ */
+public class EventCoalescer{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(EventCoalescer.class);
+
+  private final long window;
+  private final int maxPending;
+  private final Consumer<MappingJob> target;
+  private final Map<String, MappingJob> pending = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService scheduler;
+  private final AtomicLong merged = new AtomicLong(0);
+  private volatile boolean closed = false;
+
+  /**
+   * Default constructor.
+   *
+   * @param window The debounce window in milliseconds.
+   * @param maxPending The max. number of jobs held back at the same time.
+   * @param target The consumer receiving all jobs after their debounce window.
+   */
+  public EventCoalescer(long window, int maxPending, Consumer<MappingJob> target){
+    this.window = window;
+    this.maxPending = maxPending;
+    this.target = target;
+    scheduler = Executors.newSingleThreadScheduledExecutor((r) -> {
+      Thread t = new Thread(r, "gemma-event-coalescer");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * Offer a job to the coalescer. If a job with the same key is already
+   * pending, the job replaces the pending one without extending its debounce
+   * window. Otherwise, the job is held back until the debounce window has
+   * elapsed.
+   *
+   * @param job The job.
+   *
+   * @return TRUE if the job was accepted, FALSE if the coalescer is shut down
+   * or the max. number of pending jobs is reached and the job must be
+   * processed by the caller.
+   */
+  public boolean offer(MappingJob job){
+    if(closed){
+      LOGGER.trace("Coalescer is shut down. Not holding back {}.", job);
+      return false;
+    }
+    String key = getKey(job);
+    if(pending.size() >= maxPending && !pending.containsKey(key)){
+      LOGGER.trace("Max. number of pending jobs reached. Not holding back {}.", job);
+      return false;
+    }
+    MappingJob previous = pending.put(key, job);
+    if(closed && pending.remove(key, job)){
+      //shutdown started concurrently and may have released all pending jobs already
+      LOGGER.trace("Coalescer is shut down. Not holding back {}.", job);
+      return false;
+    }
+    if(previous != null){
+      long count = merged.incrementAndGet();
+      LOGGER.trace("Replaced pending {} by {}. {} event(s) merged so far.", previous, job, count);
+      return true;
+    }
+    LOGGER.trace("Holding back {} for {} ms.", job, window);
+    try{
+      scheduler.schedule(() -> release(key), window, TimeUnit.MILLISECONDS);
+    } catch(RejectedExecutionException ex){
+      //only happens during shutdown, which releases the job unless it is removed here
+      return !pending.remove(key, job);
+    }
+    return true;
+  }
+
+  /**
+   * Get the number of jobs currently held back.
+   *
+   * @return The number of pending jobs.
+   */
+  public int getPending(){
+    return pending.size();
+  }
+
+  /**
+   * Get the total number of events merged into pending jobs.
+   *
+   * @return The number of merged events.
+   */
+  public long getMerged(){
+    return merged.get();
+  }
+
+  /**
+   * Release all pending jobs immediately and stop the coalescer. Afterwards,
+   * all offered jobs are rejected.
+   */
+  public void shutdown(){
+    closed = true;
+    scheduler.shutdownNow();
+    pending.keySet().forEach(this::release);
+  }
+
+  private void release(String key){
+    MappingJob job = pending.remove(key);
+    if(job == null){
+      return;
+    }
+    try{
+      target.accept(job);
+    } catch(RuntimeException ex){
+      LOGGER.error("Failed to process " + job + ".", ex);
+    }
+  }
+
+  private static String getKey(MappingJob job){
+    if(MappingJob.KIND.CONTENT.equals(job.getKind())){
+      return job.getEntityId() + "/data/" + job.getRelativePath();
+    }
+    return job.getEntityId();
+  }
+}
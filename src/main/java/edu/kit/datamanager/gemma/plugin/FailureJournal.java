@@ -0,0 +1,169 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.plugin;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.Data;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of mapping jobs which finally failed with a transient
+ * failure, e.g. because the repository was unavailable. Each job is appended
+ * as a single JSON line and forced to disk. After a restart, the journal is
+ * replayed by moving it to '{location}.replay' and dispatching all jobs again.
+ * Jobs failing again are appended to a new journal. The replay file is only
+ * removed after all replayed jobs have ended, i.e. succeeded, failed
+ * permanently or were appended to the new journal, thus it is replayed again
+ * if the plugin stops during a replay.
+ *
+ * @author jejkal
+ */
+public class FailureJournal{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(FailureJournal.class);
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private final Path location;
+  private final Path replayLocation;
+
+  /**
+   * Default constructor.
+   *
+   * @param location The journal file.
+   */
+  public FailureJournal(Path location){
+    this.location = location;
+    this.replayLocation = Paths.get(location.toString() + ".replay");
+  }
+
+  /**
+   * Append a failed job to the journal.
+   *
+   * @param job The job.
+   *
+   * @throws IOException If writing the journal failed.
+   */
+  public synchronized void append(MappingJob job) throws IOException{
+    Entry entry = new Entry();
+    entry.setKind(job.getKind());
+    entry.setEntityId(job.getEntityId());
+    entry.setContentType(job.getContentType());
+    entry.setFilename(job.getFilename());
+    entry.setContentUri((job.getContentUri() != null) ? job.getContentUri().toString() : null);
+    entry.setRelativePath(job.getRelativePath());
+    entry.setAttempts(job.getAttempt() + 1);
+    entry.setFailed(System.currentTimeMillis());
+    byte[] line = (MAPPER.writeValueAsString(entry) + "\n").getBytes(StandardCharsets.UTF_8);
+    if(location.getParent() != null){
+      Files.createDirectories(location.getParent());
+    }
+    try(FileChannel channel = FileChannel.open(location, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)){
+      ByteBuffer buffer = ByteBuffer.wrap(line);
+      while(buffer.hasRemaining()){
+        channel.write(buffer);
+      }
+      channel.force(false);
+    }
+  }
+
+  /**
+   * Start a replay by moving the journal to the replay file and reading all
+   * jobs from it. If a previous replay was not finished, its jobs are
+   * included. For each resource and path, only the latest job is returned.
+   * After all returned jobs have ended, finishReplay() has to be called.
+   *
+   * @return The jobs to replay.
+   *
+   * @throws IOException If the journal cannot be read.
+   */
+  public synchronized List<MappingJob> startReplay() throws IOException{
+    if(Files.exists(location)){
+      if(Files.exists(replayLocation)){
+        Files.write(replayLocation, Files.readAllBytes(location), StandardOpenOption.APPEND);
+        Files.delete(location);
+      } else{
+        Files.move(location, replayLocation, StandardCopyOption.ATOMIC_MOVE);
+      }
+    }
+    Map<String, MappingJob> jobs = new LinkedHashMap<>();
+    if(!Files.exists(replayLocation)){
+      return new ArrayList<>();
+    }
+    try(BufferedReader reader = Files.newBufferedReader(replayLocation, StandardCharsets.UTF_8)){
+      String line;
+      while((line = reader.readLine()) != null){
+        if(line.trim().isEmpty()){
+          continue;
+        }
+        try{
+          Entry entry = MAPPER.readValue(line, Entry.class);
+          MappingJob job = new MappingJob(entry.getKind(), entry.getEntityId(), entry.getContentType(), entry.getFilename());
+          job.setContentUri((entry.getContentUri() != null) ? URI.create(entry.getContentUri()) : null);
+          job.setRelativePath(entry.getRelativePath());
+          String key = entry.getEntityId() + "/" + ((entry.getRelativePath() != null) ? entry.getRelativePath() : entry.getContentType());
+          jobs.remove(key);
+          jobs.put(key, job);
+        } catch(IOException | IllegalArgumentException ex){
+          //e.g. a line truncated by a crash while appending
+          LOGGER.warn("Skipping invalid journal entry {}.", line);
+        }
+      }
+    }
+    return new ArrayList<>(jobs.values());
+  }
+
+  /**
+   * Finish a replay by removing the replay file.
+   *
+   * @throws IOException If the replay file cannot be removed.
+   */
+  public synchronized void finishReplay() throws IOException{
+    Files.deleteIfExists(replayLocation);
+  }
+
+  /**
+   * A single journal line.
+   */
+  @Data
+  public static class Entry{
+
+    private MappingJob.KIND kind;
+    private String entityId;
+    private String contentType;
+    private String filename;
+    private String contentUri;
+    private String relativePath;
+    private int attempts;
+    private long failed;
+  }
+}
@@ -15,32 +15,71 @@
  */
 package edu.kit.datamanager.gemma.plugin;
 
-import edu.kit.datamanager.clients.SimpleServiceClient;
-import edu.kit.datamanager.clients.impl.SimpleRepositoryClient;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.CountingInputStream;
 import edu.kit.datamanager.entities.messaging.BasicMessage;
 import edu.kit.datamanager.entities.messaging.DataResourceMessage;
 import edu.kit.datamanager.entities.repo.ContentInformation;
+import edu.kit.datamanager.gemma.cluster.IMembershipBackend;
+import edu.kit.datamanager.gemma.cluster.PartitionManager;
+import edu.kit.datamanager.gemma.cluster.SharedDirectoryMembership;
 import edu.kit.datamanager.gemma.configuration.GemmaConfiguration;
+import edu.kit.datamanager.gemma.mapping.CachedMapping;
+import edu.kit.datamanager.gemma.mapping.FieldDependencies;
+import edu.kit.datamanager.gemma.mapping.GemmaMappingEngine;
+import edu.kit.datamanager.gemma.mapping.IMappingEngine;
+import edu.kit.datamanager.gemma.mapping.MappingCache;
+import edu.kit.datamanager.gemma.mapping.NativeMappingEngine;
+import edu.kit.datamanager.gemma.sink.ElasticsearchSink;
+import edu.kit.datamanager.gemma.sink.IOutputSink;
+import edu.kit.datamanager.gemma.sink.RepositorySink;
+import edu.kit.datamanager.gemma.util.ContentHashIndex;
+import edu.kit.datamanager.gemma.util.DeferredInputStream;
+import edu.kit.datamanager.gemma.util.GemmaMetrics;
 import edu.kit.datamanager.gemma.util.PythonUtils;
+import edu.kit.datamanager.gemma.util.RemoteContentClient;
+import edu.kit.datamanager.gemma.util.RepositoryClient;
+import edu.kit.datamanager.gemma.util.StreamPipe;
+import edu.kit.datamanager.gemma.util.UploadRegistry;
+import edu.kit.datamanager.gemma.util.WorkspaceManager;
 import edu.kit.datamanager.messaging.client.handler.IMessageHandler;
 import edu.kit.datamanager.messaging.client.util.MessageHandlerUtils;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.MediaType;
 import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestClientException;
 
 /**
  *
@@ -54,30 +93,167 @@ public class GemmaHandler implements IMessageHandler{
   @Autowired
   private GemmaConfiguration gemmaConfiguration;
 
+  /**
+   * Content metadata key holding the version of the mapping used to create an
+   * uploaded file.
+   */
+  public static final String MAPPING_VERSION_PROPERTY = "mappingVersion";
+
+  /**
+   * Content type of data resource metadata.
+   */
+  public static final String DATA_RESOURCE_CONTENT_TYPE = "application/vnd.datamanager.data-resource+json";
+
+  /**
+   * Relative path all mapping results are uploaded to.
+   */
+  public static final String GENERATED_PATH = "generated/";
+
+  /**
+   * Folder below the workspace root holding snapshots of loaded mapping
+   * versions.
+   */
+  private static final String MAPPING_SNAPSHOTS = "mappings";
+
+  /**
+   * Result of a mapping executed for a re-index.
+   */
+  public enum REINDEX_RESULT{
+    /**
+     * The result was uploaded or the content was unchanged.
+     */
+    SUCCEEDED,
+    /**
+     * The mapping failed with a transient failure and a retry was scheduled.
+     */
+    RETRY_SCHEDULED,
+    /**
+     * The mapping failed and will not be retried.
+     */
+    FAILED,
+    /**
+     * The content cannot be mapped, e.g. as there is no mapping for it.
+     */
+    REJECTED;
+  }
+
+  private MappingCache mappingCache;
+
+  private IMappingEngine gemmaEngine;
+
+  private final IMappingEngine nativeEngine = new NativeMappingEngine();
+
+  private GemmaPipeline pipeline;
+
+  private EventCoalescer coalescer;
+
+  private RepositoryClient repositoryClient;
+
+  private ContentHashIndex contentHashIndex;
+
+  private RemoteContentClient remoteContentClient;
+
+  private UploadRegistry uploadRegistry;
+
+  private IOutputSink outputSink;
+
+  private WorkspaceManager workspaceManager;
+
+  private FailureJournal failureJournal;
+
+  private ScheduledExecutorService retryScheduler;
+
+  /**
+   * Threads dispatching due retries and the failure journal replay, so that
+   * a dispatch blocked by a full pipeline lane or a synchronously executed
+   * job never delays the retry scheduler.
+   */
+  private ExecutorService dispatchPool;
+
+  /**
+   * Retries scheduled but not yet dispatched, which are journaled on shutdown.
+   */
+  private final Set<MappingJob> pendingRetries = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+
+  /**
+   * Jobs of the current journal replay which did not end yet, plus one while
+   * the replay is dispatched.
+   */
+  private final AtomicInteger pendingReplays = new AtomicInteger(0);
+
+  private PartitionManager partitionManager;
+
+  private static final AtomicInteger STREAM_THREAD_COUNT = new AtomicInteger(0);
+
+  private static final AtomicInteger DISPATCH_THREAD_COUNT = new AtomicInteger(0);
+
+  /**
+   * Threads producing the content of in-memory pipes in streaming mode.
+   */
+  private static final ExecutorService STREAM_POOL = Executors.newCachedThreadPool((r) -> {
+    Thread t = new Thread(r, "gemma-stream-" + STREAM_THREAD_COUNT.incrementAndGet());
+    t.setDaemon(true);
+    return t;
+  });
+
+  /**
+   * Default constructor. The configuration is injected by Spring.
+   */
+  public GemmaHandler(){
+    super();
+  }
+
+  /**
+   * Create a handler using the provided configuration, e.g. for running the
+   * handler outside of a Spring context.
+   *
+   * @param gemmaConfiguration The configuration.
+   */
+  public GemmaHandler(GemmaConfiguration gemmaConfiguration){
+    this.gemmaConfiguration = gemmaConfiguration;
+  }
+
   @Override
   public boolean configure(){
     String baseUrl = gemmaConfiguration.getRepositoryBaseUrl();
 
-    if(gemmaConfiguration.getGemmaLocation() == null){
-      LOGGER.trace("Gemma location is missing. Unable to configure handler.");
-      return false;
-    }
-    LOGGER.trace("Checking Gemma location property {}.", gemmaConfiguration.getGemmaLocation());
-    Path gemmaPath = Paths.get(gemmaConfiguration.getGemmaLocation());
+    boolean gemmaFound = true;
+    boolean pythonFound = true;
+    PythonUtils.setMaxCapture(gemmaConfiguration.getMaxOutputCapture());
+    if(usesGemmaEngine()){
+      if(gemmaConfiguration.getGemmaLocation() == null){
+        LOGGER.trace("Gemma location is missing. Unable to configure handler.");
+        return false;
+      }
+      LOGGER.trace("Checking Gemma location property {}.", gemmaConfiguration.getGemmaLocation());
+      Path gemmaPath = Paths.get(gemmaConfiguration.getGemmaLocation());
 
-    boolean gemmaFound = Files.exists(gemmaPath) && Files.isReadable(gemmaPath);
+      gemmaFound = Files.exists(gemmaPath) && Files.isReadable(gemmaPath);
 
-    if(gemmaConfiguration.getPythonLocation() == null){
-      LOGGER.trace("Python location is missing. Unable to configure handler.");
-      return false;
-    }
+      if(gemmaConfiguration.getPythonLocation() == null){
+        LOGGER.trace("Python location is missing. Unable to configure handler.");
+        return false;
+      }
 
-    Path pythonPath = Paths.get(gemmaConfiguration.getPythonLocation());
+      pythonFound = PythonUtils.run(gemmaConfiguration.getPythonLocation(), "--version") == 0;
 
-    boolean pythonFound = PythonUtils.run(gemmaConfiguration.getPythonLocation(), "--version") == 0;
+      if(!pythonFound){
+        LOGGER.error("Unable to test Python installation at {}.", gemmaConfiguration.getPythonLocation());
+      }
 
-    if(!pythonFound){
-      LOGGER.error("Unable to test Python installation at {}.", gemmaConfiguration.getPythonLocation());
+      if(gemmaConfiguration.isStreaming() && gemmaConfiguration.getWorkerPoolSize() > 0){
+        LOGGER.warn("Gemma worker pool is not supported in streaming mode. Starting one Python process per mapping.");
+      } else if(pythonFound && gemmaFound && gemmaConfiguration.getWorkerPoolSize() > 0){
+        LOGGER.trace("Starting Gemma worker pool with {} worker(s).", gemmaConfiguration.getWorkerPoolSize());
+        try{
+          PythonUtils.startWorkerPool(gemmaConfiguration.getPythonLocation(), gemmaConfiguration.getGemmaLocation(), gemmaConfiguration.getWorkerPoolSize(), gemmaConfiguration.getWorkerMaxJobs(), gemmaConfiguration.getWorkerHealthCheckInterval());
+        } catch(IOException ex){
+          LOGGER.error("Failed to start Gemma worker pool. Falling back to one Python process per mapping.", ex);
+        }
+      }
+      gemmaEngine = new GemmaMappingEngine(gemmaConfiguration.getPythonLocation(), gemmaConfiguration.getGemmaLocation());
+    } else{
+      LOGGER.trace("No mapping uses the Gemma engine. Skipping Python and Gemma checks.");
     }
 
     String mappingsLocation = gemmaConfiguration.getMappingsLocation();
@@ -88,23 +264,32 @@ public class GemmaHandler implements IMessageHandler{
     }
 
     LOGGER.trace("Checking for configured mappings.");
-    Map<String, String> mappings = gemmaConfiguration.getSchemaMappings();
+    Map<String, List<String>> mappings = gemmaConfiguration.getSchemaMappings();
     boolean mappingError = true;
     if(mappingsLocation != null && mappings != null){
       LOGGER.trace("Mappings found in configuration, checking mapping files.");
-      Set<Entry<String, String>> entrySet = mappings.entrySet();
-
-      for(Entry<String, String> entry : entrySet){
-        LOGGER.trace("Checking mapping file for key {}.", entry.getKey());
-        String mappingFilename = entry.getValue();
-        Path mappingPath = Paths.get(mappingsLocation, mappingFilename);
-        if(!Files.exists(mappingPath) || !Files.isReadable(mappingPath)){
-          LOGGER.error("Unable to find/read mapping file at path {}.", mappingPath);
+      Set<Entry<String, List<String>>> entrySet = mappings.entrySet();
+
+      for(Entry<String, List<String>> entry : entrySet){
+        LOGGER.trace("Checking mapping files for key {}.", entry.getKey());
+        if(entry.getValue() == null || entry.getValue().isEmpty()){
+          LOGGER.error("No mapping file provided for key {}.", entry.getKey());
           mappingError = true;
           break;
-        } else{
-          //if we arrive here, at least one mapping was found
-          mappingError = false;
+        }
+        for(String mappingFilename : entry.getValue()){
+          Path mappingPath = Paths.get(mappingsLocation, mappingFilename);
+          if(!Files.exists(mappingPath) || !Files.isReadable(mappingPath)){
+            LOGGER.error("Unable to find/read mapping file at path {}.", mappingPath);
+            mappingError = true;
+            break;
+          } else{
+            //if we arrive here, at least one mapping was found
+            mappingError = false;
+          }
+        }
+        if(mappingError){
+          break;
         }
       }
     }
@@ -117,11 +302,250 @@ public class GemmaHandler implements IMessageHandler{
       LOGGER.error("No mappings provided, at least one mapping is required.");
     }
 
-    return baseUrl != null && !mappingError && gemmaFound && pythonFound;
+    if(!mappingError){
+      LOGGER.trace("Loading all mappings into mapping cache.");
+      //mappings executed by the native engine have to compile, also when reloaded after a change
+      Set<String> nativeContentTypes = new HashSet<>();
+      for(String contentType : mappings.keySet()){
+        if(isNativeEngine(contentType)){
+          nativeContentTypes.add(contentType);
+        }
+      }
+      //snapshots of loaded mapping versions are kept next to the job workspaces
+      mappingCache = new MappingCache(mappingsLocation, mappings, nativeContentTypes, getWorkspaceRoot().resolve(MAPPING_SNAPSHOTS));
+      try{
+        mappingCache.load();
+      } catch(IOException ex){
+        LOGGER.error("Failed to load mapping files.", ex);
+        mappingError = true;
+      }
+      try{
+        mappingCache.startWatching();
+      } catch(IOException ex){
+        LOGGER.warn("Failed to watch mappings location for changes. Mappings are only loaded at startup.", ex);
+      }
+    }
+
+    if(gemmaConfiguration.getContentHashIndexLocation() != null && contentHashIndex == null){
+      LOGGER.trace("Loading content hash index from {}.", gemmaConfiguration.getContentHashIndexLocation());
+      ContentHashIndex index = new ContentHashIndex(Paths.get(gemmaConfiguration.getContentHashIndexLocation()), gemmaConfiguration.getContentHashIndexMaxEntries());
+      try{
+        index.load();
+        contentHashIndex = index;
+      } catch(IOException ex){
+        LOGGER.error("Failed to load content hash index. All events will be processed.", ex);
+      }
+    }
+
+    if(!gemmaConfiguration.getRemoteContentSchemes().isEmpty() && remoteContentClient == null){
+      LOGGER.trace("Enabling remote content for URI schemes {}.", gemmaConfiguration.getRemoteContentSchemes());
+      remoteContentClient = new RemoteContentClient(gemmaConfiguration.getRemoteContentMaxConnections(), gemmaConfiguration.getRemoteContentTimeout(), gemmaConfiguration.getRemoteContentMaxSize(), gemmaConfiguration.getRemoteContentRetries());
+    }
+
+    if(uploadRegistry == null){
+      uploadRegistry = new UploadRegistry(gemmaConfiguration.getUploadRegistryTtl(), gemmaConfiguration.getUploadRegistryMaxEntries());
+    }
+
+    boolean workspaceError = false;
+    if(workspaceManager == null){
+      Path workspaceRoot = getWorkspaceRoot();
+      LOGGER.trace("Using workspace root {} with a quota of {} bytes.", workspaceRoot, gemmaConfiguration.getWorkspaceQuota());
+      WorkspaceManager manager = new WorkspaceManager(workspaceRoot, gemmaConfiguration.getWorkspaceQuota(), gemmaConfiguration.getWorkspaceTimeout());
+      try{
+        manager.init();
+        workspaceManager = manager;
+        GemmaMetrics.gauge(GemmaMetrics.WORKSPACE_USED, workspaceManager, WorkspaceManager::getUsed);
+      } catch(IOException ex){
+        LOGGER.error("Failed to initialize workspace root " + workspaceRoot + ".", ex);
+        workspaceError = true;
+      }
+    }
+
+    if(baseUrl != null && repositoryClient == null){
+      LOGGER.trace("Creating repository client with max. {} connections.", gemmaConfiguration.getRepositoryMaxConnections());
+      repositoryClient = new RepositoryClient(baseUrl, gemmaConfiguration.getRepositoryMaxConnections(), gemmaConfiguration.getRepositoryKeepAlive(), gemmaConfiguration.getRepositoryConnectTimeout(), gemmaConfiguration.getRepositoryReadTimeout(), gemmaConfiguration.isCompressUploads(), gemmaConfiguration.getRepositoryFailureThreshold(), gemmaConfiguration.getRepositoryOpenDuration());
+      GemmaMetrics.gauge(GemmaMetrics.REPOSITORY_CIRCUIT, repositoryClient, (client) -> client.getCircuitState().ordinal());
+    }
+
+    if(outputSink == null){
+      outputSink = createOutputSink();
+    }
+
+    if(gemmaConfiguration.isStreaming()){
+      LOGGER.trace("Streaming mode enabled. Content is piped through the mapping engines without temporary files.");
+    }
+
+    if(gemmaConfiguration.getPipelineLanes() > 0 && pipeline == null){
+      LOGGER.trace("Starting pipeline with {} lane(s), {} interactive and {} bulk lane(s) and a capacity of {} job(s) per lane.", gemmaConfiguration.getPipelineLanes(), gemmaConfiguration.getPipelineInteractiveLanes(), gemmaConfiguration.getPipelineBulkLanes(), gemmaConfiguration.getPipelineCapacity());
+      Map<MappingJob.PRIORITY, Integer> laneCounts = new EnumMap<>(MappingJob.PRIORITY.class);
+      laneCounts.put(MappingJob.PRIORITY.INTERACTIVE, gemmaConfiguration.getPipelineInteractiveLanes());
+      laneCounts.put(MappingJob.PRIORITY.NORMAL, gemmaConfiguration.getPipelineLanes());
+      laneCounts.put(MappingJob.PRIORITY.BULK, gemmaConfiguration.getPipelineBulkLanes());
+      pipeline = new GemmaPipeline(laneCounts, gemmaConfiguration.getPipelineCapacity(), gemmaConfiguration.getPipelineSubmitTimeout(), gemmaConfiguration.getBulkMemoryBudget(), this::fetch, this::map, this::upload, this::completed);
+      GemmaMetrics.gauge(GemmaMetrics.PIPELINE_IN_FLIGHT, pipeline, GemmaPipeline::getInFlight);
+      GemmaMetrics.gauge(GemmaMetrics.PIPELINE_MEMORY, pipeline, GemmaPipeline::getMemoryReserved);
+    }
+
+    if(gemmaConfiguration.getDebounceWindow() > 0 && coalescer == null){
+      LOGGER.trace("Coalescing events for the same resource within {} ms.", gemmaConfiguration.getDebounceWindow());
+      coalescer = new EventCoalescer(gemmaConfiguration.getDebounceWindow(), gemmaConfiguration.getDebounceMaxPending(), this::redispatch);
+      GemmaMetrics.gauge(GemmaMetrics.COALESCER_PENDING, coalescer, EventCoalescer::getPending);
+    }
+
+    if(retryScheduler == null){
+      retryScheduler = Executors.newSingleThreadScheduledExecutor((r) -> {
+        Thread t = new Thread(r, "gemma-retry");
+        t.setDaemon(true);
+        return t;
+      });
+      //at least two threads, so that a single blocked dispatch never holds back all other retries
+      dispatchPool = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), (r) -> {
+        Thread t = new Thread(r, "gemma-dispatch-" + DISPATCH_THREAD_COUNT.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      });
+    }
+
+    boolean configured = baseUrl != null && outputSink != null && !workspaceError && !mappingError && gemmaFound && pythonFound;
+
+    if(configured && gemmaConfiguration.getPartitionBackend() != null && partitionManager == null){
+      //only join the cluster if messages can be processed, otherwise other members would skip them
+      IMembershipBackend backend = createMembershipBackend();
+      if(backend == null){
+        configured = false;
+      } else{
+        String nodeId = (gemmaConfiguration.getPartitionNodeId() != null) ? gemmaConfiguration.getPartitionNodeId() : ManagementFactory.getRuntimeMXBean().getName();
+        LOGGER.trace("Joining cluster as {} via {} backend.", nodeId, backend.getName());
+        partitionManager = new PartitionManager(nodeId, backend, gemmaConfiguration.getPartitionHeartbeatInterval(), gemmaConfiguration.getPartitionMemberTimeout(), gemmaConfiguration.getPartitionVirtualNodes(), gemmaConfiguration.getPartitionHandoffMaxMessages(), this::handoff);
+        partitionManager.start();
+        GemmaMetrics.gauge(GemmaMetrics.PARTITION_MEMBERS, partitionManager, PartitionManager::getMembers);
+        GemmaMetrics.gauge(GemmaMetrics.PARTITION_SHARE, partitionManager, PartitionManager::getShare);
+      }
+    }
+
+    if(configured && gemmaConfiguration.getFailureJournalLocation() != null && failureJournal == null){
+      LOGGER.trace("Replaying failure journal at {}.", gemmaConfiguration.getFailureJournalLocation());
+      failureJournal = new FailureJournal(Paths.get(gemmaConfiguration.getFailureJournalLocation()));
+      dispatchPool.execute(this::replayJournal);
+    }
+
+    return configured;
+  }
+
+  /**
+   * Get the workspace root configured by 'workspaceLocation'.
+   *
+   * @return The workspace root, which defaults to a folder in java.io.tmpdir.
+   */
+  private Path getWorkspaceRoot(){
+    return (gemmaConfiguration.getWorkspaceLocation() != null) ? Paths.get(gemmaConfiguration.getWorkspaceLocation()) : Paths.get(System.getProperty("java.io.tmpdir"), "gemma-workspace");
+  }
+
+  /**
+   * Create the output sink configured by 'outputSink'.
+   *
+   * @return The sink or null if the sink is unknown or misconfigured.
+   */
+  private IOutputSink createOutputSink(){
+    String sink = gemmaConfiguration.getOutputSink();
+    if(ElasticsearchSink.NAME.equals(sink)){
+      if(gemmaConfiguration.getElasticsearchUrl() == null){
+        LOGGER.error("Elasticsearch URL is missing. Unable to configure output sink.");
+        return null;
+      }
+      LOGGER.trace("Indexing mapping results at {} in index {}.", gemmaConfiguration.getElasticsearchUrl(), gemmaConfiguration.getElasticsearchIndex());
+      return new ElasticsearchSink(gemmaConfiguration.getElasticsearchUrl(), gemmaConfiguration.getElasticsearchIndex(), gemmaConfiguration.getElasticsearchBulkMaxDocuments(), gemmaConfiguration.getElasticsearchBulkMaxBytes(), gemmaConfiguration.getElasticsearchFlushInterval(), gemmaConfiguration.getElasticsearchRetries(), gemmaConfiguration.getElasticsearchTimeout());
+    }
+    if(RepositorySink.NAME.equals(sink)){
+      return (repositoryClient != null) ? new RepositorySink(repositoryClient, uploadRegistry, getHandlerIdentifier()) : null;
+    }
+    LOGGER.error("Unknown output sink {}. Supported sinks are {} and {}.", sink, RepositorySink.NAME, ElasticsearchSink.NAME);
+    return null;
+  }
+
+  /**
+   * Create the membership backend configured by 'partitionBackend'.
+   *
+   * @return The backend or null if the backend is unknown or misconfigured.
+   */
+  private IMembershipBackend createMembershipBackend(){
+    String backend = gemmaConfiguration.getPartitionBackend();
+    if(SharedDirectoryMembership.NAME.equals(backend)){
+      if(gemmaConfiguration.getPartitionDirectory() == null){
+        LOGGER.error("Partition directory is missing. Unable to configure membership backend.");
+        return null;
+      }
+      return new SharedDirectoryMembership(Paths.get(gemmaConfiguration.getPartitionDirectory()));
+    }
+    LOGGER.error("Unknown partition backend {}. Supported backends are {}.", backend, SharedDirectoryMembership.NAME);
+    return null;
+  }
+
+  /**
+   * Shut down in the order jobs pass the handler, so accepted jobs are
+   * finished before the resources they use are released: leave the cluster,
+   * release all events held back by the event coalescer, drain the pipeline,
+   * stop scheduling retries, append all pending retries to the failure journal
+   * and write all pending results of the output sink.
+   * Afterwards, close the repository and remote content clients, stop the
+   * Gemma worker pool and the mapping watcher, close the content hash index and
+   * release the workspace root.
+   */
+  @PreDestroy
+  public void shutdown(){
+    if(partitionManager != null){
+      partitionManager.close();
+    }
+    if(coalescer != null){
+      coalescer.shutdown();
+    }
+    if(pipeline != null){
+      LOGGER.trace("Waiting up to {} ms for {} job(s) in pipeline.", gemmaConfiguration.getPipelineShutdownTimeout(), pipeline.getInFlight());
+      pipeline.shutdown(gemmaConfiguration.getPipelineShutdownTimeout());
+    }
+    if(retryScheduler != null){
+      retryScheduler.shutdownNow();
+      dispatchPool.shutdownNow();
+      journalPendingRetries();
+    }
+    if(outputSink != null){
+      outputSink.close();
+    }
+    if(repositoryClient != null){
+      repositoryClient.close();
+    }
+    if(remoteContentClient != null){
+      remoteContentClient.close();
+    }
+    PythonUtils.stopWorkerPool();
+    if(mappingCache != null){
+      mappingCache.close();
+    }
+    if(contentHashIndex != null){
+      contentHashIndex.close();
+    }
+    if(workspaceManager != null){
+      workspaceManager.close();
+    }
   }
 
   @Override
   public RESULT handle(BasicMessage message){
+    RESULT result = handleMessage(message);
+    GemmaMetrics.count(GemmaMetrics.MESSAGES, GemmaMetrics.CONTENT_TYPE_TAG, getMetricsContentType(message), GemmaMetrics.RESULT_TAG, result.toString());
+    return result;
+  }
+
+  /**
+   * Handle a message by checking whether the handler is addressed and, in
+   * partitioning mode, whether the resource is owned by this instance, and
+   * delegating to the handler method for the message's sub category.
+   *
+   * @param message The received message.
+   *
+   * @return The final result of the handling process.
+   */
+  private RESULT handleMessage(BasicMessage message){
     RESULT result = RESULT.REJECTED;
 
     if(!MessageHandlerUtils.isAddressed(getHandlerIdentifier(), message)){
@@ -129,10 +553,15 @@ public class GemmaHandler implements IMessageHandler{
       return result;
     }
 
+    if(partitionManager != null && !partitionManager.claim(message)){
+      LOGGER.trace("Resource {} is owned by another instance. Skipping message.", message.getEntityId());
+      return result;
+    }
+
     if(DataResourceMessage.SUB_CATEGORY.DATA.getValue().equals(message.getSubCategory())){
       //Check uploader for handlerIdentifier() to avoid recursion.
       String pathProperty = message.getMetadata().get(DataResourceMessage.CONTENT_PATH_PROPERTY);
-      if(MessageHandlerUtils.wasUploadedByPrincipal(gemmaConfiguration.getRepositoryBaseUrl(), message.getEntityId(), pathProperty, getHandlerIdentifier())){
+      if(isOwnUpload(message.getEntityId(), pathProperty)){
         LOGGER.trace("Resource has already been processed. Skipping message.");
         return result;
       }
@@ -146,15 +575,96 @@ public class GemmaHandler implements IMessageHandler{
     return result;
   }
 
+  /**
+   * Handle all messages taken over from another instance after a rebalance.
+   * This is called on the handoff thread of the partition manager. Messages
+   * which are not handled successfully are logged, as there is no broker
+   * that could redeliver them.
+   *
+   * @param messages The messages taken over.
+   */
+  private void handoff(List<BasicMessage> messages){
+    int failed = 0;
+    for(BasicMessage message : messages){
+      RESULT result = handle(message);
+      if(RESULT.FAILED.equals(result)){
+        failed++;
+        LOGGER.warn("Failed to handle message for resource {} taken over after rebalance.", message.getEntityId());
+      } else if(!RESULT.SUCCEEDED.equals(result)){
+        LOGGER.trace("Message for resource {} taken over after rebalance was not handled. Result: {}", message.getEntityId(), result);
+      }
+    }
+    LOGGER.info("Handled {} message(s) taken over after rebalance, {} failed.", messages.size(), failed);
+  }
+
+  /**
+   * Get the content type a message is tagged with in metrics. In order to
+   * keep the number of tag values bounded, all content types without mapping
+   * are tagged as 'unmapped'.
+   *
+   * @param message The message.
+   *
+   * @return The content type tag value.
+   */
+  private String getMetricsContentType(BasicMessage message){
+    String contentType = DATA_RESOURCE_CONTENT_TYPE;
+    if(DataResourceMessage.SUB_CATEGORY.DATA.getValue().equals(message.getSubCategory()) && message.getMetadata() != null){
+      contentType = message.getMetadata().get(DataResourceMessage.CONTENT_TYPE_PROPERTY);
+    }
+    return (contentType != null && hasMapping(contentType)) ? contentType : "unmapped";
+  }
+
+  /**
+   * Check if the content at 'path' of resource 'entityId' was uploaded by this
+   * handler. As all mapping results are uploaded below 'generated/', other
+   * paths are never checked. Uploads remembered in the upload registry are
+   * recognized locally, the repository is only queried for the uploader on a
+   * registry miss, e.g. after a restart. If the repository cannot be asked,
+   * e.g. while the repository circuit is open, all content below 'generated/'
+   * is considered as uploaded by this handler.
+   *
+   * @param entityId The resource id.
+   * @param path The relative content path.
+   *
+   * @return TRUE if the content was uploaded by this handler.
+   */
+  private boolean isOwnUpload(String entityId, String path){
+    if(path == null || repositoryClient == null){
+      return false;
+    }
+    String relativePath = path.startsWith("/") ? path.substring(1) : path;
+    if(!relativePath.startsWith(GENERATED_PATH)){
+      return false;
+    }
+    if(uploadRegistry != null && uploadRegistry.contains(entityId, relativePath)){
+      LOGGER.trace("Found {} of resource {} in upload registry.", relativePath, entityId);
+      return true;
+    }
+    try{
+      ContentInformation info = repositoryClient.getContentInformation(entityId, relativePath);
+      return info != null && getHandlerIdentifier().equals(info.getUploader());
+    } catch(RepositoryClient.CircuitOpenException ex){
+      //mapping results of mapping results are never wanted, thus rather skip content below 'generated/'
+      LOGGER.info("Repository is unavailable. Assuming {} of resource {} to be uploaded by this handler.", relativePath, entityId);
+      return true;
+    } catch(HttpClientErrorException.NotFound ex){
+      LOGGER.trace("No content information found for {} of resource {}.", relativePath, entityId);
+      return false;
+    } catch(RestClientException ex){
+      LOGGER.warn("Failed to obtain uploader of " + relativePath + " of resource " + entityId + ". Assuming content to be uploaded by this handler.", ex);
+      return true;
+    }
+  }
+
   /**
    * Handler for basic metadata events, e.g. create or update. This method
    * checks if there is a mapping for
    * 'application/vnd.datamanager.data-resource+json', which represents the
-   * basic metadata. Afterwards, the repository is queried for the metadata
-   * resource and the result is written to a temporary file. Finally, the
-   * mapping is applied to the temporary file and the result is uploaded to the
-   * repository. The message will be rejected if no mapping for content metadata
-   * was found. In all other cases, the processing will be successful or fail.
+   * basic metadata. Afterwards, a mapping job is created, which queries the
+   * repository for the metadata resource, applies the mapping and uploads the
+   * result to the repository. The message will be rejected if no mapping for
+   * content metadata was found. In all other cases, the processing will be
+   * successful or fail.
    *
    * @param message The received message.
    *
@@ -163,72 +673,22 @@ public class GemmaHandler implements IMessageHandler{
   private RESULT handleDataResourceEvent(BasicMessage message){
     LOGGER.trace("Calling handleDataResourceEvent({}),", message);
 
-    String contentType = "application/vnd.datamanager.data-resource+json";
+    String contentType = DATA_RESOURCE_CONTENT_TYPE;
     if(!hasMapping(contentType)){
       LOGGER.trace("No mapping found for data resource content type {}. Configured mappings are: {}.", contentType, gemmaConfiguration.getSchemaMappings());
       return RESULT.REJECTED;
     }
 
-    String theResource = SimpleServiceClient.create(gemmaConfiguration.getRepositoryBaseUrl()).withResourcePath(message.getEntityId()).accept(MediaType.TEXT_PLAIN).getResource(String.class);
-
-//    RestTemplate restTemplate = new RestTemplate();
-//    HttpHeaders headers = new HttpHeaders();
-//    headers.setAccept(Arrays.asList(MediaType.APPLICATION_JSON));
-//
-//    HttpEntity<MultiValueMap<String, Object>> requestEntity = new HttpEntity<>(headers);
-//    String destinationUri = gemmaConfiguration.getRepositoryBaseUrl() + message.getEntityId();
-//
-//    UriComponentsBuilder uriBuilder = UriComponentsBuilder.fromHttpUrl(destinationUri);
-//
-//    destinationUri = uriBuilder.toUriString();
-//
-//    LOGGER.trace("Performing HTTP GET to {}.", destinationUri);
-    // ResponseEntity<String> response = restTemplate.exchange(destinationUri, HttpMethod.GET, requestEntity, String.class);
-    Path metadataPath = Paths.get(System.getProperty("java.io.tmpdir"), message.getEntityId() + "_metadata.json");
-
-    if(theResource != null){
-      try{
-        LOGGER.trace("Writing data resource to temporary file {}.", metadataPath);
-        new FileOutputStream(metadataPath.toFile()).write(theResource.getBytes());
-      } catch(IOException ex){
-        LOGGER.error("Failed to write data resource to temporary file.", ex);
-        return RESULT.FAILED;
-      }
-    } else{
-      LOGGER.error("Did not receive any resource in the response body. Unable to continue.");
-      return RESULT.FAILED;
-    }
-
-//    if(HttpStatus.OK.equals(response.getStatusCode())){
-//      LOGGER.trace("Getting data resource from response body.");
-//      String theResource = response.getBody();
-//      if(theResource == null){
-//        LOGGER.error("Did not receive any resource in the response body. Unable to continue.");
-//        return RESULT.FAILED;
-//      }
-//
-//      try{
-//        LOGGER.trace("Writing data resource to temporary file {}.", metadataPath);
-//        new FileOutputStream(metadataPath.toFile()).write(theResource.getBytes());
-//      } catch(IOException ex){
-//        LOGGER.error("Failed to write data resource to temporary file.", ex);
-//        return RESULT.FAILED;
-//      }
-//
-//      //transform file
-//    } else{
-//      LOGGER.error("Request to resource with identifier {} returned status {}. Message handling failed.", message.getEntityId(), response.getStatusCode());
-//      return RESULT.FAILED;
-//    }
-    return applyAndUploadMapping(metadataPath.toUri(), contentType, message.getEntityId(), message.getEntityId() + "_metadata.json");
+    return process(new MappingJob(MappingJob.KIND.METADATA, message.getEntityId(), contentType, message.getEntityId() + "_metadata.json"));
   }
 
   /**
    * Handler for content events, e.g. a file upload message was received. This
    * method will check the contentType and tries to find an appropriate mapping.
-   * If one exists, it is checked whether the content is a local file. If this
-   * is also the case, the mapping is applied and the result is uploaded to the
-   * repository. Otherwise, the message is rejected.
+   * If one exists, it is checked whether the content is a local file or
+   * whether its URI scheme is configured in 'remoteContentSchemes'. If this is
+   * also the case, a mapping job is created, which applies the mapping and
+   * uploads the result to the repository. Otherwise, the message is rejected.
    *
    * @param message The received message.
    *
@@ -251,66 +711,934 @@ public class GemmaHandler implements IMessageHandler{
       return RESULT.FAILED;
     }
 
-    String filename = (relativePath.contains("/")) ? relativePath.substring(relativePath.lastIndexOf("/")) : relativePath;
+    MappingJob job = createContentJob(message.getEntityId(), contentType, contentUri, relativePath);
+    return (job != null) ? process(job) : RESULT.REJECTED;
+  }
+
+  /**
+   * Map the data resource metadata of resource 'entityId' and upload the
+   * result. In contrast to handling a message, the mapping is executed
+   * synchronously by the calling thread, i.e. without event coalescer and
+   * pipeline.
+   *
+   * @param entityId The resource id.
+   *
+   * @return REJECTED if there is no mapping for data resource metadata,
+   * otherwise SUCCEEDED, RETRY_SCHEDULED or FAILED as soon as the output sink
+   * has reported the result.
+   */
+  public CompletableFuture<REINDEX_RESULT> reindexMetadata(String entityId){
+    if(!hasMapping(DATA_RESOURCE_CONTENT_TYPE)){
+      return CompletableFuture.completedFuture(REINDEX_RESULT.REJECTED);
+    }
+    return reindex(new MappingJob(MappingJob.KIND.METADATA, entityId, DATA_RESOURCE_CONTENT_TYPE, entityId + "_metadata.json"));
+  }
+
+  /**
+   * Map the content at 'relativePath' of resource 'entityId' and upload the
+   * result. In contrast to handling a message, the mapping is executed
+   * synchronously by the calling thread, i.e. without event coalescer and
+   * pipeline. Mapping results of the plugin itself are never mapped.
+   *
+   * @param entityId The resource id.
+   * @param contentType The content type.
+   * @param contentUri The content URI.
+   * @param relativePath The relative content path.
+   *
+   * @return REJECTED if the content cannot be mapped, otherwise SUCCEEDED,
+   * RETRY_SCHEDULED or FAILED as soon as the output sink has reported the
+   * result.
+   */
+  public CompletableFuture<REINDEX_RESULT> reindexContent(String entityId, String contentType, String contentUri, String relativePath){
+    if(!hasMapping(contentType) || relativePath == null || relativePath.startsWith(GENERATED_PATH)){
+      return CompletableFuture.completedFuture(REINDEX_RESULT.REJECTED);
+    }
+    MappingJob job = createContentJob(entityId, contentType, contentUri, relativePath);
+    return (job != null) ? reindex(job) : CompletableFuture.completedFuture(REINDEX_RESULT.REJECTED);
+  }
+
+  /**
+   * Execute a job for a re-index synchronously. As an asynchronous output sink
+   * may report the results after execute() has returned, the result is only
+   * determined after the job has ended.
+   *
+   * @param job The job.
+   *
+   * @return The result of the job, completed as soon as the job has ended.
+   */
+  private CompletableFuture<REINDEX_RESULT> reindex(MappingJob job){
+    execute(job);
+    return job.getEnded().thenApply((retrying) -> {
+      if(retrying){
+        return REINDEX_RESULT.RETRY_SCHEDULED;
+      }
+      return (job.getFailure() == null) ? REINDEX_RESULT.SUCCEEDED : REINDEX_RESULT.FAILED;
+    });
+  }
+
+  /**
+   * Create a mapping job for content, if its URI scheme is supported.
+   *
+   * @param entityId The resource id.
+   * @param contentType The content type.
+   * @param contentUri The content URI.
+   * @param relativePath The relative content path.
+   *
+   * @return The job or null if the content is neither local nor remote
+   * content with a scheme configured in 'remoteContentSchemes'.
+   */
+  private MappingJob createContentJob(String entityId, String contentType, String contentUri, String relativePath){
+    String filename = (relativePath.contains("/")) ? relativePath.substring(relativePath.lastIndexOf("/") + 1) : relativePath;
     LOGGER.trace("Checking scheme of content URI {}.", contentUri);
     URI content = URI.create(contentUri);
 
-    if(!"file".equals(content.getScheme())){
-      LOGGER.trace("ContentUri {} has a scheme different from 'file'. Processing not supported.", contentUri);
-      return RESULT.REJECTED;
+    if(!"file".equals(content.getScheme()) && (remoteContentClient == null || !gemmaConfiguration.getRemoteContentSchemes().contains(content.getScheme()))){
+      LOGGER.trace("ContentUri {} has a scheme different from 'file' and from all remote content schemes {}. Processing not supported.", contentUri, gemmaConfiguration.getRemoteContentSchemes());
+      return null;
+    }
+
+    MappingJob job = new MappingJob(MappingJob.KIND.CONTENT, entityId, contentType, filename);
+    job.setContentUri(content);
+    job.setRelativePath(relativePath);
+    return job;
+  }
+
+  /**
+   * Get the repository client shared by all requests of the handler.
+   *
+   * @return The repository client or null if the handler is not configured.
+   */
+  public RepositoryClient getRepositoryClient(){
+    return repositoryClient;
+  }
+
+  /**
+   * Process a mapping job. If a debounce window is configured, the job is
+   * handed over to the event coalescer, which merges it with further jobs for
+   * the same resource and dispatches it after the window has elapsed.
+   * Otherwise, the job is dispatched immediately.
+   *
+   * @param job The job to process.
+   *
+   * @return The final result, which can be returned as final handler result.
+   */
+  private RESULT process(MappingJob job){
+    if(coalescer != null && coalescer.offer(job)){
+      return RESULT.SUCCEEDED;
+    }
+    return dispatch(job);
+  }
+
+  /**
+   * Dispatch a mapping job. If the pipeline is enabled, the job is classified
+   * and submitted to the pipeline lanes of its priority. The message is
+   * acknowledged as soon as the job was accepted. If the pipeline is full for
+   * longer than the configured submit timeout, the message fails. Without
+   * pipeline, the job is executed synchronously.
+   *
+   * @param job The job to dispatch.
+   *
+   * @return The final result, which can be returned as final handler result.
+   */
+  private RESULT dispatch(MappingJob job){
+    if(pipeline == null){
+      return execute(job);
     }
+    classify(job);
+    LOGGER.trace("Submitting {} with priority {} to pipeline ({}/{} jobs in flight).", job, job.getPriority(), pipeline.getInFlight(), pipeline.getCapacity());
+    return pipeline.submit(job) ? RESULT.SUCCEEDED : RESULT.FAILED;
+  }
 
-    return applyAndUploadMapping(content, contentType, message.getEntityId(), filename);
+  /**
+   * Assign priority and expected memory to a job. Metadata jobs are
+   * INTERACTIVE. Content jobs are BULK if their size reaches
+   * 'bulkSizeThreshold', otherwise NORMAL. The size of remote content is
+   * unknown before downloading, thus remote content is always BULK. The
+   * expected memory of BULK jobs is their size, at least 'bulkSizeThreshold',
+   * multiplied by 'bulkMemoryFactor'.
+   *
+   * @param job The job.
+   */
+  private void classify(MappingJob job){
+    if(MappingJob.KIND.METADATA.equals(job.getKind())){
+      job.setPriority(MappingJob.PRIORITY.INTERACTIVE);
+      return;
+    }
+    if(isLocalContent(job)){
+      try{
+        job.setInputSize(Files.size(Paths.get(job.getContentUri())));
+      } catch(IOException ex){
+        //missing content fails in the fetch stage
+        LOGGER.trace("Failed to obtain size of {}.", job.getContentUri());
+      }
+    }
+    long threshold = gemmaConfiguration.getBulkSizeThreshold();
+    if(threshold <= 0 || (job.getInputSize() >= 0 && job.getInputSize() < threshold)){
+      job.setPriority(MappingJob.PRIORITY.NORMAL);
+      return;
+    }
+    job.setPriority(MappingJob.PRIORITY.BULK);
+    job.setExpectedMemory((long) (Math.max(job.getInputSize(), threshold) * gemmaConfiguration.getBulkMemoryFactor()));
   }
 
   /**
-   * Apply a mapping to a metadata file and upload the result to the repository.
-   * The appropriate mapping is obtained using the provided contentType, the
-   * mapped content is accessible via contentUri, which is expected to be a
-   * local file. Finally, the upload destination is determined by entityId and
-   * filename.
+   * Execute all stages of a mapping job synchronously. If the job fails with a
+   * transient failure, a retry is scheduled. If all results were accepted by
+   * the output sink, the job ends as soon as the sink has reported them, which
+   * may happen after this method has returned.
    *
-   * @param contentUri The location of the content.
-   * @param contentType The contentType of the content accessible at contentUri.
-   * @param entityId The resource identifier the content is related to.
-   * @param filename The content filename, which can be different from the local
-   * filename in contentUri.
+   * @param job The job to execute.
    *
    * @return The final result, which can be returned as final handler result.
+   * If a retry was scheduled or the results were accepted, the result is
+   * SUCCEEDED.
    */
-  private RESULT applyAndUploadMapping(URI contentUri, String contentType, String entityId, String filename){
-    LOGGER.trace("Calling processAndUploadMapping({}, {}, {}).", contentType, contentUri, entityId);
-    Path mappingFile = getMappingFile(contentType);
-    LOGGER.trace("Obtained mapping file {}. Obtaining output filename.", mappingFile);
-    Path contentPath = Paths.get(contentUri);
-    if(filename.contains(".")){
-      LOGGER.trace("Replacing file extension of filename {}.", filename);
-      filename = filename.substring(0, filename.lastIndexOf(".")) + ".elastic.json";
+  private RESULT execute(MappingJob job){
+    boolean uploaded = false;
+    boolean retrying = false;
+    try{
+      uploaded = (fetch(job) && map(job) && upload(job));
+      if(uploaded || job.isSkipped()){
+        return RESULT.SUCCEEDED;
+      }
+      retrying = retry(job);
+      return retrying ? RESULT.SUCCEEDED : RESULT.FAILED;
+    } finally{
+      cleanup(job);
+      if(uploaded){
+        outputCompleted(job);
+      } else{
+        countJob(job, false);
+        ended(job, retrying);
+      }
+    }
+  }
+
+  /**
+   * Fetch stage of a mapping job. The mappings for the job's content type are
+   * obtained from the mapping cache and a workspace is opened for the job,
+   * which may block until the workspace quota permits. For metadata jobs, the
+   * data resource is obtained from the repository and written to the
+   * workspace. For local content, the content URI is used as input file,
+   * remote content is downloaded to the workspace.
+   *
+   * @param job The job.
+   *
+   * @return TRUE if the job can be mapped, FALSE otherwise.
+   */
+  private boolean fetch(MappingJob job){
+    long start = System.nanoTime();
+    try{
+      return fetchInput(job);
+    } finally{
+      GemmaMetrics.recordTime(GemmaMetrics.FETCH, start, GemmaMetrics.CONTENT_TYPE_TAG, job.getContentType());
+    }
+  }
+
+  private boolean fetchInput(MappingJob job){
+    LOGGER.trace("Fetching input for {}.", job);
+    List<CachedMapping> mappings = mappingCache.acquire(job.getContentType());
+    if(mappings == null){
+      LOGGER.error("No valid mapping available for content type {}.", job.getContentType());
+      job.setFailure(MappingJob.FAILURE.PERMANENT);
+      return false;
+    }
+    for(CachedMapping mapping : mappings){
+      LOGGER.trace("Obtained mapping file {} with version {}.", mapping.getPath(), mapping.getHash());
+    }
+    job.setMappings(mappings);
+    job.setMappingsAcquired(true);
+
+    if(isStreaming(job)){
+      return fetchStream(job);
+    }
+
+    try{
+      job.setWorkspace(workspaceManager.open(job.getInputSize()));
+    } catch(IOException ex){
+      LOGGER.error("Failed to open workspace for " + job + ".", ex);
+      job.setFailure(MappingJob.FAILURE.TRANSIENT);
+      return false;
+    }
+
+    if(isLocalContent(job)){
+      job.setInputFile(Paths.get(job.getContentUri()));
+      if(!Files.exists(job.getInputFile())){
+        LOGGER.error("Local content {} does not exist.", job.getInputFile());
+        job.setFailure(MappingJob.FAILURE.PERMANENT);
+        return false;
+      }
+      return true;
+    }
+
+    if(MappingJob.KIND.CONTENT.equals(job.getKind())){
+      try(InputStream in = remoteContentClient.open(job.getContentUri())){
+        Path contentPath = job.getWorkspace().resolve(job.getFilename());
+        job.setInputFile(contentPath);
+        LOGGER.trace("Downloading content from {} to {}.", job.getContentUri(), contentPath);
+        Files.copy(in, contentPath, StandardCopyOption.REPLACE_EXISTING);
+        job.getWorkspace().update();
+      } catch(IOException ex){
+        LOGGER.error("Failed to download content from " + job.getContentUri() + ".", ex);
+        job.setFailure(RemoteContentClient.isTransient(ex) ? MappingJob.FAILURE.TRANSIENT : MappingJob.FAILURE.PERMANENT);
+        return false;
+      }
+      return true;
+    }
+
+    String theResource;
+    try{
+      theResource = repositoryClient.getResource(job.getEntityId());
+    } catch(RestClientException ex){
+      LOGGER.error("Failed to obtain data resource " + job.getEntityId() + ".", ex);
+      job.setFailure(RepositoryClient.isTransient(ex) ? MappingJob.FAILURE.TRANSIENT : MappingJob.FAILURE.PERMANENT);
+      return false;
+    }
+    if(theResource == null){
+      LOGGER.error("Did not receive any resource in the response body. Unable to continue.");
+      job.setFailure(MappingJob.FAILURE.PERMANENT);
+      return false;
+    }
+
+    try{
+      Path metadataPath = job.getWorkspace().resolve(job.getFilename());
+      job.setInputFile(metadataPath);
+      LOGGER.trace("Writing data resource to {}.", metadataPath);
+      Files.write(metadataPath, theResource.getBytes(StandardCharsets.UTF_8));
+      job.getWorkspace().update();
+    } catch(IOException ex){
+      LOGGER.error("Failed to write data resource to workspace.", ex);
+      job.setFailure(MappingJob.FAILURE.TRANSIENT);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Fetch stage of a mapping job in streaming mode. For metadata jobs, the
+   * data resource is streamed from the repository into an in-memory pipe. For
+   * content jobs, the local content file or the remote content is opened for
+   * reading. The repository request and the remote connection are deferred
+   * until the mapping reads its input, so they are not kept open while the
+   * job is queued for the upload stage.
+   *
+   * @param job The job.
+   *
+   * @return TRUE if the job can be mapped, FALSE otherwise.
+   */
+  private boolean fetchStream(MappingJob job){
+    if(isLocalContent(job)){
+      Path content = Paths.get(job.getContentUri());
+      if(!Files.exists(content)){
+        LOGGER.error("Local content {} does not exist.", content);
+        job.setFailure(MappingJob.FAILURE.PERMANENT);
+        return false;
+      }
+      job.setInputStream(new DeferredInputStream(() -> openInput(job, () -> Files.newInputStream(content))));
+    } else if(MappingJob.KIND.CONTENT.equals(job.getKind())){
+      job.setInputStream(new DeferredInputStream(() -> openInput(job, () -> remoteContentClient.open(job.getContentUri()))));
     } else{
-      LOGGER.trace("Appending file extension to filename {}.", filename);
-      filename += ".elastic.json";
+      try{
+        StreamPipe pipe = StreamPipe.create(STREAM_POOL, gemmaConfiguration.getStreamBufferSize(), (out) -> {
+          int status = repositoryClient.getResource(job.getEntityId(), out);
+          return (status == HttpStatus.OK.value()) ? 0 : status;
+        });
+        job.setInputStream(pipe.getInputStream());
+      } catch(IOException ex){
+        LOGGER.error("Failed to create input pipe for " + job + ".", ex);
+        job.setFailure(MappingJob.FAILURE.TRANSIENT);
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Open the input stream of a job in streaming mode. If opening fails, the
+   * failure is classified before the mapping fails due to the missing input.
+   *
+   * @param job The job.
+   * @param opener The opener of the input.
+   *
+   * @return The input stream.
+   *
+   * @throws IOException If the input cannot be opened.
+   */
+  private InputStream openInput(MappingJob job, DeferredInputStream.Opener opener) throws IOException{
+    try{
+      return opener.open();
+    } catch(IOException ex){
+      LOGGER.error("Failed to open input stream for " + job + ".", ex);
+      job.setFailure((ex instanceof NoSuchFileException || !RemoteContentClient.isTransient(ex)) ? MappingJob.FAILURE.PERMANENT : MappingJob.FAILURE.TRANSIENT);
+      throw ex;
     }
+  }
 
-    LOGGER.trace("Obtained output filename '{}'. Creating Python mapping process.", filename);
+  /**
+   * Map stage of a mapping job. All mappings are applied to the job's input
+   * file using the engine configured for the content type. The results are
+   * written to the job's workspace. In streaming mode, the mapping runs in a
+   * separate thread writing its result into an in-memory pipe, which is
+   * consumed by the upload stage. The mapping is only started as soon as the
+   * upload stage reads the pipe, so the time the job waits for the upload
+   * stage does not count against the mapping timeout. If the content hash index contains the
+   * current input and mapping hash for the job, the job is marked as skipped.
+   *
+   * @param job The job.
+   *
+   * @return TRUE if the mapping succeeded, FALSE if it failed or was skipped.
+   */
+  private boolean map(MappingJob job){
+    if(isUnchanged(job)){
+      LOGGER.trace("Input and mapping of {} are unchanged since the last upload. Skipping mapping and upload.", job);
+      job.setSkipped(true);
+      return false;
+    }
+    IMappingEngine engine = getEngine(job.getContentType());
+    LOGGER.trace("Applying mapping for {} using engine {}.", job, engine.getName());
+    long timeout = gemmaConfiguration.getMappingTimeouts().getOrDefault(job.getContentType(), gemmaConfiguration.getDefaultMappingTimeout());
+    if(isStreaming(job)){
+      try{
+        job.setResultPipe(StreamPipe.create(STREAM_POOL, gemmaConfiguration.getStreamBufferSize(), (out) -> {
+          ByteArrayOutputStream bout = new ByteArrayOutputStream();
+          try(InputStream in = job.getInputStream()){
+            long start = System.nanoTime();
+            int returnCode = engine.map(job.getMappings().get(0), in, job.getContentType(), out, bout, timeout);
+            recordMapping(job, engine, start, returnCode);
+            if(returnCode != 0 && job.getFailure() == null){
+              //the failure surfaces when the upload stage reads the result, a failure to open the input was classified before
+              job.setFailure(classifyMappingError(returnCode));
+            }
+            LOGGER.trace("Mapping returned with status {}. Captured output: {}", returnCode, bout);
+            return returnCode;
+          }
+        }));
+      } catch(IOException ex){
+        LOGGER.error("Failed to create result pipe.", ex);
+        job.setFailure(MappingJob.FAILURE.TRANSIENT);
+        return false;
+      }
+      return true;
+    }
+    //the input filename may equal the output filename, e.g. when mapping a previous mapping result
+    List<Path> outputFiles = new ArrayList<>();
+    for(CachedMapping mapping : job.getMappings()){
+      outputFiles.add(job.getWorkspace().resolve("output_" + job.getOutputFilename(mapping)));
+    }
+    job.setOutputFiles(outputFiles);
     ByteArrayOutputStream bout = new ByteArrayOutputStream();
-    int returnCode = PythonUtils.run(gemmaConfiguration.getPythonLocation(), gemmaConfiguration.getGemmaLocation(), bout, bout, mappingFile.toAbsolutePath().toString(), contentPath.toAbsolutePath().toString(), System.getProperty("java.io.tmpdir") + "/" + filename);
-    LOGGER.trace(bout.toString());
-    LOGGER.trace("Python mapping process returned with status {}. Uploading content to repository.", returnCode);
+    long start = System.nanoTime();
+    int returnCode = engine.map(job.getMappings(), job.getInputFile(), job.getContentType(), outputFiles, bout, timeout);
+    recordMapping(job, engine, start, returnCode);
+    try{
+      job.getWorkspace().update();
+    } catch(IOException ex){
+      LOGGER.warn("Failed to update workspace size of " + job + ".", ex);
+    }
+    LOGGER.trace("Mapping returned with status {}. Captured output: {}", returnCode, bout);
+    if(returnCode != 0){
+      job.setFailure(classifyMappingError(returnCode));
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Classify a failed mapping by its return code. Timeouts and failures to
+   * start or run the mapping process are transient, all other return codes,
+   * including MAPPING_ERROR of the native engine for content which cannot be
+   * parsed, are errors of the mapping itself.
+   *
+   * @param returnCode The return code of the mapping engine.
+   *
+   * @return The kind of failure.
+   */
+  private MappingJob.FAILURE classifyMappingError(int returnCode){
+    return (returnCode == PythonUtils.TIMEOUT_ERROR || returnCode == PythonUtils.EXECUTION_ERROR) ? MappingJob.FAILURE.TRANSIENT : MappingJob.FAILURE.PERMANENT;
+  }
 
-    Path localFile = Paths.get(System.getProperty("java.io.tmpdir"), filename);
+  private void recordMapping(MappingJob job, IMappingEngine engine, long start, int returnCode){
+    GemmaMetrics.recordTime(GemmaMetrics.MAPPING, start, GemmaMetrics.CONTENT_TYPE_TAG, job.getContentType(), GemmaMetrics.ENGINE_TAG, engine.getName());
+    if(returnCode == PythonUtils.TIMEOUT_ERROR){
+      GemmaMetrics.count(GemmaMetrics.MAPPING_TIMEOUTS, GemmaMetrics.CONTENT_TYPE_TAG, job.getContentType(), GemmaMetrics.ENGINE_TAG, engine.getName());
+    }
+  }
+
+  /**
+   * Upload stage of a mapping job. The result of each mapping is written to
+   * the configured output sink, i.e. uploaded to the repository as
+   * 'generated/{outputFilename}' by default. The sink may report the results
+   * asynchronously, thus a job whose results were all accepted only ends after
+   * the caller has released the additional pending output via
+   * outputCompleted() and the sink has reported all results.
+   *
+   * @param job The job.
+   *
+   * @return TRUE if all results were written or accepted by the sink, FALSE
+   * otherwise.
+   */
+  private boolean upload(MappingJob job){
+    List<CachedMapping> mappings = job.getMappings();
+    job.setOutputHashes(new String[mappings.size()]);
+    //one additional count released by the caller, so the callbacks only end the job if all results were accepted
+    job.getPendingOutputs().set(mappings.size() + 1);
+    for(int i = 0; i < mappings.size(); i++){
+      if(!upload(job, i)){
+        return false;
+      }
+    }
+    return true;
+  }
 
-    if(returnCode == 0){
+  private boolean upload(MappingJob job, int index){
+    CachedMapping mapping = job.getMappings().get(index);
+    LOGGER.trace("Writing result of mapping {} for {} to {} sink.", mapping.getPath().getFileName(), job, outputSink.getName());
+    boolean accepted;
+    long outputSize;
+    if(isStreaming(job)){
+      try(CountingInputStream counter = new CountingInputStream(job.getResultPipe().getInputStream()); HashingInputStream in = new HashingInputStream(Hashing.sha256(), counter)){
+        //the sink has read the whole stream before notifying the callback, thus the hash is complete
+        accepted = outputSink.write(job, mapping, in, (failure) -> written(job, index, failure, in.hash().toString()));
+        outputSize = counter.getCount();
+      } catch(IOException ex){
+        LOGGER.error("Failed to stream generated content to " + outputSink.getName() + " sink.", ex);
+        return failUpload(job, MappingJob.FAILURE.TRANSIENT);
+      }
+    } else{
+      Path outputFile = job.getOutputFiles().get(index);
       try{
-        String elasticFilename = localFile.getName(localFile.getNameCount() - 1).toString();
-        if(uploadContent(entityId, "generated/" + elasticFilename, localFile.toUri())){
-          return RESULT.SUCCEEDED;
+        //hash before writing as the output file is removed before an asynchronous sink completes
+        String outputHash = (contentHashIndex != null) ? hashFile(outputFile) : null;
+        outputSize = Files.size(outputFile);
+        accepted = outputSink.write(job, mapping, outputFile, (failure) -> written(job, index, failure, outputHash));
+      } catch(IOException ex){
+        LOGGER.error("Failed to write generated content to " + outputSink.getName() + " sink.", ex);
+        return failUpload(job, MappingJob.FAILURE.TRANSIENT);
+      }
+    }
+    GemmaMetrics.recordSize(GemmaMetrics.OUTPUT_SIZE, outputSize, GemmaMetrics.CONTENT_TYPE_TAG, job.getContentType());
+    return accepted || failUpload(job, MappingJob.FAILURE.PERMANENT);
+  }
+
+  /**
+   * Classify a failed upload. In streaming mode, a failure of the mapping
+   * itself surfaces while uploading and was already classified by the map
+   * stage.
+   *
+   * @param job The job.
+   * @param failure The kind of failure if not classified before.
+   *
+   * @return Always FALSE.
+   */
+  private boolean failUpload(MappingJob job, MappingJob.FAILURE failure){
+    if(job.getFailure() == null){
+      job.setFailure(failure);
+    }
+    return false;
+  }
+
+  /**
+   * Callback of the output sink for the result at 'index'.
+   *
+   * @param job The job.
+   * @param index The index of the mapping which produced the result.
+   * @param failure NULL if the result was written, the kind of failure
+   * otherwise.
+   * @param outputHash The hash of the written result.
+   */
+  private void written(MappingJob job, int index, MappingJob.FAILURE failure, String outputHash){
+    if(failure == null){
+      job.getOutputHashes()[index] = outputHash;
+    } else{
+      LOGGER.error("Output sink {} failed to write result of mapping {} for {} ({}).", outputSink.getName(), job.getMappings().get(index).getPath().getFileName(), job, failure);
+      synchronized(job){
+        if(job.getOutputFailure() != MappingJob.FAILURE.PERMANENT){
+          job.setOutputFailure(failure);
         }
+      }
+    }
+    outputCompleted(job);
+  }
+
+  /**
+   * Count down the pending outputs of a job. As soon as all results were
+   * written, the job is registered in the content hash index and ends. If any
+   * result failed transiently, the job is mapped again, as the sink has
+   * already retried. Results rejected permanently are not retried.
+   *
+   * @param job The job.
+   */
+  private void outputCompleted(MappingJob job){
+    if(job.getPendingOutputs().decrementAndGet() != 0){
+      return;
+    }
+    boolean retrying = false;
+    if(job.getOutputFailure() != null){
+      job.setFailure(job.getOutputFailure());
+      retrying = retry(job);
+      if(!retrying && MappingJob.FAILURE.PERMANENT.equals(job.getFailure())){
+        LOGGER.error("Output sink {} rejected results of {}. Not retrying.", outputSink.getName(), job);
+      }
+    } else if(contentHashIndex != null && job.getInputHash() != null){
+      contentHashIndex.put(job.getEntityId(), getIndexPath(job), job.getInputHash(), getIndexMappingHash(job), String.join(",", job.getOutputHashes()));
+    }
+    countJob(job, job.getOutputFailure() == null);
+    ended(job, retrying);
+  }
+
+  /**
+   * Check if input and mapping of a job are unchanged since the last
+   * successful upload according to the content hash index. As a side effect,
+   * the input hash is assigned to the job. Input which is only available as
+   * stream, i.e. metadata and remote content in streaming mode, is never
+   * considered unchanged. For metadata mapped by the native engine, only the
+   * fields read by the mappings are compared if 'fieldDependencyTracking' is
+   * enabled.
+   *
+   * @param job The job.
+   *
+   * @return TRUE if the job can be skipped, FALSE otherwise.
+   */
+  private boolean isUnchanged(MappingJob job){
+    if(contentHashIndex == null){
+      return false;
+    }
+    Path input = job.getInputFile();
+    if(input == null && isLocalContent(job)){
+      input = Paths.get(job.getContentUri());
+    }
+    if(input == null){
+      return false;
+    }
+    try{
+      job.setInputHash(hashInput(job, input));
+    } catch(IOException ex){
+      LOGGER.warn("Failed to hash input of " + job + ". Not checking content hash index.", ex);
+      return false;
+    }
+    return contentHashIndex.isUnchanged(job.getEntityId(), getIndexPath(job), job.getInputHash(), getIndexMappingHash(job));
+  }
+
+  /**
+   * Get the input hash a job is registered with in the content hash index. If
+   * 'fieldDependencyTracking' is enabled, a metadata job is mapped by the
+   * native engine and the source paths of all its mappings are known, the hash
+   * covers only the values at these paths. Thus, metadata updates only
+   * changing other fields, e.g. the ACL or the state, are skipped. Gemma may
+   * read fields beyond the declared paths, so for Gemma the hash always covers
+   * the entire input.
+   *
+   * @param job The job.
+   * @param input The input file.
+   *
+   * @return The input hash.
+   *
+   * @throws IOException If the input cannot be read.
+   */
+  private String hashInput(MappingJob job, Path input) throws IOException{
+    if(gemmaConfiguration.isFieldDependencyTracking() && MappingJob.KIND.METADATA.equals(job.getKind()) && isNativeEngine(job.getContentType())){
+      FieldDependencies dependencies = FieldDependencies.of(job.getMappings());
+      if(dependencies != null){
+        LOGGER.trace("Fingerprinting fields {} of {}.", dependencies.getPaths(), job);
+        return dependencies.fingerprint(input, job.getContentType());
+      }
+    }
+    return hashFile(input);
+  }
+
+  /**
+   * Get the mapping hash a job is registered with in the content hash index.
+   * As the output depends on the engine, the engine name is part of the hash.
+   * For multiple mappings, the hashes of all mappings are joined.
+   *
+   * @param job The job.
+   *
+   * @return The mapping hash.
+   */
+  private String getIndexMappingHash(MappingJob job){
+    StringBuilder hash = new StringBuilder(getEngine(job.getContentType()).getName()).append(":");
+    for(int i = 0; i < job.getMappings().size(); i++){
+      hash.append((i > 0) ? "," : "").append(job.getMappings().get(i).getHash());
+    }
+    return hash.toString();
+  }
+
+  /**
+   * Check if a job is executed in streaming mode. Jobs with multiple mappings
+   * are always executed using the workspace, as each mapping result is written
+   * separately.
+   *
+   * @param job The job.
+   *
+   * @return TRUE if the job is streamed.
+   */
+  private boolean isStreaming(MappingJob job){
+    return gemmaConfiguration.isStreaming() && job.getMappings().size() == 1;
+  }
+
+  /**
+   * Get the path a job is registered with in the content hash index, which is
+   * the relative path for content jobs and the data resource content type for
+   * metadata jobs.
+   *
+   * @param job The job.
+   *
+   * @return The index path.
+   */
+  private String getIndexPath(MappingJob job){
+    return (job.getRelativePath() != null) ? job.getRelativePath() : DATA_RESOURCE_CONTENT_TYPE;
+  }
+
+  private String hashFile(Path file) throws IOException{
+    return com.google.common.io.Files.asByteSource(file.toFile()).hash(Hashing.sha256()).toString();
+  }
+
+  /**
+   * Release the mappings, close the workspace and all streams created for a
+   * mapping job.
+   *
+   * @param job The job.
+   */
+  private void cleanup(MappingJob job){
+    if(job.isMappingsAcquired()){
+      mappingCache.release(job.getMappings());
+      job.setMappingsAcquired(false);
+    }
+    if(job.getResultPipe() != null){
+      job.getResultPipe().abort();
+    }
+    if(job.getInputStream() != null){
+      try{
+        job.getInputStream().close();
       } catch(IOException ex){
-        LOGGER.error("Failed to upload generated content.", ex);
+        LOGGER.trace("Failed to close input stream.", ex);
+      }
+    }
+    if(job.getWorkspace() != null){
+      job.getWorkspace().close();
+    }
+  }
+
+  /**
+   * Callback for jobs leaving the pipeline. As the message was already
+   * acknowledged, failures are retried or logged. If all results were
+   * accepted by the output sink, the job ends as soon as the sink has reported
+   * them.
+   *
+   * @param job The job.
+   * @param success TRUE if all stages succeeded.
+   */
+  private void completed(MappingJob job, boolean success){
+    boolean retrying = !success && !job.isSkipped() && retry(job);
+    if(job.isSkipped()){
+      LOGGER.trace("Skipped unchanged {}.", job);
+    } else if(success){
+      LOGGER.trace("Finished {} after {} ms.", job, System.currentTimeMillis() - job.getCreated());
+    } else if(!retrying){
+      LOGGER.error("Failed to process {}.", job);
+    }
+    cleanup(job);
+    if(success){
+      outputCompleted(job);
+    } else{
+      countJob(job, false);
+      ended(job, retrying);
+    }
+  }
+
+  /**
+   * Handle a failed job. Jobs failed with a transient failure are dispatched
+   * again after an exponential backoff, until 'retryMaxAttempts' is reached.
+   * Afterwards, they are appended to the failure journal.
+   *
+   * @param job The failed job.
+   *
+   * @return TRUE if a retry was scheduled.
+   */
+  private boolean retry(MappingJob job){
+    if(!MappingJob.FAILURE.TRANSIENT.equals(job.getFailure())){
+      return false;
+    }
+    if(job.getAttempt() < gemmaConfiguration.getRetryMaxAttempts()){
+      long delay = Math.min(gemmaConfiguration.getRetryInitialBackoff() << Math.min(job.getAttempt(), 20), gemmaConfiguration.getRetryMaxBackoff());
+      LOGGER.warn("Transient failure of {} (attempt {}/{}). Retrying in {} ms.", job, job.getAttempt() + 1, gemmaConfiguration.getRetryMaxAttempts() + 1, delay);
+      MappingJob retry = job.createRetry();
+      pendingRetries.add(retry);
+      try{
+        retryScheduler.schedule(() -> dispatchRetry(retry), delay, TimeUnit.MILLISECONDS);
+      } catch(RejectedExecutionException ex){
+        pendingRetries.remove(retry);
+        if(journal(job)){
+          LOGGER.warn("Unable to retry {} during shutdown. Job was added to the failure journal.", job);
+        } else{
+          LOGGER.error("Unable to retry {} during shutdown.", job);
+        }
+        return false;
       }
+      GemmaMetrics.count(GemmaMetrics.RETRIES, GemmaMetrics.CONTENT_TYPE_TAG, job.getContentType(), GemmaMetrics.RESULT_TAG, "scheduled");
+      return true;
     }
+    GemmaMetrics.count(GemmaMetrics.RETRIES, GemmaMetrics.CONTENT_TYPE_TAG, job.getContentType(), GemmaMetrics.RESULT_TAG, "exhausted");
+    if(journal(job)){
+      LOGGER.error("Giving up {} after {} attempt(s). Job was added to the failure journal.", job, job.getAttempt() + 1);
+    } else{
+      LOGGER.error("Giving up {} after {} attempt(s).", job, job.getAttempt() + 1);
+    }
+    return false;
+  }
 
-    return RESULT.FAILED;
+  /**
+   * Hand a due retry over to the dispatch pool. The retry stays pending until
+   * its dispatch starts, so that it is journaled if the plugin is shut down
+   * before.
+   *
+   * @param retry The retry.
+   */
+  private void dispatchRetry(MappingJob retry){
+    try{
+      dispatchPool.execute(() -> {
+        if(pendingRetries.remove(retry)){
+          redispatch(retry);
+        }
+      });
+    } catch(RejectedExecutionException ex){
+      LOGGER.trace("Dispatch pool is shut down. Keeping {} for the failure journal.", retry);
+    }
+  }
+
+  /**
+   * Append a job to the failure journal, if the journal is enabled.
+   *
+   * @param job The job.
+   *
+   * @return TRUE if the job was added to the journal.
+   */
+  private boolean journal(MappingJob job){
+    if(failureJournal == null){
+      return false;
+    }
+    try{
+      failureJournal.append(job);
+      return true;
+    } catch(IOException ex){
+      LOGGER.error("Failed to add " + job + " to the failure journal.", ex);
+      return false;
+    }
+  }
+
+  /**
+   * Append all retries not yet dispatched to the failure journal, so that they
+   * are replayed after the next start. Must be called after the retry
+   * scheduler and the dispatch pool were shut down.
+   */
+  private void journalPendingRetries(){
+    List<MappingJob> jobs;
+    synchronized(pendingRetries){
+      jobs = new ArrayList<>(pendingRetries);
+      pendingRetries.clear();
+    }
+    if(jobs.isEmpty()){
+      return;
+    }
+    int journaled = 0;
+    for(MappingJob job : jobs){
+      if(journal(job)){
+        journaled++;
+        ended(job, false);
+      }
+    }
+    if(journaled < jobs.size()){
+      LOGGER.warn("Discarding {} of {} pending retries on shutdown.", jobs.size() - journaled, jobs.size());
+    } else{
+      LOGGER.info("Added {} pending retries to the failure journal.", journaled);
+    }
+  }
+
+  /**
+   * Dispatch a job without message to fail, e.g. for a retry or after its
+   * debounce window. If the pipeline does not accept the job, this is treated
+   * as transient failure.
+   *
+   * @param job The job.
+   */
+  private void redispatch(MappingJob job){
+    if(RESULT.FAILED.equals(dispatch(job)) && pipeline != null){
+      job.setFailure(MappingJob.FAILURE.TRANSIENT);
+      ended(job, retry(job));
+    }
+  }
+
+  /**
+   * Dispatch all jobs of the failure journal again. The replay is finished
+   * as soon as all replayed jobs and their retries have ended.
+   */
+  private void replayJournal(){
+    List<MappingJob> jobs;
+    try{
+      jobs = failureJournal.startReplay();
+    } catch(IOException ex){
+      LOGGER.error("Failed to read failure journal.", ex);
+      return;
+    }
+    if(!jobs.isEmpty()){
+      LOGGER.info("Replaying {} job(s) from the failure journal.", jobs.size());
+    }
+    //count one more, so that the replay cannot finish before all jobs were dispatched
+    pendingReplays.set(jobs.size() + 1);
+    for(MappingJob job : jobs){
+      job.setReplayed(true);
+      redispatch(job);
+    }
+    replayEnded();
+  }
+
+  /**
+   * Track the end of a job, which must be called exactly once per job. A
+   * replayed job only ends the replay if it succeeded, was skipped or failed
+   * without scheduling a retry, i.e. it failed permanently or was added to the
+   * failure journal again.
+   *
+   * @param job The job.
+   * @param retrying TRUE if a retry of the job was scheduled.
+   */
+  private void ended(MappingJob job, boolean retrying){
+    if(job.isReplayed() && !retrying){
+      replayEnded();
+    }
+    job.getEnded().complete(retrying);
+  }
+
+  /**
+   * Finish the journal replay if the last replayed job has ended. Until then,
+   * the replay file is kept, so that it is replayed again if the plugin stops
+   * during the replay.
+   */
+  private void replayEnded(){
+    if(pendingReplays.decrementAndGet() != 0){
+      return;
+    }
+    try{
+      failureJournal.finishReplay();
+      LOGGER.trace("All jobs of the failure journal replay have ended.");
+    } catch(IOException ex){
+      LOGGER.warn("Failed to remove replayed failure journal.", ex);
+    }
+  }
+
+  private void countJob(MappingJob job, boolean success){
+    String result = job.isSkipped() ? "skipped" : (success ? "succeeded" : "failed");
+    GemmaMetrics.count(GemmaMetrics.JOBS, GemmaMetrics.CONTENT_TYPE_TAG, job.getContentType(), GemmaMetrics.RESULT_TAG, result);
+  }
+
+  /**
+   * Check if a job maps local content, which is read in place.
+   *
+   * @param job The job.
+   *
+   * @return TRUE if the job's content URI has the scheme 'file'.
+   */
+  private boolean isLocalContent(MappingJob job){
+    return MappingJob.KIND.CONTENT.equals(job.getKind()) && "file".equals(job.getContentUri().getScheme());
   }
 
   /**
@@ -325,39 +1653,45 @@ public class GemmaHandler implements IMessageHandler{
   }
 
   /**
-   * Obtain the mapping file path for the provided content type. The path is
-   * taken from the gemma configuration by concatenating the mappingsLocation
-   * and the schemaMapping value for the provided contentType.
+   * Obtain the mapping engine for the provided content type. The engine is
+   * taken from the 'engines' property of the gemma configuration. If no engine
+   * is configured for the content type, the default engine is used.
    *
-   * @param contentType The content type to obtain the mapping file location
-   * for.
+   * @param contentType The content type to obtain the engine for.
    *
-   * @return The mapping file location.
+   * @return The mapping engine.
    */
-  private Path getMappingFile(String contentType){
-    return Paths.get(gemmaConfiguration.getMappingsLocation(), gemmaConfiguration.getSchemaMappings().get(contentType));
+  private IMappingEngine getEngine(String contentType){
+    return isNativeEngine(contentType) ? nativeEngine : gemmaEngine;
   }
 
   /**
-   * Upload the mapped content to the repository. The mapped JSON file will be
-   * placed at {resourceId}/data/generated/{filename} and will point to
-   * localFileUri.
-   *
-   * @param resourceId The resource id the uploaded file is associated with.
-   * @param filename The filename of the target file.
-   * @param localFileUri The location of the file on the local file system.
+   * Check if the mappings of the provided content type are executed by the
+   * native engine.
    *
-   * @return TRUE if the upload succeeded, FALSE otherwise.
+   * @param contentType The content type to check.
    *
-   * @throw IOException If the preparation of the upload failed.
+   * @return TRUE for the native engine, FALSE for Gemma.
    */
-  private boolean uploadContent(String resourceId, String filename, URI localFileUri) throws IOException{
-    LOGGER.trace("Performing uploadContent({}, {}, {}, {}).", resourceId, filename, localFileUri);
-    ContentInformation info = new ContentInformation();
-    LOGGER.trace("Setting uploader to handler identifier {}.", getHandlerIdentifier());
-    info.setUploader(getHandlerIdentifier());
+  private boolean isNativeEngine(String contentType){
+    return NativeMappingEngine.NAME.equals(gemmaConfiguration.getEngines().getOrDefault(contentType, gemmaConfiguration.getDefaultEngine()));
+  }
 
-    HttpStatus status = SimpleRepositoryClient.create(gemmaConfiguration.getRepositoryBaseUrl()).uploadData(resourceId, filename, new File(localFileUri), info, true);
-    return HttpStatus.CREATED.equals(status);
+  /**
+   * Check if at least one configured mapping is executed by the Gemma engine.
+   *
+   * @return TRUE if Python and Gemma are required, FALSE otherwise.
+   */
+  private boolean usesGemmaEngine(){
+    Map<String, List<String>> mappings = gemmaConfiguration.getSchemaMappings();
+    if(mappings == null){
+      return true;
+    }
+    for(String contentType : mappings.keySet()){
+      if(!isNativeEngine(contentType)){
+        return true;
+      }
+    }
+    return false;
   }
 }
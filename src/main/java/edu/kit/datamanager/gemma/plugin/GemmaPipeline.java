@@ -0,0 +1,510 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.plugin;
+
+import edu.kit.datamanager.gemma.util.GemmaMetrics;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded, asynchronous pipeline executing mapping jobs in the stages fetch,
+ * map and upload. Jobs are distributed over a fixed number of lanes by the
+ * hash of their entity id. Each lane runs each stage in a single thread, so
+ * jobs for the same entity are processed in submission order while jobs of
+ * different lanes run in parallel and the stages of consecutive jobs overlap.
+ *
+ * Each job priority may have its own group of lanes, so e.g. metadata updates
+ * are not queued behind large content. Priorities without lanes share the
+ * lanes of priority NORMAL. Each job runs in a lane of its own priority. While
+ * jobs for an entity are running in one lane, a further job for this entity
+ * assigned to another lane is held back until they have finished, so jobs for
+ * the same entity are still processed in submission order. Jobs running in
+ * the lanes of priority BULK additionally reserve their expected memory from
+ * a shared budget before being fetched. While the budget is used up, these
+ * lanes wait without affecting other lanes.
+ *
+ * The number of jobs inside each lane is limited. If a lane is full,
+ * submitting a job blocks the calling thread until capacity becomes available
+ * or the submit timeout elapses.
+ *
+ * @author jejkal
+ */
+public class GemmaPipeline{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(GemmaPipeline.class);
+
+  /**
+   * A single pipeline stage.
+   */
+  @FunctionalInterface
+  public interface Stage{
+
+    /**
+     * Apply this stage to the provided job.
+     *
+     * @param job The job.
+     *
+     * @return TRUE if the job should continue with the next stage, FALSE if
+     * processing of the job ends.
+     */
+    boolean apply(MappingJob job);
+  }
+
+  /**
+   * Callback invoked after a job has left the pipeline.
+   */
+  @FunctionalInterface
+  public interface Completion{
+
+    /**
+     * Notify about the end of a job.
+     *
+     * @param job The job.
+     * @param success TRUE if all stages succeeded.
+     */
+    void completed(MappingJob job, boolean success);
+  }
+
+  private final Map<MappingJob.PRIORITY, Lane[]> lanes = new EnumMap<>(MappingJob.PRIORITY.class);
+  private final int capacity;
+  private final long submitTimeout;
+  private final long memoryBudget;
+  private long memoryReserved = 0;
+  private final Stage fetch;
+  private final Stage map;
+  private final Stage upload;
+  private final Completion completion;
+  private final AtomicInteger inFlight = new AtomicInteger(0);
+  /**
+   * The running and held back jobs of all entities with jobs inside the
+   * pipeline.
+   */
+  private final Map<String, EntityJobs> entities = new HashMap<>();
+  private volatile boolean accepting = true;
+
+  /**
+   * Default constructor.
+   *
+   * @param laneCounts The number of lanes per priority. The number of lanes of
+   * priority NORMAL must be larger than 0.
+   * @param capacity The max. number of jobs inside a single lane.
+   * @param submitTimeout The time in milliseconds a submit waits for capacity.
+   * @param memoryBudget The max. expected memory in bytes of all jobs running
+   * in lanes of priority BULK. If 0, the memory is not limited.
+   * @param fetch The fetch stage.
+   * @param map The map stage.
+   * @param upload The upload stage.
+   * @param completion The callback invoked for each finished job.
+   */
+  public GemmaPipeline(Map<MappingJob.PRIORITY, Integer> laneCounts, int capacity, long submitTimeout, long memoryBudget, Stage fetch, Stage map, Stage upload, Completion completion){
+    if(laneCounts.getOrDefault(MappingJob.PRIORITY.NORMAL, 0) <= 0){
+      throw new IllegalArgumentException("At least one lane of priority NORMAL is required.");
+    }
+    this.capacity = capacity;
+    this.submitTimeout = submitTimeout;
+    this.memoryBudget = memoryBudget;
+    this.fetch = fetch;
+    this.map = map;
+    this.upload = upload;
+    this.completion = completion;
+    for(MappingJob.PRIORITY priority : MappingJob.PRIORITY.values()){
+      int laneCount = laneCounts.getOrDefault(priority, 0);
+      if(laneCount > 0){
+        Lane[] group = new Lane[laneCount];
+        for(int i = 0; i < laneCount; i++){
+          group[i] = new Lane(priority, i, capacity);
+        }
+        lanes.put(priority, group);
+      }
+    }
+  }
+
+  /**
+   * Submit a job to the lane responsible for its priority and entity id. If
+   * the lane is full, this call blocks until capacity becomes available or
+   * until the submit timeout has elapsed. If jobs for the same entity are
+   * running in another lane, the accepted job is held back until they have
+   * finished. Jobs without priority are treated as NORMAL.
+   *
+   * @param job The job to submit.
+   *
+   * @return TRUE if the job was accepted, FALSE if the lane remained full, if
+   * the calling thread was interrupted or if the pipeline is shut down.
+   */
+  public boolean submit(MappingJob job){
+    if(!accepting){
+      LOGGER.warn("Pipeline is shut down. Unable to accept {}.", job);
+      return false;
+    }
+    Lane[] group = lanes.getOrDefault(getPriority(job), lanes.get(MappingJob.PRIORITY.NORMAL));
+    Lane lane = group[Math.floorMod(job.getEntityId().hashCode(), group.length)];
+    try{
+      if(!lane.permits.tryAcquire(submitTimeout, TimeUnit.MILLISECONDS)){
+        LOGGER.warn("Pipeline lane {} is full. Unable to accept {} within {} ms.", lane.index, job, submitTimeout);
+        return false;
+      }
+    } catch(InterruptedException ex){
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    inFlight.incrementAndGet();
+    QueuedJob queued = new QueuedJob(lane, job, System.nanoTime());
+    synchronized(entities){
+      EntityJobs entityJobs = entities.computeIfAbsent(job.getEntityId(), (id) -> new EntityJobs());
+      if(entityJobs.running > 0 && (entityJobs.lane != lane || !entityJobs.held.isEmpty())){
+        LOGGER.trace("Holding back {} until previous jobs for the same entity have finished.", job);
+        entityJobs.held.add(queued);
+        return true;
+      }
+      if(start(entityJobs, queued)){
+        return true;
+      }
+      //shut down after checking 'accepting'
+      if(--entityJobs.running == 0){
+        entities.remove(job.getEntityId());
+      }
+    }
+    LOGGER.warn("Pipeline is shut down. Unable to accept {}.", job);
+    inFlight.decrementAndGet();
+    lane.permits.release();
+    return false;
+  }
+
+  /**
+   * Start a job in its lane and count it as running job of its entity. If the
+   * lane is stopped, the job is still counted and has to be aborted by the
+   * caller. The caller must hold the lock of 'entities'.
+   *
+   * @return TRUE if the job was started, FALSE if the lane is stopped.
+   */
+  private boolean start(EntityJobs entityJobs, QueuedJob queued){
+    Lane lane = queued.lane;
+    MappingJob job = queued.job;
+    entityJobs.lane = lane;
+    entityJobs.running++;
+    try{
+      lane.fetchExecutor.execute(new StageTask(lane, job, 0, () -> {
+        long memory = MappingJob.PRIORITY.BULK.equals(lane.priority) ? reserveMemory(job) : 0;
+        GemmaMetrics.recordTime(GemmaMetrics.PIPELINE_WAIT, queued.submitted, GemmaMetrics.PRIORITY_TAG, getPriority(job).toString().toLowerCase());
+        if(memory < 0 || !runStage(fetch, job, "fetch")){
+          finish(lane, job, false, memory);
+          return;
+        }
+        handOver(lane, lane.mapExecutor, job, memory, () -> {
+          if(!runStage(map, job, "map")){
+            finish(lane, job, false, memory);
+            return;
+          }
+          handOver(lane, lane.uploadExecutor, job, memory, () -> finish(lane, job, runStage(upload, job, "upload"), memory));
+        });
+      }));
+    } catch(RejectedExecutionException ex){
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Remove a finished job from the running jobs of its entity. If it was the
+   * last running job, the held back jobs of the entity are started up to the
+   * first job assigned to another lane.
+   *
+   * @param job The finished job.
+   *
+   * @return All held back jobs which could not be started as their lane is
+   * stopped.
+   */
+  private List<QueuedJob> release(MappingJob job){
+    synchronized(entities){
+      EntityJobs entityJobs = entities.get(job.getEntityId());
+      if(entityJobs == null || --entityJobs.running > 0){
+        return Collections.emptyList();
+      }
+      List<QueuedJob> rejected = new ArrayList<>();
+      while(!entityJobs.held.isEmpty() && (entityJobs.running == 0 || entityJobs.held.peek().lane == entityJobs.lane)){
+        QueuedJob next = entityJobs.held.poll();
+        if(!start(entityJobs, next)){
+          rejected.add(next);
+        }
+      }
+      if(entityJobs.running == 0){
+        entities.remove(job.getEntityId());
+      }
+      return rejected;
+    }
+  }
+
+  private static MappingJob.PRIORITY getPriority(MappingJob job){
+    return (job.getPriority() != null) ? job.getPriority() : MappingJob.PRIORITY.NORMAL;
+  }
+
+  /**
+   * Reserve the expected memory of 'job' from the memory budget. If the
+   * budget is used up, this call blocks until enough memory was released.
+   * Jobs expected to use more than the whole budget reserve the whole budget.
+   *
+   * @param job The job.
+   *
+   * @return The reserved memory in bytes or -1 if the calling thread was
+   * interrupted while waiting.
+   */
+  private synchronized long reserveMemory(MappingJob job){
+    if(memoryBudget <= 0){
+      return 0;
+    }
+    long memory = Math.min(Math.max(job.getExpectedMemory(), 0), memoryBudget);
+    if(memoryReserved + memory > memoryBudget){
+      LOGGER.trace("Memory budget of {} bytes used up. {} waits for {} bytes.", memoryBudget, job, memory);
+    }
+    while(memoryReserved + memory > memoryBudget){
+      try{
+        wait();
+      } catch(InterruptedException ex){
+        Thread.currentThread().interrupt();
+        return -1;
+      }
+    }
+    memoryReserved += memory;
+    return memory;
+  }
+
+  private synchronized void releaseMemory(long memory){
+    if(memory > 0){
+      memoryReserved -= memory;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Get the expected memory of all jobs running in lanes of priority BULK.
+   *
+   * @return The reserved memory in bytes.
+   */
+  public synchronized long getMemoryReserved(){
+    return memoryReserved;
+  }
+
+  /**
+   * Get the number of jobs currently inside the pipeline.
+   *
+   * @return The number of jobs.
+   */
+  public int getInFlight(){
+    return inFlight.get();
+  }
+
+  /**
+   * Get the total capacity of the pipeline.
+   *
+   * @return The max. number of jobs over all lanes.
+   */
+  public int getCapacity(){
+    int laneCount = 0;
+    for(Lane[] group : lanes.values()){
+      laneCount += group.length;
+    }
+    return capacity * laneCount;
+  }
+
+  /**
+   * Stop accepting jobs and wait up to 'timeout' milliseconds for all jobs
+   * inside the pipeline to finish. Afterwards, all lanes are stopped and jobs
+   * still inside the pipeline are aborted, i.e. they are completed with a
+   * transient failure as soon as their current stage has ended.
+   *
+   * @param timeout The time to wait in milliseconds.
+   *
+   * @return TRUE if all jobs have finished, FALSE if jobs were aborted.
+   */
+  public boolean shutdown(long timeout){
+    accepting = false;
+    long deadline = System.currentTimeMillis() + timeout;
+    awaitLanes:
+    for(Lane[] group : lanes.values()){
+      for(Lane lane : group){
+        try{
+          lane.permits.tryAcquire(capacity, Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch(InterruptedException ex){
+          Thread.currentThread().interrupt();
+          break awaitLanes;
+        }
+      }
+    }
+    int aborted = inFlight.get();
+    if(aborted > 0){
+      LOGGER.warn("Pipeline did not finish within {} ms. Aborting {} job(s).", timeout, aborted);
+    }
+    for(Lane[] group : lanes.values()){
+      for(Lane lane : group){
+        //stop later stages first, so that jobs leaving an interrupted stage are not handed over
+        for(ExecutorService executor : new ExecutorService[]{lane.uploadExecutor, lane.mapExecutor, lane.fetchExecutor}){
+          for(Runnable task : executor.shutdownNow()){
+            abort((StageTask) task);
+          }
+        }
+      }
+    }
+    return aborted == 0;
+  }
+
+  private boolean runStage(Stage stage, MappingJob job, String name){
+    try{
+      return stage.apply(job);
+    } catch(RuntimeException ex){
+      LOGGER.error("Stage " + name + " failed for " + job + ".", ex);
+      return false;
+    }
+  }
+
+  /**
+   * Hand a job over to the next stage of its lane. If the lane was stopped
+   * after the shutdown timeout, the job is aborted.
+   */
+  private void handOver(Lane lane, ExecutorService executor, MappingJob job, long memory, Runnable stage){
+    StageTask task = new StageTask(lane, job, memory, stage);
+    try{
+      executor.execute(task);
+    } catch(RejectedExecutionException ex){
+      abort(task);
+    }
+  }
+
+  /**
+   * Finish a job which did not pass all stages before the lanes were stopped
+   * with a transient failure, so that it can be retried.
+   */
+  private void abort(StageTask task){
+    abort(task.lane, task.job, task.memory);
+  }
+
+  private void abort(Lane lane, MappingJob job, long memory){
+    LOGGER.warn("Pipeline is shut down. Aborting {}.", job);
+    job.setFailure(MappingJob.FAILURE.TRANSIENT);
+    finish(lane, job, false, memory);
+  }
+
+  private void finish(Lane lane, MappingJob job, boolean success, long memory){
+    List<QueuedJob> rejected;
+    try{
+      completion.completed(job, success);
+    } catch(RuntimeException ex){
+      LOGGER.error("Failed to complete " + job + ".", ex);
+    } finally{
+      releaseMemory(memory);
+      rejected = release(job);
+      inFlight.decrementAndGet();
+      lane.permits.release();
+    }
+    //held back jobs released after their lane was stopped
+    for(QueuedJob queued : rejected){
+      abort(queued.lane, queued.job, 0);
+    }
+  }
+
+  /**
+   * A stage of a job waiting for the thread of its lane.
+   */
+  private static class StageTask implements Runnable{
+
+    private final Lane lane;
+    private final MappingJob job;
+    private final long memory;
+    private final Runnable stage;
+
+    StageTask(Lane lane, MappingJob job, long memory, Runnable stage){
+      this.lane = lane;
+      this.job = job;
+      this.memory = memory;
+      this.stage = stage;
+    }
+
+    @Override
+    public void run(){
+      stage.run();
+    }
+  }
+
+  /**
+   * A job accepted by a lane, but not yet started.
+   */
+  private static class QueuedJob{
+
+    private final Lane lane;
+    private final MappingJob job;
+    private final long submitted;
+
+    QueuedJob(Lane lane, MappingJob job, long submitted){
+      this.lane = lane;
+      this.job = job;
+      this.submitted = submitted;
+    }
+  }
+
+  /**
+   * The lane and the number of running jobs of an entity as well as its jobs
+   * held back until the running jobs have finished.
+   */
+  private static class EntityJobs{
+
+    private Lane lane;
+    private int running = 0;
+    private final Deque<QueuedJob> held = new ArrayDeque<>();
+  }
+
+  /**
+   * A single lane with one thread per stage.
+   */
+  private static class Lane{
+
+    private final MappingJob.PRIORITY priority;
+    private final String index;
+    private final Semaphore permits;
+    private final ExecutorService fetchExecutor;
+    private final ExecutorService mapExecutor;
+    private final ExecutorService uploadExecutor;
+
+    Lane(MappingJob.PRIORITY priority, int index, int capacity){
+      this.priority = priority;
+      this.index = priority.toString().toLowerCase() + "-" + index;
+      this.permits = new Semaphore(capacity);
+      this.fetchExecutor = newStageExecutor("gemma-lane-" + this.index + "-fetch");
+      this.mapExecutor = newStageExecutor("gemma-lane-" + this.index + "-map");
+      this.uploadExecutor = newStageExecutor("gemma-lane-" + this.index + "-upload");
+    }
+
+    private static ExecutorService newStageExecutor(String name){
+      return Executors.newSingleThreadExecutor((r) -> {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+      });
+    }
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.plugin;
+
+import edu.kit.datamanager.gemma.mapping.CachedMapping;
+import edu.kit.datamanager.gemma.util.StreamPipe;
+import edu.kit.datamanager.gemma.util.WorkspaceManager;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.Data;
+
+/**
+ * A single unit of work of the GemmaHandler, which passes the stages fetch,
+ * map and upload. The job is created from a received message and collects the
+ * intermediate results of all stages.
+ *
+ * @author jejkal
+ */
+@Data
+public class MappingJob{
+
+  /**
+   * The kind of event a job was created for.
+   */
+  public enum KIND{
+    /**
+     * Data resource metadata was created or updated.
+     */
+    METADATA,
+    /**
+     * Content was uploaded to a data resource.
+     */
+    CONTENT;
+  }
+
+  /**
+   * The priority class of a job, which selects the pipeline lanes the job is
+   * executed in.
+   */
+  public enum PRIORITY{
+    /**
+     * Metadata updates, which are small and usually caused by interactive
+     * edits.
+     */
+    INTERACTIVE,
+    /**
+     * Content smaller than the bulk size threshold.
+     */
+    NORMAL,
+    /**
+     * Large content or content of unknown size, e.g. during bulk ingests.
+     */
+    BULK;
+  }
+
+  /**
+   * The kind of failure of a job.
+   */
+  public enum FAILURE{
+    /**
+     * The job failed due to a temporary condition, e.g. an unavailable
+     * repository or a mapping timeout, and may succeed if retried.
+     */
+    TRANSIENT,
+    /**
+     * The job will fail again if retried, e.g. due to a missing mapping, a
+     * mapping error or a rejected result.
+     */
+    PERMANENT;
+  }
+
+  private final KIND kind;
+  private final String entityId;
+  private final String contentType;
+  private final String filename;
+  private final long created = System.currentTimeMillis();
+  private URI contentUri;
+  private String relativePath;
+  /**
+   * All mappings for the content type, producing one output each.
+   */
+  private List<CachedMapping> mappings;
+  /**
+   * TRUE while 'mappings' are acquired from the mapping cache, i.e. their
+   * snapshots have to be kept.
+   */
+  private boolean mappingsAcquired;
+  private WorkspaceManager.Workspace workspace;
+  private Path inputFile;
+  /**
+   * The output files in the order of 'mappings'.
+   */
+  private List<Path> outputFiles;
+  private InputStream inputStream;
+  private StreamPipe resultPipe;
+  private String inputHash;
+  private PRIORITY priority;
+  /**
+   * The size of the input in bytes or -1 if unknown.
+   */
+  private long inputSize = -1;
+  /**
+   * The memory in bytes the job is expected to use while mapping.
+   */
+  private long expectedMemory;
+  /**
+   * The number of outputs not yet written by the output sink.
+   */
+  private final AtomicInteger pendingOutputs = new AtomicInteger();
+  /**
+   * The hashes of all written outputs in the order of 'mappings'.
+   */
+  private String[] outputHashes;
+  /**
+   * The kind of failure reported by the output sink, PERMANENT if any result
+   * failed permanently.
+   */
+  private volatile FAILURE outputFailure;
+  private boolean skipped;
+  private FAILURE failure;
+  /**
+   * The number of previous attempts to execute this job.
+   */
+  private int attempt;
+  /**
+   * TRUE if the job or the job it retries was replayed from the failure
+   * journal.
+   */
+  private boolean replayed;
+  /**
+   * Completed as soon as the job has ended, i.e. after the output sink
+   * reported all results, with TRUE if a retry of the job was scheduled.
+   */
+  private final CompletableFuture<Boolean> ended = new CompletableFuture<>();
+
+  /**
+   * Get the filename of the output generated by 'mapping', which is the source
+   * filename with the extension replaced by '.elastic.json', or by
+   * '.{projection}.elastic.json' for all but the first mapping of a content
+   * type.
+   *
+   * @param mapping The mapping.
+   *
+   * @return The output filename.
+   */
+  public String getOutputFilename(CachedMapping mapping){
+    String base = (filename.contains(".")) ? filename.substring(0, filename.lastIndexOf(".")) : filename;
+    if(mapping.getProjection() != null){
+      base += "." + mapping.getProjection();
+    }
+    return base + ".elastic.json";
+  }
+
+  /**
+   * Create a fresh job for retrying this job, containing only the properties
+   * obtained from the original event.
+   *
+   * @return The new job.
+   */
+  public MappingJob createRetry(){
+    MappingJob retry = new MappingJob(kind, entityId, contentType, filename);
+    retry.setContentUri(contentUri);
+    retry.setRelativePath(relativePath);
+    retry.setAttempt(attempt + 1);
+    retry.setReplayed(replayed);
+    return retry;
+  }
+
+  @Override
+  public String toString(){
+    return "MappingJob(" + kind + ", " + entityId + ", " + contentType + ", " + filename + ")";
+  }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.plugin;
+
+import com.google.common.util.concurrent.RateLimiter;
+import edu.kit.datamanager.clients.SimpleServiceClient;
+import edu.kit.datamanager.entities.repo.ContentInformation;
+import edu.kit.datamanager.entities.repo.DataResource;
+import edu.kit.datamanager.gemma.configuration.GemmaConfiguration;
+import edu.kit.datamanager.gemma.util.RepositoryClient;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Service for applying the current mappings to all data resources of the
+ * repository, e.g. after a mapping was changed. The service pages through all
+ * data resources and their content and maps each matching content using the
+ * same mapping and upload path as GemmaHandler. Resources of one page are
+ * processed in parallel by 'reindexConcurrency' threads and the number of
+ * mappings per second is limited to 'reindexRate'. After each page, a
+ * checkpoint is written to 'reindexCheckpointLocation', which allows to resume
+ * an interrupted run at the next page. The checkpoint is not advanced beyond
+ * a page with failed resources, so that they are revisited on resume.
+ *
+ * @author jejkal
+ */
+@Component
+public class ReindexService{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(ReindexService.class);
+
+  private static final String PAGE_PROPERTY = "page";
+  private static final String CONTENT_TYPES_PROPERTY = "contentTypes";
+
+  private final GemmaHandler handler;
+  private final GemmaConfiguration gemmaConfiguration;
+
+  private final ReindexStatus status = new ReindexStatus();
+  private final AtomicLong resources = new AtomicLong(0);
+  private final AtomicLong succeeded = new AtomicLong(0);
+  private final AtomicLong retryScheduled = new AtomicLong(0);
+  private final AtomicLong failed = new AtomicLong(0);
+  private final AtomicLong rejected = new AtomicLong(0);
+  private final AtomicLong failedResources = new AtomicLong(0);
+  private long finished = 0;
+  private volatile boolean cancelled = false;
+
+  /**
+   * Default constructor.
+   *
+   * @param handler The handler used for mapping and uploading.
+   * @param gemmaConfiguration The configuration.
+   */
+  @Autowired
+  public ReindexService(GemmaHandler handler, GemmaConfiguration gemmaConfiguration){
+    this.handler = handler;
+    this.gemmaConfiguration = gemmaConfiguration;
+  }
+
+  /**
+   * Start a re-index of all content of the provided content types in a
+   * background thread.
+   *
+   * @param contentTypes The content types to re-index. If empty, all content
+   * types with mapping are re-indexed.
+   * @param resume TRUE to resume at the checkpoint of a previous run for the
+   * same content types, if there is one.
+   *
+   * @return The status of the started run.
+   *
+   * @throws IllegalArgumentException If there is no mapping for one of the
+   * provided content types.
+   * @throws IllegalStateException If a re-index is already running or if the
+   * handler is not configured.
+   */
+  public synchronized ReindexStatus start(Set<String> contentTypes, boolean resume){
+    if(ReindexStatus.STATE.RUNNING.equals(status.getState())){
+      throw new IllegalStateException("A re-index is already running.");
+    }
+    RepositoryClient client = handler.getRepositoryClient();
+    if(client == null){
+      throw new IllegalStateException("Handler is not configured. Unable to start re-index.");
+    }
+    Set<String> types = new TreeSet<>(contentTypes);
+    if(types.isEmpty()){
+      types.addAll(gemmaConfiguration.getSchemaMappings().keySet());
+    }
+    for(String type : types){
+      if(!gemmaConfiguration.getSchemaMappings().containsKey(type)){
+        throw new IllegalArgumentException("No mapping found for content type " + type + ".");
+      }
+    }
+    int startPage = resume ? readCheckpoint(types) : 0;
+
+    resources.set(0);
+    succeeded.set(0);
+    retryScheduled.set(0);
+    failed.set(0);
+    rejected.set(0);
+    failedResources.set(0);
+    cancelled = false;
+    finished = 0;
+    status.setState(ReindexStatus.STATE.RUNNING);
+    status.setContentTypes(Collections.unmodifiableSet(types));
+    status.setStartPage(startPage);
+    status.setPage(startPage);
+    status.setTotalResources(0);
+    status.setStarted(System.currentTimeMillis());
+    status.setError(null);
+
+    LOGGER.info("Starting re-index of content types {} at page {}.", types, startPage);
+    Thread runner = new Thread(() -> run(client, types, startPage), "gemma-reindex");
+    runner.setDaemon(true);
+    runner.start();
+    return getStatus();
+  }
+
+  /**
+   * Cancel the running re-index. Mappings already started are finished, the
+   * checkpoint is kept so that the run can be resumed.
+   */
+  public void cancel(){
+    cancelled = true;
+  }
+
+  /**
+   * Get a snapshot of the status of the current or last re-index.
+   *
+   * @return The status.
+   */
+  public synchronized ReindexStatus getStatus(){
+    ReindexStatus snapshot = new ReindexStatus();
+    snapshot.setState(status.getState());
+    snapshot.setContentTypes(status.getContentTypes());
+    snapshot.setPage(status.getPage());
+    snapshot.setStartPage(status.getStartPage());
+    snapshot.setTotalResources(status.getTotalResources());
+    snapshot.setStarted(status.getStarted());
+    snapshot.setError(status.getError());
+    snapshot.setResources(resources.get());
+    snapshot.setSucceeded(succeeded.get());
+    snapshot.setRetryScheduled(retryScheduled.get());
+    snapshot.setFailed(failed.get());
+    snapshot.setRejected(rejected.get());
+    snapshot.setFailedResources(failedResources.get());
+    if(status.getStarted() > 0){
+      long elapsed = ((finished > 0) ? finished : System.currentTimeMillis()) - status.getStarted();
+      snapshot.setElapsed(elapsed);
+      snapshot.setThroughput((elapsed > 0) ? (succeeded.get() + retryScheduled.get() + failed.get()) * 1000.0 / elapsed : 0);
+    }
+    return snapshot;
+  }
+
+  private void run(RepositoryClient client, Set<String> types, int startPage){
+    AtomicInteger threadCount = new AtomicInteger(0);
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(gemmaConfiguration.getReindexConcurrency(), 1), (r) -> {
+      Thread t = new Thread(r, "gemma-reindex-" + threadCount.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+    RateLimiter rateLimiter = (gemmaConfiguration.getReindexRate() > 0) ? RateLimiter.create(gemmaConfiguration.getReindexRate()) : null;
+    int pageSize = gemmaConfiguration.getReindexPageSize();
+    ReindexStatus.STATE result = ReindexStatus.STATE.COMPLETED;
+    String error = null;
+    //the first page with failed resources, which is kept as checkpoint for the rest of the run
+    int failedPage = -1;
+    try{
+      int page = startPage;
+      while(!cancelled){
+        synchronized(this){
+          status.setPage(page);
+        }
+        SimpleServiceClient.ResultPage<DataResource> resultPage = client.getResources(page, pageSize);
+        DataResource[] pageResources = resultPage.getResources();
+        if(resultPage.getContentRange() != null){
+          synchronized(this){
+            status.setTotalResources(resultPage.getContentRange().getTotalElements());
+          }
+        }
+        if(pageResources == null || pageResources.length == 0){
+          break;
+        }
+        List<Future<Boolean>> futures = new ArrayList<>();
+        List<CompletableFuture<?>> results = Collections.synchronizedList(new ArrayList<>());
+        for(DataResource resource : pageResources){
+          futures.add(executor.submit(() -> reindexResource(client, resource.getId(), types, rateLimiter, results)));
+        }
+        int pageFailures = 0;
+        for(Future<Boolean> future : futures){
+          if(!future.get()){
+            pageFailures++;
+          }
+        }
+        //results written by an asynchronous output sink are reported later, the checkpoint is only written afterwards
+        CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).get();
+        if(cancelled){
+          //resources of this page may have been skipped, thus the checkpoint is not advanced
+          break;
+        }
+        if(pageFailures > 0 && failedPage < 0){
+          LOGGER.warn("Failed to re-index {} resource(s) of page {}. Keeping checkpoint at this page to revisit them on resume.", pageFailures, page);
+          failedPage = page;
+          writeCheckpoint(types, page);
+        }
+        page++;
+        if(failedPage < 0){
+          writeCheckpoint(types, page);
+        }
+        ReindexStatus progress = getStatus();
+        LOGGER.info("Re-indexed page {} ({} of {} resources). {} mapping(s) succeeded, {} scheduled for retry, {} failed, {} per second.", page - 1, progress.getResources(), progress.getTotalResources(), progress.getSucceeded(), progress.getRetryScheduled(), progress.getFailed(), String.format("%.1f", progress.getThroughput()));
+        if(pageResources.length < pageSize){
+          break;
+        }
+      }
+      if(cancelled){
+        result = ReindexStatus.STATE.CANCELLED;
+      } else if(failedPage >= 0){
+        result = ReindexStatus.STATE.FAILED;
+        error = failedResources.get() + " resource(s) failed. Resume to revisit them starting at page " + failedPage + ".";
+      } else{
+        deleteCheckpoint();
+      }
+    } catch(InterruptedException ex){
+      Thread.currentThread().interrupt();
+      result = ReindexStatus.STATE.CANCELLED;
+    } catch(ExecutionException | RuntimeException ex){
+      LOGGER.error("Re-index failed. It can be resumed at the last checkpoint.", ex);
+      result = ReindexStatus.STATE.FAILED;
+      error = ex.getMessage();
+    } finally{
+      executor.shutdownNow();
+    }
+    synchronized(this){
+      finished = System.currentTimeMillis();
+      status.setState(result);
+      status.setError(error);
+    }
+    LOGGER.info("Re-index finished with state {}: {}", result, getStatus());
+  }
+
+  /**
+   * Re-index the metadata and all content of the provided content types of a
+   * single resource. The results of all started mappings are added to
+   * 'results'.
+   *
+   * @return FALSE if the content of the resource could not be listed
+   * completely, TRUE otherwise.
+   */
+  private boolean reindexResource(RepositoryClient client, String resourceId, Set<String> types, RateLimiter rateLimiter, List<CompletableFuture<?>> results){
+    if(cancelled){
+      return true;
+    }
+    resources.incrementAndGet();
+    try{
+      if(types.contains(GemmaHandler.DATA_RESOURCE_CONTENT_TYPE)){
+        acquire(rateLimiter);
+        results.add(handler.reindexMetadata(resourceId).thenAccept(this::count));
+      }
+      boolean hasContentTypes = types.size() > (types.contains(GemmaHandler.DATA_RESOURCE_CONTENT_TYPE) ? 1 : 0);
+      if(!hasContentTypes){
+        return true;
+      }
+      int pageSize = gemmaConfiguration.getReindexPageSize();
+      int page = 0;
+      while(!cancelled){
+        ContentInformation[] content = client.getContentInformation(resourceId, page, pageSize).getResources();
+        if(content == null || content.length == 0){
+          break;
+        }
+        for(ContentInformation info : content){
+          if(cancelled){
+            break;
+          }
+          if(!types.contains(info.getMediaType())){
+            continue;
+          }
+          acquire(rateLimiter);
+          results.add(handler.reindexContent(resourceId, info.getMediaType(), info.getContentUri(), info.getRelativePath()).thenAccept(this::count));
+        }
+        if(content.length < pageSize){
+          break;
+        }
+        page++;
+      }
+    } catch(RuntimeException ex){
+      LOGGER.error("Failed to re-index resource " + resourceId + ".", ex);
+      failedResources.incrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  private void acquire(RateLimiter rateLimiter){
+    if(rateLimiter != null){
+      rateLimiter.acquire();
+    }
+  }
+
+  private void count(GemmaHandler.REINDEX_RESULT result){
+    switch(result){
+      case SUCCEEDED:
+        succeeded.incrementAndGet();
+        break;
+      case RETRY_SCHEDULED:
+        retryScheduled.incrementAndGet();
+        break;
+      case FAILED:
+        failed.incrementAndGet();
+        break;
+      default:
+        rejected.incrementAndGet();
+    }
+  }
+
+  /**
+   * Read the page to resume at from the checkpoint file. A checkpoint is only
+   * used if it was written for the same content types.
+   *
+   * @param types The content types of the new run.
+   *
+   * @return The page to start at.
+   */
+  private int readCheckpoint(Set<String> types){
+    Path checkpoint = getCheckpointPath();
+    if(checkpoint == null || !Files.exists(checkpoint)){
+      return 0;
+    }
+    Properties properties = new Properties();
+    try(InputStream in = Files.newInputStream(checkpoint)){
+      properties.load(in);
+    } catch(IOException ex){
+      LOGGER.warn("Failed to read re-index checkpoint " + checkpoint + ". Starting at first page.", ex);
+      return 0;
+    }
+    if(!String.join(",", types).equals(properties.getProperty(CONTENT_TYPES_PROPERTY))){
+      LOGGER.info("Re-index checkpoint {} was written for content types {}. Starting at first page.", checkpoint, properties.getProperty(CONTENT_TYPES_PROPERTY));
+      return 0;
+    }
+    try{
+      return Integer.parseInt(properties.getProperty(PAGE_PROPERTY, "0"));
+    } catch(NumberFormatException ex){
+      LOGGER.warn("Invalid page in re-index checkpoint {}. Starting at first page.", checkpoint);
+      return 0;
+    }
+  }
+
+  private void writeCheckpoint(Set<String> types, int page){
+    Path checkpoint = getCheckpointPath();
+    if(checkpoint == null){
+      return;
+    }
+    Properties properties = new Properties();
+    properties.setProperty(CONTENT_TYPES_PROPERTY, String.join(",", types));
+    properties.setProperty(PAGE_PROPERTY, Integer.toString(page));
+    Path tmp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+    try{
+      if(checkpoint.getParent() != null){
+        Files.createDirectories(checkpoint.getParent());
+      }
+      try(OutputStream out = Files.newOutputStream(tmp)){
+        properties.store(out, "Gemma re-index checkpoint");
+      }
+      Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch(IOException ex){
+      LOGGER.warn("Failed to write re-index checkpoint " + checkpoint + ".", ex);
+    }
+  }
+
+  private void deleteCheckpoint(){
+    Path checkpoint = getCheckpointPath();
+    if(checkpoint == null){
+      return;
+    }
+    try{
+      Files.deleteIfExists(checkpoint);
+    } catch(IOException ex){
+      LOGGER.warn("Failed to remove re-index checkpoint " + checkpoint + ".", ex);
+    }
+  }
+
+  private Path getCheckpointPath(){
+    String location = gemmaConfiguration.getReindexCheckpointLocation();
+    return (location != null) ? Paths.get(location) : null;
+  }
+}
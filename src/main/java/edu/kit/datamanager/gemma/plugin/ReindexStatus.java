@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.plugin;
+
+import java.util.Set;
+import lombok.Data;
+
+/**
+ * Snapshot of the progress of a re-index run.
+ *
+ * @author jejkal
+ */
+@Data
+public class ReindexStatus{
+
+  public enum STATE{
+    /**
+     * No re-index was started yet.
+     */
+    IDLE,
+    /**
+     * A re-index is running.
+     */
+    RUNNING,
+    /**
+     * The last re-index processed all resources.
+     */
+    COMPLETED,
+    /**
+     * The last re-index was cancelled and can be resumed.
+     */
+    CANCELLED,
+    /**
+     * The last re-index failed and can be resumed.
+     */
+    FAILED;
+  }
+
+  private STATE state = STATE.IDLE;
+  private Set<String> contentTypes;
+  /**
+   * The page currently processed, starting at 0.
+   */
+  private int page;
+  /**
+   * The page the run was started or resumed at.
+   */
+  private int startPage;
+  /**
+   * The total number of resources reported by the repository.
+   */
+  private long totalResources;
+  private long resources;
+  private long succeeded;
+  /**
+   * Mappings failed transiently, which are retried in the background.
+   */
+  private long retryScheduled;
+  private long failed;
+  private long rejected;
+  /**
+   * Resources whose content could not be listed, e.g. as the repository was
+   * unavailable. In contrast to all other counters, which count mappings,
+   * this counter counts resources.
+   */
+  private long failedResources;
+  /**
+   * Start time in milliseconds since the epoch.
+   */
+  private long started;
+  private long elapsed;
+  /**
+   * Mapped content per second since the start.
+   */
+  private double throughput;
+  private String error;
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.sink;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import edu.kit.datamanager.gemma.mapping.CachedMapping;
+import edu.kit.datamanager.gemma.plugin.GemmaHandler;
+import edu.kit.datamanager.gemma.plugin.MappingJob;
+import edu.kit.datamanager.gemma.util.GemmaMetrics;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sink indexing mapping results directly via the Elasticsearch bulk API
+ * instead of uploading them to the repository. Results are collected in a
+ * batch, which is sent as soon as it reaches 'maxDocuments' or 'maxBytes', or
+ * after 'flushInterval' at the latest. Documents rejected with a retryable
+ * status, i.e. 429 or 5xx, are retried with exponential backoff, failed
+ * requests are retried as a whole. All requests are sent by a single thread,
+ * thus updates of the same document are applied in order.
+ *
+ * The document id is '{entityId}/{path}', where path is the relative content
+ * path or 'generated/{outputFilename}' for metadata, thus each content
+ * replaces the document of its previous mapping. For all but the first mapping
+ * of a content type, the content path is followed by '#{projection}'.
+ *
+ * @author jejkal
+ */
+public class ElasticsearchSink implements IOutputSink{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(ElasticsearchSink.class);
+
+  public static final String NAME = "elasticsearch";
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private final String bulkUrl;
+  private final String index;
+  private final int maxDocuments;
+  private final long maxBytes;
+  private final int maxRetries;
+  private final CloseableHttpClient httpClient;
+  private final ScheduledExecutorService executor;
+  /**
+   * Limits the number of accepted but not yet indexed documents.
+   */
+  private final Semaphore capacity;
+  private List<BulkItem> batch = new ArrayList<>();
+  private long batchBytes = 0;
+
+  /**
+   * Default constructor.
+   *
+   * @param url The Elasticsearch base URL, e.g. http://localhost:9200
+   * @param index The target index.
+   * @param maxDocuments The max. number of documents per bulk request.
+   * @param maxBytes The max. number of bytes per bulk request. A single larger
+   * document is sent on its own.
+   * @param flushInterval The max. time in milliseconds a document is held back
+   * before sending a partial batch.
+   * @param maxRetries The max. number of retries per document.
+   * @param timeout The connect and socket timeout in milliseconds.
+   */
+  public ElasticsearchSink(String url, String index, int maxDocuments, long maxBytes, long flushInterval, int maxRetries, int timeout){
+    this.bulkUrl = (url.endsWith("/") ? url : url + "/") + "_bulk";
+    this.index = index;
+    this.maxDocuments = maxDocuments;
+    this.maxBytes = maxBytes;
+    this.maxRetries = maxRetries;
+    this.capacity = new Semaphore(4 * maxDocuments);
+    RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(timeout).setConnectionRequestTimeout(timeout).setSocketTimeout(timeout).build();
+    httpClient = HttpClients.custom().setDefaultRequestConfig(requestConfig).disableAutomaticRetries().build();
+    executor = Executors.newSingleThreadScheduledExecutor((r) -> {
+      Thread t = new Thread(r, "gemma-elasticsearch-sink");
+      t.setDaemon(true);
+      return t;
+    });
+    executor.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public String getName(){
+    return NAME;
+  }
+
+  /**
+   * Add the result of 'mapping' for 'job' to the current batch. The result has
+   * to be a single JSON document. If the max. number of pending documents is
+   * reached, this method blocks until previous documents were indexed.
+   *
+   * @param job The job the result belongs to.
+   * @param mapping The mapping which produced the result.
+   * @param result The mapping result.
+   * @param callback The callback notified after the document was indexed or
+   * finally failed.
+   *
+   * @return TRUE if the document was accepted, FALSE if the result is empty
+   * or no valid JSON.
+   *
+   * @throws IOException If the result cannot be read.
+   */
+  @Override
+  public boolean write(MappingJob job, CachedMapping mapping, InputStream result, Callback callback) throws IOException{
+    //read up to the end of the stream, which reports failures of streamed mappings
+    byte[] source = result.readAllBytes();
+    JsonNode document;
+    try{
+      document = MAPPER.readTree(source);
+    } catch(JsonProcessingException ex){
+      LOGGER.error("Mapping result of " + job + " is no valid JSON. Not indexing document.", ex);
+      return false;
+    }
+    if(document == null || document.isMissingNode()){
+      LOGGER.error("Mapping result of {} is empty. Not indexing document.", job);
+      return false;
+    }
+    ObjectNode action = MAPPER.createObjectNode();
+    action.putObject("index").put("_index", index).put("_id", getDocumentId(job, mapping));
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    //bulk requests are newline delimited, thus documents are written without line breaks
+    MAPPER.writeValue(bout, action);
+    bout.write('\n');
+    MAPPER.writeValue(bout, document);
+    bout.write('\n');
+    BulkItem item = new BulkItem(job, bout.toByteArray(), callback);
+
+    try{
+      capacity.acquire();
+    } catch(InterruptedException ex){
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for pending documents to be indexed.");
+    }
+
+    List<BulkItem> full = null;
+    synchronized(this){
+      batch.add(item);
+      batchBytes += item.data.length;
+      if(batch.size() >= maxDocuments || batchBytes >= maxBytes){
+        full = takeBatch();
+      }
+    }
+    if(full != null){
+      List<BulkItem> items = full;
+      executor.execute(() -> send(items));
+    }
+    return true;
+  }
+
+  /**
+   * Send all pending documents and wait until they were indexed or failed.
+   */
+  @Override
+  public void close(){
+    executor.execute(this::flush);
+    executor.shutdown();
+    try{
+      if(!executor.awaitTermination(1, TimeUnit.MINUTES)){
+        LOGGER.warn("Timed out while sending pending documents to {}.", bulkUrl);
+      }
+    } catch(InterruptedException ex){
+      Thread.currentThread().interrupt();
+    }
+    try{
+      httpClient.close();
+    } catch(IOException ex){
+      LOGGER.warn("Failed to close Elasticsearch client.", ex);
+    }
+  }
+
+  /**
+   * Get the id of the document created for the result of 'mapping' for 'job'.
+   *
+   * @param job The job.
+   * @param mapping The mapping.
+   *
+   * @return The document id.
+   */
+  public static String getDocumentId(MappingJob job, CachedMapping mapping){
+    if(job.getRelativePath() == null){
+      return job.getEntityId() + "/" + GemmaHandler.GENERATED_PATH + job.getOutputFilename(mapping);
+    }
+    String id = job.getEntityId() + "/" + job.getRelativePath();
+    return (mapping.getProjection() != null) ? id + "#" + mapping.getProjection() : id;
+  }
+
+  private synchronized List<BulkItem> takeBatch(){
+    List<BulkItem> items = batch;
+    batch = new ArrayList<>();
+    batchBytes = 0;
+    return items;
+  }
+
+  private void flush(){
+    List<BulkItem> items = takeBatch();
+    if(!items.isEmpty()){
+      send(items);
+    }
+  }
+
+  /**
+   * Send a batch and retry all documents failed with a retryable status until
+   * they were indexed or no retries are left.
+   *
+   * @param items The batch.
+   */
+  private void send(List<BulkItem> items){
+    List<BulkItem> pending = items;
+    int retries = 0;
+    while(true){
+      List<BulkItem> retry = sendBulk(pending);
+      if(retry.isEmpty()){
+        return;
+      }
+      if(retries >= maxRetries){
+        LOGGER.error("Failed to index {} document(s) after {} attempt(s).", retry.size(), retries + 1);
+        retry.forEach((item) -> completed(item, MappingJob.FAILURE.TRANSIENT));
+        return;
+      }
+      retries++;
+      LOGGER.warn("Failed to index {} of {} document(s) (attempt {}/{}). Retrying.", retry.size(), pending.size(), retries, maxRetries + 1);
+      try{
+        Thread.sleep(Math.min(100L << retries, 5000L));
+      } catch(InterruptedException ex){
+        Thread.currentThread().interrupt();
+        retry.forEach((item) -> completed(item, MappingJob.FAILURE.TRANSIENT));
+        return;
+      }
+      pending = retry;
+    }
+  }
+
+  /**
+   * Send a single bulk request and notify the callbacks of all documents
+   * which were indexed or failed permanently.
+   *
+   * @param items The documents to send.
+   *
+   * @return All documents which should be retried.
+   */
+  private List<BulkItem> sendBulk(List<BulkItem> items){
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    for(BulkItem item : items){
+      body.write(item.data, 0, item.data.length);
+    }
+    HttpPost post = new HttpPost(bulkUrl);
+    post.setEntity(new ByteArrayEntity(body.toByteArray(), ContentType.create("application/x-ndjson")));
+    List<BulkItem> retry = new ArrayList<>();
+    long start = System.nanoTime();
+    try(CloseableHttpResponse response = httpClient.execute(post)){
+      int status = response.getStatusLine().getStatusCode();
+      GemmaMetrics.recordTime(GemmaMetrics.BULK, start, GemmaMetrics.STATUS_TAG, Integer.toString(status));
+      String responseBody = (response.getEntity() != null) ? EntityUtils.toString(response.getEntity()) : null;
+      if(status != 200){
+        LOGGER.warn("Bulk request to {} returned status {}: {}", bulkUrl, status, responseBody);
+        if(isRetryable(status)){
+          return items;
+        }
+        //the request as a whole was rejected, e.g. due to a missing index or credentials, which does not depend on the documents
+        items.forEach((item) -> completed(item, MappingJob.FAILURE.TRANSIENT));
+        return retry;
+      }
+      JsonNode responseItems = (responseBody != null) ? MAPPER.readTree(responseBody).path("items") : null;
+      if(responseItems == null || responseItems.size() != items.size()){
+        LOGGER.warn("Unexpected response of bulk request to {}: {}", bulkUrl, responseBody);
+        return items;
+      }
+      for(int i = 0; i < items.size(); i++){
+        //each response item holds the result object keyed by the action, i.e. 'index'
+        JsonNode result = responseItems.path(i).elements().hasNext() ? responseItems.path(i).elements().next() : null;
+        int itemStatus = (result != null) ? result.path("status").asInt(0) : 0;
+        if(itemStatus >= 200 && itemStatus < 300){
+          completed(items.get(i), null);
+        } else if(itemStatus == 0 || isRetryable(itemStatus)){
+          retry.add(items.get(i));
+        } else{
+          //the document itself was rejected, e.g. due to a mapper_parsing_exception
+          LOGGER.error("Failed to index document of {} with status {}: {}", items.get(i).job, itemStatus, result.path("error"));
+          completed(items.get(i), MappingJob.FAILURE.PERMANENT);
+        }
+      }
+    } catch(IOException ex){
+      LOGGER.warn("Bulk request to " + bulkUrl + " failed.", ex);
+      GemmaMetrics.recordTime(GemmaMetrics.BULK, start, GemmaMetrics.STATUS_TAG, "error");
+      return items;
+    }
+    return retry;
+  }
+
+  private boolean isRetryable(int status){
+    return status == 429 || status >= 500;
+  }
+
+  private void completed(BulkItem item, MappingJob.FAILURE failure){
+    capacity.release();
+    GemmaMetrics.count(GemmaMetrics.BULK_DOCUMENTS, GemmaMetrics.CONTENT_TYPE_TAG, item.job.getContentType(), GemmaMetrics.RESULT_TAG, (failure == null) ? "indexed" : "failed");
+    try{
+      item.callback.completed(failure);
+    } catch(RuntimeException ex){
+      LOGGER.error("Sink callback for " + item.job + " failed.", ex);
+    }
+  }
+
+  /**
+   * A document waiting for being indexed, consisting of the bulk action and
+   * the document source.
+   */
+  private static class BulkItem{
+
+    private final MappingJob job;
+    private final byte[] data;
+    private final Callback callback;
+
+    BulkItem(MappingJob job, byte[] data, Callback callback){
+      this.job = job;
+      this.data = data;
+      this.callback = callback;
+    }
+  }
+}
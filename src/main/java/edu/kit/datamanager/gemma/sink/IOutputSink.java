@@ -0,0 +1,105 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.sink;
+
+import edu.kit.datamanager.gemma.mapping.CachedMapping;
+import edu.kit.datamanager.gemma.plugin.MappingJob;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Destination of mapping results. A sink may write results synchronously or
+ * accept them for asynchronous writing, e.g. in batches. In both cases, the
+ * final outcome is reported via the provided callback.
+ *
+ * @author jejkal
+ */
+public interface IOutputSink{
+
+  /**
+   * Callback notified about the final outcome of a write.
+   */
+  @FunctionalInterface
+  interface Callback{
+
+    /**
+     * Called exactly once for each accepted result.
+     *
+     * @param failure NULL if the result was written, otherwise the kind of
+     * failure if writing finally failed. TRANSIENT failures, e.g. exhausted
+     * retries, may succeed later, PERMANENT failures, e.g. a result rejected by
+     * the destination, will fail again.
+     */
+    void completed(MappingJob.FAILURE failure);
+  }
+
+  /**
+   * Get the sink name as used in the 'outputSink' configuration property.
+   *
+   * @return The sink name.
+   */
+  String getName();
+
+  /**
+   * Write the result of 'mapping' for 'job' read from 'result'. The stream is
+   * completely read before 'callback' is notified, but it may be notified
+   * before or after this method returns.
+   *
+   * @param job The job the result belongs to.
+   * @param mapping The mapping which produced the result.
+   * @param result The mapping result.
+   * @param callback The callback notified about the final outcome, if the
+   * result was accepted.
+   *
+   * @return TRUE if the result was written or accepted for writing, FALSE if
+   * it was rejected and will be rejected again. In the latter case, 'callback'
+   * is not notified.
+   *
+   * @throws IOException If reading the result failed or if the destination is
+   * temporarily unavailable.
+   */
+  boolean write(MappingJob job, CachedMapping mapping, InputStream result, Callback callback) throws IOException;
+
+  /**
+   * Write the result of 'mapping' for 'job' stored in file 'result'. The file
+   * may be deleted as soon as this method returns. By default, the file is
+   * written via write(MappingJob, CachedMapping, InputStream, Callback).
+   *
+   * @param job The job the result belongs to.
+   * @param mapping The mapping which produced the result.
+   * @param result The file containing the mapping result.
+   * @param callback The callback notified about the final outcome, if the
+   * result was accepted.
+   *
+   * @return TRUE if the result was written or accepted for writing, FALSE if
+   * it was rejected and will be rejected again.
+   *
+   * @throws IOException If reading the result failed or if the destination is
+   * temporarily unavailable.
+   */
+  default boolean write(MappingJob job, CachedMapping mapping, Path result, Callback callback) throws IOException{
+    try(InputStream in = Files.newInputStream(result)){
+      return write(job, mapping, in, callback);
+    }
+  }
+
+  /**
+   * Write all pending results and release all resources.
+   */
+  void close();
+}
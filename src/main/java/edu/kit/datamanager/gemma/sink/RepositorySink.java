@@ -0,0 +1,164 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.sink;
+
+import edu.kit.datamanager.entities.repo.ContentInformation;
+import edu.kit.datamanager.gemma.mapping.CachedMapping;
+import edu.kit.datamanager.gemma.plugin.GemmaHandler;
+import edu.kit.datamanager.gemma.plugin.MappingJob;
+import edu.kit.datamanager.gemma.util.GemmaMetrics;
+import edu.kit.datamanager.gemma.util.RepositoryClient;
+import edu.kit.datamanager.gemma.util.UploadRegistry;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.RestClientException;
+
+/**
+ * Sink uploading mapping results to the repository as
+ * 'generated/{outputFilename}' of the mapped resource, i.e. as one file per
+ * mapping. Uploads are performed
+ * synchronously and are registered at the upload registry, such that the
+ * resulting events are recognized by the handler. Uploads failed due to an
+ * unavailable repository are reported as IOException, uploads rejected by the
+ * repository as FALSE.
+ *
+ * @author jejkal
+ */
+public class RepositorySink implements IOutputSink{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(RepositorySink.class);
+
+  public static final String NAME = "repository";
+
+  private final RepositoryClient repositoryClient;
+  private final UploadRegistry uploadRegistry;
+  private final String uploader;
+
+  /**
+   * Default constructor.
+   *
+   * @param repositoryClient The client used for uploading.
+   * @param uploadRegistry The registry all uploads are registered at.
+   * @param uploader The uploader set in the content information of all
+   * uploads, i.e. the handler identifier.
+   */
+  public RepositorySink(RepositoryClient repositoryClient, UploadRegistry uploadRegistry, String uploader){
+    this.repositoryClient = repositoryClient;
+    this.uploadRegistry = uploadRegistry;
+    this.uploader = uploader;
+  }
+
+  @Override
+  public String getName(){
+    return NAME;
+  }
+
+  @Override
+  public boolean write(MappingJob job, CachedMapping mapping, InputStream result, Callback callback) throws IOException{
+    String filename = register(job, mapping);
+    long start = System.nanoTime();
+    HttpStatus status;
+    try{
+      status = repositoryClient.uploadData(job.getEntityId(), filename, result, createContentInformation(mapping.getHash()), true);
+    } catch(RestClientException ex){
+      return failed(job, start, ex);
+    }
+    return completed(job, start, status, callback);
+  }
+
+  @Override
+  public boolean write(MappingJob job, CachedMapping mapping, Path result, Callback callback) throws IOException{
+    String filename = register(job, mapping);
+    long start = System.nanoTime();
+    HttpStatus status;
+    try{
+      LOGGER.trace("Uploading {} to {}/data/{}.", result, job.getEntityId(), filename);
+      status = repositoryClient.uploadData(job.getEntityId(), filename, result.toFile(), createContentInformation(mapping.getHash()), true);
+    } catch(RestClientException ex){
+      return failed(job, start, ex);
+    }
+    return completed(job, start, status, callback);
+  }
+
+  @Override
+  public void close(){
+    //the repository client is owned by the handler
+  }
+
+  /**
+   * Register the upload target of 'job' and 'mapping' at the upload registry.
+   * This has to happen before uploading, as the resulting event may arrive
+   * before the upload request returns.
+   *
+   * @param job The job.
+   * @param mapping The mapping which produced the result.
+   *
+   * @return The relative upload path.
+   */
+  private String register(MappingJob job, CachedMapping mapping){
+    String filename = GemmaHandler.GENERATED_PATH + job.getOutputFilename(mapping);
+    uploadRegistry.register(job.getEntityId(), filename);
+    return filename;
+  }
+
+  private boolean failed(MappingJob job, long start, RestClientException ex) throws IOException{
+    recordUpload(job, start, (ex instanceof HttpStatusCodeException) ? Integer.toString(((HttpStatusCodeException) ex).getRawStatusCode()) : "error");
+    if(RepositoryClient.isTransient(ex)){
+      throw new IOException("Failed to upload mapping result of " + job + ".", ex);
+    }
+    LOGGER.error("Failed to upload mapping result of " + job + ".", ex);
+    return false;
+  }
+
+  private boolean completed(MappingJob job, long start, HttpStatus status, Callback callback){
+    recordUpload(job, start, Integer.toString(status.value()));
+    if(!HttpStatus.CREATED.equals(status)){
+      LOGGER.error("Upload of mapping result of {} returned status {}.", job, status);
+      return false;
+    }
+    callback.completed(null);
+    return true;
+  }
+
+  private void recordUpload(MappingJob job, long start, String status){
+    GemmaMetrics.recordTime(GemmaMetrics.UPLOAD, start, GemmaMetrics.CONTENT_TYPE_TAG, job.getContentType(), GemmaMetrics.STATUS_TAG, status);
+  }
+
+  /**
+   * Create the content information sent with each uploaded file, containing
+   * the handler identifier as uploader and the mapping version as metadata.
+   *
+   * @param mappingVersion The version of the mapping used to create the file.
+   *
+   * @return The content information.
+   */
+  private ContentInformation createContentInformation(String mappingVersion){
+    ContentInformation info = new ContentInformation();
+    LOGGER.trace("Setting uploader to handler identifier {}.", uploader);
+    info.setUploader(uploader);
+    Map<String, String> metadata = new HashMap<>();
+    metadata.put(GemmaHandler.MAPPING_VERSION_PROPERTY, mappingVersion);
+    info.setMetadata(metadata);
+    return info;
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker for requests to a remote service. After 'failureThreshold'
+ * consecutive failures, the circuit opens and all requests fail fast for
+ * 'openDuration' milliseconds. Afterwards, a single trial request is
+ * permitted. If it succeeds, the circuit closes again, otherwise it stays open
+ * for another 'openDuration'.
+ *
+ * @author jejkal
+ */
+public class CircuitBreaker{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+  public enum STATE{
+    /**
+     * All requests are permitted.
+     */
+    CLOSED,
+    /**
+     * All requests fail fast.
+     */
+    OPEN,
+    /**
+     * A single trial request is permitted.
+     */
+    HALF_OPEN;
+  }
+
+  private final String name;
+  private final int failureThreshold;
+  private final long openDuration;
+  private STATE state = STATE.CLOSED;
+  private int failures = 0;
+  private long openedAt;
+  private boolean trialRunning = false;
+
+  /**
+   * Default constructor.
+   *
+   * @param name The name of the protected service used for logging.
+   * @param failureThreshold The number of consecutive failures opening the
+   * circuit. If 0, the circuit never opens.
+   * @param openDuration The time in milliseconds the circuit stays open.
+   */
+  public CircuitBreaker(String name, int failureThreshold, long openDuration){
+    this.name = name;
+    this.failureThreshold = failureThreshold;
+    this.openDuration = openDuration;
+  }
+
+  /**
+   * Check if a request is permitted. If TRUE is returned, the caller has to
+   * report the outcome of the request via onSuccess() or onFailure().
+   *
+   * @return TRUE if the request is permitted, FALSE if it should fail fast.
+   */
+  public synchronized boolean tryAcquire(){
+    switch(state){
+      case CLOSED:
+        return true;
+      case OPEN:
+        if(System.currentTimeMillis() - openedAt < openDuration){
+          return false;
+        }
+        LOGGER.info("Circuit for {} is half-open. Sending trial request.", name);
+        state = STATE.HALF_OPEN;
+        trialRunning = true;
+        return true;
+      default:
+        if(trialRunning){
+          return false;
+        }
+        trialRunning = true;
+        return true;
+    }
+  }
+
+  /**
+   * Report a successful request.
+   */
+  public synchronized void onSuccess(){
+    if(!STATE.CLOSED.equals(state)){
+      LOGGER.info("Circuit for {} closed.", name);
+    }
+    state = STATE.CLOSED;
+    failures = 0;
+    trialRunning = false;
+  }
+
+  /**
+   * Report a failed request.
+   */
+  public synchronized void onFailure(){
+    failures++;
+    trialRunning = false;
+    if(STATE.HALF_OPEN.equals(state) || (failureThreshold > 0 && STATE.CLOSED.equals(state) && failures >= failureThreshold)){
+      LOGGER.warn("Circuit for {} opened after {} consecutive failure(s). Failing fast for {} ms.", name, failures, openDuration);
+      state = STATE.OPEN;
+      openedAt = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Check if requests are currently permitted without acquiring a trial
+   * request.
+   *
+   * @return TRUE if the circuit is closed or a trial request is due.
+   */
+  public synchronized boolean isAvailable(){
+    return STATE.CLOSED.equals(state) || (STATE.OPEN.equals(state) && System.currentTimeMillis() - openedAt >= openDuration);
+  }
+
+  /**
+   * Get the current state.
+   *
+   * @return The state.
+   */
+  public synchronized STATE getState(){
+    return state;
+  }
+}
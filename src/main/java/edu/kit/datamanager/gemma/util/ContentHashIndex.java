@@ -0,0 +1,214 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent index of the last successful mapping per (entityId, path),
+ * containing the hash of the input, the hash of the mapping and the hash of
+ * the uploaded output. The index holds at most 'maxEntries' entries and
+ * evicts the least recently used entry if this limit is exceeded.
+ *
+ * Each update is appended as a single tab-separated line to the index file.
+ * Resource id and path are URL-encoded, so they cannot contain the field or
+ * line separator. On load, later lines overwrite earlier ones. As soon as the file contains
+ * more than twice as many lines as the index has entries (or half the max.
+ * number of entries), it is rewritten with the current entries only.
+ *
+ * @author jejkal
+ */
+public class ContentHashIndex{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(ContentHashIndex.class);
+
+  private final Path indexFile;
+  private final int maxEntries;
+  private final LinkedHashMap<String, String[]> entries;
+  private BufferedWriter writer;
+  private long lines = 0;
+
+  /**
+   * Default constructor.
+   *
+   * @param indexFile The file the index is persisted in.
+   * @param maxEntries The max. number of entries held in memory.
+   */
+  public ContentHashIndex(Path indexFile, int maxEntries){
+    this.indexFile = indexFile;
+    this.maxEntries = maxEntries;
+    this.entries = new LinkedHashMap<String, String[]>(16, 0.75f, true){
+      @Override
+      protected boolean removeEldestEntry(Entry<String, String[]> eldest){
+        return size() > ContentHashIndex.this.maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Load the index file, if it exists, and open it for appending.
+   *
+   * @throws IOException If the index file cannot be read or opened.
+   */
+  public synchronized void load() throws IOException{
+    if(Files.exists(indexFile)){
+      try(BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)){
+        String line;
+        while((line = reader.readLine()) != null){
+          lines++;
+          String[] fields = line.split("\t");
+          if(fields.length != 5){
+            LOGGER.trace("Skipping invalid index line {}.", lines);
+            continue;
+          }
+          entries.put(fields[0] + "\t" + fields[1], new String[]{fields[2], fields[3], fields[4]});
+        }
+      }
+      LOGGER.trace("Loaded {} entries from {} lines of content hash index {}.", entries.size(), lines, indexFile);
+    } else if(indexFile.getParent() != null){
+      Files.createDirectories(indexFile.getParent());
+    }
+    if(needsCompaction()){
+      compact();
+    } else{
+      writer = Files.newBufferedWriter(indexFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+  }
+
+  /**
+   * Check if the content at 'path' of resource 'entityId' was already mapped
+   * with the provided input and mapping hashes.
+   *
+   * @param entityId The resource id.
+   * @param path The content path.
+   * @param inputHash The hash of the current input.
+   * @param mappingHash The hash of the current mapping.
+   *
+   * @return TRUE if input and mapping are unchanged, FALSE otherwise.
+   */
+  public synchronized boolean isUnchanged(String entityId, String path, String inputHash, String mappingHash){
+    String[] hashes = entries.get(getKey(entityId, path));
+    return hashes != null && hashes[0].equals(inputHash) && hashes[1].equals(mappingHash);
+  }
+
+  /**
+   * Get the hash of the output uploaded for the content at 'path' of resource
+   * 'entityId'.
+   *
+   * @param entityId The resource id.
+   * @param path The content path.
+   *
+   * @return The output hash or null if no entry exists.
+   */
+  public synchronized String getOutputHash(String entityId, String path){
+    String[] hashes = entries.get(getKey(entityId, path));
+    return (hashes != null) ? hashes[2] : null;
+  }
+
+  /**
+   * Record a successful mapping and persist it.
+   *
+   * @param entityId The resource id.
+   * @param path The content path.
+   * @param inputHash The hash of the input.
+   * @param mappingHash The hash of the mapping.
+   * @param outputHash The hash of the uploaded output.
+   */
+  public synchronized void put(String entityId, String path, String inputHash, String mappingHash, String outputHash){
+    String key = getKey(entityId, path);
+    entries.put(key, new String[]{inputHash, mappingHash, outputHash});
+    if(writer == null){
+      return;
+    }
+    try{
+      writer.write(key + "\t" + inputHash + "\t" + mappingHash + "\t" + outputHash + "\n");
+      writer.flush();
+      lines++;
+      if(needsCompaction()){
+        compact();
+      }
+    } catch(IOException ex){
+      LOGGER.warn("Failed to persist content hash index entry. Index will only be held in memory.", ex);
+    }
+  }
+
+  /**
+   * Get the number of entries held in memory.
+   *
+   * @return The number of entries.
+   */
+  public synchronized int size(){
+    return entries.size();
+  }
+
+  /**
+   * Close the index file.
+   */
+  public synchronized void close(){
+    if(writer != null){
+      try{
+        writer.close();
+      } catch(IOException ex){
+        LOGGER.warn("Failed to close content hash index.", ex);
+      }
+      writer = null;
+    }
+  }
+
+  /**
+   * Get the key of an entry, which is also its representation in the index
+   * file.
+   */
+  private static String getKey(String entityId, String path){
+    return URLEncoder.encode(entityId, StandardCharsets.UTF_8) + "\t" + URLEncoder.encode(path, StandardCharsets.UTF_8);
+  }
+
+  private boolean needsCompaction(){
+    return lines > 2L * Math.max(entries.size(), maxEntries / 2);
+  }
+
+  /**
+   * Rewrite the index file containing only the current entries.
+   */
+  private void compact() throws IOException{
+    LOGGER.trace("Compacting content hash index {} from {} lines to {} entries.", indexFile, lines, entries.size());
+    if(writer != null){
+      writer.close();
+    }
+    Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+    try(BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)){
+      for(Entry<String, String[]> entry : entries.entrySet()){
+        String[] hashes = entry.getValue();
+        out.write(entry.getKey() + "\t" + hashes[0] + "\t" + hashes[1] + "\t" + hashes[2] + "\n");
+      }
+    }
+    Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    lines = entries.size();
+    writer = Files.newBufferedWriter(indexFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream opening the underlying stream on the first read. Thus, e.g. a
+ * connection to remote content is only established when the content is
+ * actually consumed and is not kept open while the consumer is waiting for
+ * its turn.
+ *
+ * @author jejkal
+ */
+public class DeferredInputStream extends InputStream{
+
+  /**
+   * Opener of the underlying stream.
+   */
+  @FunctionalInterface
+  public interface Opener{
+
+    /**
+     * Open the underlying stream.
+     *
+     * @return The stream.
+     *
+     * @throws IOException If the stream cannot be opened.
+     */
+    InputStream open() throws IOException;
+  }
+
+  private final Opener opener;
+  private InputStream in;
+  private boolean closed = false;
+
+  /**
+   * Default constructor.
+   *
+   * @param opener The opener of the underlying stream.
+   */
+  public DeferredInputStream(Opener opener){
+    this.opener = opener;
+  }
+
+  /**
+   * Check if the underlying stream was opened.
+   *
+   * @return TRUE if the stream was read and the underlying stream was opened.
+   */
+  public synchronized boolean isOpened(){
+    return in != null;
+  }
+
+  private synchronized InputStream open() throws IOException{
+    if(closed){
+      throw new IOException("Stream closed.");
+    }
+    if(in == null){
+      in = opener.open();
+    }
+    return in;
+  }
+
+  @Override
+  public int read() throws IOException{
+    return open().read();
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException{
+    return open().read(b, off, len);
+  }
+
+  @Override
+  public long skip(long n) throws IOException{
+    return open().skip(n);
+  }
+
+  @Override
+  public int available() throws IOException{
+    InputStream stream;
+    synchronized(this){
+      stream = in;
+    }
+    return (stream != null) ? stream.available() : 0;
+  }
+
+  @Override
+  public void close() throws IOException{
+    InputStream stream;
+    synchronized(this){
+      closed = true;
+      stream = in;
+    }
+    if(stream != null){
+      stream.close();
+    }
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.util;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Meters of the plugin. All meters are registered at Micrometer's global
+ * registry, to which Spring Boot adds the registries of the host application,
+ * i.e. they are exposed via the actuator endpoints of the repository.
+ *
+ * @author jejkal
+ */
+public final class GemmaMetrics{
+
+  /**
+   * Counter of handled messages, tagged by content type and result.
+   */
+  public static final String MESSAGES = "gemma.messages";
+  /**
+   * Counter of finished mapping jobs, tagged by content type and result.
+   */
+  public static final String JOBS = "gemma.jobs";
+  /**
+   * Timer of the fetch stage, tagged by content type.
+   */
+  public static final String FETCH = "gemma.fetch";
+  /**
+   * Timer of starting Python processes, tagged by mode.
+   */
+  public static final String PROCESS_SPAWN = "gemma.process.spawn";
+  /**
+   * Timer of mapping executions, tagged by content type and engine.
+   */
+  public static final String MAPPING = "gemma.mapping";
+  /**
+   * Counter of mapping timeouts, tagged by content type and engine.
+   */
+  public static final String MAPPING_TIMEOUTS = "gemma.mapping.timeouts";
+  /**
+   * Distribution of the output size in bytes, tagged by content type.
+   */
+  public static final String OUTPUT_SIZE = "gemma.output.size";
+  /**
+   * Timer of uploads, tagged by content type and HTTP status.
+   */
+  public static final String UPLOAD = "gemma.upload";
+  /**
+   * Counter of retries of failed jobs, tagged by content type and result
+   * ('scheduled' or 'exhausted').
+   */
+  public static final String RETRIES = "gemma.retries";
+  /**
+   * Gauge of the repository circuit state (0 = closed, 1 = open, 2 =
+   * half-open).
+   */
+  public static final String REPOSITORY_CIRCUIT = "gemma.repository.circuit";
+  /**
+   * Timer of Elasticsearch bulk requests, tagged by HTTP status.
+   */
+  public static final String BULK = "gemma.bulk";
+  /**
+   * Counter of documents sent to Elasticsearch, tagged by content type and
+   * result.
+   */
+  public static final String BULK_DOCUMENTS = "gemma.bulk.documents";
+  /**
+   * Gauge of jobs waiting or running in the pipeline.
+   */
+  public static final String PIPELINE_IN_FLIGHT = "gemma.pipeline.in.flight";
+  /**
+   * Timer of the time jobs wait in the pipeline before being fetched, tagged
+   * by priority.
+   */
+  public static final String PIPELINE_WAIT = "gemma.pipeline.wait";
+  /**
+   * Gauge of the expected memory of running bulk jobs.
+   */
+  public static final String PIPELINE_MEMORY = "gemma.pipeline.memory";
+  /**
+   * Gauge of jobs held back by the event coalescer.
+   */
+  public static final String COALESCER_PENDING = "gemma.coalescer.pending";
+  /**
+   * Gauge of bytes used by the workspaces of running jobs.
+   */
+  public static final String WORKSPACE_USED = "gemma.workspace.used";
+  /**
+   * Gauge of live cluster members in partitioning mode.
+   */
+  public static final String PARTITION_MEMBERS = "gemma.partition.members";
+  /**
+   * Gauge of the fraction of resources owned by this instance.
+   */
+  public static final String PARTITION_SHARE = "gemma.partition.share";
+  /**
+   * Counter of membership changes rebalancing the partitions.
+   */
+  public static final String PARTITION_REBALANCES = "gemma.partition.rebalances";
+  /**
+   * Counter of skipped messages taken over after a rebalance.
+   */
+  public static final String PARTITION_HANDOFF = "gemma.partition.handoff";
+
+  public static final String CONTENT_TYPE_TAG = "contentType";
+  public static final String RESULT_TAG = "result";
+  public static final String ENGINE_TAG = "engine";
+  public static final String STATUS_TAG = "status";
+  public static final String MODE_TAG = "mode";
+  public static final String PRIORITY_TAG = "priority";
+
+  private GemmaMetrics(){
+  }
+
+  /**
+   * Increment the counter 'name'.
+   *
+   * @param name The meter name.
+   * @param tags The tags as key-value pairs.
+   */
+  public static void count(String name, String... tags){
+    Metrics.counter(name, tags).increment();
+  }
+
+  /**
+   * Record the time elapsed since 'startNanos' at timer 'name'.
+   *
+   * @param name The meter name.
+   * @param startNanos The start time obtained from System.nanoTime().
+   * @param tags The tags as key-value pairs.
+   */
+  public static void recordTime(String name, long startNanos, String... tags){
+    Metrics.timer(name, tags).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Record 'bytes' at distribution summary 'name'.
+   *
+   * @param name The meter name.
+   * @param bytes The number of bytes.
+   * @param tags The tags as key-value pairs.
+   */
+  public static void recordSize(String name, long bytes, String... tags){
+    DistributionSummary.builder(name).baseUnit("bytes").tags(tags).register(Metrics.globalRegistry).record(bytes);
+  }
+
+  /**
+   * Register a gauge reporting the value of 'function' applied to 'obj'. The
+   * gauge only holds a weak reference to 'obj'.
+   *
+   * @param <T> The type of the observed object.
+   * @param name The meter name.
+   * @param obj The observed object.
+   * @param function The function obtaining the value.
+   *
+   * @return The observed object.
+   */
+  public static <T> T gauge(String name, T obj, ToDoubleFunction<T> function){
+    return Metrics.gauge(name, Tags.empty(), obj, function);
+  }
+}
@@ -0,0 +1,451 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of long-lived Python processes running the Gemma worker script. Each
+ * worker loads the Gemma main script and its imports once and afterwards
+ * accepts mapping jobs as JSON lines via stdin, answering with one JSON line
+ * via stdout. Workers are recycled after a configurable number of jobs, after
+ * a crash or if a periodic health check fails.
+ *
+ * @author jejkal
+ */
+public class GemmaWorkerPool{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(GemmaWorkerPool.class);
+
+  private static final long PING_TIMEOUT = 5000;
+  private static final long RESPAWN_DELAY = 1000;
+
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final String pythonLocation;
+  private final String gemmaLocation;
+  private final int size;
+  private final int maxJobsPerWorker;
+  private final long healthCheckInterval;
+  private final BlockingQueue<GemmaWorker> idleWorkers;
+  /**
+   * The number of workers which could not be replaced and are respawned by the
+   * health check scheduler.
+   */
+  private final AtomicInteger missingWorkers = new AtomicInteger(0);
+  /**
+   * Runs the watchdogs of all requests. Watchdogs only destroy processes and
+   * never block, thus a single thread is sufficient.
+   */
+  private ScheduledExecutorService watchdogScheduler;
+  /**
+   * Runs the health checks, which block while waiting for a ping response, and
+   * respawns workers which could not be replaced.
+   */
+  private ScheduledExecutorService healthCheckScheduler;
+  private Path workerScript;
+  private volatile boolean running = false;
+
+  /**
+   * Default constructor.
+   *
+   * @param pythonLocation The absolute path to a local python executable.
+   * @param gemmaLocation The absolute path to the Gemma main script.
+   * @param size The number of worker processes.
+   * @param maxJobsPerWorker The number of jobs after which a worker is
+   * replaced by a fresh process.
+   * @param healthCheckInterval The interval in milliseconds between two health
+   * checks of idle workers.
+   */
+  public GemmaWorkerPool(String pythonLocation, String gemmaLocation, int size, int maxJobsPerWorker, long healthCheckInterval){
+    this.pythonLocation = pythonLocation;
+    this.gemmaLocation = gemmaLocation;
+    this.size = size;
+    this.maxJobsPerWorker = maxJobsPerWorker;
+    this.healthCheckInterval = healthCheckInterval;
+    this.idleWorkers = new LinkedBlockingQueue<>(size);
+  }
+
+  /**
+   * Start all workers of the pool. This method blocks until all workers have
+   * loaded Gemma and answered the first health check.
+   *
+   * @throws IOException If the worker script cannot be provided or if any
+   * worker fails to start.
+   */
+  public synchronized void start() throws IOException{
+    if(running){
+      return;
+    }
+    LOGGER.trace("Extracting Gemma worker script.");
+    workerScript = PythonUtils.getWorkerScript();
+
+    watchdogScheduler = Executors.newSingleThreadScheduledExecutor((r) -> {
+      Thread t = new Thread(r, "gemma-worker-watchdog");
+      t.setDaemon(true);
+      return t;
+    });
+    healthCheckScheduler = Executors.newSingleThreadScheduledExecutor((r) -> {
+      Thread t = new Thread(r, "gemma-worker-health");
+      t.setDaemon(true);
+      return t;
+    });
+
+    missingWorkers.set(0);
+    running = true;
+    LOGGER.trace("Prewarming {} Gemma worker(s).", size);
+    try{
+      for(int i = 0; i < size; i++){
+        GemmaWorker worker = new GemmaWorker();
+        if(!worker.ping()){
+          worker.destroy();
+          throw new IOException("Gemma worker did not respond to initial health check.");
+        }
+        idleWorkers.offer(worker);
+      }
+    } catch(IOException ex){
+      shutdown();
+      throw ex;
+    }
+
+    if(healthCheckInterval > 0){
+      healthCheckScheduler.scheduleWithFixedDelay(this::checkIdleWorkers, healthCheckInterval, healthCheckInterval, TimeUnit.MILLISECONDS);
+    }
+    LOGGER.info("Gemma worker pool with {} worker(s) started.", size);
+  }
+
+  /**
+   * Shutdown the pool and destroy all workers.
+   */
+  public synchronized void shutdown(){
+    running = false;
+    if(healthCheckScheduler != null){
+      healthCheckScheduler.shutdownNow();
+    }
+    if(watchdogScheduler != null){
+      watchdogScheduler.shutdownNow();
+    }
+    GemmaWorker worker;
+    while((worker = idleWorkers.poll()) != null){
+      worker.destroy();
+    }
+    LOGGER.info("Gemma worker pool stopped.");
+  }
+
+  /**
+   * Check if the pool is running.
+   *
+   * @return TRUE if the pool accepts jobs, FALSE otherwise.
+   */
+  public boolean isRunning(){
+    return running;
+  }
+
+  /**
+   * Apply the mapping at 'mappingFile' to 'inputFile' using one of the pooled
+   * workers and write the result to 'outputFile'. The call blocks until a
+   * worker is available and the job has finished, but not longer than
+   * 'timeout' in total.
+   *
+   * @param mappingFile The absolute path to the mapping file.
+   * @param inputFile The absolute path to the input file.
+   * @param outputFile The absolute path of the output file.
+   * @param output The stream receiving all output Gemma produced while mapping
+   * or null if the output should be logged.
+   * @param timeout The timeout in milliseconds for the job, including the time
+   * waiting for a worker.
+   *
+   * @return The exit status of the mapping or one of the internal codes
+   * TIMEOUT_ERROR or EXECUTION_ERROR defined in PythonUtils.
+   */
+  public int map(String mappingFile, String inputFile, String outputFile, OutputStream output, long timeout){
+    return map(Collections.singletonList(mappingFile), inputFile, Collections.singletonList(outputFile), output, timeout);
+  }
+
+  /**
+   * Apply all mappings in 'mappingFiles' to 'inputFile' using one of the
+   * pooled workers and write each result to the output file at the same index.
+   * All mappings are sent in a single request, so the worker reads the input
+   * once. The mappings are applied in order until the first one fails. The
+   * call blocks until a worker is available and all mappings have finished,
+   * but not longer than 'timeout' in total.
+   *
+   * @param mappingFiles The absolute paths to the mapping files.
+   * @param inputFile The absolute path to the input file.
+   * @param outputFiles The absolute paths of the output files.
+   * @param output The stream receiving all output Gemma produced while mapping
+   * or null if the output should be logged.
+   * @param timeout The timeout in milliseconds for the job, including the time
+   * waiting for a worker.
+   *
+   * @return The exit status of the first failed mapping, 0 if all mappings
+   * succeeded, or one of the internal codes TIMEOUT_ERROR or EXECUTION_ERROR
+   * defined in PythonUtils.
+   */
+  public int map(List<String> mappingFiles, String inputFile, List<String> outputFiles, OutputStream output, long timeout){
+    if(!running){
+      LOGGER.error("Gemma worker pool is not running.");
+      return PythonUtils.EXECUTION_ERROR;
+    }
+
+    long deadline = System.currentTimeMillis() + timeout;
+    GemmaWorker worker;
+    try{
+      worker = idleWorkers.poll(timeout, TimeUnit.MILLISECONDS);
+    } catch(InterruptedException ex){
+      Thread.currentThread().interrupt();
+      return PythonUtils.EXECUTION_ERROR;
+    }
+
+    if(worker == null){
+      LOGGER.error("No Gemma worker became available within {} ms.", timeout);
+      return PythonUtils.TIMEOUT_ERROR;
+    }
+
+    int result = PythonUtils.EXECUTION_ERROR;
+    try{
+      if(!worker.isAlive()){
+        LOGGER.warn("Gemma worker has terminated unexpectedly. Replacing worker.");
+        worker.destroy();
+        worker = new GemmaWorker();
+      }
+      ObjectNode job = mapper.createObjectNode();
+      job.put("input", inputFile);
+      //output exceeding the capture limit is already discarded by the worker
+      job.put("maxCapture", PythonUtils.getMaxCapture());
+      ArrayNode mappings = job.putArray("mappings");
+      for(int i = 0; i < mappingFiles.size(); i++){
+        mappings.addObject().put("mapping", mappingFiles.get(i)).put("output", outputFiles.get(i));
+      }
+
+      long remaining = deadline - System.currentTimeMillis();
+      if(remaining <= 0){
+        LOGGER.error("Gemma worker became available too late to map within {} ms.", timeout);
+        return PythonUtils.TIMEOUT_ERROR;
+      }
+      JsonNode response = worker.send(job, remaining);
+      if(response == null){
+        result = worker.timedOut.get() ? PythonUtils.TIMEOUT_ERROR : PythonUtils.EXECUTION_ERROR;
+      } else{
+        String log = response.path("log").asText("");
+        if(output != null){
+          byte[] bytes = log.getBytes(StandardCharsets.UTF_8);
+          output.write(bytes, 0, Math.min(bytes.length, PythonUtils.getMaxCapture()));
+        } else if(!log.isEmpty()){
+          LOGGER.trace("[OUT] {}", log);
+        }
+        long discarded = response.path("discarded").asLong(0);
+        if(discarded > 0){
+          LOGGER.trace("Gemma worker discarded {} byte(s) of output exceeding the capture limit of {} byte(s).", discarded, PythonUtils.getMaxCapture());
+        }
+        result = response.path("status").asInt(PythonUtils.EXECUTION_ERROR);
+      }
+    } catch(IOException ex){
+      LOGGER.error("Failed to execute mapping job in Gemma worker.", ex);
+      worker.destroy();
+      result = PythonUtils.EXECUTION_ERROR;
+    } finally{
+      release(worker);
+    }
+    return result;
+  }
+
+  /**
+   * Return a worker to the pool. Workers which have died, timed out or reached
+   * the max. number of jobs are replaced by a fresh worker. If the replacement
+   * fails to start, it is respawned later by the health check scheduler.
+   *
+   * @param worker The worker to release.
+   */
+  private void release(GemmaWorker worker){
+    if(worker == null){
+      return;
+    }
+    if(!running){
+      worker.destroy();
+      return;
+    }
+    if(!worker.isAlive() || worker.timedOut.get() || worker.jobs >= maxJobsPerWorker){
+      LOGGER.trace("Recycling Gemma worker after {} job(s).", worker.jobs);
+      worker.destroy();
+      try{
+        worker = new GemmaWorker();
+      } catch(IOException ex){
+        LOGGER.error("Failed to start replacement Gemma worker. Pool capacity is reduced until the worker is respawned.", ex);
+        missingWorkers.incrementAndGet();
+        scheduleRespawn();
+        return;
+      }
+    }
+    idleWorkers.offer(worker);
+  }
+
+  /**
+   * Schedule respawning all missing workers after RESPAWN_DELAY.
+   */
+  private void scheduleRespawn(){
+    try{
+      healthCheckScheduler.schedule(this::respawnWorkers, RESPAWN_DELAY, TimeUnit.MILLISECONDS);
+    } catch(RejectedExecutionException ex){
+      LOGGER.trace("Pool is shutting down. Not respawning Gemma workers.");
+    }
+  }
+
+  /**
+   * Start workers until the pool is back at its configured size. If a worker
+   * fails to start again, respawning is rescheduled.
+   */
+  private void respawnWorkers(){
+    while(running && missingWorkers.get() > 0){
+      GemmaWorker worker;
+      try{
+        worker = new GemmaWorker();
+      } catch(IOException ex){
+        LOGGER.warn("Failed to respawn Gemma worker. Retrying in {} ms.", RESPAWN_DELAY, ex);
+        scheduleRespawn();
+        return;
+      }
+      missingWorkers.decrementAndGet();
+      LOGGER.info("Respawned Gemma worker.");
+      release(worker);
+    }
+  }
+
+  /**
+   * Health check for all currently idle workers. Workers not answering a ping
+   * in time are destroyed by the watchdog and replaced.
+   */
+  private void checkIdleWorkers(){
+    int count = idleWorkers.size();
+    for(int i = 0; i < count && running; i++){
+      GemmaWorker worker = idleWorkers.poll();
+      if(worker == null){
+        break;
+      }
+      boolean healthy;
+      try{
+        healthy = worker.ping();
+      } catch(IOException ex){
+        healthy = false;
+      }
+      if(!healthy){
+        LOGGER.warn("Gemma worker failed health check. Replacing worker.");
+        worker.destroy();
+      }
+      release(worker);
+    }
+  }
+
+  /**
+   * A single worker process.
+   */
+  private class GemmaWorker{
+
+    private final Process process;
+    private final BufferedWriter stdin;
+    private final BufferedReader stdout;
+    private final AtomicBoolean timedOut = new AtomicBoolean(false);
+    /**
+     * Set as soon as the worker closed its output or was destroyed, which may
+     * be noticed before the process has terminated.
+     */
+    private volatile boolean broken = false;
+    private int jobs = 0;
+
+    GemmaWorker() throws IOException{
+      ProcessBuilder pb = new ProcessBuilder(pythonLocation, workerScript.toString(), gemmaLocation);
+      long spawnStart = System.nanoTime();
+      process = pb.start();
+      GemmaMetrics.recordTime(GemmaMetrics.PROCESS_SPAWN, spawnStart, GemmaMetrics.MODE_TAG, "worker");
+      stdin = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+      stdout = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+      PythonUtils.drain(process.getErrorStream(), "[ERR]");
+    }
+
+    boolean isAlive(){
+      return !broken && process.isAlive();
+    }
+
+    boolean ping() throws IOException{
+      JsonNode response = send(mapper.createObjectNode().put("command", "ping"), PING_TIMEOUT);
+      return response != null && "pong".equals(response.path("status").asText());
+    }
+
+    /**
+     * Send a single request and wait for the response. If no response arrives
+     * within 'timeout' milliseconds the worker process is destroyed.
+     *
+     * @return The response or null if the worker died or timed out.
+     */
+    JsonNode send(JsonNode request, long timeout) throws IOException{
+      ScheduledFuture<?> watchdog = watchdogScheduler.schedule(() -> {
+        timedOut.set(true);
+        LOGGER.error("Gemma worker did not respond within {} ms. Destroying worker.", timeout);
+        PythonUtils.destroyProcessTree(process);
+      }, timeout, TimeUnit.MILLISECONDS);
+      try{
+        stdin.write(mapper.writeValueAsString(request));
+        stdin.newLine();
+        stdin.flush();
+        String line = stdout.readLine();
+        if(request.has("mappings")){
+          jobs++;
+        }
+        if(line == null){
+          broken = true;
+          return null;
+        }
+        return mapper.readTree(line);
+      } catch(IOException ex){
+        if(timedOut.get() || !process.isAlive()){
+          broken = true;
+          return null;
+        }
+        throw ex;
+      } finally{
+        watchdog.cancel(false);
+      }
+    }
+
+    void destroy(){
+      broken = true;
+      PythonUtils.destroyProcessTree(process);
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.util;
+
+/**
+ * Result of an external process execution, containing the exit code, the
+ * stage the execution ended in, the duration and the amount of output which
+ * exceeded the capture limit.
+ *
+ * @author jejkal
+ */
+public class ProcessResult{
+
+  /**
+   * Stage in which a process execution ended.
+   */
+  public enum STAGE{
+    /**
+     * The process could not be started.
+     */
+    START,
+    /**
+     * The process was started but execution failed, e.g. due to an I/O error.
+     */
+    EXECUTION,
+    /**
+     * The process did not finish in time and was killed.
+     */
+    TIMEOUT,
+    /**
+     * The process finished and returned an exit code.
+     */
+    COMPLETED;
+  }
+
+  private final int exitCode;
+  private final STAGE stage;
+  private final long duration;
+  private final long discardedBytes;
+
+  /**
+   * Default constructor.
+   *
+   * @param exitCode The exit code of the process or one of the internal error
+   * codes defined in PythonUtils.
+   * @param stage The stage in which the execution ended.
+   * @param duration The duration of the execution in milliseconds.
+   * @param discardedBytes The number of output bytes not captured due to the
+   * capture limit.
+   */
+  public ProcessResult(int exitCode, STAGE stage, long duration, long discardedBytes){
+    this.exitCode = exitCode;
+    this.stage = stage;
+    this.duration = duration;
+    this.discardedBytes = discardedBytes;
+  }
+
+  public int getExitCode(){
+    return exitCode;
+  }
+
+  public STAGE getStage(){
+    return stage;
+  }
+
+  public long getDuration(){
+    return duration;
+  }
+
+  public long getDiscardedBytes(){
+    return discardedBytes;
+  }
+
+  /**
+   * Check if the process completed with exit code 0.
+   *
+   * @return TRUE on success, FALSE otherwise.
+   */
+  public boolean isSuccess(){
+    return STAGE.COMPLETED.equals(stage) && exitCode == 0;
+  }
+
+  @Override
+  public String toString(){
+    return "ProcessResult(exitCode=" + exitCode + ", stage=" + stage + ", duration=" + duration + "ms, discardedBytes=" + discardedBytes + ")";
+  }
+}
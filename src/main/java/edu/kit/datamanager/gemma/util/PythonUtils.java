@@ -16,11 +16,14 @@
 package edu.kit.datamanager.gemma.util;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -31,7 +34,8 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,9 +48,224 @@ public class PythonUtils{
   public static final int PYTHON_NOT_FOUND_ERROR = -2;
   public static final int TIMEOUT_ERROR = -3;
   public static final int EXECUTION_ERROR = -4;
+  /**
+   * Returned by mapping engines if the mapping cannot be applied to the
+   * content, e.g. as the content cannot be parsed. Mapping the same content
+   * again fails again.
+   */
+  public static final int MAPPING_ERROR = -5;
+
+  /**
+   * Default timeout in milliseconds for a single Python execution.
+   */
+  public static final long DEFAULT_TIMEOUT = 30000;
+
+  /**
+   * Default max. number of output bytes captured per Python execution.
+   */
+  public static final int DEFAULT_MAX_CAPTURE = 64 * 1024;
 
   private final static Logger LOGGER = LoggerFactory.getLogger(PythonUtils.class);
 
+  /**
+   * Time in milliseconds to wait for the output readers after a process has
+   * terminated.
+   */
+  private static final long READER_GRACE_PERIOD = 5000;
+
+  private static final AtomicInteger READER_COUNT = new AtomicInteger(0);
+
+  /**
+   * Shared pool of output reader threads. Idle threads are reused, so the
+   * number of threads only depends on the number of concurrently running
+   * processes.
+   */
+  private static final ExecutorService READER_POOL = Executors.newCachedThreadPool((r) -> {
+    Thread t = new Thread(r, "gemma-process-reader-" + READER_COUNT.incrementAndGet());
+    t.setDaemon(true);
+    return t;
+  });
+
+  private static volatile int maxCapture = DEFAULT_MAX_CAPTURE;
+
+  private static GemmaWorkerPool workerPool = null;
+
+  private static final String STREAM_SCRIPT_RESOURCE = "/gemma/gemma_stream.py";
+
+  private static final String WORKER_SCRIPT_RESOURCE = "/gemma/gemma_worker.py";
+
+  private static Path streamScript = null;
+
+  private static Path workerScript = null;
+
+  /**
+   * Set the max. number of bytes of process output captured in the provided
+   * output streams per execution. Output exceeding this limit is discarded.
+   *
+   * @param bytes The max. number of bytes.
+   */
+  public static void setMaxCapture(int bytes){
+    maxCapture = bytes;
+  }
+
+  /**
+   * Get the max. number of bytes of process output captured per execution.
+   *
+   * @return The max. number of bytes.
+   */
+  public static int getMaxCapture(){
+    return maxCapture;
+  }
+
+  /**
+   * Start a pool of long-lived Gemma workers used by
+   * {@link #runMapping(java.lang.String, java.lang.String, java.io.OutputStream, long, java.lang.String, java.lang.String, java.lang.String)}.
+   * If a pool is already running, it is stopped and replaced by the new pool.
+   *
+   * @param pythonLocation The absolute path to a local python executable.
+   * @param gemmaLocation The absolute path to the Gemma main script.
+   * @param size The number of worker processes.
+   * @param maxJobsPerWorker The number of jobs after which a worker process is
+   * replaced.
+   * @param healthCheckInterval The interval in milliseconds between two health
+   * checks of idle workers.
+   *
+   * @throws IOException If the pool could not be started.
+   */
+  public static synchronized void startWorkerPool(String pythonLocation, String gemmaLocation, int size, int maxJobsPerWorker, long healthCheckInterval) throws IOException{
+    stopWorkerPool();
+    GemmaWorkerPool pool = new GemmaWorkerPool(pythonLocation, gemmaLocation, size, maxJobsPerWorker, healthCheckInterval);
+    pool.start();
+    workerPool = pool;
+  }
+
+  /**
+   * Stop the currently running worker pool, if any. Afterwards, mappings are
+   * executed in a new Python process per call.
+   */
+  public static synchronized void stopWorkerPool(){
+    if(workerPool != null){
+      workerPool.shutdown();
+      workerPool = null;
+    }
+  }
+
+  /**
+   * Apply the mapping at 'mappingFile' to 'inputFile' using Gemma and write
+   * the result to 'outputFile'. If a worker pool was started, the mapping is
+   * executed by one of the pooled workers. Otherwise, a new Python process is
+   * started for the Gemma script at 'gemmaLocation'.
+   *
+   * @param pythonLocation The absolute path to a local python executable.
+   * @param gemmaLocation The absolute path to the Gemma main script.
+   * @param output The stream receiving all process output and errors.
+   * @param timeout The timeout in milliseconds, after which the mapping is
+   * aborted.
+   * @param mappingFile The absolute path to the mapping file.
+   * @param inputFile The absolute path to the input file.
+   * @param outputFile The absolute path of the output file.
+   *
+   * @return The result of the execution.
+   */
+  public static ProcessResult runMapping(String pythonLocation, String gemmaLocation, OutputStream output, long timeout, String mappingFile, String inputFile, String outputFile){
+    GemmaWorkerPool pool = workerPool;
+    if(pool != null && pool.isRunning()){
+      long start = System.currentTimeMillis();
+      int exitCode = pool.map(mappingFile, inputFile, outputFile, output, timeout);
+      ProcessResult.STAGE stage = ProcessResult.STAGE.COMPLETED;
+      if(exitCode == TIMEOUT_ERROR){
+        stage = ProcessResult.STAGE.TIMEOUT;
+      } else if(exitCode == EXECUTION_ERROR){
+        stage = ProcessResult.STAGE.EXECUTION;
+      }
+      return new ProcessResult(exitCode, stage, System.currentTimeMillis() - start, 0);
+    }
+    return execute(pythonLocation, gemmaLocation, output, output, timeout, mappingFile, inputFile, outputFile);
+  }
+
+  /**
+   * Apply all mappings in 'mappingFiles' to 'inputFile' using Gemma and write
+   * each result to the output file at the same index. All mappings are sent
+   * to one of the pooled workers in a single request, or, without worker pool,
+   * executed by a single Python process running the Gemma worker script. In
+   * both cases, the input is read from disk once and 'timeout' applies to all
+   * mappings together. The mappings are applied in order until the first one
+   * fails.
+   *
+   * @param pythonLocation The absolute path to a local python executable.
+   * @param gemmaLocation The absolute path to the Gemma main script.
+   * @param output The stream receiving all process output and errors.
+   * @param timeout The timeout in milliseconds, after which the mappings are
+   * aborted.
+   * @param mappingFiles The absolute paths to the mapping files.
+   * @param inputFile The absolute path to the input file.
+   * @param outputFiles The absolute paths of the output files.
+   *
+   * @return The result of the execution.
+   */
+  public static ProcessResult runMapping(String pythonLocation, String gemmaLocation, OutputStream output, long timeout, List<String> mappingFiles, String inputFile, List<String> outputFiles){
+    if(mappingFiles.size() == 1){
+      return runMapping(pythonLocation, gemmaLocation, output, timeout, mappingFiles.get(0), inputFile, outputFiles.get(0));
+    }
+    GemmaWorkerPool pool = workerPool;
+    if(pool != null && pool.isRunning()){
+      long start = System.currentTimeMillis();
+      int exitCode = pool.map(mappingFiles, inputFile, outputFiles, output, timeout);
+      ProcessResult.STAGE stage = ProcessResult.STAGE.COMPLETED;
+      if(exitCode == TIMEOUT_ERROR){
+        stage = ProcessResult.STAGE.TIMEOUT;
+      } else if(exitCode == EXECUTION_ERROR){
+        stage = ProcessResult.STAGE.EXECUTION;
+      }
+      return new ProcessResult(exitCode, stage, System.currentTimeMillis() - start, 0);
+    }
+    Path script;
+    try{
+      script = getWorkerScript();
+    } catch(IOException ex){
+      LOGGER.error("Failed to provide Gemma worker script.", ex);
+      return new ProcessResult(EXECUTION_ERROR, ProcessResult.STAGE.START, 0, 0);
+    }
+    List<String> arguments = new ArrayList<>();
+    arguments.add(gemmaLocation);
+    arguments.add(inputFile);
+    for(int i = 0; i < mappingFiles.size(); i++){
+      arguments.add(mappingFiles.get(i));
+      arguments.add(outputFiles.get(i));
+    }
+    return execute(pythonLocation, script.toString(), output, output, timeout, arguments.toArray(new String[]{}));
+  }
+
+  /**
+   * Apply the mapping at 'mappingFile' to the content read from 'input' using
+   * Gemma and write the result to 'output'. The content is piped into Gemma's
+   * stdin and the result is read from Gemma's stdout, i.e. no intermediate
+   * files are created. All other output of Gemma is written to 'log'. As the
+   * worker pool communicates via stdin and stdout, the mapping is always
+   * executed in a new Python process.
+   *
+   * @param pythonLocation The absolute path to a local python executable.
+   * @param gemmaLocation The absolute path to the Gemma main script.
+   * @param input The stream providing the content to map.
+   * @param output The stream receiving the mapping result.
+   * @param log The stream receiving all other process output and errors.
+   * @param timeout The timeout in milliseconds, after which the mapping is
+   * aborted.
+   * @param mappingFile The absolute path to the mapping file.
+   *
+   * @return The result of the execution.
+   */
+  public static ProcessResult runMapping(String pythonLocation, String gemmaLocation, InputStream input, OutputStream output, OutputStream log, long timeout, String mappingFile){
+    Path streamScript;
+    try{
+      streamScript = getStreamScript();
+    } catch(IOException ex){
+      LOGGER.error("Failed to provide Gemma stream script.", ex);
+      return new ProcessResult(EXECUTION_ERROR, ProcessResult.STAGE.START, 0, 0);
+    }
+    return executePiped(pythonLocation, streamScript.toString(), input, output, log, timeout, gemmaLocation, mappingFile);
+  }
+
   /**
    * Run the script at 'scriptLocation' with 'arguments' using the Python
    * executable at 'pythonLocation'. All output will be redirected to stdout and
@@ -81,85 +300,336 @@ public class PythonUtils{
    * PYTHON_NOT_FOUND, TIMEOUT_ERROR or EXECUTION_ERROR.
    */
   public static int run(String pythonLocation, String scriptLocation, OutputStream output, OutputStream error, String... arguments){
+    return execute(pythonLocation, scriptLocation, output, error, DEFAULT_TIMEOUT, arguments).getExitCode();
+  }
+
+  /**
+   * Run the script at 'scriptLocation' with 'arguments' using the Python
+   * executable at 'pythonLocation'. Output and errors are streamed line by
+   * line into the provided output streams until the capture limit is reached.
+   * Afterwards, further output is discarded. If an output stream is null, the
+   * according output is logged on TRACE level. If the process does not finish
+   * within 'timeout' milliseconds, the process and all its descendants are
+   * killed.
+   *
+   * @param pythonLocation The absolute path to a local python executable.
+   * @param scriptLocation The absolute path to the python script which should
+   * be executed.
+   * @param output The stream receiving all process output.
+   * @param error The stream receiving all process error output (can be equal to
+   * 'output').
+   * @param timeout The timeout in milliseconds.
+   * @param arguments Veriable number of arguments, which can also be omitted.
+   *
+   * @return The result of the execution.
+   */
+  public static ProcessResult execute(String pythonLocation, String scriptLocation, OutputStream output, OutputStream error, long timeout, String... arguments){
     List<String> command = new ArrayList<>();
     command.add(pythonLocation);
     command.add(scriptLocation);
 
     Collections.addAll(command, arguments);
 
-    ExecutorService pool = Executors.newSingleThreadExecutor();
-
-    int result = 4711;
+    long start = System.currentTimeMillis();
+    Process p;
     try{
       ProcessBuilder pb = new ProcessBuilder(command.toArray(new String[]{}));
-      Process p = pb.start();
+      long spawnStart = System.nanoTime();
+      p = pb.start();
+      GemmaMetrics.recordTime(GemmaMetrics.PROCESS_SPAWN, spawnStart, GemmaMetrics.MODE_TAG, "process");
+    } catch(IOException ioe){
+      int result;
+      if(ioe.getMessage() != null && ioe.getMessage().contains("No such file")){
+        LOGGER.error("Failed to execute python.", ioe);
+        result = PYTHON_NOT_FOUND_ERROR;
+      } else{
+        LOGGER.error("Failed to execute python script due to an unknown IOException.", ioe);
+        result = EXECUTION_ERROR;
+      }
+      return new ProcessResult(result, ProcessResult.STAGE.START, System.currentTimeMillis() - start, 0);
+    }
 
-      Future<List<String>> errorFuture = pool.submit(new ProcessReadTask(p.getErrorStream()));
-      Future<List<String>> inputFuture = pool.submit(new ProcessReadTask(p.getInputStream()));
+    try{
+      p.getOutputStream().close();
+    } catch(IOException ex){
+      //stdin is not used
+    }
 
-      List<String> stdErr = errorFuture.get(30, TimeUnit.SECONDS);
-      List<String> stdOut = inputFuture.get(30, TimeUnit.SECONDS);
+    AtomicLong budget = new AtomicLong(maxCapture);
+    Future<Long> errorFuture = READER_POOL.submit(new ProcessReadTask(p.getErrorStream(), error, "[ERR]", budget));
+    Future<Long> inputFuture = READER_POOL.submit(new ProcessReadTask(p.getInputStream(), output, "[OUT]", budget));
 
-      for(String line : stdOut){
-        if(output != null){
-          output.write((line + "\n").getBytes());
-        } else{
-          LOGGER.trace("[OUT] {}", line);
-        }
+    int result;
+    ProcessResult.STAGE stage;
+    try{
+      if(p.waitFor(timeout, TimeUnit.MILLISECONDS)){
+        result = p.exitValue();
+        stage = ProcessResult.STAGE.COMPLETED;
+      } else{
+        LOGGER.error("Python script did not return in expected timeframe of {} ms. Killing process tree.", timeout);
+        destroyProcessTree(p);
+        result = TIMEOUT_ERROR;
+        stage = ProcessResult.STAGE.TIMEOUT;
       }
+    } catch(InterruptedException ie){
+      LOGGER.error("Interrupted while waiting for python script. Killing process tree.", ie);
+      destroyProcessTree(p);
+      Thread.currentThread().interrupt();
+      result = EXECUTION_ERROR;
+      stage = ProcessResult.STAGE.EXECUTION;
+    }
 
-      for(String line : stdErr){
-        if(error != null){
-          error.write((line + "\n").getBytes());
-        } else{
-          LOGGER.trace("[ERR] {}", line);
-        }
-      }
+    long discarded = 0;
+    discarded += awaitReader(errorFuture, p.getErrorStream());
+    discarded += awaitReader(inputFuture, p.getInputStream());
+    if(discarded > 0){
+      LOGGER.trace("Discarded {} byte(s) of process output exceeding the capture limit of {} byte(s).", discarded, maxCapture);
+    }
+    ProcessResult processResult = new ProcessResult(result, stage, System.currentTimeMillis() - start, discarded);
+    LOGGER.trace("Python process finished: {}", processResult);
+    return processResult;
+  }
+
+  /**
+   * Run the script at 'scriptLocation' with 'arguments' using the Python
+   * executable at 'pythonLocation'. In contrast to
+   * {@link #execute(java.lang.String, java.lang.String, java.io.OutputStream, java.io.OutputStream, long, java.lang.String...)},
+   * 'input' is written to the process' stdin and stdout is copied unmodified
+   * and without capture limit to 'output'. Only errors are captured in 'error'.
+   * If the process does not finish within 'timeout' milliseconds, the process
+   * and all its descendants are killed.
+   *
+   * @param pythonLocation The absolute path to a local python executable.
+   * @param scriptLocation The absolute path to the python script which should
+   * be executed.
+   * @param input The stream written to the process' stdin.
+   * @param output The stream receiving the process' stdout.
+   * @param error The stream receiving all process error output.
+   * @param timeout The timeout in milliseconds.
+   * @param arguments Veriable number of arguments, which can also be omitted.
+   *
+   * @return The result of the execution.
+   */
+  public static ProcessResult executePiped(String pythonLocation, String scriptLocation, InputStream input, OutputStream output, OutputStream error, long timeout, String... arguments){
+    List<String> command = new ArrayList<>();
+    command.add(pythonLocation);
+    command.add(scriptLocation);
+
+    Collections.addAll(command, arguments);
 
-      result = p.waitFor();
+    long start = System.currentTimeMillis();
+    Process p;
+    try{
+      long spawnStart = System.nanoTime();
+      p = new ProcessBuilder(command.toArray(new String[]{})).start();
+      GemmaMetrics.recordTime(GemmaMetrics.PROCESS_SPAWN, spawnStart, GemmaMetrics.MODE_TAG, "stream");
     } catch(IOException ioe){
-      if(ioe.getMessage().contains("No such file")){
-        LOGGER.error("Failed to execute python.", ioe);
-        result = PYTHON_NOT_FOUND_ERROR;
+      LOGGER.error("Failed to execute python script.", ioe);
+      return new ProcessResult(ioe.getMessage() != null && ioe.getMessage().contains("No such file") ? PYTHON_NOT_FOUND_ERROR : EXECUTION_ERROR, ProcessResult.STAGE.START, System.currentTimeMillis() - start, 0);
+    }
+
+    Future<Long> writerFuture = READER_POOL.submit(() -> {
+      try(OutputStream stdin = p.getOutputStream()){
+        return input.transferTo(stdin);
+      }
+    });
+    Future<Long> outputFuture = READER_POOL.submit(() -> p.getInputStream().transferTo(output));
+    Future<Long> errorFuture = READER_POOL.submit(new ProcessReadTask(p.getErrorStream(), error, "[ERR]", new AtomicLong(maxCapture)));
+
+    int result;
+    ProcessResult.STAGE stage;
+    try{
+      if(p.waitFor(timeout, TimeUnit.MILLISECONDS)){
+        result = p.exitValue();
+        stage = ProcessResult.STAGE.COMPLETED;
       } else{
-        LOGGER.error("Failed to execute python script due to an unknown IOException.", ioe);
-        result = EXECUTION_ERROR;
+        LOGGER.error("Python script did not return in expected timeframe of {} ms. Killing process tree.", timeout);
+        destroyProcessTree(p);
+        result = TIMEOUT_ERROR;
+        stage = ProcessResult.STAGE.TIMEOUT;
       }
-    } catch(TimeoutException te){
-      LOGGER.error("Python script did not return in expected timeframe of 30 seconds", te);
-      result = TIMEOUT_ERROR;
-    } catch(InterruptedException | ExecutionException e){
-      LOGGER.error("Failed to execute python script due to an unknown Exception.", e);
+    } catch(InterruptedException ie){
+      LOGGER.error("Interrupted while waiting for python script. Killing process tree.", ie);
+      destroyProcessTree(p);
+      Thread.currentThread().interrupt();
       result = EXECUTION_ERROR;
-    } finally{
-      pool.shutdown();
+      stage = ProcessResult.STAGE.EXECUTION;
+    }
+
+    try{
+      writerFuture.get(READER_GRACE_PERIOD, TimeUnit.MILLISECONDS);
+    } catch(ExecutionException | TimeoutException ex){
+      //the process may terminate before consuming all input, which is detected by its exit code
+      LOGGER.trace("Process input was not fully consumed.", ex);
+      writerFuture.cancel(true);
+    } catch(InterruptedException ie){
+      Thread.currentThread().interrupt();
+    }
+    try{
+      outputFuture.get(READER_GRACE_PERIOD, TimeUnit.MILLISECONDS);
+    } catch(ExecutionException | TimeoutException ex){
+      LOGGER.error("Failed to transfer process output.", ex);
+      outputFuture.cancel(true);
+      if(stage == ProcessResult.STAGE.COMPLETED){
+        result = EXECUTION_ERROR;
+        stage = ProcessResult.STAGE.EXECUTION;
+      }
+    } catch(InterruptedException ie){
+      Thread.currentThread().interrupt();
+    }
+    long discarded = awaitReader(errorFuture, p.getErrorStream());
+    ProcessResult processResult = new ProcessResult(result, stage, System.currentTimeMillis() - start, discarded);
+    LOGGER.trace("Python process finished: {}", processResult);
+    return processResult;
+  }
+
+  /**
+   * Forcibly destroy the provided process and all its descendants.
+   *
+   * @param process The process to destroy.
+   */
+  public static void destroyProcessTree(Process process){
+    process.descendants().forEach(ProcessHandle::destroyForcibly);
+    process.destroyForcibly();
+  }
+
+  /**
+   * Submit a task to the shared reader pool, which reads 'inputStream' line by
+   * line and logs each line on TRACE level using the provided prefix.
+   *
+   * @param inputStream The stream to read, e.g. the error stream of a process.
+   * @param prefix The prefix for each logged line.
+   */
+  public static void drain(InputStream inputStream, String prefix){
+    READER_POOL.submit(new ProcessReadTask(inputStream, null, prefix, null));
+  }
+
+  /**
+   * Get the location of the Gemma stream script, which is extracted from the
+   * classpath on first use.
+   */
+  private static synchronized Path getStreamScript() throws IOException{
+    if(streamScript == null){
+      Path script = Files.createTempFile("gemma_stream", ".py");
+      try(InputStream in = PythonUtils.class.getResourceAsStream(STREAM_SCRIPT_RESOURCE)){
+        if(in == null){
+          throw new IOException("Gemma stream script not found at classpath location " + STREAM_SCRIPT_RESOURCE + ".");
+        }
+        Files.copy(in, script, StandardCopyOption.REPLACE_EXISTING);
+      }
+      script.toFile().deleteOnExit();
+      streamScript = script;
+    }
+    return streamScript;
+  }
+
+  /**
+   * Get the location of the Gemma worker script, which is extracted from the
+   * classpath on first use.
+   *
+   * @return The location of the worker script.
+   *
+   * @throws IOException If the script cannot be extracted.
+   */
+  static synchronized Path getWorkerScript() throws IOException{
+    if(workerScript == null){
+      Path script = Files.createTempFile("gemma_worker", ".py");
+      try(InputStream in = PythonUtils.class.getResourceAsStream(WORKER_SCRIPT_RESOURCE)){
+        if(in == null){
+          throw new IOException("Gemma worker script not found at classpath location " + WORKER_SCRIPT_RESOURCE + ".");
+        }
+        Files.copy(in, script, StandardCopyOption.REPLACE_EXISTING);
+      }
+      script.toFile().deleteOnExit();
+      workerScript = script;
     }
-    return result;
+    return workerScript;
   }
 
-//  public static void main(String[] args){
-//
-//    ByteArrayOutputStream output = new ByteArrayOutputStream();
-//
-//    System.out.println(PythonUtils.run("/Users/jejkal/anaconda/bin/python", "/Users/jejkal/NetBeansProjects/KITDM-2.0/gemma/retrieve_response.py", System.out, System.err, "./testmd"));
-//
-//    //System.out.println("PRINTE " + output.toString());
-//  }
+  /**
+   * Wait for a reader to finish. If the reader does not finish within the
+   * grace period, e.g. because an orphaned descendant still holds the pipe,
+   * the stream is closed.
+   */
+  private static long awaitReader(Future<Long> reader, InputStream stream){
+    try{
+      return reader.get(READER_GRACE_PERIOD, TimeUnit.MILLISECONDS);
+    } catch(TimeoutException te){
+      LOGGER.warn("Process output reader did not finish in time. Closing stream.");
+      try{
+        stream.close();
+      } catch(IOException ex){
+        //ignore
+      }
+      reader.cancel(true);
+    } catch(ExecutionException ee){
+      LOGGER.error("Failed to read process output.", ee);
+    } catch(InterruptedException ie){
+      Thread.currentThread().interrupt();
+    }
+    return 0;
+  }
 
-  private static class ProcessReadTask implements Callable<List<String>>{
+  /**
+   * Task reading a process stream line by line. Lines are either written to a
+   * sink until the shared capture budget is exhausted, or logged if no sink is
+   * provided. Single lines are truncated to the capture limit, so memory use
+   * is bounded independent of the process output.
+   */
+  private static class ProcessReadTask implements Callable<Long>{
 
     private final InputStream inputStream;
+    private final OutputStream sink;
+    private final String prefix;
+    private final AtomicLong budget;
 
-    public ProcessReadTask(InputStream inputStream){
+    ProcessReadTask(InputStream inputStream, OutputStream sink, String prefix, AtomicLong budget){
       this.inputStream = inputStream;
+      this.sink = sink;
+      this.prefix = prefix;
+      this.budget = budget;
     }
 
     @Override
-    public List<String> call(){
-      return new BufferedReader(new InputStreamReader(inputStream))
-              .lines()
-              .collect(Collectors.toList());
+    public Long call() throws IOException{
+      long discarded = 0;
+      int limit = Math.max(maxCapture, 1);
+      StringBuilder line = new StringBuilder();
+      try(BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))){
+        int c;
+        boolean truncated = false;
+        while((c = reader.read()) != -1){
+          if(c == '\n'){
+            discarded += emit(line, truncated);
+            line.setLength(0);
+            truncated = false;
+          } else if(line.length() < limit){
+            line.append((char) c);
+          } else{
+            truncated = true;
+            discarded++;
+          }
+        }
+        if(line.length() > 0){
+          discarded += emit(line, truncated);
+        }
+      }
+      return discarded;
     }
-  }
 
+    private long emit(StringBuilder line, boolean truncated) throws IOException{
+      if(sink == null){
+        LOGGER.trace("{} {}{}", prefix, line, truncated ? " [truncated]" : "");
+        return 0;
+      }
+      byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+      if(budget.addAndGet(-bytes.length) < 0){
+        return bytes.length;
+      }
+      synchronized(sink){
+        sink.write(bytes);
+      }
+      return 0;
+    }
+  }
 }
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Client for streaming content from remote locations, e.g. HTTP storage
+ * backends. Connections are pooled and kept alive between requests. Content
+ * is never buffered in memory but returned as stream, which enforces a max.
+ * content size. If the connection breaks while reading and the server
+ * supports range requests, reading resumes at the current position.
+ *
+ * @author jejkal
+ */
+public class RemoteContentClient{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(RemoteContentClient.class);
+
+  private final CloseableHttpClient httpClient;
+  private final long maxSize;
+  private final int maxRetries;
+
+  /**
+   * Default constructor.
+   *
+   * @param maxConnections The max. number of pooled connections.
+   * @param timeout The connect and socket timeout in milliseconds.
+   * @param maxSize The max. content size in bytes.
+   * @param maxRetries The max. number of retries per request or resumed read.
+   */
+  public RemoteContentClient(int maxConnections, int timeout, long maxSize, int maxRetries){
+    this.maxSize = maxSize;
+    this.maxRetries = maxRetries;
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setDefaultMaxPerRoute(maxConnections);
+    RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(timeout).setConnectionRequestTimeout(timeout).setSocketTimeout(timeout).build();
+    httpClient = HttpClients.custom().setConnectionManager(connectionManager).setDefaultRequestConfig(requestConfig).disableAutomaticRetries().build();
+  }
+
+  /**
+   * Open a stream to the content at 'uri'. The caller has to close the
+   * returned stream in order to return the connection to the pool.
+   *
+   * @param uri The content location.
+   *
+   * @return The content stream.
+   *
+   * @throws IOException If the content cannot be obtained after all retries,
+   * if the server returns an error status or if the content exceeds the max.
+   * size.
+   */
+  public InputStream open(URI uri) throws IOException{
+    return new ResumingInputStream(uri);
+  }
+
+  /**
+   * Check if a failed request may succeed if retried later, i.e. if it did not
+   * fail due to a client error or content exceeding the max. size.
+   *
+   * @param ex The exception thrown while opening or reading the content.
+   *
+   * @return TRUE if the failure is transient.
+   */
+  public static boolean isTransient(IOException ex){
+    return !(ex instanceof NonRetryableException);
+  }
+
+  /**
+   * Close the client and all pooled connections.
+   */
+  public void close(){
+    try{
+      httpClient.close();
+    } catch(IOException ex){
+      LOGGER.warn("Failed to close remote content client.", ex);
+    }
+  }
+
+  /**
+   * Stream reading the response body of a GET request. If reading fails, the
+   * request is repeated with a range header starting at the current position,
+   * as long as the server announced range support and retries are left.
+   */
+  private class ResumingInputStream extends InputStream{
+
+    private final URI uri;
+    private CloseableHttpResponse response;
+    private InputStream body;
+    private long position = 0;
+    private String etag;
+    private boolean rangeSupported;
+    private int retries = 0;
+
+    ResumingInputStream(URI uri) throws IOException{
+      this.uri = uri;
+      connect();
+    }
+
+    private void connect() throws IOException{
+      while(true){
+        try{
+          request();
+          return;
+        } catch(IOException ex){
+          if(retries >= maxRetries || ex instanceof NonRetryableException){
+            throw ex;
+          }
+          retries++;
+          LOGGER.warn("Request to {} failed (attempt {}/{}). Retrying.", uri, retries, maxRetries + 1);
+          backoff();
+        }
+      }
+    }
+
+    private void request() throws IOException{
+      HttpGet get = new HttpGet(uri);
+      if(position > 0){
+        get.setHeader(HttpHeaders.RANGE, "bytes=" + position + "-");
+        if(etag != null){
+          get.setHeader(HttpHeaders.IF_RANGE, etag);
+        }
+      }
+      CloseableHttpResponse resp = httpClient.execute(get);
+      int status = resp.getStatusLine().getStatusCode();
+      boolean expected = (position > 0) ? status == HttpStatus.SC_PARTIAL_CONTENT : status == HttpStatus.SC_OK;
+      HttpEntity entity = resp.getEntity();
+      if(!expected || entity == null){
+        resp.close();
+        if(position > 0 && status == HttpStatus.SC_OK){
+          throw new NonRetryableException("Server ignored range request for " + uri + ". Unable to resume at byte " + position + ".");
+        }
+        if(status >= HttpStatus.SC_BAD_REQUEST && status < HttpStatus.SC_INTERNAL_SERVER_ERROR){
+          throw new NonRetryableException("Request to " + uri + " returned with status " + status + ".");
+        }
+        throw new IOException("Request to " + uri + " returned with status " + status + ".");
+      }
+      if(position == 0){
+        if(entity.getContentLength() > maxSize){
+          resp.close();
+          throw new NonRetryableException("Content at " + uri + " has " + entity.getContentLength() + " bytes, which exceeds the max. size of " + maxSize + " bytes.");
+        }
+        Header acceptRanges = resp.getFirstHeader(HttpHeaders.ACCEPT_RANGES);
+        rangeSupported = acceptRanges != null && "bytes".equalsIgnoreCase(acceptRanges.getValue());
+        Header etagHeader = resp.getFirstHeader(HttpHeaders.ETAG);
+        etag = (etagHeader != null) ? etagHeader.getValue() : null;
+      }
+      response = resp;
+      body = entity.getContent();
+    }
+
+    @Override
+    public int read() throws IOException{
+      byte[] b = new byte[1];
+      int count = read(b, 0, 1);
+      return (count == -1) ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException{
+      while(true){
+        try{
+          int count = body.read(b, off, len);
+          if(count > 0){
+            position += count;
+            if(position > maxSize){
+              throw new NonRetryableException("Content at " + uri + " exceeds the max. size of " + maxSize + " bytes.");
+            }
+          }
+          return count;
+        } catch(NonRetryableException ex){
+          throw ex;
+        } catch(IOException ex){
+          if(!rangeSupported || retries >= maxRetries){
+            throw ex;
+          }
+          retries++;
+          LOGGER.warn("Reading {} failed at byte {} (attempt {}/{}). Resuming with range request.", uri, position, retries, maxRetries + 1);
+          closeResponse();
+          backoff();
+          connect();
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException{
+      closeResponse();
+    }
+
+    private void closeResponse(){
+      if(response != null){
+        try{
+          response.close();
+        } catch(IOException ex){
+          LOGGER.trace("Failed to close response.", ex);
+        }
+        response = null;
+      }
+    }
+
+    private void backoff() throws IOException{
+      try{
+        Thread.sleep(Math.min(100L << retries, 5000L));
+      } catch(InterruptedException ex){
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while retrying request to " + uri + ".");
+      }
+    }
+  }
+
+  /**
+   * Exception for failures which are not retried, e.g. client errors or
+   * content exceeding the max. size.
+   */
+  private static class NonRetryableException extends IOException{
+
+    private static final long serialVersionUID = 1L;
+
+    NonRetryableException(String message){
+      super(message);
+    }
+  }
+}
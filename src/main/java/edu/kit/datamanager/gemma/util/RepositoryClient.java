@@ -0,0 +1,432 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.util;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.kit.datamanager.clients.SimpleServiceClient;
+import edu.kit.datamanager.entities.repo.ContentInformation;
+import edu.kit.datamanager.entities.repo.DataResource;
+import edu.kit.datamanager.util.ControllerUtils;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.GzipCompressingEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
+
+/**
+ * Repository client shared by all requests of the plugin. All requests use a
+ * single pool of keep-alive connections. Uploads are sent as chunked
+ * multipart requests reading directly from the provided file or stream, i.e.
+ * in contrast to SimpleRepositoryClient, upload streams are not read into a
+ * byte array. Optionally, request bodies are compressed using gzip.
+ *
+ * All requests pass a circuit breaker. Connection failures, server errors and
+ * status 429 count as failures. While the circuit is open, requests fail fast
+ * with a CircuitOpenException instead of waiting for timeouts.
+ *
+ * @author jejkal
+ */
+public class RepositoryClient{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(RepositoryClient.class);
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private final String resourceBaseUrl;
+  private final CloseableHttpClient httpClient;
+  private final RestTemplate restTemplate;
+  private final CircuitBreaker circuitBreaker;
+
+  /**
+   * Default constructor.
+   *
+   * @param resourceBaseUrl The repository base URL.
+   * @param maxConnections The max. number of pooled connections.
+   * @param keepAlive The time in milliseconds idle connections are kept open
+   * if the server does not provide a keep-alive timeout.
+   * @param connectTimeout The connect timeout in milliseconds.
+   * @param readTimeout The read timeout in milliseconds.
+   * @param compressRequests TRUE to compress all request bodies using gzip.
+   * @param failureThreshold The number of consecutive failures opening the
+   * circuit. If 0, the circuit never opens.
+   * @param openDuration The time in milliseconds the circuit stays open.
+   */
+  public RepositoryClient(String resourceBaseUrl, int maxConnections, long keepAlive, int connectTimeout, int readTimeout, boolean compressRequests, int failureThreshold, long openDuration){
+    this.resourceBaseUrl = resourceBaseUrl;
+    this.circuitBreaker = new CircuitBreaker(resourceBaseUrl, failureThreshold, openDuration);
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setDefaultMaxPerRoute(maxConnections);
+    RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(connectTimeout).setConnectionRequestTimeout(connectTimeout).setSocketTimeout(readTimeout).build();
+    HttpClientBuilder builder = HttpClients.custom().setConnectionManager(connectionManager).setDefaultRequestConfig(requestConfig);
+    builder.setKeepAliveStrategy((response, context) -> {
+      long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+      return (serverKeepAlive > 0) ? serverKeepAlive : keepAlive;
+    });
+    builder.evictIdleConnections(keepAlive, TimeUnit.MILLISECONDS);
+    if(compressRequests){
+      builder.addInterceptorFirst((HttpRequestInterceptor) (request, context) -> {
+        if(request instanceof HttpEntityEnclosingRequest){
+          HttpEntityEnclosingRequest entityRequest = (HttpEntityEnclosingRequest) request;
+          if(entityRequest.getEntity() != null && entityRequest.getEntity().getContentEncoding() == null){
+            entityRequest.setEntity(new GzipCompressingEntity(entityRequest.getEntity()));
+          }
+        }
+      });
+    }
+    httpClient = builder.build();
+    HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory(httpClient);
+    requestFactory.setBufferRequestBody(false);
+    restTemplate = new RestTemplate(requestFactory);
+  }
+
+  /**
+   * Get the data resource with the provided id as string.
+   *
+   * @param resourceId The resource id.
+   *
+   * @return The resource.
+   */
+  public String getResource(String resourceId){
+    return call(() -> createClient(resourceId).accept(MediaType.TEXT_PLAIN).getResource(String.class));
+  }
+
+  /**
+   * Stream the data resource with the provided id to 'out'.
+   *
+   * @param resourceId The resource id.
+   * @param out The stream receiving the resource.
+   *
+   * @return The HTTP status of the request.
+   */
+  public int getResource(String resourceId, OutputStream out){
+    return call(() -> createClient(resourceId).accept(MediaType.TEXT_PLAIN).getResource(out));
+  }
+
+  /**
+   * Get one page of all data resources.
+   *
+   * @param page The page number starting at 0.
+   * @param size The page size.
+   *
+   * @return The result page including the content range of the response.
+   */
+  public SimpleServiceClient.ResultPage<DataResource> getResources(int page, int size){
+    return call(() -> getPage(createClient("").accept(MediaType.APPLICATION_JSON), page, size, DataResource[].class));
+  }
+
+  /**
+   * Get one page of the content information of all content of the data
+   * resource with the provided id.
+   *
+   * @param resourceId The resource id.
+   * @param page The page number starting at 0.
+   * @param size The page size.
+   *
+   * @return The result page including the content range of the response.
+   */
+  public SimpleServiceClient.ResultPage<ContentInformation> getContentInformation(String resourceId, int page, int size){
+    return call(() -> getPage(createClient(resourceId + "/data/").accept(ContentInformation.CONTENT_INFORMATION_MEDIA_TYPE), page, size, ContentInformation[].class));
+  }
+
+  /**
+   * Get the content information of the content at 'relativePath' of the data
+   * resource with the provided id.
+   *
+   * @param resourceId The resource id.
+   * @param relativePath The relative content path.
+   *
+   * @return The content information.
+   */
+  public ContentInformation getContentInformation(String resourceId, String relativePath){
+    return call(() -> createClient(resourceId + "/data/" + relativePath).accept(ContentInformation.CONTENT_INFORMATION_MEDIA_TYPE).getResource(ContentInformation.class));
+  }
+
+  /**
+   * Upload 'file' to {resourceId}/data/{relativePath}.
+   *
+   * @param resourceId The resource id.
+   * @param relativePath The relative path of the uploaded file.
+   * @param file The file to upload.
+   * @param metadata Optional content metadata.
+   * @param force TRUE to overwrite existing content.
+   *
+   * @return The HTTP status of the upload request.
+   *
+   * @throws IOException If the metadata cannot be serialized.
+   */
+  public HttpStatus uploadData(String resourceId, String relativePath, File file, ContentInformation metadata, boolean force) throws IOException{
+    SimpleServiceClient client = createClient(resourceId + "/data/" + relativePath).withQueryParam("force", Boolean.toString(force)).withFormParam("file", file);
+    if(metadata != null){
+      client.withFormParam("metadata", metadata);
+    }
+    return call(client::postForm);
+  }
+
+  /**
+   * Upload the content read from 'stream' to
+   * {resourceId}/data/{relativePath}. The stream is sent as it is read and is
+   * closed afterwards.
+   *
+   * @param resourceId The resource id.
+   * @param relativePath The relative path of the uploaded file.
+   * @param stream The stream providing the content.
+   * @param metadata Optional content metadata.
+   * @param force TRUE to overwrite existing content.
+   *
+   * @return The HTTP status of the upload request.
+   *
+   * @throws IOException If the metadata cannot be serialized.
+   */
+  public HttpStatus uploadData(String resourceId, String relativePath, InputStream stream, ContentInformation metadata, boolean force) throws IOException{
+    MultiValueMap<String, Object> body = new LinkedMultiValueMap<>();
+    SourceTrackingInputStream source = new SourceTrackingInputStream(stream);
+    //SimpleServiceClient would read the stream into a byte array, thus the request is created here
+    body.add("file", new StreamResource(source, relativePath.substring(relativePath.lastIndexOf('/') + 1)));
+    if(metadata != null){
+      byte[] metadataBytes = MAPPER.writeValueAsBytes(metadata);
+      body.add("metadata", new ByteArrayResource(metadataBytes){
+        @Override
+        public String getFilename(){
+          return "metadata.json";
+        }
+      });
+    }
+    HttpHeaders headers = new HttpHeaders();
+    headers.setContentType(MediaType.MULTIPART_FORM_DATA);
+    String destinationUri = UriComponentsBuilder.fromHttpUrl(resourceBaseUrl + resourceId + "/data/" + relativePath).queryParam("force", Boolean.toString(force)).toUriString();
+    LOGGER.trace("Streaming content to destination URI {}.", destinationUri);
+    ResponseEntity<String> response = call(() -> {
+      try{
+        return restTemplate.postForEntity(destinationUri, new HttpEntity<>(body, headers), String.class);
+      } catch(ResourceAccessException ex){
+        if(source.failed){
+          //reading the content failed, which is no failure of the repository
+          throw new RestClientException("Failed to read content uploaded to " + destinationUri + ".", ex.getCause());
+        }
+        throw ex;
+      }
+    });
+    LOGGER.trace("Upload returned with status {}.", response.getStatusCodeValue());
+    return response.getStatusCode();
+  }
+
+  /**
+   * Check if requests to the repository are currently permitted, i.e. if the
+   * circuit is closed or a trial request is due.
+   *
+   * @return TRUE if the repository is considered available.
+   */
+  public boolean isAvailable(){
+    return circuitBreaker.isAvailable();
+  }
+
+  /**
+   * Check if a failed request may succeed if retried later, i.e. if the
+   * repository was unreachable, returned a server error or status 429 or if
+   * the circuit was open.
+   *
+   * @param ex The exception thrown by the request.
+   *
+   * @return TRUE if the failure is transient.
+   */
+  public static boolean isTransient(RestClientException ex){
+    if(ex instanceof HttpClientErrorException){
+      return HttpStatus.TOO_MANY_REQUESTS.equals(((HttpClientErrorException) ex).getStatusCode());
+    }
+    return ex instanceof ResourceAccessException || ex instanceof HttpServerErrorException;
+  }
+
+  /**
+   * Get the state of the circuit breaker.
+   *
+   * @return The state.
+   */
+  public CircuitBreaker.STATE getCircuitState(){
+    return circuitBreaker.getState();
+  }
+
+  /**
+   * Close the client and all pooled connections.
+   */
+  public void close(){
+    try{
+      httpClient.close();
+    } catch(IOException ex){
+      LOGGER.warn("Failed to close repository client.", ex);
+    }
+  }
+
+  /**
+   * Get one page of resources. In contrast to SimpleServiceClient.getResources,
+   * a missing Content-Range header results in an empty content range instead
+   * of an error.
+   */
+  private <C> SimpleServiceClient.ResultPage<C> getPage(SimpleServiceClient client, int page, int size, Class<C[]> type){
+    Map<String, String> responseHeaders = new HashMap<>();
+    responseHeaders.put(HttpHeaders.CONTENT_RANGE, null);
+    C[] resources = client.withQueryParam("page", Integer.toString(page)).withQueryParam("size", Integer.toString(size)).collectResponseHeader(responseHeaders).getResource(type);
+    String contentRange = responseHeaders.get(HttpHeaders.CONTENT_RANGE);
+    return new SimpleServiceClient.ResultPage<>(resources, (contentRange != null) ? ControllerUtils.parseContentRangeHeader(contentRange) : ControllerUtils.ContentRange.empty());
+  }
+
+  /**
+   * Execute a request if permitted by the circuit breaker and report its
+   * outcome.
+   *
+   * @param request The request.
+   *
+   * @return The result of the request.
+   *
+   * @throws CircuitOpenException If the circuit is open.
+   */
+  private <T, E extends Exception> T call(Request<T, E> request) throws E{
+    if(!circuitBreaker.tryAcquire()){
+      throw new CircuitOpenException("Repository at " + resourceBaseUrl + " is unavailable. Failing fast.");
+    }
+    boolean failed = false;
+    try{
+      return request.execute();
+    } catch(ResourceAccessException | HttpServerErrorException ex){
+      failed = true;
+      throw ex;
+    } catch(HttpClientErrorException ex){
+      failed = HttpStatus.TOO_MANY_REQUESTS.equals(ex.getStatusCode());
+      throw ex;
+    } finally{
+      if(failed){
+        circuitBreaker.onFailure();
+      } else{
+        circuitBreaker.onSuccess();
+      }
+    }
+  }
+
+  private SimpleServiceClient createClient(String resourcePath){
+    SimpleServiceClient client = SimpleServiceClient.create(resourceBaseUrl).withResourcePath(resourcePath);
+    client.setRestTemplate(restTemplate);
+    return client;
+  }
+
+  /**
+   * A single repository request.
+   */
+  @FunctionalInterface
+  private interface Request<T, E extends Exception>{
+
+    T execute() throws E;
+  }
+
+  /**
+   * Exception thrown instead of sending a request while the circuit is open.
+   */
+  public static class CircuitOpenException extends ResourceAccessException{
+
+    private static final long serialVersionUID = 1L;
+
+    CircuitOpenException(String message){
+      super(message);
+    }
+  }
+
+  /**
+   * Stream remembering whether reading the wrapped stream failed, in order to
+   * distinguish failures of the content source from connection failures.
+   */
+  private static class SourceTrackingInputStream extends FilterInputStream{
+
+    private volatile boolean failed = false;
+
+    SourceTrackingInputStream(InputStream in){
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException{
+      try{
+        return super.read();
+      } catch(IOException ex){
+        failed = true;
+        throw ex;
+      }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException{
+      try{
+        return super.read(b, off, len);
+      } catch(IOException ex){
+        failed = true;
+        throw ex;
+      }
+    }
+  }
+
+  /**
+   * Resource wrapping a stream of unknown length. By reporting a length of -1,
+   * the stream is neither consumed to determine its length nor sent with a
+   * Content-Length header.
+   */
+  private static class StreamResource extends InputStreamResource{
+
+    private final String filename;
+
+    StreamResource(InputStream stream, String filename){
+      super(stream);
+      this.filename = filename;
+    }
+
+    @Override
+    public long contentLength(){
+      return -1;
+    }
+
+    @Override
+    public String getFilename(){
+      return filename;
+    }
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory pipe connecting a producer running in a separate thread with a
+ * consumer reading from {@link #getInputStream()}. The producer is started as
+ * soon as the consumer reads for the first time, so nothing is produced, e.g.
+ * no process is running and no connection is open, while the consumer is not
+ * ready yet. The producer returns a status, which is checked as soon as the
+ * consumer reaches the end of the stream. If the producer failed, the consumer receives an IOException
+ * instead of the end of the stream, so partial results are never mistaken for
+ * complete ones.
+ *
+ * @author jejkal
+ */
+public class StreamPipe{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(StreamPipe.class);
+
+  /**
+   * Producer writing into a pipe.
+   */
+  @FunctionalInterface
+  public interface Producer{
+
+    /**
+     * Write all data to 'out'.
+     *
+     * @param out The stream to write to.
+     *
+     * @return 0 on success, any other value otherwise.
+     *
+     * @throws IOException If writing fails.
+     */
+    int produce(OutputStream out) throws IOException;
+  }
+
+  private final ExecutorService executor;
+  private final Producer producer;
+  private final PipedInputStream pipeIn;
+  private final PipedOutputStream pipeOut;
+  private final InputStream inputStream;
+  private Future<Integer> result;
+  private boolean aborted = false;
+
+  private StreamPipe(ExecutorService executor, Producer producer, PipedInputStream pipeIn, PipedOutputStream pipeOut){
+    this.executor = executor;
+    this.producer = producer;
+    this.pipeIn = pipeIn;
+    this.pipeOut = pipeOut;
+    this.inputStream = new ResultCheckingInputStream();
+  }
+
+  /**
+   * Create a pipe providing the data produced by 'producer', which is started
+   * using 'executor' as soon as the pipe is read for the first time.
+   *
+   * @param executor The executor running the producer.
+   * @param bufferSize The size of the pipe buffer in bytes.
+   * @param producer The producer.
+   *
+   * @return The pipe.
+   *
+   * @throws IOException If the pipe cannot be created.
+   */
+  public static StreamPipe create(ExecutorService executor, int bufferSize, Producer producer) throws IOException{
+    PipedInputStream in = new PipedInputStream(bufferSize);
+    PipedOutputStream out = new PipedOutputStream(in);
+    return new StreamPipe(executor, producer, in, out);
+  }
+
+  /**
+   * Check if the producer was started.
+   *
+   * @return TRUE if the pipe was read and the producer was started.
+   */
+  public synchronized boolean isStarted(){
+    return result != null;
+  }
+
+  private synchronized Future<Integer> start() throws IOException{
+    if(aborted){
+      throw new IOException("Pipe was aborted.");
+    }
+    if(result == null){
+      result = executor.submit(() -> {
+        try(OutputStream target = pipeOut){
+          return producer.produce(target);
+        }
+      });
+    }
+    return result;
+  }
+
+  /**
+   * Get the stream providing the produced data.
+   *
+   * @return The stream.
+   */
+  public InputStream getInputStream(){
+    return inputStream;
+  }
+
+  /**
+   * Wait for the producer and return its status. If the producer was not
+   * started yet, it is started now.
+   *
+   * @return The status of the producer.
+   *
+   * @throws IOException If the producer failed with an exception, if the pipe
+   * was aborted or if the current thread was interrupted.
+   */
+  public int getResult() throws IOException{
+    Future<Integer> producerResult = start();
+    try{
+      return producerResult.get();
+    } catch(ExecutionException ex){
+      throw new IOException("Stream producer failed.", ex.getCause());
+    } catch(InterruptedException ex){
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for stream producer.");
+    }
+  }
+
+  /**
+   * Abort the pipe. The producer is cancelled or never started and the stream
+   * is closed.
+   */
+  public void abort(){
+    synchronized(this){
+      aborted = true;
+      if(result != null){
+        result.cancel(true);
+      }
+    }
+    try{
+      pipeIn.close();
+    } catch(IOException ex){
+      LOGGER.trace("Failed to close pipe.", ex);
+    }
+  }
+
+  /**
+   * Stream checking the producer status when reaching the end of the stream.
+   */
+  private class ResultCheckingInputStream extends FilterInputStream{
+
+    ResultCheckingInputStream(){
+      super(pipeIn);
+    }
+
+    @Override
+    public int read() throws IOException{
+      start();
+      int b = super.read();
+      if(b == -1){
+        checkResult();
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException{
+      start();
+      int count = super.read(b, off, len);
+      if(count == -1){
+        checkResult();
+      }
+      return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException{
+      start();
+      return super.skip(n);
+    }
+
+    private void checkResult() throws IOException{
+      int status = getResult();
+      if(status != 0){
+        throw new IOException("Stream producer returned with status " + status + ".");
+      }
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+/**
+ * Registry of content paths recently uploaded by the plugin itself. Each entry
+ * expires after 'ttl' milliseconds. The registry holds at most 'maxEntries'
+ * entries and drops the oldest entry if this limit is exceeded. It is only
+ * held in memory, i.e. after a restart all lookups miss.
+ *
+ * @author jejkal
+ */
+public class UploadRegistry{
+
+  private final long ttl;
+  private final int maxEntries;
+  private final LinkedHashMap<String, Long> entries;
+
+  /**
+   * Default constructor.
+   *
+   * @param ttl The time in milliseconds an entry is kept.
+   * @param maxEntries The max. number of entries.
+   */
+  public UploadRegistry(long ttl, int maxEntries){
+    this.ttl = ttl;
+    this.maxEntries = maxEntries;
+    this.entries = new LinkedHashMap<String, Long>(){
+      @Override
+      protected boolean removeEldestEntry(Entry<String, Long> eldest){
+        return size() > UploadRegistry.this.maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Register an upload to 'path' of resource 'entityId'.
+   *
+   * @param entityId The resource id.
+   * @param path The relative content path.
+   */
+  public synchronized void register(String entityId, String path){
+    String key = getKey(entityId, path);
+    //remove first in order to move the entry to the end of the insertion order
+    entries.remove(key);
+    entries.put(key, System.currentTimeMillis() + ttl);
+  }
+
+  /**
+   * Check if 'path' of resource 'entityId' was uploaded within the last 'ttl'
+   * milliseconds.
+   *
+   * @param entityId The resource id.
+   * @param path The relative content path.
+   *
+   * @return TRUE if the upload is registered, FALSE otherwise.
+   */
+  public synchronized boolean contains(String entityId, String path){
+    long now = System.currentTimeMillis();
+    expire(now);
+    Long expiresAt = entries.get(getKey(entityId, path));
+    return expiresAt != null && expiresAt > now;
+  }
+
+  /**
+   * Get the number of registered uploads, including expired ones not yet
+   * removed.
+   *
+   * @return The number of entries.
+   */
+  public synchronized int size(){
+    return entries.size();
+  }
+
+  private void expire(long now){
+    Iterator<Long> it = entries.values().iterator();
+    while(it.hasNext() && it.next() <= now){
+      it.remove();
+    }
+  }
+
+  private static String getKey(String entityId, String path){
+    return entityId + "/data/" + (path.startsWith("/") ? path.substring(1) : path);
+  }
+}
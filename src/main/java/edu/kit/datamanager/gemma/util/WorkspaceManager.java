@@ -0,0 +1,300 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Manager of the scratch space used by mapping jobs. Each job obtains its own
+ * workspace directory below the workspace root, which is removed as a whole
+ * when the job is finished. The total size of all workspaces is limited by a
+ * quota: opening a workspace blocks while its reservation does not fit into
+ * the quota, until other workspaces are closed or the timeout has elapsed.
+ * Each workspace is accounted with at least its reservation, i.e. the
+ * expected size of its files, so workspaces count against the quota from the
+ * moment they are opened. As the actual size of a job's files is not known in
+ * advance, the quota is a soft limit, i.e. a job admitted below the quota may
+ * exceed it by the size of its own files. A single workspace is always
+ * admitted, even if its reservation exceeds the quota.
+ *
+ * While the manager is initialized, it holds a lock on the workspace root.
+ * Workspaces left behind by a previous run, e.g. after a crash, are removed
+ * when the lock is obtained. If another process holds the lock, orphaned
+ * workspaces are not removed.
+ *
+ * @author jejkal
+ */
+public class WorkspaceManager{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(WorkspaceManager.class);
+
+  private static final String WORKSPACE_PREFIX = "job-";
+  private static final String LOCK_FILE = ".lock";
+  /**
+   * The reservation of workspaces whose expected size is unknown.
+   */
+  public static final long DEFAULT_RESERVATION = 64 * 1024;
+
+  private final Path root;
+  private final long quota;
+  private final long timeout;
+  private long used = 0;
+  private int open = 0;
+  private FileChannel lockChannel;
+  private FileLock lock;
+
+  /**
+   * Default constructor.
+   *
+   * @param root The directory all workspaces are created in.
+   * @param quota The max. number of bytes used by all workspaces. If 0, the
+   * size is not limited.
+   * @param timeout The max. time in milliseconds to wait for free quota.
+   */
+  public WorkspaceManager(Path root, long quota, long timeout){
+    this.root = root;
+    this.quota = quota;
+    this.timeout = timeout;
+  }
+
+  /**
+   * Create the workspace root, lock it and remove all orphaned workspaces.
+   *
+   * @throws IOException If the workspace root cannot be created.
+   */
+  public void init() throws IOException{
+    Files.createDirectories(root);
+    lockChannel = FileChannel.open(root.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    try{
+      lock = lockChannel.tryLock();
+    } catch(OverlappingFileLockException ex){
+      lock = null;
+    }
+    if(lock == null){
+      LOGGER.warn("Workspace root {} is used by another process. Orphaned workspaces are not removed.", root);
+      return;
+    }
+    int removed = 0;
+    try(DirectoryStream<Path> workspaces = Files.newDirectoryStream(root, WORKSPACE_PREFIX + "*")){
+      for(Path workspace : workspaces){
+        deleteRecursively(workspace);
+        removed++;
+      }
+    }
+    if(removed > 0){
+      LOGGER.info("Removed {} orphaned workspace(s) from {}.", removed, root);
+    }
+  }
+
+  /**
+   * Release the lock on the workspace root.
+   */
+  public void close(){
+    try{
+      if(lock != null){
+        lock.release();
+      }
+      if(lockChannel != null){
+        lockChannel.close();
+      }
+    } catch(IOException ex){
+      LOGGER.warn("Failed to release lock on workspace root " + root + ".", ex);
+    }
+  }
+
+  /**
+   * Open a new workspace. If the reservation of the workspace does not fit
+   * into the quota, this method blocks until enough space was released.
+   *
+   * @param expectedSize The expected size of all files written to the
+   * workspace, e.g. the input size, which is reserved until the actual size
+   * exceeds it. If not positive, DEFAULT_RESERVATION is reserved.
+   *
+   * @return The workspace, which has to be closed by the caller.
+   *
+   * @throws IOException If the reservation still does not fit into the quota
+   * after the timeout or if the workspace directory cannot be created.
+   */
+  public Workspace open(long expectedSize) throws IOException{
+    long reservation = (expectedSize > 0) ? expectedSize : DEFAULT_RESERVATION;
+    synchronized(this){
+      long deadline = System.currentTimeMillis() + timeout;
+      while(quota > 0 && open > 0 && used + reservation > quota){
+        long remaining = deadline - System.currentTimeMillis();
+        if(remaining <= 0){
+          throw new IOException("Workspace quota of " + quota + " bytes exceeded by " + open + " open workspace(s) for more than " + timeout + " ms.");
+        }
+        try{
+          wait(remaining);
+        } catch(InterruptedException ex){
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while waiting for workspace quota.");
+        }
+      }
+      open++;
+      used += reservation;
+    }
+    try{
+      return new Workspace(Files.createTempDirectory(root, WORKSPACE_PREFIX), reservation);
+    } catch(IOException ex){
+      release(reservation);
+      throw ex;
+    }
+  }
+
+  /**
+   * Get the number of bytes used or reserved by all open workspaces, as of
+   * the last update of each workspace.
+   *
+   * @return The number of bytes.
+   */
+  public synchronized long getUsed(){
+    return used;
+  }
+
+  /**
+   * Get the number of open workspaces.
+   *
+   * @return The number of workspaces.
+   */
+  public synchronized int getOpen(){
+    return open;
+  }
+
+  private synchronized void add(long bytes){
+    used += bytes;
+    if(bytes < 0){
+      notifyAll();
+    }
+  }
+
+  private synchronized void release(long bytes){
+    used -= bytes;
+    open--;
+    notifyAll();
+  }
+
+  private static void deleteRecursively(Path path) throws IOException{
+    try(Stream<Path> paths = Files.walk(path)){
+      paths.sorted(Comparator.reverseOrder()).forEach((p) -> {
+        try{
+          Files.deleteIfExists(p);
+        } catch(IOException ex){
+          LOGGER.warn("Failed to remove " + p + ".", ex);
+        }
+      });
+    }
+  }
+
+  /**
+   * The directory of a single job. All files created in the directory are
+   * removed when the workspace is closed.
+   */
+  public class Workspace implements Closeable{
+
+    private final Path directory;
+    private final long reservation;
+    /**
+     * The size accounted at the quota, which is at least the reservation.
+     */
+    private long size;
+    private boolean closed = false;
+
+    private Workspace(Path directory, long reservation){
+      this.directory = directory;
+      this.reservation = reservation;
+      this.size = reservation;
+    }
+
+    /**
+     * Get the workspace directory.
+     *
+     * @return The directory.
+     */
+    public Path getDirectory(){
+      return directory;
+    }
+
+    /**
+     * Get the path of a file named 'filename' in the workspace. Characters
+     * which are not safe in filenames are replaced by '_'.
+     *
+     * @param filename The filename.
+     *
+     * @return The file path.
+     */
+    public Path resolve(String filename){
+      return directory.resolve(filename.replaceAll("[^A-Za-z0-9._-]", "_"));
+    }
+
+    /**
+     * Recompute the size of the workspace and account it at the quota, but at
+     * least the reservation. This should be called after files were written.
+     *
+     * @throws IOException If the size cannot be determined.
+     */
+    public void update() throws IOException{
+      synchronized(WorkspaceManager.this){
+        if(closed){
+          return;
+        }
+      }
+      long current;
+      try(Stream<Path> paths = Files.walk(directory)){
+        current = Math.max(paths.filter(Files::isRegularFile).mapToLong((p) -> p.toFile().length()).sum(), reservation);
+      }
+      synchronized(WorkspaceManager.this){
+        if(closed){
+          return;
+        }
+        add(current - size);
+        size = current;
+      }
+    }
+
+    /**
+     * Remove the workspace directory and release its quota.
+     */
+    @Override
+    public void close(){
+      synchronized(WorkspaceManager.this){
+        if(closed){
+          return;
+        }
+        closed = true;
+      }
+      try{
+        deleteRecursively(directory);
+      } catch(IOException ex){
+        LOGGER.warn("Failed to remove workspace " + directory + ".", ex);
+      } finally{
+        release(size);
+      }
+    }
+  }
+}
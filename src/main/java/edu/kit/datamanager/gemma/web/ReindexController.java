@@ -0,0 +1,117 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.web;
+
+import edu.kit.datamanager.entities.RepoUserRole;
+import edu.kit.datamanager.exceptions.AccessForbiddenException;
+import edu.kit.datamanager.exceptions.UnauthorizedAccessException;
+import edu.kit.datamanager.gemma.plugin.ReindexService;
+import edu.kit.datamanager.gemma.plugin.ReindexStatus;
+import edu.kit.datamanager.util.AuthenticationHelper;
+import java.util.HashSet;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Endpoint for starting, monitoring and cancelling a re-index of all data
+ * resources. Starting and cancelling a re-index requires the role
+ * ADMINISTRATOR.
+ *
+ * @author jejkal
+ */
+@RestController
+@RequestMapping(value = "/api/v1/gemma/reindex")
+public class ReindexController{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(ReindexController.class);
+
+  @Autowired
+  private ReindexService reindexService;
+
+  /**
+   * Start a re-index.
+   *
+   * @param contentTypes The content types to re-index. If not provided, all
+   * content types with mapping are re-indexed.
+   * @param resume FALSE to ignore the checkpoint of a previous run.
+   *
+   * @return 202 and the status of the started run, 400 if there is no mapping
+   * for one of the content types, 409 if a re-index is already running.
+   */
+  @PostMapping
+  public ResponseEntity<ReindexStatus> start(@RequestParam(value = "contentType", required = false) List<String> contentTypes, @RequestParam(value = "resume", defaultValue = "true") boolean resume){
+    checkAdministrator();
+    try{
+      return ResponseEntity.status(HttpStatus.ACCEPTED).body(reindexService.start((contentTypes != null) ? new HashSet<>(contentTypes) : new HashSet<>(), resume));
+    } catch(IllegalArgumentException ex){
+      LOGGER.warn("Rejecting re-index request: {}", ex.getMessage());
+      return ResponseEntity.badRequest().body(reindexService.getStatus());
+    } catch(IllegalStateException ex){
+      LOGGER.warn("Rejecting re-index request: {}", ex.getMessage());
+      return ResponseEntity.status(HttpStatus.CONFLICT).body(reindexService.getStatus());
+    }
+  }
+
+  /**
+   * Get the status of the current or last re-index.
+   *
+   * @return 200 and the status.
+   */
+  @GetMapping
+  public ResponseEntity<ReindexStatus> getStatus(){
+    return ResponseEntity.ok(reindexService.getStatus());
+  }
+
+  /**
+   * Cancel the running re-index.
+   *
+   * @return 202 and the status.
+   */
+  @DeleteMapping
+  public ResponseEntity<ReindexStatus> cancel(){
+    checkAdministrator();
+    reindexService.cancel();
+    return ResponseEntity.status(HttpStatus.ACCEPTED).body(reindexService.getStatus());
+  }
+
+  /**
+   * Check if the caller has the role ADMINISTRATOR.
+   *
+   * @throws UnauthorizedAccessException If the caller is not authenticated,
+   * resulting in 401.
+   * @throws AccessForbiddenException If the caller has no ADMINISTRATOR role,
+   * resulting in 403.
+   */
+  private void checkAdministrator(){
+    if(AuthenticationHelper.isAnonymous()){
+      throw new UnauthorizedAccessException("Please login in order to start or cancel a re-index.");
+    }
+    if(!AuthenticationHelper.hasAuthority(RepoUserRole.ADMINISTRATOR.toString())){
+      LOGGER.warn("Rejecting re-index request of {}. Role {} is required.", AuthenticationHelper.getPrincipal(), RepoUserRole.ADMINISTRATOR);
+      throw new AccessForbiddenException("Insufficient role. ADMINISTRATOR role is required in order to start or cancel a re-index.");
+    }
+  }
+}
@@ -0,0 +1,72 @@
+#
+# Copyright 2019 Karlsruhe Institute of Technology.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# Streaming wrapper used by the gemma-plugin in streaming mode. Gemma reads
+# its input from stdin and writes its result to the original stdout. All other
+# output printed by Gemma is diverted to stderr, so stdout only carries the
+# mapping result. Gemma expects file paths, which are '/dev/stdin' and
+# '/dev/fd/<n>' on systems providing them. Elsewhere, e.g. on Windows, input
+# and result are spooled through temporary files instead.
+#
+# Usage: python gemma_stream.py <gemmaLocation> <mappingFile>
+#
+import os
+import runpy
+import shutil
+import sys
+import tempfile
+
+
+def run_gemma(gemma_location, mapping_file, input_file, output_file):
+    sys.argv = [gemma_location, mapping_file, input_file, output_file]
+    runpy.run_path(gemma_location, run_name="__main__")
+
+
+def run_spooled(gemma_location, mapping_file, result_fd):
+    spool = tempfile.mkdtemp(prefix="gemma_stream")
+    try:
+        input_file = os.path.join(spool, "input")
+        output_file = os.path.join(spool, "output")
+        with open(input_file, "wb") as f:
+            shutil.copyfileobj(sys.stdin.buffer, f)
+        run_gemma(gemma_location, mapping_file, input_file, output_file)
+        with open(output_file, "rb") as f, os.fdopen(result_fd, "wb", closefd=False) as out:
+            shutil.copyfileobj(f, out)
+    finally:
+        shutil.rmtree(spool, ignore_errors=True)
+
+
+def main():
+    if len(sys.argv) < 3:
+        sys.stderr.write("Usage: gemma_stream.py <gemmaLocation> <mappingFile>\n")
+        sys.exit(2)
+    gemma_location = os.path.abspath(sys.argv[1])
+    mapping_file = sys.argv[2]
+    sys.path.insert(0, os.path.dirname(gemma_location))
+    sys.stdout.flush()
+    result_fd = os.dup(1)
+    os.dup2(2, 1)
+    try:
+        if os.path.isdir("/dev/fd"):
+            run_gemma(gemma_location, mapping_file, "/dev/stdin", "/dev/fd/%d" % result_fd)
+        else:
+            run_spooled(gemma_location, mapping_file, result_fd)
+    finally:
+        sys.stdout.flush()
+        os.close(result_fd)
+
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,186 @@
+#
+# Copyright 2019 Karlsruhe Institute of Technology.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# Long-lived Gemma worker used by the gemma-plugin worker pool. The worker
+# reads one JSON job per line from stdin and answers with one JSON line on
+# stdout. A job applies one or more mappings to the same input:
+#
+#   {"input": <inputFile>, "mappings": [{"mapping": <mappingFile>, "output": <outputFile>}, ...], "maxCapture": <bytes>}
+#
+# Only the first 'maxCapture' bytes of Gemma's output are returned as log, the
+# number of discarded bytes is returned as 'discarded'.
+#
+# The Gemma main script is executed via runpy for each mapping, so all modules
+# it imports are loaded only once per worker process. If a job has multiple
+# mappings, the input is read from disk once and served from memory to all
+# mappings. The mappings are applied in order until the first one fails.
+#
+# If input and mappings are passed as arguments, the worker applies them as a
+# single job, prints Gemma's output and exits with the job's status instead.
+#
+# Usage: python gemma_worker.py <gemmaLocation>
+#        python gemma_worker.py <gemmaLocation> <inputFile> <mappingFile> <outputFile> [<mappingFile> <outputFile> ...]
+#
+import builtins
+import io
+import json
+import os
+import runpy
+import sys
+import traceback
+
+PREWARM_NAME = "__gemma_prewarm__"
+DEFAULT_MAX_CAPTURE = 64 * 1024
+
+
+def prewarm(gemma_location):
+    # Executing the script under a name different from __main__ loads all
+    # top-level imports without running the mapping itself. Output is diverted
+    # to stderr to keep the protocol channel clean.
+    saved_stdout = sys.stdout
+    sys.stdout = sys.stderr
+    try:
+        runpy.run_path(gemma_location, run_name=PREWARM_NAME)
+    except BaseException:
+        pass
+    finally:
+        sys.stdout = saved_stdout
+
+
+def cached_open(input_file, original_open):
+    # Returns an open() serving 'input_file' from memory if it is opened for
+    # reading. All other files are opened as usual.
+    input_path = os.path.abspath(input_file)
+    with original_open(input_path, "rb") as f:
+        data = f.read()
+
+    def open_cached(file, mode="r", buffering=-1, encoding=None, errors=None, newline=None, *args, **kwargs):
+        if isinstance(file, (str, bytes, os.PathLike)) and set(mode) <= set("rbt") \
+                and os.path.abspath(os.fsdecode(file)) == input_path:
+            buffer = io.BytesIO(data)
+            if "b" in mode:
+                return buffer
+            return io.TextIOWrapper(buffer, encoding=encoding, errors=errors, newline=newline)
+        return original_open(file, mode, buffering, encoding, errors, newline, *args, **kwargs)
+
+    return open_cached
+
+
+def run_gemma(gemma_location, mapping_file, input_file, output_file):
+    sys.argv = [gemma_location, mapping_file, input_file, output_file]
+    try:
+        runpy.run_path(gemma_location, run_name="__main__")
+    except SystemExit as e:
+        if e.code is None:
+            return 0
+        if isinstance(e.code, int):
+            return e.code
+        sys.stdout.write(str(e.code) + "\n")
+        return 1
+    except BaseException:
+        sys.stdout.write(traceback.format_exc())
+        return 1
+    return 0
+
+
+def run_job(gemma_location, job):
+    saved_argv = sys.argv
+    saved_open = builtins.open
+    try:
+        if len(job["mappings"]) > 1:
+            builtins.open = cached_open(job["input"], saved_open)
+        for mapping in job["mappings"]:
+            status = run_gemma(gemma_location, mapping["mapping"], job["input"], mapping["output"])
+            if status != 0:
+                return status
+        return 0
+    finally:
+        sys.argv = saved_argv
+        builtins.open = saved_open
+
+
+class BoundedCapture(io.TextIOBase):
+    # Keeps the first 'limit' bytes of all text written to it and only counts
+    # the rest, so the output of a job never grows beyond the capture limit.
+    def __init__(self, limit):
+        self.limit = max(limit, 0)
+        self.data = bytearray()
+        self.discarded = 0
+
+    def writable(self):
+        return True
+
+    def write(self, text):
+        encoded = text.encode("utf-8", "replace")
+        room = max(self.limit - len(self.data), 0)
+        self.data += encoded[:room]
+        self.discarded += max(len(encoded) - room, 0)
+        return len(text)
+
+    def getvalue(self):
+        return self.data.decode("utf-8", "ignore")
+
+
+def run_captured(gemma_location, job):
+    captured = BoundedCapture(job.get("maxCapture", DEFAULT_MAX_CAPTURE))
+    saved_stdout = sys.stdout
+    sys.stdout = captured
+    try:
+        status = run_job(gemma_location, job)
+    except BaseException:
+        captured.write(traceback.format_exc())
+        status = 1
+    finally:
+        sys.stdout = saved_stdout
+    return {"status": status, "log": captured.getvalue(), "discarded": captured.discarded}
+
+
+def parse_job(arguments):
+    pairs = arguments[1:]
+    if not pairs or len(pairs) % 2 != 0:
+        return None
+    return {"input": arguments[0],
+            "mappings": [{"mapping": pairs[i], "output": pairs[i + 1]} for i in range(0, len(pairs), 2)]}
+
+
+def main():
+    job = parse_job(sys.argv[2:])
+    if len(sys.argv) < 2 or (len(sys.argv) > 2 and job is None):
+        sys.stderr.write("Usage: gemma_worker.py <gemmaLocation> [<inputFile> <mappingFile> <outputFile> ...]\n")
+        sys.exit(2)
+    gemma_location = os.path.abspath(sys.argv[1])
+    sys.path.insert(0, os.path.dirname(gemma_location))
+    if job is not None:
+        sys.exit(run_job(gemma_location, job))
+    protocol_out = sys.stdout
+    prewarm(gemma_location)
+    for line in sys.stdin:
+        line = line.strip()
+        if not line:
+            continue
+        try:
+            job = json.loads(line)
+            if job.get("command") == "ping":
+                response = {"status": "pong"}
+            else:
+                response = run_captured(gemma_location, job)
+        except BaseException:
+            response = {"status": 1, "log": traceback.format_exc()}
+        protocol_out.write(json.dumps(response) + "\n")
+        protocol_out.flush()
+
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.cluster;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for key assignment and shares of the hash ring.
+ *
+ * @author jejkal
+ */
+public class HashRingTest{
+
+  private static final int VIRTUAL_NODES = 100;
+  private static final int KEYS = 10000;
+
+  @Test
+  public void testEmptyRing(){
+    HashRing ring = new HashRing(Collections.emptyList(), VIRTUAL_NODES);
+    Assert.assertNull(ring.getOwner("resource-1"));
+    Assert.assertEquals(0, ring.getShare("node-a"), 0);
+  }
+
+  @Test
+  public void testSingleMemberOwnsAllKeys(){
+    HashRing ring = new HashRing(Collections.singletonList("node-a"), 1);
+    Assert.assertEquals("node-a", ring.getOwner("resource-1"));
+    Assert.assertEquals(1, ring.getShare("node-a"), 0);
+  }
+
+  @Test
+  public void testAssignmentIsIndependentOfMemberOrder(){
+    HashRing ring = new HashRing(Arrays.asList("node-a", "node-b", "node-c"), VIRTUAL_NODES);
+    HashRing other = new HashRing(Arrays.asList("node-c", "node-a", "node-b"), VIRTUAL_NODES);
+    Assert.assertEquals(Arrays.asList("node-a", "node-b", "node-c"), Arrays.asList(ring.getMembers().toArray()));
+    for(int i = 0; i < KEYS; i++){
+      Assert.assertEquals(ring.getOwner("resource-" + i), other.getOwner("resource-" + i));
+    }
+  }
+
+  @Test
+  public void testSharesMatchAssignedKeys(){
+    HashRing ring = new HashRing(Arrays.asList("node-a", "node-b", "node-c"), VIRTUAL_NODES);
+    int owned = 0;
+    for(int i = 0; i < KEYS; i++){
+      if("node-a".equals(ring.getOwner("resource-" + i))){
+        owned++;
+      }
+    }
+    Assert.assertEquals(ring.getShare("node-a"), (double) owned / KEYS, 0.05);
+    Assert.assertEquals(1, ring.getShare("node-a") + ring.getShare("node-b") + ring.getShare("node-c"), 1e-9);
+    Assert.assertEquals(0, ring.getShare("node-d"), 0);
+  }
+
+  @Test
+  public void testLeavingMemberOnlyMovesItsKeys(){
+    HashRing ring = new HashRing(Arrays.asList("node-a", "node-b", "node-c"), VIRTUAL_NODES);
+    HashRing reduced = new HashRing(Arrays.asList("node-a", "node-b"), VIRTUAL_NODES);
+    for(int i = 0; i < KEYS; i++){
+      String owner = ring.getOwner("resource-" + i);
+      if(!"node-c".equals(owner)){
+        Assert.assertEquals(owner, reduced.getOwner("resource-" + i));
+      }
+    }
+  }
+}
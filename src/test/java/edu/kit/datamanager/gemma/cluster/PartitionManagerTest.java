@@ -0,0 +1,208 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.cluster;
+
+import edu.kit.datamanager.entities.messaging.BasicMessage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for skipping and handing over messages of the partition manager.
+ *
+ * @author jejkal
+ */
+public class PartitionManagerTest{
+
+  private static final String NODE = "node-a";
+  private static final String OTHER_NODE = "node-b";
+  private static final int VIRTUAL_NODES = 100;
+  private static final long HEARTBEAT_INTERVAL = 20;
+
+  private final FakeMembership backend = new FakeMembership();
+  private final List<BasicMessage> handedOver = new CopyOnWriteArrayList<>();
+  private PartitionManager manager;
+
+  @After
+  public void tearDown(){
+    if(manager != null){
+      manager.close();
+    }
+  }
+
+  @Test
+  public void testSkippedMessageIsHandedOverWhenMemberLeaves() throws Exception{
+    start(60000, 10);
+    BasicMessage owned = createMessage(getEntityIds(NODE, 1).get(0));
+    BasicMessage skipped = createMessage(getEntityIds(OTHER_NODE, 1).get(0));
+    Assert.assertTrue(manager.claim(owned));
+    Assert.assertFalse(manager.claim(skipped));
+    Assert.assertEquals(2, manager.getMembers());
+
+    backend.members = Collections.emptySet();
+    awaitHandoff(1);
+    Assert.assertEquals(Collections.singletonList(skipped), handedOver);
+    Assert.assertEquals(1, manager.getMembers());
+    Assert.assertTrue(manager.isOwned(skipped.getEntityId()));
+  }
+
+  @Test
+  public void testExpiredMessageIsNotHandedOver() throws Exception{
+    long memberTimeout = 100;
+    start(memberTimeout, 10);
+    Assert.assertFalse(manager.claim(createMessage(getEntityIds(OTHER_NODE, 1).get(0))));
+    Thread.sleep(memberTimeout + HEARTBEAT_INTERVAL + 100);
+
+    backend.members = Collections.emptySet();
+    awaitRebalance();
+    //give a wrongly submitted handoff the chance to run
+    Thread.sleep(10 * HEARTBEAT_INTERVAL);
+    Assert.assertTrue(handedOver.isEmpty());
+  }
+
+  @Test
+  public void testHandoffBoundDropsOldestMessage() throws Exception{
+    start(60000, 2);
+    List<String> entityIds = getEntityIds(OTHER_NODE, 3);
+    List<BasicMessage> skipped = new ArrayList<>();
+    for(String entityId : entityIds){
+      BasicMessage message = createMessage(entityId);
+      skipped.add(message);
+      Assert.assertFalse(manager.claim(message));
+    }
+
+    backend.members = Collections.emptySet();
+    awaitHandoff(2);
+    Assert.assertEquals(skipped.subList(1, 3), handedOver);
+  }
+
+  @Test
+  public void testSlowHandoffDoesNotDelayHeartbeats() throws Exception{
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    start(60000, 10, (messages) -> {
+      started.countDown();
+      try{
+        release.await();
+      } catch(InterruptedException ex){
+        Thread.currentThread().interrupt();
+      }
+      handedOver.addAll(messages);
+    });
+    Assert.assertFalse(manager.claim(createMessage(getEntityIds(OTHER_NODE, 1).get(0))));
+
+    backend.members = Collections.emptySet();
+    Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+    int heartbeats = backend.heartbeats.get();
+    long deadline = System.currentTimeMillis() + 5000;
+    while(backend.heartbeats.get() < heartbeats + 3 && System.currentTimeMillis() < deadline){
+      Thread.sleep(HEARTBEAT_INTERVAL);
+    }
+    Assert.assertTrue(backend.heartbeats.get() >= heartbeats + 3);
+    Assert.assertTrue(handedOver.isEmpty());
+
+    release.countDown();
+    awaitHandoff(1);
+  }
+
+  private void start(long memberTimeout, int handoffMaxMessages){
+    start(memberTimeout, handoffMaxMessages, handedOver::addAll);
+  }
+
+  private void start(long memberTimeout, int handoffMaxMessages, Consumer<List<BasicMessage>> handoff){
+    backend.members = Collections.singleton(OTHER_NODE);
+    manager = new PartitionManager(NODE, backend, HEARTBEAT_INTERVAL, memberTimeout, VIRTUAL_NODES, handoffMaxMessages, handoff);
+    manager.start();
+  }
+
+  private void awaitHandoff(int messages) throws InterruptedException{
+    long deadline = System.currentTimeMillis() + 5000;
+    while(handedOver.size() < messages && System.currentTimeMillis() < deadline){
+      Thread.sleep(HEARTBEAT_INTERVAL);
+    }
+    Assert.assertEquals(messages, handedOver.size());
+  }
+
+  private void awaitRebalance() throws InterruptedException{
+    long deadline = System.currentTimeMillis() + 5000;
+    while(manager.getMembers() != 1 && System.currentTimeMillis() < deadline){
+      Thread.sleep(HEARTBEAT_INTERVAL);
+    }
+    Assert.assertEquals(1, manager.getMembers());
+  }
+
+  /**
+   * Get 'count' resource ids owned by 'member' in a cluster of both nodes.
+   */
+  private static List<String> getEntityIds(String member, int count){
+    HashRing ring = new HashRing(Arrays.asList(NODE, OTHER_NODE), VIRTUAL_NODES);
+    List<String> entityIds = new ArrayList<>();
+    for(int i = 0; entityIds.size() < count; i++){
+      if(member.equals(ring.getOwner("resource-" + i))){
+        entityIds.add("resource-" + i);
+      }
+    }
+    return entityIds;
+  }
+
+  private static BasicMessage createMessage(String entityId){
+    BasicMessage message = new BasicMessage();
+    message.setEntityId(entityId);
+    message.setAction("UPDATE");
+    return message;
+  }
+
+  /**
+   * Membership backend returning the configured members on each heartbeat.
+   */
+  private static class FakeMembership implements IMembershipBackend{
+
+    private volatile Set<String> members = Collections.emptySet();
+    private final AtomicInteger heartbeats = new AtomicInteger(0);
+
+    @Override
+    public String getName(){
+      return "fake";
+    }
+
+    @Override
+    public Set<String> heartbeat(String nodeId, long memberTimeout){
+      heartbeats.incrementAndGet();
+      Set<String> result = new HashSet<>(members);
+      result.add(nodeId);
+      return result;
+    }
+
+    @Override
+    public void leave(String nodeId){
+    }
+
+    @Override
+    public void close(){
+    }
+  }
+}
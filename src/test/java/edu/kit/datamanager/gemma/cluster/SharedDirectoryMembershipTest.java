@@ -0,0 +1,77 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.cluster;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for heartbeats and leaving members of the shared directory backend.
+ *
+ * @author jejkal
+ */
+public class SharedDirectoryMembershipTest{
+
+  private static final long MEMBER_TIMEOUT = 60000;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path directory;
+  private SharedDirectoryMembership membership;
+
+  @Before
+  public void setUp(){
+    directory = folder.getRoot().toPath().resolve("members");
+    membership = new SharedDirectoryMembership(directory);
+  }
+
+  @Test
+  public void testHeartbeatReturnsLiveMembers() throws IOException{
+    Assert.assertEquals(Collections.singleton("node-a"), membership.heartbeat("node-a", MEMBER_TIMEOUT));
+    Assert.assertEquals(new HashSet<>(Arrays.asList("node-a", "node/b")), membership.heartbeat("node/b", MEMBER_TIMEOUT));
+  }
+
+  @Test
+  public void testLeaveRemovesMember() throws IOException{
+    membership.heartbeat("node-a", MEMBER_TIMEOUT);
+    membership.heartbeat("node-b", MEMBER_TIMEOUT);
+    membership.leave("node-a");
+    Assert.assertEquals(Collections.singleton("node-b"), membership.heartbeat("node-b", MEMBER_TIMEOUT));
+  }
+
+  @Test
+  public void testTimedOutAndInvalidMembersAreRemoved() throws IOException{
+    membership.heartbeat("node-a", MEMBER_TIMEOUT);
+    Path stale = directory.resolve("node-b.member");
+    Path invalid = directory.resolve("node-c.member");
+    Files.write(stale, Long.toString(System.currentTimeMillis() - 2 * MEMBER_TIMEOUT).getBytes(StandardCharsets.UTF_8));
+    Files.write(invalid, "invalid".getBytes(StandardCharsets.UTF_8));
+    Assert.assertEquals(Collections.singleton("node-a"), membership.heartbeat("node-a", MEMBER_TIMEOUT));
+    Assert.assertFalse(Files.exists(stale));
+    Assert.assertFalse(Files.exists(invalid));
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.configuration;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.context.properties.source.MapConfigurationPropertySource;
+
+/**
+ * Tests for binding the mapping configuration the same way as from the
+ * application properties.
+ *
+ * @author jejkal
+ */
+public class GemmaConfigurationTest{
+
+  @Test
+  public void testCommaSeparatedSchemaMappings(){
+    Map<String, String> properties = new HashMap<>();
+    properties.put("repo.plugin.gemma.schemaMappings[application/json]", "full_mapping.json,facet_mapping.json");
+    properties.put("repo.plugin.gemma.schemaMappings[application/vnd.datamanager.data-resource+json]", "simple_mapping.json");
+    GemmaConfiguration configuration = bind(properties);
+    Assert.assertEquals(2, configuration.getSchemaMappings().size());
+    Assert.assertEquals(Arrays.asList("full_mapping.json", "facet_mapping.json"), configuration.getSchemaMappings().get("application/json"));
+    Assert.assertEquals(Collections.singletonList("simple_mapping.json"), configuration.getSchemaMappings().get("application/vnd.datamanager.data-resource+json"));
+  }
+
+  @Test
+  public void testIndexedSchemaMappings(){
+    Map<String, String> properties = new HashMap<>();
+    properties.put("repo.plugin.gemma.schemaMappings[application/json][0]", "full_mapping.json");
+    properties.put("repo.plugin.gemma.schemaMappings[application/json][1]", "facet_mapping.json");
+    Assert.assertEquals(Arrays.asList("full_mapping.json", "facet_mapping.json"), bind(properties).getSchemaMappings().get("application/json"));
+  }
+
+  private static GemmaConfiguration bind(Map<String, String> properties){
+    return new Binder(new MapConfigurationPropertySource(properties)).bind("repo.plugin.gemma", GemmaConfiguration.class).get();
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.mapping;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for collecting source paths and fingerprinting documents.
+ *
+ * @author jejkal
+ */
+public class FieldDependenciesTest{
+
+  private static final String TITLE = "{\"properties\":{\"title\":{\"path\":\"title\",\"type\":\"string\"}}}";
+  private static final String CREATOR = "{\"properties\":{\"name\":{\"path\":\"creator.name\",\"type\":\"string\"}}}";
+  //valid JSON, but not supported by the native engine as the property has no path
+  private static final String UNSUPPORTED = "{\"properties\":{\"title\":{\"type\":\"string\"}}}";
+  private static final String XML = "{\"properties\":{\"title\":{\"path\":\"root.title.#text\",\"type\":\"string\"}}}";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path mappingsLocation;
+
+  @Before
+  public void setUp(){
+    mappingsLocation = folder.getRoot().toPath();
+  }
+
+  @Test
+  public void testPathsOfAllMappings() throws IOException{
+    FieldDependencies dependencies = FieldDependencies.of(load("application/json", TITLE, CREATOR));
+    Assert.assertEquals(Arrays.asList("creator.name", "title"), Arrays.asList(dependencies.getPaths().toArray()));
+  }
+
+  @Test
+  public void testUnknownPathsOfUnsupportedMapping() throws IOException{
+    Assert.assertNull(FieldDependencies.of(load("application/json", TITLE, UNSUPPORTED)));
+  }
+
+  @Test
+  public void testUnreadFieldsDoNotChangeFingerprint() throws IOException{
+    FieldDependencies dependencies = FieldDependencies.of(load("application/json", TITLE, CREATOR));
+    String fingerprint = dependencies.fingerprint(document("{\"title\":\"A\",\"creator\":{\"name\":\"Doe\"},\"state\":\"VOLATILE\"}"), "application/json");
+    Assert.assertTrue(fingerprint.startsWith(FieldDependencies.FINGERPRINT_PREFIX));
+    Assert.assertEquals(fingerprint, dependencies.fingerprint(document("{\"state\":\"FIXED\",\"creator\":{\"id\":1,\"name\":\"Doe\"},\"title\":\"A\"}"), "application/json"));
+  }
+
+  @Test
+  public void testReadFieldsChangeFingerprint() throws IOException{
+    FieldDependencies dependencies = FieldDependencies.of(load("application/json", TITLE, CREATOR));
+    String fingerprint = dependencies.fingerprint(document("{\"title\":\"A\",\"creator\":{\"name\":\"Doe\"}}"), "application/json");
+    Assert.assertNotEquals(fingerprint, dependencies.fingerprint(document("{\"title\":\"B\",\"creator\":{\"name\":\"Doe\"}}"), "application/json"));
+    Assert.assertNotEquals(fingerprint, dependencies.fingerprint(document("{\"title\":\"A\",\"creator\":{\"name\":\"Roe\"}}"), "application/json"));
+    Assert.assertNotEquals(fingerprint, dependencies.fingerprint(document("{\"title\":\"A\"}"), "application/json"));
+  }
+
+  @Test
+  public void testXmlFingerprint() throws IOException{
+    FieldDependencies dependencies = FieldDependencies.of(load("application/xml", XML));
+    String fingerprint = dependencies.fingerprint(document("<root><title>A</title><state>VOLATILE</state></root>"), "application/xml");
+    Assert.assertEquals(fingerprint, dependencies.fingerprint(document("<root><title>A</title><state>FIXED</state></root>"), "application/xml"));
+    Assert.assertNotEquals(fingerprint, dependencies.fingerprint(document("<root><title>B</title><state>VOLATILE</state></root>"), "application/xml"));
+  }
+
+  private List<CachedMapping> load(String contentType, String... mappings) throws IOException{
+    String[] filenames = new String[mappings.length];
+    for(int i = 0; i < mappings.length; i++){
+      filenames[i] = "mapping" + i + ".json";
+      Files.write(mappingsLocation.resolve(filenames[i]), mappings[i].getBytes(StandardCharsets.UTF_8));
+    }
+    MappingCache cache = new MappingCache(mappingsLocation.toString(), Collections.singletonMap(contentType, Arrays.asList(filenames)), Collections.emptySet(), folder.getRoot().toPath().resolve("snapshots"));
+    cache.load();
+    return cache.get(contentType);
+  }
+
+  private Path document(String content) throws IOException{
+    Path document = folder.newFile().toPath();
+    Files.write(document, content.getBytes(StandardCharsets.UTF_8));
+    return document;
+  }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.mapping;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for loading, validating and reloading mappings.
+ *
+ * @author jejkal
+ */
+public class MappingCacheTest{
+
+  private static final String VALID = "{\"properties\":{\"title\":{\"path\":\"title\",\"type\":\"string\"}}}";
+  private static final String VALID_CHANGED = "{\"properties\":{\"name\":{\"path\":\"title\",\"type\":\"string\"}}}";
+  //valid JSON, but not supported by the native engine as the property has no path
+  private static final String UNSUPPORTED = "{\"properties\":{\"title\":{\"type\":\"string\"}}}";
+  private static final long RELOAD_TIMEOUT = 10000;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path mappingsLocation;
+  private MappingCache cache;
+
+  @Before
+  public void setUp(){
+    mappingsLocation = folder.getRoot().toPath();
+  }
+
+  @After
+  public void tearDown(){
+    if(cache != null){
+      cache.close();
+    }
+  }
+
+  @Test
+  public void testLoadMultipleMappingsWithProjections() throws IOException{
+    write("full.json", VALID);
+    write("facet.json", VALID);
+    cache = new MappingCache(mappingsLocation.toString(), Collections.singletonMap("application/json", Arrays.asList("full.json", "facet.json")));
+    cache.load();
+    List<CachedMapping> mappings = cache.get("application/json");
+    Assert.assertEquals(2, mappings.size());
+    Assert.assertNull(mappings.get(0).getProjection());
+    Assert.assertEquals("facet", mappings.get(1).getProjection());
+    Assert.assertNotNull(mappings.get(0).getDefinition());
+    Assert.assertNull(cache.get("text/plain"));
+  }
+
+  @Test
+  public void testUnsupportedMappingIsAcceptedForGemma() throws IOException{
+    write("gemma.json", UNSUPPORTED);
+    cache = new MappingCache(mappingsLocation.toString(), Collections.singletonMap("application/json", Collections.singletonList("gemma.json")));
+    cache.load();
+    CachedMapping mapping = cache.get("application/json").get(0);
+    Assert.assertNull(mapping.getDefinition());
+    Assert.assertNotNull(mapping.getCompileError());
+  }
+
+  @Test(expected = IOException.class)
+  public void testUnsupportedMappingIsRejectedForNativeEngine() throws IOException{
+    write("native.json", UNSUPPORTED);
+    cache = new MappingCache(mappingsLocation.toString(), Collections.singletonMap("application/json", Collections.singletonList("native.json")), Collections.singleton("application/json"));
+    cache.load();
+  }
+
+  @Test
+  public void testReloadKeepsPreviousVersionIfNativeMappingBreaks() throws Exception{
+    write("native.json", VALID);
+    write("other.json", VALID);
+    Map<String, List<String>> mappings = new HashMap<>();
+    mappings.put("application/json", Collections.singletonList("native.json"));
+    mappings.put("application/xml", Collections.singletonList("other.json"));
+    cache = new MappingCache(mappingsLocation.toString(), mappings, new HashSet<>(Arrays.asList("application/json", "application/xml")));
+    cache.load();
+    String nativeHash = cache.get("application/json").get(0).getHash();
+    String otherHash = cache.get("application/xml").get(0).getHash();
+    cache.startWatching();
+
+    write("native.json", UNSUPPORTED);
+    //events are processed in order, so the broken mapping was handled as soon as the other mapping is reloaded
+    write("other.json", VALID_CHANGED);
+    awaitReload("application/xml", otherHash);
+    CachedMapping mapping = cache.get("application/json").get(0);
+    Assert.assertEquals(nativeHash, mapping.getHash());
+    Assert.assertNotNull(mapping.getDefinition());
+    Assert.assertEquals(VALID, read(mapping.getSnapshotPath()));
+
+    write("native.json", VALID_CHANGED);
+    awaitReload("application/json", nativeHash);
+    Assert.assertEquals("name", cache.get("application/json").get(0).getDefinition().getFields().get(0).getName());
+  }
+
+  @Test
+  public void testSnapshotKeepsLoadedVersion() throws IOException{
+    write("gemma.json", VALID);
+    cache = new MappingCache(mappingsLocation.toString(), Collections.singletonMap("application/json", Collections.singletonList("gemma.json")));
+    cache.load();
+    CachedMapping mapping = cache.get("application/json").get(0);
+    Assert.assertEquals(mappingsLocation.resolve("gemma.json"), mapping.getPath());
+    Assert.assertNotEquals(mapping.getPath(), mapping.getSnapshotPath());
+
+    write("gemma.json", VALID_CHANGED);
+    //the snapshot still contains the content the hash was computed from
+    Assert.assertEquals(VALID, read(mapping.getSnapshotPath()));
+    cache.load();
+    CachedMapping reloaded = cache.get("application/json").get(0);
+    Assert.assertNotEquals(mapping.getSnapshotPath(), reloaded.getSnapshotPath());
+    Assert.assertEquals(VALID_CHANGED, read(reloaded.getSnapshotPath()));
+    //the replaced version is no longer used
+    Assert.assertFalse(Files.exists(mapping.getSnapshotPath()));
+  }
+
+  @Test
+  public void testAcquiredSnapshotIsKeptUntilReleased() throws IOException{
+    Path snapshots = folder.newFolder("snapshots").toPath();
+    write("gemma.json", VALID);
+    cache = new MappingCache(mappingsLocation.toString(), Collections.singletonMap("application/json", Collections.singletonList("gemma.json")), Collections.emptySet(), snapshots);
+    cache.load();
+    List<CachedMapping> acquired = cache.acquire("application/json");
+    List<CachedMapping> other = cache.acquire("application/json");
+    Path snapshot = acquired.get(0).getSnapshotPath();
+    Assert.assertEquals(snapshots, snapshot.getParent());
+
+    write("gemma.json", VALID_CHANGED);
+    cache.load();
+    Path reloaded = cache.get("application/json").get(0).getSnapshotPath();
+    Assert.assertEquals(VALID, read(snapshot));
+    cache.release(acquired);
+    //still used by the second job
+    Assert.assertEquals(VALID, read(snapshot));
+    cache.release(other);
+    Assert.assertFalse(Files.exists(snapshot));
+    Assert.assertEquals(VALID_CHANGED, read(reloaded));
+
+    //releasing the current version keeps its snapshot
+    cache.release(cache.acquire("application/json"));
+    Assert.assertTrue(Files.exists(reloaded));
+    cache.close();
+    Assert.assertFalse(Files.exists(reloaded));
+  }
+
+  @Test
+  public void testStaleSnapshotsAreRemoved() throws IOException{
+    Path snapshots = folder.newFolder("snapshots").toPath();
+    Path stale = Files.write(snapshots.resolve("0000_gemma.json"), VALID.getBytes(StandardCharsets.UTF_8));
+    write("gemma.json", VALID);
+    cache = new MappingCache(mappingsLocation.toString(), Collections.singletonMap("application/json", Collections.singletonList("gemma.json")), Collections.emptySet(), snapshots);
+    cache.load();
+    Assert.assertFalse(Files.exists(stale));
+    try(Stream<Path> files = Files.list(snapshots)){
+      Assert.assertEquals(Collections.singletonList(cache.get("application/json").get(0).getSnapshotPath()), files.collect(Collectors.toList()));
+    }
+  }
+
+  @Test
+  public void testMappingInSubfolderIsReloaded() throws Exception{
+    Files.createDirectories(mappingsLocation.resolve("datacite"));
+    write("datacite/datacite.json", VALID);
+    cache = new MappingCache(mappingsLocation.toString(), Collections.singletonMap("application/xml", Collections.singletonList("datacite/datacite.json")));
+    cache.load();
+    String hash = cache.get("application/xml").get(0).getHash();
+    cache.startWatching();
+
+    write("datacite/datacite.json", VALID_CHANGED);
+    awaitReload("application/xml", hash);
+  }
+
+  private void write(String filename, String content) throws IOException{
+    Files.write(mappingsLocation.resolve(filename), content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String read(Path path) throws IOException{
+    return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+  }
+
+  private void awaitReload(String contentType, String previousHash) throws InterruptedException{
+    long deadline = System.currentTimeMillis() + RELOAD_TIMEOUT;
+    while(System.currentTimeMillis() < deadline){
+      List<CachedMapping> mappings = cache.get(contentType);
+      if(mappings != null && !previousHash.equals(mappings.get(0).getHash())){
+        return;
+      }
+      Thread.sleep(50);
+    }
+    Assert.fail("Mappings for " + contentType + " were not reloaded within " + RELOAD_TIMEOUT + " ms.");
+  }
+}
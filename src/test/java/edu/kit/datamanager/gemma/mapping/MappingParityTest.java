@@ -0,0 +1,131 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.mapping;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Parity suite comparing the results of the native engine with the results of
+ * Gemma for the sample mappings in 'src/test/resources/parity'. The native
+ * results are always compared with the recorded Gemma results. If the system
+ * properties 'gemma.test.pythonLocation' and 'gemma.test.gemmaLocation' are
+ * set, Gemma is executed as well and its results are compared with the native
+ * results, e.g. via
+ * ./gradlew test -Dgemma.test.pythonLocation=/usr/bin/python3 -Dgemma.test.gemmaLocation=/opt/gemma/mapping_single.py
+ *
+ * @author jejkal
+ */
+@RunWith(Parameterized.class)
+public class MappingParityTest{
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private static final String PYTHON_LOCATION = System.getProperty("gemma.test.pythonLocation");
+  private static final String GEMMA_LOCATION = System.getProperty("gemma.test.gemmaLocation");
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final String name;
+  private final String mappingFile;
+  private final String inputFile;
+  private final String contentType;
+  private CachedMapping mapping;
+
+  public MappingParityTest(String name, String mappingFile, String inputFile, String contentType){
+    this.name = name;
+    this.mappingFile = mappingFile;
+    this.inputFile = inputFile;
+    this.contentType = contentType;
+  }
+
+  @Parameters(name = "{0}")
+  public static Collection<Object[]> cases(){
+    return Arrays.asList(new Object[][]{
+      {"simple", "simple_mapping.json", "data_resource.json", "application/vnd.datamanager.data-resource+json"},
+      {"nested", "nested_mapping.json", "data_resource.json", "application/vnd.datamanager.data-resource+json"},
+      {"xml", "xml_mapping.json", "datacite.xml", "application/xml"}
+    });
+  }
+
+  @Before
+  public void loadMapping() throws IOException, URISyntaxException{
+    Map<String, List<String>> mappings = Collections.singletonMap(contentType, Collections.singletonList(mappingFile));
+    MappingCache cache = new MappingCache(getParityFolder().toString(), mappings, Collections.emptySet(), folder.getRoot().toPath().resolve("snapshots"));
+    cache.load();
+    mapping = cache.get(contentType).get(0);
+    Assert.assertNotNull("Mapping " + mappingFile + " is not supported by the native engine: " + mapping.getCompileError(), mapping.getDefinition());
+  }
+
+  @Test
+  public void testNativeMatchesRecordedGemmaResult() throws IOException, URISyntaxException{
+    JsonNode expected = MAPPER.readTree(getParityFolder().resolve(name + ".expected.json").toFile());
+    Assert.assertEquals(expected, mapNative());
+  }
+
+  @Test
+  public void testNativeMatchesGemmaResult() throws IOException, URISyntaxException{
+    Assume.assumeTrue("Gemma is not available, set 'gemma.test.pythonLocation' and 'gemma.test.gemmaLocation' to compare with Gemma.", PYTHON_LOCATION != null && GEMMA_LOCATION != null);
+    Path output = folder.newFile(name + ".gemma.json").toPath();
+    ByteArrayOutputStream log = new ByteArrayOutputStream();
+    int result = new GemmaMappingEngine(PYTHON_LOCATION, GEMMA_LOCATION).map(mapping, getParityFolder().resolve(inputFile), contentType, output, log, 30000);
+    Assert.assertEquals("Gemma failed: " + log.toString(), 0, result);
+    Assert.assertEquals(MAPPER.readTree(output.toFile()), mapNative());
+  }
+
+  @Test
+  public void testStreamMatchesFile() throws IOException, URISyntaxException{
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try(InputStream in = Files.newInputStream(getParityFolder().resolve(inputFile))){
+      Assert.assertEquals(0, new NativeMappingEngine().map(mapping, in, contentType, out, null, 0));
+    }
+    Assert.assertEquals(mapNative(), MAPPER.readTree(out.toByteArray()));
+  }
+
+  private JsonNode mapNative() throws IOException, URISyntaxException{
+    Path output = folder.newFile(name + ".native.json").toPath();
+    ByteArrayOutputStream log = new ByteArrayOutputStream();
+    int result = new NativeMappingEngine().map(mapping, getParityFolder().resolve(inputFile), contentType, output, log, 0);
+    Assert.assertEquals("Native engine failed: " + log.toString(), 0, result);
+    return MAPPER.readTree(output.toFile());
+  }
+
+  private static Path getParityFolder() throws URISyntaxException{
+    return Paths.get(MappingParityTest.class.getResource("/parity").toURI());
+  }
+}
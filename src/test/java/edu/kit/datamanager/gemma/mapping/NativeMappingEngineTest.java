@@ -0,0 +1,155 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.mapping;
+
+import edu.kit.datamanager.gemma.util.PythonUtils;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the error codes of the native mapping engine and for applying
+ * multiple mappings in a single pass.
+ *
+ * @author jejkal
+ */
+public class NativeMappingEngineTest{
+
+  private static final String TITLE = "{\"properties\":{\"title\":{\"path\":\"title\",\"type\":\"string\"}}}";
+  private static final String XML = "{\"properties\":{\"title\":{\"path\":\"root.title.#text\",\"type\":\"string\"}}}";
+  //valid JSON, but not supported by the native engine as the property has no path
+  private static final String UNSUPPORTED = "{\"properties\":{\"title\":{\"type\":\"string\"}}}";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final NativeMappingEngine engine = new NativeMappingEngine();
+
+  @Test
+  public void testValidContentIsMapped() throws IOException{
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Assert.assertEquals(0, engine.map(load("application/json", TITLE), stream("{\"title\":\"A\"}"), "application/json", out, null, 0));
+    Assert.assertEquals("{\"title\":\"A\"}", out.toString(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testMalformedJsonIsMappingError() throws IOException{
+    Assert.assertEquals(PythonUtils.MAPPING_ERROR, engine.map(load("application/json", TITLE), stream("{\"title\":"), "application/json", new ByteArrayOutputStream(), null, 0));
+    Assert.assertEquals(PythonUtils.MAPPING_ERROR, engine.map(load("application/json", TITLE), stream("{\"title\" \"A\"}"), "application/json", new ByteArrayOutputStream(), null, 0));
+  }
+
+  @Test
+  public void testMalformedXmlIsMappingError() throws IOException{
+    Assert.assertEquals(PythonUtils.MAPPING_ERROR, engine.map(load("application/xml", XML), stream("<root><title>A</root>"), "application/xml", new ByteArrayOutputStream(), null, 0));
+  }
+
+  @Test
+  public void testUnsupportedMappingIsMappingError() throws IOException{
+    ByteArrayOutputStream log = new ByteArrayOutputStream();
+    Assert.assertEquals(PythonUtils.MAPPING_ERROR, engine.map(load("application/json", UNSUPPORTED), stream("{\"title\":\"A\"}"), "application/json", new ByteArrayOutputStream(), log, 0));
+    Assert.assertTrue(log.toString(StandardCharsets.UTF_8).contains("not supported"));
+  }
+
+  @Test
+  public void testReadFailureIsExecutionError() throws IOException{
+    Assert.assertEquals(PythonUtils.EXECUTION_ERROR, engine.map(load("application/json", TITLE), failing("{\"title\":"), "application/json", new ByteArrayOutputStream(), null, 0));
+    Assert.assertEquals(PythonUtils.EXECUTION_ERROR, engine.map(load("application/xml", XML), failing("<root><title>"), "application/xml", new ByteArrayOutputStream(), null, 0));
+  }
+
+  @Test
+  public void testMultipleMappingsInSinglePass() throws IOException{
+    List<CachedMapping> mappings = load("application/json", TITLE, "{\"properties\":{\"name\":{\"path\":\"title\",\"type\":\"string\"}}}");
+    Path input = folder.newFile("input.json").toPath();
+    Files.write(input, "{\"title\":\"A\"}".getBytes(StandardCharsets.UTF_8));
+    List<Path> outputs = Arrays.asList(folder.newFile().toPath(), folder.newFile().toPath());
+    Assert.assertEquals(0, engine.map(mappings, input, "application/json", outputs, null, 0));
+    Assert.assertEquals("{\"title\":\"A\"}", new String(Files.readAllBytes(outputs.get(0)), StandardCharsets.UTF_8));
+    Assert.assertEquals("{\"name\":\"A\"}", new String(Files.readAllBytes(outputs.get(1)), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testMultipleMappingsWithUnsupportedMappingIsMappingError() throws IOException{
+    List<CachedMapping> mappings = load("application/json", TITLE, UNSUPPORTED);
+    Path input = folder.newFile("input.json").toPath();
+    Files.write(input, "{\"title\":\"A\"}".getBytes(StandardCharsets.UTF_8));
+    List<Path> outputs = Arrays.asList(folder.newFile().toPath(), folder.newFile().toPath());
+    Assert.assertEquals(PythonUtils.MAPPING_ERROR, engine.map(mappings, input, "application/json", outputs, null, 0));
+    //no mapping is applied if one of them is not supported
+    Assert.assertEquals(0, Files.size(outputs.get(0)));
+  }
+
+  @Test
+  public void testMultipleMappingsWithMalformedContentIsMappingError() throws IOException{
+    List<CachedMapping> mappings = load("application/json", TITLE, TITLE);
+    Path input = folder.newFile("input.json").toPath();
+    Files.write(input, "{\"title\":".getBytes(StandardCharsets.UTF_8));
+    List<Path> outputs = Arrays.asList(folder.newFile().toPath(), folder.newFile().toPath());
+    Assert.assertEquals(PythonUtils.MAPPING_ERROR, engine.map(mappings, input, "application/json", outputs, null, 0));
+  }
+
+  private CachedMapping load(String contentType, String mapping) throws IOException{
+    Files.write(folder.getRoot().toPath().resolve("mapping.json"), mapping.getBytes(StandardCharsets.UTF_8));
+    MappingCache cache = new MappingCache(folder.getRoot().toString(), Collections.singletonMap(contentType, Collections.singletonList("mapping.json")), Collections.emptySet(), folder.getRoot().toPath().resolve("snapshots"));
+    cache.load();
+    return cache.get(contentType).get(0);
+  }
+
+  private List<CachedMapping> load(String contentType, String... mappings) throws IOException{
+    List<String> filenames = new ArrayList<>();
+    for(int i = 0; i < mappings.length; i++){
+      filenames.add("mapping" + i + ".json");
+      Files.write(folder.getRoot().toPath().resolve(filenames.get(i)), mappings[i].getBytes(StandardCharsets.UTF_8));
+    }
+    MappingCache cache = new MappingCache(folder.getRoot().toString(), Collections.singletonMap(contentType, filenames), Collections.emptySet(), folder.getRoot().toPath().resolve("snapshots"));
+    cache.load();
+    return cache.get(contentType);
+  }
+
+  private static InputStream stream(String content){
+    return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * A stream returning 'content' and failing afterwards, e.g. as the
+   * connection to a remote server was lost.
+   */
+  private static InputStream failing(String content){
+    return new InputStream(){
+      private final InputStream in = stream(content);
+
+      @Override
+      public int read() throws IOException{
+        int b = in.read();
+        if(b < 0){
+          throw new IOException("Connection reset.");
+        }
+        return b;
+      }
+    };
+  }
+}
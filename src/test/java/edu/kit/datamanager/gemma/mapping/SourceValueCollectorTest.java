@@ -0,0 +1,129 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.mapping;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for collecting source values from JSON and XML content.
+ *
+ * @author jejkal
+ */
+public class SourceValueCollectorTest{
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  @Test
+  public void testJsonScalarAndMissingPaths() throws IOException{
+    Map<String, List<JsonNode>> values = collect("{\"a\":\"x\",\"b\":{\"c\":1},\"d\":true}", "application/json", "a", "b.c", "e");
+    Assert.assertEquals(Arrays.asList("x"), text(values.get("a")));
+    Assert.assertEquals(1, values.get("b.c").get(0).asInt());
+    Assert.assertFalse(values.containsKey("d"));
+    Assert.assertFalse(values.containsKey("e"));
+  }
+
+  @Test
+  public void testJsonArraysAreTraversedTransparently() throws IOException{
+    Map<String, List<JsonNode>> values = collect("{\"a\":{\"b\":[{\"c\":1},{\"c\":2},{\"x\":3}]}}", "application/json", "a.b.c");
+    Assert.assertEquals(Arrays.asList("1", "2"), text(values.get("a.b.c")));
+  }
+
+  @Test
+  public void testJsonNestedPathBelowCollectedContainer() throws IOException{
+    Map<String, List<JsonNode>> values = collect("{\"a\":{\"b\":[{\"c\":1},{\"c\":2}]}}", "application/json", "a.b", "a.b.c");
+    Assert.assertEquals(2, values.get("a.b").size());
+    Assert.assertTrue(values.get("a.b").get(0).isObject());
+    Assert.assertEquals(Arrays.asList("1", "2"), text(values.get("a.b.c")));
+  }
+
+  @Test
+  public void testJsonNullValue() throws IOException{
+    Map<String, List<JsonNode>> values = collect("{\"a\":null}", "application/json", "a");
+    Assert.assertTrue(values.get("a").get(0).isNull());
+  }
+
+  @Test
+  public void testJsonSkippedSubtreesDoNotMatch() throws IOException{
+    //'a' only appears inside a subtree no path leads to
+    Map<String, List<JsonNode>> values = collect("{\"x\":{\"a\":1},\"a\":2}", "application/json", "a");
+    Assert.assertEquals(Arrays.asList("2"), text(values.get("a")));
+  }
+
+  @Test(expected = IOException.class)
+  public void testInvalidJson() throws IOException{
+    collect("{\"a\":", "application/json", "a");
+  }
+
+  @Test
+  public void testXmlAttributesTextAndNamespacePrefixes() throws IOException{
+    String xml = "<root xmlns:dc=\"http://purl.org/dc/elements/1.1/\"><dc:title lang=\"en\">Hello</dc:title><other>x</other></root>";
+    Map<String, List<JsonNode>> values = collect(xml, "application/xml", "root.dc:title.@lang", "root.dc:title.#text");
+    Assert.assertEquals(Arrays.asList("en"), text(values.get("root.dc:title.@lang")));
+    Assert.assertEquals(Arrays.asList("Hello"), text(values.get("root.dc:title.#text")));
+  }
+
+  @Test
+  public void testXmlRepeatedElements() throws IOException{
+    Map<String, List<JsonNode>> values = collect("<root><item>1</item><item>2</item></root>", "text/xml", "root.item");
+    Assert.assertEquals(Arrays.asList("1", "2"), text(values.get("root.item")));
+  }
+
+  @Test
+  public void testXmlElementFollowsXmltodictConventions() throws IOException{
+    Map<String, List<JsonNode>> values = collect("<root><title lang=\"en\">Hello</title></root>", "application/xml", "root.title");
+    Assert.assertEquals(MAPPER.readTree("{\"@lang\":\"en\",\"#text\":\"Hello\"}"), values.get("root.title").get(0));
+  }
+
+  @Test(expected = IOException.class)
+  public void testInvalidXml() throws IOException{
+    collect("<root><a></root>", "application/xml", "root.a");
+  }
+
+  @Test
+  public void testIsXml(){
+    Assert.assertTrue(SourceValueCollector.isXml("application/xml"));
+    Assert.assertTrue(SourceValueCollector.isXml("application/datacite+XML"));
+    Assert.assertFalse(SourceValueCollector.isXml("application/json"));
+    Assert.assertFalse(SourceValueCollector.isXml(null));
+  }
+
+  private static Map<String, List<JsonNode>> collect(String content, String contentType, String... paths) throws IOException{
+    Set<String> pathSet = new HashSet<>(Arrays.asList(paths));
+    Set<String> prefixes = new HashSet<>();
+    for(String path : paths){
+      for(int idx = path.indexOf('.'); idx > 0; idx = path.indexOf('.', idx + 1)){
+        prefixes.add(path.substring(0, idx));
+      }
+    }
+    return SourceValueCollector.collect(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), contentType, pathSet, prefixes);
+  }
+
+  private static List<String> text(List<JsonNode> values){
+    return values.stream().map(JsonNode::asText).collect(Collectors.toList());
+  }
+}
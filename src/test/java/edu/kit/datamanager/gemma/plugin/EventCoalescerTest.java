@@ -0,0 +1,157 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.plugin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for merging bursts of events for the same resource.
+ *
+ * @author jejkal
+ */
+public class EventCoalescerTest{
+
+  private static final long WINDOW = 300;
+  private static final long TIMEOUT = 5000;
+
+  private final List<MappingJob> released = Collections.synchronizedList(new ArrayList<>());
+  private EventCoalescer coalescer;
+
+  @After
+  public void tearDown(){
+    if(coalescer != null){
+      coalescer.shutdown();
+    }
+  }
+
+  @Test
+  public void testLatestJobIsReleasedAfterFirstWindow() throws InterruptedException{
+    coalescer = new EventCoalescer(WINDOW, 10, released::add);
+    long start = System.currentTimeMillis();
+    MappingJob first = metadata("resource-1");
+    Assert.assertTrue(coalescer.offer(first));
+    Thread.sleep(WINDOW / 2);
+    MappingJob latest = metadata("resource-1");
+    Assert.assertTrue(coalescer.offer(latest));
+    Assert.assertEquals(1, coalescer.getPending());
+    Assert.assertEquals(1, coalescer.getMerged());
+
+    awaitReleased(1);
+    long elapsed = System.currentTimeMillis() - start;
+    Assert.assertSame(latest, released.get(0));
+    //the window is not extended by the second job
+    Assert.assertTrue("Released after " + elapsed + " ms.", elapsed < WINDOW + WINDOW / 2);
+    Assert.assertEquals(0, coalescer.getPending());
+    Thread.sleep(WINDOW);
+    Assert.assertEquals(1, released.size());
+  }
+
+  @Test
+  public void testContentJobsAreKeyedByPath() throws InterruptedException{
+    coalescer = new EventCoalescer(WINDOW, 10, released::add);
+    Assert.assertTrue(coalescer.offer(content("resource-1", "a.json")));
+    Assert.assertTrue(coalescer.offer(content("resource-1", "b.json")));
+    Assert.assertTrue(coalescer.offer(metadata("resource-1")));
+    Assert.assertEquals(3, coalescer.getPending());
+    Assert.assertEquals(0, coalescer.getMerged());
+    awaitReleased(3);
+  }
+
+  @Test
+  public void testMaxPendingIsRespected(){
+    coalescer = new EventCoalescer(TIMEOUT, 1, released::add);
+    Assert.assertTrue(coalescer.offer(metadata("resource-1")));
+    Assert.assertFalse(coalescer.offer(metadata("resource-2")));
+    //jobs for pending keys are still accepted
+    Assert.assertTrue(coalescer.offer(metadata("resource-1")));
+    Assert.assertEquals(1, coalescer.getPending());
+  }
+
+  @Test
+  public void testShutdownReleasesPendingJobs(){
+    coalescer = new EventCoalescer(TIMEOUT, 10, released::add);
+    Assert.assertTrue(coalescer.offer(metadata("resource-1")));
+    Assert.assertTrue(coalescer.offer(metadata("resource-2")));
+    coalescer.shutdown();
+    Assert.assertEquals(2, released.size());
+    Assert.assertEquals(0, coalescer.getPending());
+  }
+
+  @Test
+  public void testOfferAfterShutdownIsRejected(){
+    coalescer = new EventCoalescer(TIMEOUT, 10, released::add);
+    coalescer.shutdown();
+    Assert.assertFalse(coalescer.offer(metadata("resource-1")));
+    Assert.assertEquals(0, coalescer.getPending());
+    Assert.assertTrue(released.isEmpty());
+  }
+
+  @Test
+  public void testConcurrentShutdownStrandsNoJob() throws InterruptedException{
+    coalescer = new EventCoalescer(TIMEOUT, 100000, released::add);
+    List<MappingJob> rejected = Collections.synchronizedList(new ArrayList<>());
+    Thread producer = new Thread(() -> {
+      for(int i = 0; i < 10000; i++){
+        MappingJob job = metadata("resource-" + i);
+        if(!coalescer.offer(job)){
+          rejected.add(job);
+        }
+      }
+    });
+    producer.start();
+    Thread.sleep(1);
+    coalescer.shutdown();
+    producer.join(TIMEOUT);
+    //every job is either released by the shutdown or handed back to the caller
+    Assert.assertEquals(10000, released.size() + rejected.size());
+    Assert.assertEquals(0, coalescer.getPending());
+  }
+
+  @Test
+  public void testFailingTargetDoesNotStopCoalescer() throws InterruptedException{
+    coalescer = new EventCoalescer(WINDOW, 10, (job) -> {
+      released.add(job);
+      throw new IllegalStateException("Target failure");
+    });
+    Assert.assertTrue(coalescer.offer(metadata("resource-1")));
+    awaitReleased(1);
+    Assert.assertTrue(coalescer.offer(metadata("resource-1")));
+    awaitReleased(2);
+  }
+
+  private void awaitReleased(int count) throws InterruptedException{
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    while(released.size() < count && System.currentTimeMillis() < deadline){
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(count, released.size());
+  }
+
+  private static MappingJob metadata(String entityId){
+    return new MappingJob(MappingJob.KIND.METADATA, entityId, "application/json", "metadata.json");
+  }
+
+  private static MappingJob content(String entityId, String path){
+    MappingJob job = new MappingJob(MappingJob.KIND.CONTENT, entityId, "application/json", path);
+    job.setRelativePath(path);
+    return job;
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.plugin;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for appending to and replaying the failure journal.
+ *
+ * @author jejkal
+ */
+public class FailureJournalTest{
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path location;
+  private Path replayLocation;
+  private FailureJournal journal;
+
+  @Before
+  public void setUp(){
+    location = folder.getRoot().toPath().resolve("journal").resolve("failures.jsonl");
+    replayLocation = Paths.get(location.toString() + ".replay");
+    journal = new FailureJournal(location);
+  }
+
+  @Test
+  public void testReplayRestoresJobs() throws IOException{
+    MappingJob content = new MappingJob(MappingJob.KIND.CONTENT, "resource-1", "application/json", "a.json");
+    content.setContentUri(URI.create("file:///data/resource-1/a.json"));
+    content.setRelativePath("a.json");
+    content.setAttempt(3);
+    journal.append(content);
+    journal.append(new MappingJob(MappingJob.KIND.METADATA, "resource-2", "application/json", "resource-2_metadata.json"));
+
+    List<MappingJob> jobs = journal.startReplay();
+    Assert.assertEquals(2, jobs.size());
+    MappingJob replayed = jobs.get(0);
+    Assert.assertEquals(MappingJob.KIND.CONTENT, replayed.getKind());
+    Assert.assertEquals("resource-1", replayed.getEntityId());
+    Assert.assertEquals("application/json", replayed.getContentType());
+    Assert.assertEquals("a.json", replayed.getFilename());
+    Assert.assertEquals(URI.create("file:///data/resource-1/a.json"), replayed.getContentUri());
+    Assert.assertEquals("a.json", replayed.getRelativePath());
+    //replayed jobs start with a fresh number of attempts
+    Assert.assertEquals(0, replayed.getAttempt());
+    Assert.assertEquals(MappingJob.KIND.METADATA, jobs.get(1).getKind());
+    Assert.assertNull(jobs.get(1).getContentUri());
+  }
+
+  @Test
+  public void testOnlyLatestJobPerPathIsReplayed() throws IOException{
+    journal.append(content("resource-1", "a.json", "file:///old"));
+    journal.append(content("resource-1", "b.json", "file:///b"));
+    journal.append(content("resource-1", "a.json", "file:///new"));
+    List<MappingJob> jobs = journal.startReplay();
+    Assert.assertEquals(2, jobs.size());
+    Assert.assertEquals("b.json", jobs.get(0).getRelativePath());
+    Assert.assertEquals(URI.create("file:///new"), jobs.get(1).getContentUri());
+  }
+
+  @Test
+  public void testReplayFileIsKeptUntilFinished() throws IOException{
+    journal.append(content("resource-1", "a.json", "file:///a"));
+    Assert.assertEquals(1, journal.startReplay().size());
+    Assert.assertFalse(Files.exists(location));
+    Assert.assertTrue(Files.exists(replayLocation));
+
+    //jobs failing again during the replay are appended to a new journal
+    journal.append(content("resource-2", "a.json", "file:///a"));
+    Assert.assertTrue(Files.exists(location));
+
+    //an unfinished replay is included in the next replay
+    journal = new FailureJournal(location);
+    Assert.assertEquals(2, journal.startReplay().size());
+    journal.finishReplay();
+    Assert.assertFalse(Files.exists(replayLocation));
+    Assert.assertTrue(journal.startReplay().isEmpty());
+  }
+
+  @Test
+  public void testInvalidLinesAreSkipped() throws IOException{
+    journal.append(content("resource-1", "a.json", "file:///a"));
+    //e.g. a line truncated by a crash while appending
+    Files.write(location, "{\"kind\":\"CONTENT\",\"entityId\":\"res".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+    Assert.assertEquals(1, journal.startReplay().size());
+  }
+
+  @Test
+  public void testEmptyReplay() throws IOException{
+    Assert.assertTrue(journal.startReplay().isEmpty());
+    journal.finishReplay();
+  }
+
+  private static MappingJob content(String entityId, String path, String uri){
+    MappingJob job = new MappingJob(MappingJob.KIND.CONTENT, entityId, "application/json", path);
+    job.setContentUri(URI.create(uri));
+    job.setRelativePath(path);
+    return job;
+  }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.plugin;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import edu.kit.datamanager.entities.messaging.BasicMessage;
+import edu.kit.datamanager.entities.messaging.DataResourceMessage;
+import edu.kit.datamanager.gemma.configuration.GemmaConfiguration;
+import edu.kit.datamanager.gemma.mapping.NativeMappingEngine;
+import edu.kit.datamanager.gemma.sink.ElasticsearchSink;
+import edu.kit.datamanager.gemma.util.GemmaMetrics;
+import edu.kit.datamanager.messaging.client.handler.IMessageHandler.RESULT;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for retries, the failure journal replay, multiple projections and
+ * message metrics of the handler if the results are reported asynchronously
+ * by the Elasticsearch sink, which is emulated by a local HTTP server also
+ * serving remote content.
+ *
+ * @author jejkal
+ */
+public class GemmaHandlerTest{
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final long TIMEOUT = 5000;
+  private static final String CONTENT_TYPE = "application/json";
+  private static final String MAPPING = "{\"type\": \"object\", \"properties\": {\"Title\": {\"path\": \"title\", \"type\": \"string\"}}}";
+  private static final String FACET = "{\"type\": \"object\", \"properties\": {\"Facet\": {\"path\": \"title\", \"type\": \"string\"}}}";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private HttpServer server;
+  private ExecutorService serverExecutor;
+  private String url;
+  private SimpleMeterRegistry registry;
+  private GemmaConfiguration configuration;
+  private GemmaHandler handler;
+  private Path journal;
+  /**
+   * The number of received bulk requests.
+   */
+  private final AtomicInteger requests = new AtomicInteger(0);
+  /**
+   * The bodies of all received bulk requests.
+   */
+  private final List<String> bodies = Collections.synchronizedList(new ArrayList<>());
+  /**
+   * Status returned for the next bulk requests, 200 if empty.
+   */
+  private final List<Integer> requestStatus = Collections.synchronizedList(new ArrayList<>());
+  /**
+   * Released to answer the first bulk request.
+   */
+  private final CountDownLatch firstResponse = new CountDownLatch(1);
+  /**
+   * The number of received requests for remote content.
+   */
+  private final AtomicInteger contentRequests = new AtomicInteger(0);
+  /**
+   * Released to answer all but the first request for remote content, which
+   * fails with status 503.
+   */
+  private final CountDownLatch contentResponse = new CountDownLatch(1);
+
+  @Before
+  public void setUp() throws IOException{
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/_bulk", this::handleBulk);
+    server.createContext("/content", this::handleContent);
+    //blocked requests must not hold back others
+    serverExecutor = Executors.newCachedThreadPool();
+    server.setExecutor(serverExecutor);
+    server.start();
+    registry = new SimpleMeterRegistry();
+    Metrics.globalRegistry.add(registry);
+
+    Path mappings = Files.createDirectories(folder.getRoot().toPath().resolve("mappings"));
+    Files.write(mappings.resolve("mapping.json"), MAPPING.getBytes(StandardCharsets.UTF_8));
+    Files.write(mappings.resolve("facet.json"), FACET.getBytes(StandardCharsets.UTF_8));
+    journal = folder.getRoot().toPath().resolve("journal").resolve("failures.jsonl");
+
+    url = "http://localhost:" + server.getAddress().getPort();
+    configuration = new GemmaConfiguration();
+    configuration.setRepositoryBaseUrl(url);
+    configuration.setMappingsLocation(mappings.toString());
+    configuration.setSchemaMappings(Collections.singletonMap(CONTENT_TYPE, Collections.singletonList("mapping.json")));
+    configuration.setDefaultEngine(NativeMappingEngine.NAME);
+    configuration.setWorkspaceLocation(folder.getRoot().toPath().resolve("workspace").toString());
+    configuration.setFailureJournalLocation(journal.toString());
+    configuration.setRetryInitialBackoff(10);
+    configuration.setRetryMaxBackoff(10);
+    configuration.setOutputSink(ElasticsearchSink.NAME);
+    configuration.setElasticsearchUrl(url);
+    configuration.setElasticsearchBulkMaxDocuments(1);
+    configuration.setElasticsearchFlushInterval(60000);
+    configuration.setElasticsearchRetries(0);
+  }
+
+  @After
+  public void tearDown(){
+    firstResponse.countDown();
+    contentResponse.countDown();
+    if(handler != null){
+      handler.shutdown();
+    }
+    server.stop(0);
+    serverExecutor.shutdownNow();
+    Metrics.globalRegistry.remove(registry);
+  }
+
+  @Test
+  public void testFailedBulkRequestEndsJobOnce() throws Exception{
+    firstResponse.countDown();
+    requestStatus.add(503);
+    configure();
+    //the first attempt ends as soon as the sink reported the failure, not when the result was accepted
+    Assert.assertEquals(GemmaHandler.REINDEX_RESULT.RETRY_SCHEDULED, handler.reindexContent("resource-1", CONTENT_TYPE, createContent("a.json"), "a.json").get(TIMEOUT, TimeUnit.MILLISECONDS));
+    Assert.assertTrue(await(() -> jobs("succeeded") == 1));
+    Assert.assertEquals(2, requests.get());
+    Assert.assertEquals(1, jobs("failed"), 0);
+    Assert.assertEquals(1, registry.get(GemmaMetrics.RETRIES).tag(GemmaMetrics.RESULT_TAG, "scheduled").counter().count(), 0);
+    Assert.assertFalse(Files.exists(journal));
+  }
+
+  @Test
+  public void testIndexedResultSucceeds() throws Exception{
+    firstResponse.countDown();
+    configure();
+    Assert.assertEquals(GemmaHandler.REINDEX_RESULT.SUCCEEDED, handler.reindexContent("resource-1", CONTENT_TYPE, createContent("a.json"), "a.json").get(TIMEOUT, TimeUnit.MILLISECONDS));
+    Assert.assertEquals(1, requests.get());
+    Assert.assertEquals(1, jobs("succeeded"), 0);
+    Assert.assertEquals(0, jobs("failed"), 0);
+  }
+
+  @Test
+  public void testAllProjectionsAreIndexed() throws Exception{
+    firstResponse.countDown();
+    configuration.setSchemaMappings(Collections.singletonMap(CONTENT_TYPE, Arrays.asList("mapping.json", "facet.json")));
+    configure();
+    //the job only ends after the results of both mappings were indexed
+    Assert.assertEquals(GemmaHandler.REINDEX_RESULT.SUCCEEDED, handler.reindexContent("resource-1", CONTENT_TYPE, createContent("a.json"), "a.json").get(TIMEOUT, TimeUnit.MILLISECONDS));
+    Assert.assertEquals(2, requests.get());
+    String body = String.join("", bodies);
+    Assert.assertTrue(body, body.contains("\"_id\":\"resource-1/a.json\"}}\n{\"Title\":\"a\"}"));
+    Assert.assertTrue(body, body.contains("\"_id\":\"resource-1/a.json#facet\"}}\n{\"Facet\":\"a\"}"));
+    Assert.assertEquals(1, jobs("succeeded"), 0);
+  }
+
+  @Test
+  public void testBlockedRetryDoesNotDelayOtherRetries() throws Exception{
+    firstResponse.countDown();
+    configuration.setRemoteContentSchemes(Collections.singletonList("http"));
+    configuration.setRemoteContentRetries(0);
+    requestStatus.add(503);
+    configure();
+    //the first download fails, the download of the retry is blocked
+    Assert.assertEquals(GemmaHandler.REINDEX_RESULT.RETRY_SCHEDULED, handler.reindexContent("resource-1", CONTENT_TYPE, url + "/content/a.json", "a.json").get(TIMEOUT, TimeUnit.MILLISECONDS));
+    Assert.assertTrue(await(() -> contentRequests.get() == 2));
+
+    //the retry of another job is dispatched and succeeds meanwhile
+    Assert.assertEquals(GemmaHandler.REINDEX_RESULT.RETRY_SCHEDULED, handler.reindexContent("resource-2", CONTENT_TYPE, createContent("b.json"), "b.json").get(TIMEOUT, TimeUnit.MILLISECONDS));
+    Assert.assertTrue(await(() -> jobs("succeeded") == 1));
+    Assert.assertEquals(2, contentRequests.get());
+
+    contentResponse.countDown();
+    Assert.assertTrue(await(() -> jobs("succeeded") == 2));
+  }
+
+  @Test
+  public void testMessagesOfUnmappedContentTypesShareTag() throws Exception{
+    firstResponse.countDown();
+    configure();
+    Assert.assertEquals(RESULT.SUCCEEDED, handler.handle(createContentMessage("resource-1", CONTENT_TYPE, createContent("a.json"), "data/a.json")));
+    Assert.assertEquals(RESULT.REJECTED, handler.handle(createContentMessage("resource-1", "text/plain", createContent("a.txt"), "data/a.txt")));
+    Assert.assertEquals(RESULT.REJECTED, handler.handle(createContentMessage("resource-1", "image/png", createContent("a.png"), "data/a.png")));
+    BasicMessage metadata = new BasicMessage();
+    metadata.setEntityId("resource-1");
+    metadata.setAction("UPDATE");
+    //there is no mapping for resource metadata
+    Assert.assertEquals(RESULT.REJECTED, handler.handle(metadata));
+
+    Assert.assertEquals(1, registry.get(GemmaMetrics.MESSAGES).tag(GemmaMetrics.CONTENT_TYPE_TAG, CONTENT_TYPE).tag(GemmaMetrics.RESULT_TAG, RESULT.SUCCEEDED.toString()).counter().count(), 0);
+    //the number of tag values is bounded by the number of mapped content types
+    Assert.assertEquals(3, registry.get(GemmaMetrics.MESSAGES).tag(GemmaMetrics.CONTENT_TYPE_TAG, "unmapped").tag(GemmaMetrics.RESULT_TAG, RESULT.REJECTED.toString()).counter().count(), 0);
+    Assert.assertNull(registry.find(GemmaMetrics.MESSAGES).tag(GemmaMetrics.CONTENT_TYPE_TAG, "text/plain").counter());
+    Assert.assertNull(registry.find(GemmaMetrics.MESSAGES).tag(GemmaMetrics.CONTENT_TYPE_TAG, GemmaHandler.DATA_RESOURCE_CONTENT_TYPE).counter());
+  }
+
+  @Test
+  public void testReplayIsKeptUntilSinkReportedResults() throws Exception{
+    MappingJob job = new MappingJob(MappingJob.KIND.CONTENT, "resource-1", CONTENT_TYPE, "a.json");
+    job.setContentUri(URI.create(createContent("a.json")));
+    job.setRelativePath("a.json");
+    new FailureJournal(journal).append(job);
+    Path replay = Paths.get(journal.toString() + ".replay");
+    requestStatus.add(503);
+    configure();
+
+    //the replayed job was accepted by the sink, but its bulk request is pending
+    Assert.assertTrue(await(() -> requests.get() == 1));
+    Assert.assertTrue(Files.exists(replay));
+    firstResponse.countDown();
+
+    //the retry of the replayed job succeeds, which finishes the replay
+    Assert.assertTrue(await(() -> !Files.exists(replay)));
+    Assert.assertEquals(2, requests.get());
+    Assert.assertEquals(1, jobs("succeeded"), 0);
+    Assert.assertEquals(1, jobs("failed"), 0);
+    Assert.assertFalse(Files.exists(journal));
+  }
+
+  private void configure(){
+    handler = new GemmaHandler(configuration);
+    Assert.assertTrue(handler.configure());
+  }
+
+  private static DataResourceMessage createContentMessage(String entityId, String contentType, String contentUri, String path){
+    DataResourceMessage message = new DataResourceMessage();
+    message.setEntityId(entityId);
+    message.setAction("ADD");
+    message.setSubCategory(DataResourceMessage.SUB_CATEGORY.DATA.getValue());
+    Map<String, String> metadata = new HashMap<>();
+    metadata.put(DataResourceMessage.CONTENT_TYPE_PROPERTY, contentType);
+    metadata.put(DataResourceMessage.CONTENT_URI_PROPERTY, contentUri);
+    metadata.put(DataResourceMessage.CONTENT_PATH_PROPERTY, path);
+    message.setMetadata(metadata);
+    return message;
+  }
+
+  private String createContent(String filename) throws IOException{
+    Path content = folder.getRoot().toPath().resolve(filename);
+    Files.write(content, "{\"title\": \"a\"}".getBytes(StandardCharsets.UTF_8));
+    return content.toUri().toString();
+  }
+
+  private double jobs(String result){
+    Counter counter = registry.find(GemmaMetrics.JOBS).tag(GemmaMetrics.RESULT_TAG, result).counter();
+    return (counter != null) ? counter.count() : 0;
+  }
+
+  private boolean await(BooleanSupplier condition) throws InterruptedException{
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    while(!condition.getAsBoolean()){
+      if(System.currentTimeMillis() > deadline){
+        return false;
+      }
+      Thread.sleep(10);
+    }
+    return true;
+  }
+
+  private void handleContent(HttpExchange exchange) throws IOException{
+    exchange.getRequestBody().readAllBytes();
+    if(contentRequests.incrementAndGet() == 1){
+      exchange.sendResponseHeaders(503, -1);
+      exchange.close();
+      return;
+    }
+    try{
+      contentResponse.await(TIMEOUT, TimeUnit.MILLISECONDS);
+    } catch(InterruptedException ex){
+      Thread.currentThread().interrupt();
+    }
+    byte[] data = "{\"title\": \"a\"}".getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(200, data.length);
+    try(OutputStream out = exchange.getResponseBody()){
+      out.write(data);
+    }
+  }
+
+  private void handleBulk(HttpExchange exchange) throws IOException{
+    String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+    bodies.add(body);
+    requests.incrementAndGet();
+    try{
+      firstResponse.await(TIMEOUT, TimeUnit.MILLISECONDS);
+    } catch(InterruptedException ex){
+      Thread.currentThread().interrupt();
+    }
+    int status = requestStatus.isEmpty() ? 200 : requestStatus.remove(0);
+    ObjectNode response = MAPPER.createObjectNode();
+    ArrayNode items = response.putArray("items");
+    for(String line : body.split("\n")){
+      if(line.startsWith("{\"index\"")){
+        items.addObject().putObject("index").put("status", 201);
+      }
+    }
+    byte[] data = MAPPER.writeValueAsBytes(response);
+    exchange.sendResponseHeaders(status, data.length);
+    try(OutputStream out = exchange.getResponseBody()){
+      out.write(data);
+    }
+  }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.plugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for ordering, capacity, memory budget and shutdown of the pipeline.
+ *
+ * @author jejkal
+ */
+public class GemmaPipelineTest{
+
+  private static final long TIMEOUT = 5000;
+
+  private final List<String> completed = Collections.synchronizedList(new ArrayList<>());
+  private final Map<String, Boolean> results = new ConcurrentHashMap<>();
+  private GemmaPipeline pipeline;
+
+  @After
+  public void tearDown(){
+    if(pipeline != null){
+      pipeline.shutdown(TIMEOUT);
+    }
+  }
+
+  @Test
+  public void testJobsOfSameResourceAreProcessedInOrder() throws InterruptedException{
+    CountDownLatch done = new CountDownLatch(50);
+    pipeline = create(lanes(4, 0, 0), 100, (job) -> {
+      //later jobs are faster, so they would overtake earlier jobs without ordering
+      sleep(50 - Integer.parseInt(job.getFilename()));
+      return true;
+    }, done);
+    for(int i = 0; i < 50; i++){
+      Assert.assertTrue(pipeline.submit(job("resource-1", Integer.toString(i))));
+    }
+    Assert.assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    for(int i = 0; i < 50; i++){
+      Assert.assertEquals(Integer.toString(i), completed.get(i));
+    }
+  }
+
+  @Test
+  public void testJobsOfSameResourceAreProcessedInOrderAcrossPriorities() throws InterruptedException{
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(4);
+    pipeline = create(lanes(1, 1, 1), 10, (job) -> {
+      if("bulk".equals(job.getFilename())){
+        await(release);
+      }
+      return true;
+    }, done);
+    MappingJob bulk = job("resource-1", "bulk");
+    bulk.setPriority(MappingJob.PRIORITY.BULK);
+    MappingJob interactive = job("resource-1", "interactive");
+    interactive.setPriority(MappingJob.PRIORITY.INTERACTIVE);
+    MappingJob other = job("resource-2", "other");
+    other.setPriority(MappingJob.PRIORITY.INTERACTIVE);
+    Assert.assertTrue(pipeline.submit(bulk));
+    Assert.assertTrue(pipeline.submit(interactive));
+    Assert.assertTrue(pipeline.submit(job("resource-1", "normal")));
+    Assert.assertTrue(pipeline.submit(other));
+    Thread.sleep(200);
+    //later jobs of the same resource are held back, but do not block their own lanes
+    Assert.assertEquals(Collections.singletonList("other"), completed);
+    release.countDown();
+    Assert.assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    Assert.assertEquals(Arrays.asList("other", "bulk", "interactive", "normal"), completed);
+  }
+
+  @Test
+  public void testBulkJobWaitsForMemoryInBulkLane() throws InterruptedException{
+    CountDownLatch releaseHog = new CountDownLatch(1);
+    CountDownLatch releaseFirst = new CountDownLatch(1);
+    CountDownLatch interactiveDone = new CountDownLatch(2);
+    CountDownLatch done = new CountDownLatch(4);
+    Map<String, Long> reserved = new ConcurrentHashMap<>();
+    pipeline = new GemmaPipeline(lanes(1, 1, 1), 10, 100, 1000, (job) -> {
+      reserved.put(job.getFilename(), pipeline.getMemoryReserved());
+      return true;
+    }, (job) -> {
+      if("hog".equals(job.getFilename())){
+        await(releaseHog);
+      } else if("first".equals(job.getFilename())){
+        await(releaseFirst);
+      }
+      return true;
+    }, (job) -> true, (job, success) -> {
+      completed.add(job.getFilename());
+      if(MappingJob.PRIORITY.INTERACTIVE.equals(job.getPriority())){
+        interactiveDone.countDown();
+      }
+      done.countDown();
+    });
+    MappingJob hog = job("resource-2", "hog");
+    hog.setPriority(MappingJob.PRIORITY.BULK);
+    hog.setExpectedMemory(1000);
+    MappingJob first = job("resource-1", "first");
+    first.setPriority(MappingJob.PRIORITY.INTERACTIVE);
+    MappingJob second = job("resource-1", "second");
+    second.setPriority(MappingJob.PRIORITY.BULK);
+    second.setExpectedMemory(1000);
+    MappingJob third = job("resource-3", "third");
+    third.setPriority(MappingJob.PRIORITY.INTERACTIVE);
+    Assert.assertTrue(pipeline.submit(hog));
+    Thread.sleep(100);
+    Assert.assertTrue(pipeline.submit(first));
+    Assert.assertTrue(pipeline.submit(second));
+    Assert.assertTrue(pipeline.submit(third));
+    releaseFirst.countDown();
+    //the bulk job waits for memory in its own lane instead of the interactive lane of the previous job
+    Assert.assertTrue(interactiveDone.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    Assert.assertEquals(Arrays.asList("first", "third"), completed);
+    releaseHog.countDown();
+    Assert.assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    Assert.assertEquals(Arrays.asList("first", "third", "hog", "second"), completed);
+    //the bulk job has reserved its memory after the other bulk job has released its memory
+    Assert.assertEquals(1000, (long) reserved.get("second"));
+  }
+
+  @Test
+  public void testShutdownAbortsHeldBackJobs() throws InterruptedException{
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(2);
+    pipeline = create(lanes(1, 1, 0), 10, (job) -> {
+      await(release);
+      return true;
+    }, done);
+    MappingJob first = job("resource-1", "first");
+    MappingJob held = job("resource-1", "held");
+    held.setPriority(MappingJob.PRIORITY.INTERACTIVE);
+    Assert.assertTrue(pipeline.submit(first));
+    Assert.assertTrue(pipeline.submit(held));
+    Assert.assertFalse(pipeline.shutdown(100));
+    release.countDown();
+    Assert.assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    Assert.assertEquals(Arrays.asList("first", "held"), completed);
+    Assert.assertFalse(results.get("held"));
+    Assert.assertEquals(MappingJob.FAILURE.TRANSIENT, held.getFailure());
+  }
+
+  @Test
+  public void testBlockedLaneDoesNotBlockOtherLanes() throws InterruptedException{
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(1);
+    pipeline = create(lanes(2, 0, 0), 10, (job) -> {
+      if("blocked".equals(job.getFilename())){
+        await(release);
+      }
+      return true;
+    }, done);
+    String[] ids = idsInDifferentLanes(2);
+    Assert.assertTrue(pipeline.submit(job(ids[0], "blocked")));
+    Assert.assertTrue(pipeline.submit(job(ids[1], "free")));
+    Assert.assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    Assert.assertEquals(Collections.singletonList("free"), completed);
+    release.countDown();
+  }
+
+  @Test
+  public void testFullLaneRejectsAfterSubmitTimeout(){
+    CountDownLatch release = new CountDownLatch(1);
+    pipeline = create(lanes(1, 0, 0), 1, (job) -> {
+      await(release);
+      return true;
+    }, new CountDownLatch(0));
+    Assert.assertTrue(pipeline.submit(job("resource-1", "a")));
+    long start = System.currentTimeMillis();
+    Assert.assertFalse(pipeline.submit(job("resource-1", "b")));
+    Assert.assertTrue(System.currentTimeMillis() - start >= 100);
+    Assert.assertEquals(1, pipeline.getInFlight());
+    release.countDown();
+  }
+
+  @Test
+  public void testFailingStageCompletesJobWithoutSuccess() throws InterruptedException{
+    CountDownLatch done = new CountDownLatch(2);
+    pipeline = create(lanes(1, 0, 0), 10, (job) -> {
+      if("exception".equals(job.getFilename())){
+        throw new IllegalStateException("Stage failure");
+      }
+      return false;
+    }, done);
+    Assert.assertTrue(pipeline.submit(job("resource-1", "failure")));
+    Assert.assertTrue(pipeline.submit(job("resource-1", "exception")));
+    Assert.assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    Assert.assertFalse(results.get("failure"));
+    Assert.assertFalse(results.get("exception"));
+  }
+
+  @Test
+  public void testBulkJobsWaitForMemoryBudget() throws InterruptedException{
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(2);
+    AtomicBoolean concurrent = new AtomicBoolean(false);
+    AtomicBoolean running = new AtomicBoolean(false);
+    Map<MappingJob.PRIORITY, Integer> laneCounts = lanes(1, 0, 2);
+    pipeline = new GemmaPipeline(laneCounts, 10, 100, 1000, (job) -> {
+      if(!running.compareAndSet(false, true)){
+        concurrent.set(true);
+      }
+      return true;
+    }, (job) -> {
+      if("first".equals(job.getFilename())){
+        await(release);
+      }
+      running.set(false);
+      return true;
+    }, (job) -> true, (job, success) -> {
+      completed.add(job.getFilename());
+      done.countDown();
+    });
+    String[] ids = idsInDifferentLanes(2);
+    MappingJob first = job(ids[0], "first");
+    first.setPriority(MappingJob.PRIORITY.BULK);
+    first.setExpectedMemory(800);
+    MappingJob second = job(ids[1], "second");
+    second.setPriority(MappingJob.PRIORITY.BULK);
+    second.setExpectedMemory(800);
+    Assert.assertTrue(pipeline.submit(first));
+    Thread.sleep(100);
+    Assert.assertTrue(pipeline.submit(second));
+    Thread.sleep(200);
+    //the second job waits in its own lane until the first job has released its memory
+    Assert.assertEquals(800, pipeline.getMemoryReserved());
+    Assert.assertTrue(completed.isEmpty());
+    release.countDown();
+    Assert.assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    Assert.assertFalse(concurrent.get());
+    //memory is released after the completion callback
+    Assert.assertTrue(pipeline.shutdown(TIMEOUT));
+    Assert.assertEquals(0, pipeline.getMemoryReserved());
+  }
+
+  @Test
+  public void testShutdownDrainsPipeline(){
+    CountDownLatch done = new CountDownLatch(20);
+    pipeline = create(lanes(2, 0, 0), 100, (job) -> {
+      sleep(10);
+      return true;
+    }, done);
+    for(int i = 0; i < 20; i++){
+      Assert.assertTrue(pipeline.submit(job("resource-" + i, Integer.toString(i))));
+    }
+    Assert.assertTrue(pipeline.shutdown(TIMEOUT));
+    Assert.assertEquals(20, completed.size());
+    Assert.assertEquals(0, pipeline.getInFlight());
+    Assert.assertFalse(pipeline.submit(job("resource-1", "late")));
+  }
+
+  @Test
+  public void testShutdownAbortsAfterTimeout() throws InterruptedException{
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(1);
+    MappingJob job = job("resource-1", "a");
+    pipeline = create(lanes(1, 0, 0), 10, (mapped) -> {
+      await(release);
+      return true;
+    }, done);
+    Assert.assertTrue(pipeline.submit(job));
+    Assert.assertFalse(pipeline.shutdown(100));
+    //the job finishing its stage cannot be handed over to the stopped upload stage
+    release.countDown();
+    Assert.assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    Assert.assertFalse(results.get("a"));
+    Assert.assertEquals(MappingJob.FAILURE.TRANSIENT, job.getFailure());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNormalLaneIsRequired(){
+    create(lanes(0, 1, 1), 10, (job) -> true, new CountDownLatch(0));
+  }
+
+  private GemmaPipeline create(Map<MappingJob.PRIORITY, Integer> laneCounts, int capacity, GemmaPipeline.Stage map, CountDownLatch done){
+    return new GemmaPipeline(laneCounts, capacity, 100, 0, (job) -> true, map, (job) -> true, (job, success) -> {
+      completed.add(job.getFilename());
+      results.put(job.getFilename(), success);
+      done.countDown();
+    });
+  }
+
+  private static Map<MappingJob.PRIORITY, Integer> lanes(int normal, int interactive, int bulk){
+    Map<MappingJob.PRIORITY, Integer> laneCounts = new EnumMap<>(MappingJob.PRIORITY.class);
+    laneCounts.put(MappingJob.PRIORITY.NORMAL, normal);
+    laneCounts.put(MappingJob.PRIORITY.INTERACTIVE, interactive);
+    laneCounts.put(MappingJob.PRIORITY.BULK, bulk);
+    return laneCounts;
+  }
+
+  /**
+   * Find resource ids assigned to different lanes of a group of 'count' lanes.
+   */
+  private static String[] idsInDifferentLanes(int count){
+    String[] ids = new String[count];
+    int found = 0;
+    for(int i = 0; found < count; i++){
+      String id = "resource-" + i;
+      int lane = Math.floorMod(id.hashCode(), count);
+      if(ids[lane] == null){
+        ids[lane] = id;
+        found++;
+      }
+    }
+    return ids;
+  }
+
+  private static MappingJob job(String entityId, String filename){
+    return new MappingJob(MappingJob.KIND.CONTENT, entityId, "application/json", filename);
+  }
+
+  private static void await(CountDownLatch latch){
+    try{
+      latch.await(TIMEOUT, TimeUnit.MILLISECONDS);
+    } catch(InterruptedException ex){
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void sleep(long millis){
+    try{
+      Thread.sleep(millis);
+    } catch(InterruptedException ex){
+      Thread.currentThread().interrupt();
+    }
+  }
+}
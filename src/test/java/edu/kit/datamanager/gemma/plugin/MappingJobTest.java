@@ -0,0 +1,68 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.plugin;
+
+import edu.kit.datamanager.gemma.mapping.CachedMapping;
+import edu.kit.datamanager.gemma.mapping.MappingCache;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the output filenames of mapping jobs.
+ *
+ * @author jejkal
+ */
+public class MappingJobTest{
+
+  private static final String MAPPING = "{\"properties\":{\"title\":{\"path\":\"title\",\"type\":\"string\"}}}";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testOutputFilenameOfProjections() throws IOException{
+    List<CachedMapping> mappings = load("full.json", "facet.json");
+    MappingJob job = new MappingJob(MappingJob.KIND.CONTENT, "resource-1", "application/json", "a.json");
+    Assert.assertEquals("a.elastic.json", job.getOutputFilename(mappings.get(0)));
+    Assert.assertEquals("a.facet.elastic.json", job.getOutputFilename(mappings.get(1)));
+    Assert.assertEquals("generated/a.facet.elastic.json", GemmaHandler.GENERATED_PATH + job.getOutputFilename(mappings.get(1)));
+  }
+
+  @Test
+  public void testOutputFilenameWithoutExtension() throws IOException{
+    List<CachedMapping> mappings = load("full.json", "facet.json");
+    MappingJob job = new MappingJob(MappingJob.KIND.CONTENT, "resource-1", "application/json", "data");
+    Assert.assertEquals("data.elastic.json", job.getOutputFilename(mappings.get(0)));
+    Assert.assertEquals("data.facet.elastic.json", job.getOutputFilename(mappings.get(1)));
+  }
+
+  private List<CachedMapping> load(String... filenames) throws IOException{
+    for(String filename : filenames){
+      Files.write(folder.getRoot().toPath().resolve(filename), MAPPING.getBytes(StandardCharsets.UTF_8));
+    }
+    MappingCache cache = new MappingCache(folder.getRoot().toString(), Collections.singletonMap("application/json", Arrays.asList(filenames)), Collections.emptySet(), folder.getRoot().toPath().resolve("snapshots"));
+    cache.load();
+    return cache.get("application/json");
+  }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.plugin;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import edu.kit.datamanager.gemma.configuration.GemmaConfiguration;
+import edu.kit.datamanager.gemma.mapping.NativeMappingEngine;
+import edu.kit.datamanager.gemma.sink.ElasticsearchSink;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for checkpoints, failed resources and cancellation of a re-index. The
+ * repository and Elasticsearch are emulated by a local HTTP server providing
+ * four resources on two pages, each with one JSON content.
+ *
+ * @author jejkal
+ */
+public class ReindexServiceTest{
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final long TIMEOUT = 5000;
+  private static final String CONTENT_TYPE = "application/json";
+  private static final String BASE_PATH = "/api/v1/dataresources/";
+  private static final List<String> RESOURCES = Arrays.asList("r0", "r1", "r2", "r3");
+  private static final int PAGE_SIZE = 2;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private HttpServer server;
+  private ExecutorService serverExecutor;
+  private GemmaHandler handler;
+  private ReindexService service;
+  private Path checkpoint;
+  /**
+   * Resources whose content listing fails with status 500.
+   */
+  private final Set<String> failing = ConcurrentHashMap.newKeySet();
+  /**
+   * Resources whose content was listed.
+   */
+  private final Set<String> listed = ConcurrentHashMap.newKeySet();
+  /**
+   * The resource whose content listing waits for 'blockedResponse'.
+   */
+  private volatile String blocked;
+  private final CountDownLatch blockedResponse = new CountDownLatch(1);
+
+  @Before
+  public void setUp() throws IOException{
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/_bulk", this::handleBulk);
+    server.createContext(BASE_PATH, this::handleRepository);
+    serverExecutor = Executors.newCachedThreadPool();
+    server.setExecutor(serverExecutor);
+    server.start();
+
+    Path mappings = Files.createDirectories(folder.getRoot().toPath().resolve("mappings"));
+    Files.write(mappings.resolve("mapping.json"), "{\"type\": \"object\", \"properties\": {\"Title\": {\"path\": \"title\", \"type\": \"string\"}}}".getBytes(StandardCharsets.UTF_8));
+    Path content = Files.createDirectories(folder.getRoot().toPath().resolve("content"));
+    for(String resource : RESOURCES){
+      Files.write(content.resolve(resource + ".json"), ("{\"title\": \"" + resource + "\"}").getBytes(StandardCharsets.UTF_8));
+    }
+    checkpoint = folder.getRoot().toPath().resolve("reindex").resolve("checkpoint.properties");
+
+    String url = "http://localhost:" + server.getAddress().getPort();
+    GemmaConfiguration configuration = new GemmaConfiguration();
+    configuration.setRepositoryBaseUrl(url + BASE_PATH);
+    configuration.setMappingsLocation(mappings.toString());
+    configuration.setSchemaMappings(Collections.singletonMap(CONTENT_TYPE, Collections.singletonList("mapping.json")));
+    configuration.setDefaultEngine(NativeMappingEngine.NAME);
+    configuration.setWorkspaceLocation(folder.getRoot().toPath().resolve("workspace").toString());
+    configuration.setOutputSink(ElasticsearchSink.NAME);
+    configuration.setElasticsearchUrl(url);
+    configuration.setElasticsearchBulkMaxDocuments(1);
+    configuration.setReindexPageSize(PAGE_SIZE);
+    configuration.setReindexCheckpointLocation(checkpoint.toString());
+    handler = new GemmaHandler(configuration);
+    Assert.assertTrue(handler.configure());
+    service = new ReindexService(handler, configuration);
+  }
+
+  @After
+  public void tearDown(){
+    blockedResponse.countDown();
+    service.cancel();
+    handler.shutdown();
+    server.stop(0);
+    serverExecutor.shutdownNow();
+  }
+
+  @Test
+  public void testCompletedRunRemovesCheckpoint() throws Exception{
+    ReindexStatus status = run(false);
+    Assert.assertEquals(ReindexStatus.STATE.COMPLETED, status.getState());
+    Assert.assertEquals(4, status.getResources());
+    Assert.assertEquals(4, status.getSucceeded());
+    Assert.assertFalse(Files.exists(checkpoint));
+  }
+
+  @Test
+  public void testFailedResourceKeepsCheckpointAndIsRevisited() throws Exception{
+    failing.add("r2");
+    ReindexStatus status = run(false);
+    Assert.assertEquals(ReindexStatus.STATE.FAILED, status.getState());
+    //the failed resource is counted as resource, not as mapping
+    Assert.assertEquals(1, status.getFailedResources());
+    Assert.assertEquals(0, status.getFailed());
+    Assert.assertEquals(3, status.getSucceeded());
+    Assert.assertEquals(1, readCheckpointPage());
+
+    failing.clear();
+    listed.clear();
+    status = run(true);
+    Assert.assertEquals(ReindexStatus.STATE.COMPLETED, status.getState());
+    Assert.assertEquals(1, status.getStartPage());
+    Assert.assertEquals(Set.of("r2", "r3"), listed);
+    Assert.assertFalse(Files.exists(checkpoint));
+  }
+
+  @Test
+  public void testCheckpointIsKeptAfterLaterFailure() throws Exception{
+    failing.add("r0");
+    ReindexStatus status = run(false);
+    Assert.assertEquals(ReindexStatus.STATE.FAILED, status.getState());
+    //all pages are processed, but the checkpoint is not advanced beyond the failed page
+    Assert.assertEquals(Set.of("r0", "r1", "r2", "r3"), listed);
+    Assert.assertEquals(0, readCheckpointPage());
+  }
+
+  @Test
+  public void testCheckpointOfOtherContentTypesIsIgnored() throws Exception{
+    writeCheckpoint("text/plain", 1);
+    ReindexStatus status = run(true);
+    Assert.assertEquals(0, status.getStartPage());
+    Assert.assertEquals(ReindexStatus.STATE.COMPLETED, status.getState());
+    Assert.assertEquals(4, status.getSucceeded());
+  }
+
+  @Test
+  public void testResumeAtCheckpoint() throws Exception{
+    writeCheckpoint(CONTENT_TYPE, 1);
+    ReindexStatus status = run(true);
+    Assert.assertEquals(1, status.getStartPage());
+    Assert.assertEquals(Set.of("r2", "r3"), listed);
+
+    //without resume, the checkpoint is ignored
+    writeCheckpoint(CONTENT_TYPE, 1);
+    listed.clear();
+    Assert.assertEquals(0, run(false).getStartPage());
+    Assert.assertEquals(Set.of("r0", "r1", "r2", "r3"), listed);
+  }
+
+  @Test
+  public void testCancelMidPageKeepsCheckpoint() throws Exception{
+    blocked = "r2";
+    service.start(Collections.singleton(CONTENT_TYPE), false);
+    Assert.assertTrue(await(() -> listed.contains("r2")));
+    service.cancel();
+    blockedResponse.countDown();
+    Assert.assertTrue(await(() -> !ReindexStatus.STATE.RUNNING.equals(service.getStatus().getState())));
+    Assert.assertEquals(ReindexStatus.STATE.CANCELLED, service.getStatus().getState());
+    //the first page was finished, the cancelled page is processed again on resume
+    Assert.assertEquals(1, readCheckpointPage());
+  }
+
+  private ReindexStatus run(boolean resume) throws InterruptedException{
+    service.start(Collections.singleton(CONTENT_TYPE), resume);
+    Assert.assertTrue(await(() -> !ReindexStatus.STATE.RUNNING.equals(service.getStatus().getState())));
+    return service.getStatus();
+  }
+
+  private int readCheckpointPage() throws IOException{
+    Properties properties = new Properties();
+    try(InputStream in = Files.newInputStream(checkpoint)){
+      properties.load(in);
+    }
+    return Integer.parseInt(properties.getProperty("page"));
+  }
+
+  private void writeCheckpoint(String contentTypes, int page) throws IOException{
+    Properties properties = new Properties();
+    properties.setProperty("contentTypes", contentTypes);
+    properties.setProperty("page", Integer.toString(page));
+    Files.createDirectories(checkpoint.getParent());
+    try(OutputStream out = Files.newOutputStream(checkpoint)){
+      properties.store(out, null);
+    }
+  }
+
+  private boolean await(BooleanSupplier condition) throws InterruptedException{
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    while(!condition.getAsBoolean()){
+      if(System.currentTimeMillis() > deadline){
+        return false;
+      }
+      Thread.sleep(10);
+    }
+    return true;
+  }
+
+  private void handleRepository(HttpExchange exchange) throws IOException{
+    String path = exchange.getRequestURI().getPath();
+    path = (path.length() > BASE_PATH.length()) ? path.substring(BASE_PATH.length()).replaceAll("^/+", "") : "";
+    int page = 0;
+    String query = exchange.getRequestURI().getQuery();
+    if(query != null){
+      for(String param : query.split("&")){
+        if(param.startsWith("page=")){
+          page = Integer.parseInt(param.substring(5));
+        }
+      }
+    }
+    ArrayNode response = MAPPER.createArrayNode();
+    if(path.isEmpty()){
+      for(int i = page * PAGE_SIZE; i < Math.min((page + 1) * PAGE_SIZE, RESOURCES.size()); i++){
+        response.addObject().put("id", RESOURCES.get(i));
+      }
+    } else{
+      String resource = path.substring(0, path.indexOf('/'));
+      listed.add(resource);
+      if(failing.contains(resource)){
+        exchange.sendResponseHeaders(500, -1);
+        exchange.close();
+        return;
+      }
+      if(resource.equals(blocked)){
+        try{
+          blockedResponse.await(TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch(InterruptedException ex){
+          Thread.currentThread().interrupt();
+        }
+      }
+      if(page == 0){
+        Path content = folder.getRoot().toPath().resolve("content").resolve(resource + ".json");
+        response.addObject().put("relativePath", resource + ".json").put("mediaType", CONTENT_TYPE).put("contentUri", content.toUri().toString());
+      }
+    }
+    send(exchange, MAPPER.writeValueAsBytes(response));
+  }
+
+  private void handleBulk(HttpExchange exchange) throws IOException{
+    String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+    ObjectNode response = MAPPER.createObjectNode();
+    ArrayNode items = response.putArray("items");
+    for(String line : body.split("\n")){
+      if(line.startsWith("{\"index\"")){
+        items.addObject().putObject("index").put("status", 201);
+      }
+    }
+    send(exchange, MAPPER.writeValueAsBytes(response));
+  }
+
+  private static void send(HttpExchange exchange, byte[] data) throws IOException{
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(200, data.length);
+    try(OutputStream out = exchange.getResponseBody()){
+      out.write(data);
+    }
+  }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.sink;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import edu.kit.datamanager.gemma.mapping.CachedMapping;
+import edu.kit.datamanager.gemma.mapping.MappingCache;
+import edu.kit.datamanager.gemma.plugin.MappingJob;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for batching, retrying and flushing of the Elasticsearch sink against
+ * a local HTTP server emulating the bulk API.
+ *
+ * @author jejkal
+ */
+public class ElasticsearchSinkTest{
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final long TIMEOUT = 5000;
+  private static final String INDEXED = "indexed";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private HttpServer server;
+  private ElasticsearchSink sink;
+  private CachedMapping mapping;
+  private CachedMapping projection;
+  /**
+   * The document ids of all received bulk requests.
+   */
+  private final List<List<String>> requests = new CopyOnWriteArrayList<>();
+  /**
+   * Status returned for a document id, removed after the first request.
+   */
+  private final Map<String, Integer> itemStatus = new ConcurrentHashMap<>();
+  private final List<Integer> requestStatus = Collections.synchronizedList(new ArrayList<>());
+  /**
+   * The outcome of each document, either 'indexed' or the kind of failure.
+   */
+  private final Map<String, String> results = new ConcurrentHashMap<>();
+
+  @Before
+  public void setUp() throws IOException{
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/_bulk", this::handleBulk);
+    server.start();
+
+    Path mappings = folder.getRoot().toPath();
+    Files.write(mappings.resolve("full.json"), "{}".getBytes(StandardCharsets.UTF_8));
+    Files.write(mappings.resolve("facet.json"), "{}".getBytes(StandardCharsets.UTF_8));
+    MappingCache cache = new MappingCache(mappings.toString(), Collections.singletonMap("application/json", Arrays.asList("full.json", "facet.json")), Collections.emptySet(), folder.getRoot().toPath().resolve("snapshots"));
+    cache.load();
+    mapping = cache.get("application/json").get(0);
+    projection = cache.get("application/json").get(1);
+  }
+
+  @After
+  public void tearDown(){
+    if(sink != null){
+      sink.close();
+    }
+    server.stop(0);
+  }
+
+  @Test
+  public void testFullBatchIsSent() throws Exception{
+    sink = create(2, 60000);
+    CountDownLatch done = new CountDownLatch(2);
+    Assert.assertTrue(write(content("resource-1", "a.json"), mapping, "{\"title\":\"a\"}", done));
+    Assert.assertTrue(write(content("resource-1", "a.json"), projection, "{\"title\":\"a\"}", done));
+    Assert.assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    Assert.assertEquals(Collections.singletonList(Arrays.asList("resource-1/a.json", "resource-1/a.json#facet")), requests);
+    Assert.assertEquals(INDEXED, results.get("resource-1/a.json"));
+    Assert.assertEquals(INDEXED, results.get("resource-1/a.json#facet"));
+  }
+
+  @Test
+  public void testPartialBatchIsFlushedAfterInterval() throws Exception{
+    sink = create(10, 100);
+    CountDownLatch done = new CountDownLatch(1);
+    Assert.assertTrue(write(content("resource-1", "a.json"), mapping, "{\"title\":\"a\"}", done));
+    Assert.assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    Assert.assertEquals(1, requests.size());
+  }
+
+  @Test
+  public void testCloseSendsPendingDocuments() throws IOException{
+    sink = create(10, 60000);
+    Assert.assertTrue(write(content("resource-1", "a.json"), mapping, "{\"title\":\"a\"}", new CountDownLatch(1)));
+    sink.close();
+    sink = null;
+    Assert.assertEquals(1, requests.size());
+    Assert.assertEquals(INDEXED, results.get("resource-1/a.json"));
+  }
+
+  @Test
+  public void testRetryableDocumentsAreRetried() throws Exception{
+    sink = create(3, 60000);
+    itemStatus.put("resource-2/a.json", 429);
+    itemStatus.put("resource-3/a.json", 400);
+    CountDownLatch done = new CountDownLatch(3);
+    for(String id : new String[]{"resource-1", "resource-2", "resource-3"}){
+      Assert.assertTrue(write(content(id, "a.json"), mapping, "{\"title\":\"a\"}", done));
+    }
+    Assert.assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    //only the document rejected with 429 is sent again
+    Assert.assertEquals(Arrays.asList(Arrays.asList("resource-1/a.json", "resource-2/a.json", "resource-3/a.json"), Collections.singletonList("resource-2/a.json")), requests);
+    Assert.assertEquals(INDEXED, results.get("resource-1/a.json"));
+    Assert.assertEquals(INDEXED, results.get("resource-2/a.json"));
+    Assert.assertEquals(MappingJob.FAILURE.PERMANENT.toString(), results.get("resource-3/a.json"));
+  }
+
+  @Test
+  public void testFailedRequestIsRetriedAsWhole() throws Exception{
+    sink = create(1, 60000);
+    requestStatus.add(503);
+    CountDownLatch done = new CountDownLatch(1);
+    Assert.assertTrue(write(content("resource-1", "a.json"), mapping, "{\"title\":\"a\"}", done));
+    Assert.assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    Assert.assertEquals(2, requests.size());
+    Assert.assertEquals(INDEXED, results.get("resource-1/a.json"));
+  }
+
+  @Test
+  public void testRejectedRequestFailsDocuments() throws Exception{
+    sink = create(1, 60000);
+    requestStatus.add(400);
+    CountDownLatch done = new CountDownLatch(1);
+    Assert.assertTrue(write(content("resource-1", "a.json"), mapping, "{\"title\":\"a\"}", done));
+    Assert.assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    Assert.assertEquals(1, requests.size());
+    Assert.assertEquals(MappingJob.FAILURE.TRANSIENT.toString(), results.get("resource-1/a.json"));
+  }
+
+  @Test
+  public void testExhaustedRetriesFailTransiently() throws Exception{
+    sink = create(1, 60000);
+    requestStatus.addAll(Arrays.asList(503, 503, 503, 503));
+    CountDownLatch done = new CountDownLatch(1);
+    Assert.assertTrue(write(content("resource-1", "a.json"), mapping, "{\"title\":\"a\"}", done));
+    Assert.assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    Assert.assertEquals(4, requests.size());
+    Assert.assertEquals(MappingJob.FAILURE.TRANSIENT.toString(), results.get("resource-1/a.json"));
+  }
+
+  @Test
+  public void testInvalidResultIsRejected() throws IOException{
+    sink = create(1, 60000);
+    Assert.assertFalse(write(content("resource-1", "a.json"), mapping, "{\"title\":", new CountDownLatch(1)));
+    Assert.assertFalse(write(content("resource-1", "a.json"), mapping, "", new CountDownLatch(1)));
+    Assert.assertTrue(results.isEmpty());
+  }
+
+  @Test
+  public void testDocumentIds(){
+    MappingJob metadata = new MappingJob(MappingJob.KIND.METADATA, "resource-1", "application/json", "resource-1_metadata.json");
+    Assert.assertEquals("resource-1/generated/resource-1_metadata.elastic.json", ElasticsearchSink.getDocumentId(metadata, mapping));
+    Assert.assertEquals("resource-1/generated/resource-1_metadata.facet.elastic.json", ElasticsearchSink.getDocumentId(metadata, projection));
+    Assert.assertEquals("resource-1/data/a.json#facet", ElasticsearchSink.getDocumentId(content("resource-1", "data/a.json"), projection));
+  }
+
+  private ElasticsearchSink create(int maxDocuments, long flushInterval){
+    return new ElasticsearchSink("http://localhost:" + server.getAddress().getPort(), "gemma", maxDocuments, 1024 * 1024, flushInterval, 3, 5000);
+  }
+
+  private boolean write(MappingJob job, CachedMapping mapping, String result, CountDownLatch done) throws IOException{
+    String id = ElasticsearchSink.getDocumentId(job, mapping);
+    return sink.write(job, mapping, new ByteArrayInputStream(result.getBytes(StandardCharsets.UTF_8)), (failure) -> {
+      results.put(id, (failure == null) ? INDEXED : failure.toString());
+      done.countDown();
+    });
+  }
+
+  private void handleBulk(HttpExchange exchange) throws IOException{
+    List<String> ids = new ArrayList<>();
+    String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+    String[] lines = body.split("\n");
+    for(int i = 0; i < lines.length; i += 2){
+      JsonNode action = MAPPER.readTree(lines[i]).path("index");
+      Assert.assertEquals("gemma", action.path("_index").asText());
+      ids.add(action.path("_id").asText());
+    }
+    requests.add(ids);
+
+    int status = requestStatus.isEmpty() ? 200 : requestStatus.remove(0);
+    ObjectNode response = MAPPER.createObjectNode();
+    ArrayNode items = response.putArray("items");
+    for(String id : ids){
+      Integer itemResult = itemStatus.remove(id);
+      items.addObject().putObject("index").put("_id", id).put("status", (itemResult != null) ? itemResult : 201);
+    }
+    byte[] data = MAPPER.writeValueAsBytes(response);
+    exchange.sendResponseHeaders(status, data.length);
+    try(OutputStream out = exchange.getResponseBody()){
+      out.write(data);
+    }
+  }
+
+  private static MappingJob content(String entityId, String path){
+    MappingJob job = new MappingJob(MappingJob.KIND.CONTENT, entityId, "application/json", path);
+    job.setRelativePath(path);
+    return job;
+  }
+}
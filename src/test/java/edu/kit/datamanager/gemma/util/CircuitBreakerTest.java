@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the state transitions of the circuit breaker.
+ *
+ * @author jejkal
+ */
+public class CircuitBreakerTest{
+
+  private static final long OPEN_DURATION = 200;
+
+  @Test
+  public void testCircuitOpensAfterConsecutiveFailures(){
+    CircuitBreaker breaker = new CircuitBreaker("test", 3, OPEN_DURATION);
+    fail(breaker, 2);
+    breaker.onSuccess();
+    //the success resets the number of consecutive failures
+    fail(breaker, 2);
+    Assert.assertEquals(CircuitBreaker.STATE.CLOSED, breaker.getState());
+    fail(breaker, 1);
+    Assert.assertEquals(CircuitBreaker.STATE.OPEN, breaker.getState());
+    Assert.assertFalse(breaker.tryAcquire());
+    Assert.assertFalse(breaker.isAvailable());
+  }
+
+  @Test
+  public void testSingleTrialRequestClosesCircuit() throws InterruptedException{
+    CircuitBreaker breaker = new CircuitBreaker("test", 1, OPEN_DURATION);
+    fail(breaker, 1);
+    Thread.sleep(OPEN_DURATION + 50);
+    Assert.assertTrue(breaker.isAvailable());
+    Assert.assertTrue(breaker.tryAcquire());
+    Assert.assertEquals(CircuitBreaker.STATE.HALF_OPEN, breaker.getState());
+    //only one trial request at a time
+    Assert.assertFalse(breaker.tryAcquire());
+    Assert.assertFalse(breaker.isAvailable());
+    breaker.onSuccess();
+    Assert.assertEquals(CircuitBreaker.STATE.CLOSED, breaker.getState());
+    Assert.assertTrue(breaker.tryAcquire());
+  }
+
+  @Test
+  public void testFailedTrialRequestReopensCircuit() throws InterruptedException{
+    CircuitBreaker breaker = new CircuitBreaker("test", 1, OPEN_DURATION);
+    fail(breaker, 1);
+    Thread.sleep(OPEN_DURATION + 50);
+    Assert.assertTrue(breaker.tryAcquire());
+    breaker.onFailure();
+    Assert.assertEquals(CircuitBreaker.STATE.OPEN, breaker.getState());
+    Assert.assertFalse(breaker.tryAcquire());
+  }
+
+  @Test
+  public void testZeroThresholdNeverOpens(){
+    CircuitBreaker breaker = new CircuitBreaker("test", 0, OPEN_DURATION);
+    fail(breaker, 100);
+    Assert.assertEquals(CircuitBreaker.STATE.CLOSED, breaker.getState());
+    Assert.assertTrue(breaker.tryAcquire());
+  }
+
+  private static void fail(CircuitBreaker breaker, int count){
+    for(int i = 0; i < count; i++){
+      Assert.assertTrue(breaker.tryAcquire());
+      breaker.onFailure();
+    }
+  }
+}
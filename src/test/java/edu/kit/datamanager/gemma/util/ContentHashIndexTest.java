@@ -0,0 +1,145 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the persistent content hash index.
+ *
+ * @author jejkal
+ */
+public class ContentHashIndexTest{
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path indexFile;
+  private ContentHashIndex index;
+
+  @Before
+  public void setUp(){
+    indexFile = folder.getRoot().toPath().resolve("index").resolve("content-hashes.tsv");
+  }
+
+  @After
+  public void tearDown(){
+    if(index != null){
+      index.close();
+    }
+  }
+
+  @Test
+  public void testUnchangedRequiresInputAndMappingHash() throws IOException{
+    index = open(10);
+    Assert.assertFalse(index.isUnchanged("resource-1", "a.json", "in", "map"));
+    index.put("resource-1", "a.json", "in", "map", "out");
+    Assert.assertTrue(index.isUnchanged("resource-1", "a.json", "in", "map"));
+    Assert.assertFalse(index.isUnchanged("resource-1", "a.json", "in2", "map"));
+    Assert.assertFalse(index.isUnchanged("resource-1", "a.json", "in", "map2"));
+    Assert.assertFalse(index.isUnchanged("resource-1", "b.json", "in", "map"));
+    Assert.assertEquals("out", index.getOutputHash("resource-1", "a.json"));
+    Assert.assertNull(index.getOutputHash("resource-2", "a.json"));
+  }
+
+  @Test
+  public void testEntriesSurviveReload() throws IOException{
+    index = open(10);
+    index.put("resource-1", "a.json", "in", "map", "out");
+    index.put("resource-1", "a.json", "in2", "map", "out2");
+    index.put("resource-2", "a.json", "in", "map", "out");
+    index.close();
+
+    index = open(10);
+    Assert.assertEquals(2, index.size());
+    //later lines overwrite earlier ones
+    Assert.assertTrue(index.isUnchanged("resource-1", "a.json", "in2", "map"));
+    Assert.assertEquals("out2", index.getOutputHash("resource-1", "a.json"));
+    Assert.assertTrue(index.isUnchanged("resource-2", "a.json", "in", "map"));
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEntryIsEvicted() throws IOException{
+    index = open(2);
+    index.put("resource-1", "a.json", "in", "map", "out");
+    index.put("resource-2", "a.json", "in", "map", "out");
+    //access resource-1, so that resource-2 is evicted
+    Assert.assertTrue(index.isUnchanged("resource-1", "a.json", "in", "map"));
+    index.put("resource-3", "a.json", "in", "map", "out");
+    Assert.assertEquals(2, index.size());
+    Assert.assertNotNull(index.getOutputHash("resource-1", "a.json"));
+    Assert.assertNull(index.getOutputHash("resource-2", "a.json"));
+    Assert.assertNotNull(index.getOutputHash("resource-3", "a.json"));
+  }
+
+  @Test
+  public void testIndexFileIsCompacted() throws IOException{
+    index = open(4);
+    for(int i = 0; i < 20; i++){
+      index.put("resource-1", "a.json", "in" + i, "map", "out" + i);
+    }
+    Assert.assertTrue(Files.readAllLines(indexFile, StandardCharsets.UTF_8).size() <= 4);
+    index.close();
+
+    index = open(4);
+    Assert.assertEquals(1, index.size());
+    Assert.assertTrue(index.isUnchanged("resource-1", "a.json", "in19", "map"));
+  }
+
+  @Test
+  public void testSeparatorsInPathsAreEncoded() throws IOException{
+    index = open(10);
+    index.put("resource-1", "a\tb.json", "in", "map", "out");
+    index.put("resource-1", "a\nb.json", "in", "map", "out");
+    index.put("resource-1", "a b+%.json", "in", "map", "out");
+    Assert.assertEquals(3, Files.readAllLines(indexFile, StandardCharsets.UTF_8).size());
+    index.close();
+
+    index = open(10);
+    Assert.assertEquals(3, index.size());
+    Assert.assertTrue(index.isUnchanged("resource-1", "a\tb.json", "in", "map"));
+    Assert.assertTrue(index.isUnchanged("resource-1", "a\nb.json", "in", "map"));
+    Assert.assertTrue(index.isUnchanged("resource-1", "a b+%.json", "in", "map"));
+    Assert.assertFalse(index.isUnchanged("resource-1", "a", "in", "map"));
+  }
+
+  @Test
+  public void testInvalidLinesAreSkipped() throws IOException{
+    Files.createDirectories(indexFile.getParent());
+    List<String> lines = Arrays.asList("resource-1\ta.json\tin\tmap\tout", "broken line", "resource-2\ta.json\tin");
+    Files.write(indexFile, lines, StandardCharsets.UTF_8);
+    index = open(10);
+    Assert.assertEquals(1, index.size());
+    Assert.assertTrue(index.isUnchanged("resource-1", "a.json", "in", "map"));
+  }
+
+  private ContentHashIndex open(int maxEntries) throws IOException{
+    ContentHashIndex result = new ContentHashIndex(indexFile, maxEntries);
+    result.load();
+    return result;
+  }
+}
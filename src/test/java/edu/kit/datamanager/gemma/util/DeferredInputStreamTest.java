@@ -0,0 +1,79 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for opening the underlying stream on the first read.
+ *
+ * @author jejkal
+ */
+public class DeferredInputStreamTest{
+
+  @Test
+  public void testStreamIsOpenedOnceOnFirstRead() throws IOException{
+    AtomicInteger opened = new AtomicInteger(0);
+    AtomicBoolean closed = new AtomicBoolean(false);
+    DeferredInputStream in = new DeferredInputStream(() -> {
+      opened.incrementAndGet();
+      return new ByteArrayInputStream("content".getBytes(StandardCharsets.UTF_8)){
+        @Override
+        public void close() throws IOException{
+          closed.set(true);
+          super.close();
+        }
+      };
+    });
+    Assert.assertEquals(0, in.available());
+    Assert.assertFalse(in.isOpened());
+    Assert.assertEquals("content", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+    Assert.assertEquals(1, opened.get());
+    in.close();
+    Assert.assertTrue(closed.get());
+  }
+
+  @Test
+  public void testClosingUnopenedStreamNeverOpensIt() throws IOException{
+    AtomicBoolean opened = new AtomicBoolean(false);
+    InputStream in = new DeferredInputStream(() -> {
+      opened.set(true);
+      return new ByteArrayInputStream(new byte[0]);
+    });
+    in.close();
+    try{
+      in.read();
+      Assert.fail("Closed stream was read without error.");
+    } catch(IOException ex){
+      //expected
+    }
+    Assert.assertFalse(opened.get());
+  }
+
+  @Test(expected = IOException.class)
+  public void testOpenFailureSurfacesOnRead() throws IOException{
+    new DeferredInputStream(() -> {
+      throw new IOException("Not found");
+    }).read();
+  }
+}
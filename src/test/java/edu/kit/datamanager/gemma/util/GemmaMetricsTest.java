@@ -0,0 +1,79 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.util;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for registering and tagging meters in the global registry.
+ *
+ * @author jejkal
+ */
+public class GemmaMetricsTest{
+
+  private SimpleMeterRegistry registry;
+
+  @Before
+  public void setUp(){
+    registry = new SimpleMeterRegistry();
+    Metrics.globalRegistry.add(registry);
+  }
+
+  @After
+  public void tearDown(){
+    Metrics.globalRegistry.remove(registry);
+  }
+
+  @Test
+  public void testCounterIsTaggedByContentType(){
+    GemmaMetrics.count(GemmaMetrics.JOBS, GemmaMetrics.CONTENT_TYPE_TAG, "application/json", GemmaMetrics.RESULT_TAG, "succeeded");
+    GemmaMetrics.count(GemmaMetrics.JOBS, GemmaMetrics.CONTENT_TYPE_TAG, "application/json", GemmaMetrics.RESULT_TAG, "succeeded");
+    GemmaMetrics.count(GemmaMetrics.JOBS, GemmaMetrics.CONTENT_TYPE_TAG, "application/xml", GemmaMetrics.RESULT_TAG, "failed");
+    Assert.assertEquals(2, registry.get(GemmaMetrics.JOBS).tag(GemmaMetrics.CONTENT_TYPE_TAG, "application/json").tag(GemmaMetrics.RESULT_TAG, "succeeded").counter().count(), 0);
+    Assert.assertEquals(1, registry.get(GemmaMetrics.JOBS).tag(GemmaMetrics.CONTENT_TYPE_TAG, "application/xml").tag(GemmaMetrics.RESULT_TAG, "failed").counter().count(), 0);
+    Assert.assertNull(registry.find(GemmaMetrics.JOBS).tag(GemmaMetrics.CONTENT_TYPE_TAG, "application/xml").tag(GemmaMetrics.RESULT_TAG, "succeeded").counter());
+  }
+
+  @Test
+  public void testTimerAndSizeAreTagged(){
+    GemmaMetrics.recordTime(GemmaMetrics.MAPPING, System.nanoTime(), GemmaMetrics.CONTENT_TYPE_TAG, "application/json", GemmaMetrics.ENGINE_TAG, "java");
+    GemmaMetrics.recordSize(GemmaMetrics.OUTPUT_SIZE, 1024, GemmaMetrics.CONTENT_TYPE_TAG, "application/json");
+    GemmaMetrics.recordSize(GemmaMetrics.OUTPUT_SIZE, 2048, GemmaMetrics.CONTENT_TYPE_TAG, "application/json");
+    Timer timer = registry.get(GemmaMetrics.MAPPING).tag(GemmaMetrics.CONTENT_TYPE_TAG, "application/json").tag(GemmaMetrics.ENGINE_TAG, "java").timer();
+    Assert.assertEquals(1, timer.count());
+    DistributionSummary summary = registry.get(GemmaMetrics.OUTPUT_SIZE).tag(GemmaMetrics.CONTENT_TYPE_TAG, "application/json").summary();
+    Assert.assertEquals(2, summary.count());
+    Assert.assertEquals(3072, summary.totalAmount(), 0);
+    Assert.assertEquals("bytes", summary.getId().getBaseUnit());
+  }
+
+  @Test
+  public void testGaugeObservesObject(){
+    //a name not used by the handler, as gauges are only registered once per name
+    AtomicInteger pending = GemmaMetrics.gauge("gemma.test.pending", new AtomicInteger(3), AtomicInteger::get);
+    Assert.assertEquals(3, registry.get("gemma.test.pending").gauge().value(), 0);
+    pending.set(5);
+    Assert.assertEquals(5, registry.get("gemma.test.pending").gauge().value(), 0);
+  }
+}
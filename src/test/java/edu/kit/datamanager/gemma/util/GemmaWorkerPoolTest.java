@@ -0,0 +1,224 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for recycling, timeouts, replacement and multi-mapping jobs of pooled
+ * workers. Instead of Gemma, the workers run a script executing the command in
+ * the mapping file, e.g. 'sleep:2' or 'crash', and writing its process id to
+ * the output. The command 'noisy' prints 100000 characters before and the
+ * command 'consume' copies the input to the output and deletes the input.
+ * Python is taken from the system property 'gemma.test.pythonLocation' and
+ * defaults to 'python3'. The tests are skipped if Python is not available.
+ *
+ * @author jejkal
+ */
+public class GemmaWorkerPoolTest{
+
+  private static final String PYTHON_LOCATION = System.getProperty("gemma.test.pythonLocation", "python3");
+  private static final long TIMEOUT = 5000;
+  private static final String SCRIPT = "import os, sys, time\n"
+          + "if __name__ == '__main__':\n"
+          + "    command = open(sys.argv[1]).read().strip()\n"
+          + "    if command.startswith('sleep:'):\n"
+          + "        time.sleep(float(command[6:]))\n"
+          + "    elif command == 'crash':\n"
+          + "        os._exit(3)\n"
+          + "    elif command == 'fail':\n"
+          + "        sys.exit(1)\n"
+          + "    elif command == 'noisy':\n"
+          + "        print('x' * 100000)\n"
+          + "    elif command == 'consume':\n"
+          + "        content = open(sys.argv[2]).read()\n"
+          + "        os.remove(sys.argv[2])\n"
+          + "        open(sys.argv[3], 'w').write(content)\n"
+          + "        sys.exit(0)\n"
+          + "    open(sys.argv[3], 'w').write(str(os.getpid()))\n"
+          + "    print('mapped')\n";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path python;
+  private Path gemma;
+  private GemmaWorkerPool pool;
+
+  @Before
+  public void setUp() throws IOException, InterruptedException{
+    Process process;
+    try{
+      process = new ProcessBuilder(PYTHON_LOCATION, "--version").start();
+    } catch(IOException ex){
+      process = null;
+    }
+    Assume.assumeTrue("Python is not available at " + PYTHON_LOCATION + ".", process != null && process.waitFor(TIMEOUT, TimeUnit.MILLISECONDS) && process.exitValue() == 0);
+    gemma = folder.getRoot().toPath().resolve("gemma.py");
+    Files.write(gemma, SCRIPT.getBytes(StandardCharsets.UTF_8));
+    //a launcher which can be removed to make starting workers fail
+    python = folder.getRoot().toPath().resolve("python.sh");
+    writeLauncher();
+  }
+
+  @After
+  public void tearDown(){
+    if(pool != null){
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testWorkerIsReusedAndRecycled() throws IOException{
+    start(1, 2);
+    String first = map("copy", TIMEOUT);
+    Assert.assertEquals(first, map("copy", TIMEOUT));
+    //the worker reached the max. number of jobs and was replaced
+    Assert.assertNotEquals(first, map("copy", TIMEOUT));
+  }
+
+  @Test
+  public void testOutputAndExitStatus() throws IOException{
+    start(1, 10);
+    ByteArrayOutputStream log = new ByteArrayOutputStream();
+    Assert.assertEquals(0, pool.map(mapping("copy").toString(), gemma.toString(), output().toString(), log, TIMEOUT));
+    Assert.assertEquals("mapped", log.toString(StandardCharsets.UTF_8).trim());
+    Assert.assertEquals(1, pool.map(mapping("fail").toString(), gemma.toString(), output().toString(), null, TIMEOUT));
+  }
+
+  @Test
+  public void testOutputIsTruncatedByWorker() throws IOException{
+    start(1, 10);
+    ByteArrayOutputStream log = new ByteArrayOutputStream();
+    PythonUtils.setMaxCapture(16);
+    try{
+      Assert.assertEquals(0, pool.map(mapping("noisy").toString(), gemma.toString(), output().toString(), log, TIMEOUT));
+    } finally{
+      PythonUtils.setMaxCapture(PythonUtils.DEFAULT_MAX_CAPTURE);
+    }
+    Assert.assertEquals("x".repeat(16), log.toString(StandardCharsets.UTF_8));
+    //the worker is still in sync with the protocol
+    Assert.assertNotNull(map("copy", TIMEOUT));
+  }
+
+  @Test
+  public void testTimedOutWorkerIsReplaced() throws IOException{
+    start(1, 10);
+    String first = map("copy", TIMEOUT);
+    Assert.assertEquals(PythonUtils.TIMEOUT_ERROR, pool.map(mapping("sleep:10").toString(), gemma.toString(), output().toString(), null, 500));
+    Assert.assertNotEquals(first, map("copy", TIMEOUT));
+  }
+
+  @Test
+  public void testCrashedWorkerIsReplaced() throws IOException{
+    start(1, 10);
+    String first = map("copy", TIMEOUT);
+    Assert.assertEquals(PythonUtils.EXECUTION_ERROR, pool.map(mapping("crash").toString(), gemma.toString(), output().toString(), null, TIMEOUT));
+    Assert.assertNotEquals(first, map("copy", TIMEOUT));
+  }
+
+  @Test
+  public void testWaitingForWorkerCountsAgainstTimeout() throws Exception{
+    start(1, 10);
+    Path busy = mapping("sleep:1");
+    CompletableFuture<Integer> first = CompletableFuture.supplyAsync(() -> pool.map(busy.toString(), gemma.toString(), folder.getRoot().toPath().resolve("busy.out").toString(), null, TIMEOUT));
+    Thread.sleep(200);
+    //the job itself would finish within the timeout, but not after waiting for the busy worker
+    long start = System.currentTimeMillis();
+    Assert.assertEquals(PythonUtils.TIMEOUT_ERROR, pool.map(mapping("sleep:1").toString(), gemma.toString(), output().toString(), null, 1500));
+    Assert.assertTrue(System.currentTimeMillis() - start < 2500);
+    Assert.assertEquals(0, (int) first.get(TIMEOUT, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testFailedReplacementIsRespawned() throws IOException{
+    start(1, 1);
+    Files.delete(python);
+    //the worker is recycled after this job, but the replacement cannot be started
+    map("copy", TIMEOUT);
+    Assert.assertEquals(PythonUtils.TIMEOUT_ERROR, pool.map(mapping("copy").toString(), gemma.toString(), output().toString(), null, 500));
+    writeLauncher();
+    Assert.assertNotNull(map("copy", TIMEOUT));
+  }
+
+  @Test
+  public void testMultipleMappingsInOneRequest() throws IOException{
+    start(1, 2);
+    Path input = folder.newFile().toPath();
+    Files.write(input, "content".getBytes(StandardCharsets.UTF_8));
+    Path consumed = output();
+    Path copied = output();
+    Assert.assertEquals(0, pool.map(Arrays.asList(mapping("consume").toString(), mapping("copy").toString()), input.toString(), Arrays.asList(consumed.toString(), copied.toString()), null, TIMEOUT));
+    Assert.assertEquals("content", new String(Files.readAllBytes(consumed), StandardCharsets.UTF_8));
+    //the input was deleted by the first mapping, but is still served from memory
+    Assert.assertFalse(Files.exists(input));
+    String pid = new String(Files.readAllBytes(copied), StandardCharsets.UTF_8);
+    //all mappings were applied as one job of the same worker
+    Assert.assertEquals(pid, map("copy", TIMEOUT));
+    Assert.assertNotEquals(pid, map("copy", TIMEOUT));
+  }
+
+  @Test
+  public void testFailedMappingEndsRequest() throws IOException{
+    start(1, 10);
+    Path skipped = output();
+    Assert.assertEquals(1, pool.map(Arrays.asList(mapping("fail").toString(), mapping("copy").toString()), gemma.toString(), Arrays.asList(output().toString(), skipped.toString()), null, TIMEOUT));
+    Assert.assertEquals(0, Files.size(skipped));
+  }
+
+  private void start(int size, int maxJobs) throws IOException{
+    pool = new GemmaWorkerPool(python.toString(), gemma.toString(), size, maxJobs, 0);
+    pool.start();
+  }
+
+  /**
+   * Map successfully and return the process id of the worker.
+   */
+  private String map(String command, long timeout) throws IOException{
+    Path output = output();
+    Assert.assertEquals(0, pool.map(mapping(command).toString(), gemma.toString(), output.toString(), null, timeout));
+    return new String(Files.readAllBytes(output), StandardCharsets.UTF_8);
+  }
+
+  private Path mapping(String command) throws IOException{
+    Path mapping = folder.newFile().toPath();
+    Files.write(mapping, command.getBytes(StandardCharsets.UTF_8));
+    return mapping;
+  }
+
+  private Path output() throws IOException{
+    return folder.newFile().toPath();
+  }
+
+  private void writeLauncher() throws IOException{
+    Files.write(python, ("#!/bin/sh\nexec " + PYTHON_LOCATION + " \"$@\"\n").getBytes(StandardCharsets.UTF_8));
+    Assume.assumeTrue("Launcher script cannot be made executable.", python.toFile().setExecutable(true));
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for mapping in streaming mode via the Gemma stream script, for
+ * multiple mappings in a single Python process and for the capture limit and
+ * timeouts of executed scripts. Instead of
+ * Gemma, a script converting its input to upper case and printing log output
+ * is executed. Python is taken from the system property
+ * 'gemma.test.pythonLocation' and defaults to 'python3'. The tests are skipped
+ * if Python is not available.
+ *
+ * @author jejkal
+ */
+public class PythonUtilsTest{
+
+  private static final String PYTHON_LOCATION = System.getProperty("gemma.test.pythonLocation", "python3");
+  private static final long TIMEOUT = 5000;
+  private static final String SCRIPT = "import sys, time\n"
+          + "if __name__ == '__main__':\n"
+          + "    content = open(sys.argv[2]).read()\n"
+          + "    if content.startswith('sleep'):\n"
+          + "        time.sleep(10)\n"
+          + "    print('log output')\n"
+          + "    open(sys.argv[3], 'w').write(content.upper())\n";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private Path gemma;
+  private Path mapping;
+
+  @Before
+  public void setUp() throws IOException, InterruptedException{
+    Process process;
+    try{
+      process = new ProcessBuilder(PYTHON_LOCATION, "--version").start();
+    } catch(IOException ex){
+      process = null;
+    }
+    Assume.assumeTrue("Python is not available at " + PYTHON_LOCATION + ".", process != null && process.waitFor(TIMEOUT, TimeUnit.MILLISECONDS) && process.exitValue() == 0);
+    gemma = folder.newFile("gemma.py").toPath();
+    Files.write(gemma, SCRIPT.getBytes(StandardCharsets.UTF_8));
+    mapping = folder.newFile("mapping.json").toPath();
+  }
+
+  @After
+  public void tearDown(){
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testOutputAboveMaxCaptureIsTruncated() throws IOException{
+    Path script = folder.newFile("noisy.py").toPath();
+    //100 lines of 100 bytes on stdout and stderr each
+    Files.write(script, "import sys\nfor i in range(100):\n    print('x' * 99)\n    sys.stderr.write('y' * 99 + '\\n')\n".getBytes(StandardCharsets.UTF_8));
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    PythonUtils.setMaxCapture(1000);
+    ProcessResult result;
+    try{
+      result = PythonUtils.execute(PYTHON_LOCATION, script.toString(), output, output, TIMEOUT);
+    } finally{
+      PythonUtils.setMaxCapture(PythonUtils.DEFAULT_MAX_CAPTURE);
+    }
+    Assert.assertTrue(result.toString(), result.isSuccess());
+    //stdout and stderr share the capture limit, only complete lines are captured
+    Assert.assertEquals(1000, output.size());
+    Assert.assertEquals(19000, result.getDiscardedBytes());
+    for(String line : output.toString(StandardCharsets.UTF_8).split("\n")){
+      Assert.assertTrue(line, line.equals("x".repeat(99)) || line.equals("y".repeat(99)));
+    }
+  }
+
+  @Test
+  public void testLongLineIsTruncated() throws IOException{
+    Path script = folder.newFile("long.py").toPath();
+    Files.write(script, "print('x' * 100000)\nprint('done')\n".getBytes(StandardCharsets.UTF_8));
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    PythonUtils.setMaxCapture(1000);
+    ProcessResult result;
+    try{
+      result = PythonUtils.execute(PYTHON_LOCATION, script.toString(), output, output, TIMEOUT);
+    } finally{
+      PythonUtils.setMaxCapture(PythonUtils.DEFAULT_MAX_CAPTURE);
+    }
+    Assert.assertTrue(result.toString(), result.isSuccess());
+    Assert.assertTrue(output.size() <= 1000);
+    Assert.assertTrue(result.getDiscardedBytes() >= 99000);
+  }
+
+  @Test
+  public void testTimedOutProcessTreeIsKilled() throws IOException, InterruptedException{
+    Path script = folder.newFile("spawn.py").toPath();
+    Path pidFile = folder.getRoot().toPath().resolve("child.pid");
+    Files.write(script, ("import subprocess, sys, time\n"
+            + "child = subprocess.Popen([sys.executable, '-c', 'import time; time.sleep(60)'])\n"
+            + "open(sys.argv[1], 'w').write(str(child.pid))\n"
+            + "time.sleep(60)\n").getBytes(StandardCharsets.UTF_8));
+    long start = System.currentTimeMillis();
+    ProcessResult result = PythonUtils.execute(PYTHON_LOCATION, script.toString(), null, null, 1000, pidFile.toString());
+    Assert.assertEquals(PythonUtils.TIMEOUT_ERROR, result.getExitCode());
+    Assert.assertEquals(ProcessResult.STAGE.TIMEOUT, result.getStage());
+    Assert.assertTrue(System.currentTimeMillis() - start < TIMEOUT);
+    long pid = Long.parseLong(new String(Files.readAllBytes(pidFile), StandardCharsets.UTF_8).trim());
+    //the child of the timed out process was killed as well
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    while(isRunning(pid) && System.currentTimeMillis() < deadline){
+      Thread.sleep(10);
+    }
+    Assert.assertFalse(isRunning(pid));
+  }
+
+  @Test
+  public void testMultipleMappingsInOneProcess() throws IOException{
+    Path input = folder.newFile("input.txt").toPath();
+    Files.write(input, "content".getBytes(StandardCharsets.UTF_8));
+    Path first = folder.newFile().toPath();
+    Path second = folder.newFile().toPath();
+    ByteArrayOutputStream log = new ByteArrayOutputStream();
+    ProcessResult result = PythonUtils.runMapping(PYTHON_LOCATION, gemma.toString(), log, TIMEOUT, Arrays.asList(mapping.toString(), mapping.toString()), input.toString(), Arrays.asList(first.toString(), second.toString()));
+    Assert.assertTrue(result.toString(), result.isSuccess());
+    Assert.assertEquals("CONTENT", new String(Files.readAllBytes(first), StandardCharsets.UTF_8));
+    Assert.assertEquals("CONTENT", new String(Files.readAllBytes(second), StandardCharsets.UTF_8));
+    //the log of both mappings is captured from the same process
+    Assert.assertEquals(2, log.toString(StandardCharsets.UTF_8).split("log output", -1).length - 1);
+  }
+
+  @Test
+  public void testMultipleMappingsTimeoutAppliesToAllMappings() throws IOException{
+    Path input = folder.newFile("input.txt").toPath();
+    Files.write(input, "sleep".getBytes(StandardCharsets.UTF_8));
+    long start = System.currentTimeMillis();
+    ProcessResult result = PythonUtils.runMapping(PYTHON_LOCATION, gemma.toString(), null, 1000, Arrays.asList(mapping.toString(), mapping.toString()), input.toString(), Arrays.asList(folder.newFile().toPath().toString(), folder.newFile().toPath().toString()));
+    Assert.assertEquals(PythonUtils.TIMEOUT_ERROR, result.getExitCode());
+    Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+  }
+
+  @Test
+  public void testStreamedMappingSeparatesResultAndLog(){
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ByteArrayOutputStream log = new ByteArrayOutputStream();
+    ProcessResult result = PythonUtils.runMapping(PYTHON_LOCATION, gemma.toString(), input("content"), output, log, TIMEOUT, mapping.toString());
+    Assert.assertTrue(result.toString(), result.isSuccess());
+    Assert.assertEquals("CONTENT", output.toString(StandardCharsets.UTF_8));
+    Assert.assertTrue(log.toString(StandardCharsets.UTF_8).contains("log output"));
+  }
+
+  @Test
+  public void testStreamedMappingTimeout(){
+    ProcessResult result = PythonUtils.runMapping(PYTHON_LOCATION, gemma.toString(), input("sleep"), new ByteArrayOutputStream(), new ByteArrayOutputStream(), 500, mapping.toString());
+    Assert.assertEquals(PythonUtils.TIMEOUT_ERROR, result.getExitCode());
+  }
+
+  @Test
+  public void testQueuedResultPipeIsNotTimedOut() throws IOException, InterruptedException{
+    //the same chain of pipes the streaming mode uses, but the result exceeding the pipe buffer is only consumed after the mapping timeout
+    String content = "content".repeat(1000);
+    StreamPipe inputPipe = StreamPipe.create(executor, 16, (out) -> {
+      out.write(content.getBytes(StandardCharsets.UTF_8));
+      return 0;
+    });
+    StreamPipe resultPipe = StreamPipe.create(executor, 16, (out) -> PythonUtils.runMapping(PYTHON_LOCATION, gemma.toString(), inputPipe.getInputStream(), out, null, 1000, mapping.toString()).getExitCode());
+    Thread.sleep(1500);
+    Assert.assertFalse(inputPipe.isStarted());
+    Assert.assertEquals(content.toUpperCase(), new String(resultPipe.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Check if a process is running. Killed processes whose parent was killed
+   * as well may stay zombies until they are reaped, which are not running.
+   */
+  private static boolean isRunning(long pid){
+    Path stat = Paths.get("/proc", Long.toString(pid), "stat");
+    if(Files.exists(stat)){
+      try{
+        String content = new String(Files.readAllBytes(stat), StandardCharsets.UTF_8);
+        return content.charAt(content.lastIndexOf(')') + 2) != 'Z';
+      } catch(IOException ex){
+        //the process has terminated meanwhile
+        return false;
+      }
+    }
+    return ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false);
+  }
+
+  private static ByteArrayInputStream input(String content){
+    return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the remote content client against a local HTTP server.
+ *
+ * @author jejkal
+ */
+public class RemoteContentClientTest{
+
+  private static final byte[] CONTENT = "{\"title\":\"Remote content served in two parts.\"}".getBytes(StandardCharsets.UTF_8);
+
+  private HttpServer server;
+  private RemoteContentClient client;
+  private final AtomicInteger requests = new AtomicInteger(0);
+  private final List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+
+  @Before
+  public void setUp() throws IOException{
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.start();
+    client = new RemoteContentClient(4, 5000, 1024, 2);
+  }
+
+  @After
+  public void tearDown(){
+    client.close();
+    server.stop(0);
+  }
+
+  @Test
+  public void testReadContent() throws IOException{
+    serve("/content", (exchange, request) -> respond(exchange, 200, CONTENT));
+    Assert.assertArrayEquals(CONTENT, read("/content"));
+    Assert.assertEquals(1, requests.get());
+  }
+
+  @Test
+  public void testServerErrorIsRetried() throws IOException{
+    serve("/content", (exchange, request) -> respond(exchange, (request == 1) ? 503 : 200, CONTENT));
+    Assert.assertArrayEquals(CONTENT, read("/content"));
+    Assert.assertEquals(2, requests.get());
+  }
+
+  @Test
+  public void testServerErrorIsTransientAfterRetries(){
+    serve("/content", (exchange, request) -> respond(exchange, 500, CONTENT));
+    IOException ex = readFailing("/content");
+    Assert.assertTrue(RemoteContentClient.isTransient(ex));
+    Assert.assertEquals(3, requests.get());
+  }
+
+  @Test
+  public void testClientErrorIsPermanent(){
+    serve("/content", (exchange, request) -> respond(exchange, 404, CONTENT));
+    IOException ex = readFailing("/content");
+    Assert.assertFalse(RemoteContentClient.isTransient(ex));
+    Assert.assertEquals(1, requests.get());
+  }
+
+  @Test
+  public void testAnnouncedOversizeIsPermanent(){
+    serve("/content", (exchange, request) -> respond(exchange, 200, new byte[2048]));
+    IOException ex = readFailing("/content");
+    Assert.assertFalse(RemoteContentClient.isTransient(ex));
+    Assert.assertEquals(1, requests.get());
+  }
+
+  @Test
+  public void testOversizeWhileReadingIsPermanent(){
+    serve("/content", (exchange, request) -> {
+      //chunked response without content length
+      exchange.sendResponseHeaders(200, 0);
+      try(OutputStream out = exchange.getResponseBody()){
+        out.write(new byte[2048]);
+      }
+    });
+    IOException ex = readFailing("/content");
+    Assert.assertFalse(RemoteContentClient.isTransient(ex));
+  }
+
+  @Test
+  public void testBrokenDownloadIsResumed() throws IOException{
+    int half = CONTENT.length / 2;
+    serve("/content", (exchange, request) -> {
+      String range = exchange.getRequestHeaders().getFirst("Range");
+      exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+      exchange.getResponseHeaders().add("ETag", "\"v1\"");
+      if(range == null){
+        //announce the full length, but break the connection after the first half
+        exchange.sendResponseHeaders(200, CONTENT.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(CONTENT, 0, half);
+        out.flush();
+        exchange.close();
+        return;
+      }
+      ranges.add(range + " " + exchange.getRequestHeaders().getFirst("If-Range"));
+      int start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+      byte[] rest = new byte[CONTENT.length - start];
+      System.arraycopy(CONTENT, start, rest, 0, rest.length);
+      respond(exchange, 206, rest);
+    });
+    Assert.assertArrayEquals(CONTENT, read("/content"));
+    Assert.assertEquals(Collections.singletonList("bytes=" + half + "- \"v1\""), ranges);
+  }
+
+  private void serve(String path, Handler handler){
+    server.createContext(path, (exchange) -> {
+      try{
+        exchange.getRequestBody().close();
+        handler.handle(exchange, requests.incrementAndGet());
+      } catch(IOException ex){
+        //expected for broken responses
+      } finally{
+        exchange.close();
+      }
+    });
+  }
+
+  private byte[] read(String path) throws IOException{
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try(InputStream in = client.open(uri(path))){
+      byte[] buffer = new byte[8];
+      int count;
+      while((count = in.read(buffer)) != -1){
+        out.write(buffer, 0, count);
+      }
+    }
+    return out.toByteArray();
+  }
+
+  private IOException readFailing(String path){
+    try{
+      read(path);
+    } catch(IOException ex){
+      return ex;
+    }
+    Assert.fail("Reading " + path + " did not fail.");
+    return null;
+  }
+
+  private URI uri(String path){
+    return URI.create("http://localhost:" + server.getAddress().getPort() + path);
+  }
+
+  private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException{
+    exchange.sendResponseHeaders(status, body.length);
+    try(OutputStream out = exchange.getResponseBody()){
+      out.write(body);
+    }
+  }
+
+  /**
+   * Handler of a request, receiving the number of the request.
+   */
+  private interface Handler{
+
+    void handle(HttpExchange exchange, int request) throws IOException;
+  }
+}
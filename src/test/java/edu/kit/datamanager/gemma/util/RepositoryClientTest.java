@@ -0,0 +1,220 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import edu.kit.datamanager.clients.SimpleServiceClient;
+import edu.kit.datamanager.entities.repo.ContentInformation;
+import edu.kit.datamanager.entities.repo.DataResource;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+
+/**
+ * Tests for connection pooling, request compression, paging and the circuit
+ * breaker of the repository client against a local HTTP server.
+ *
+ * @author jejkal
+ */
+public class RepositoryClientTest{
+
+  private static final String CONTENT = "{\"title\":\"Uploaded content.\"}";
+
+  private HttpServer server;
+  private RepositoryClient client;
+  private final AtomicInteger requests = new AtomicInteger(0);
+  /**
+   * The client ports of all requests.
+   */
+  private final List<Integer> ports = Collections.synchronizedList(new ArrayList<>());
+  /**
+   * The Content-Encoding header and the decoded body of all uploads.
+   */
+  private final List<String> uploads = Collections.synchronizedList(new ArrayList<>());
+
+  @Before
+  public void setUp() throws IOException{
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.start();
+  }
+
+  @After
+  public void tearDown(){
+    if(client != null){
+      client.close();
+    }
+    server.stop(0);
+  }
+
+  @Test
+  public void testConnectionsAreReused(){
+    client = create(false, 0);
+    serve("/api/v1/dataresources/resource-1", (exchange, request) -> respond(exchange, 200, "text/plain", "resource-1"));
+    for(int i = 0; i < 3; i++){
+      Assert.assertEquals("resource-1", client.getResource("resource-1"));
+    }
+    Assert.assertEquals(3, requests.get());
+    //all requests were sent via the same pooled keep-alive connection
+    Assert.assertEquals(1, ports.stream().distinct().count());
+  }
+
+  @Test
+  public void testUploadIsCompressed() throws IOException{
+    client = create(true, 0);
+    serve("/api/v1/dataresources/resource-1/data/generated/a.elastic.json", this::receiveUpload);
+    Assert.assertEquals(HttpStatus.CREATED, client.uploadData("resource-1", "generated/a.elastic.json", stream(CONTENT), null, true));
+    Assert.assertEquals(1, uploads.size());
+    Assert.assertTrue(uploads.get(0), uploads.get(0).startsWith("gzip "));
+    Assert.assertTrue(uploads.get(0), uploads.get(0).contains(CONTENT));
+  }
+
+  @Test
+  public void testUploadIsNotCompressedByDefault() throws IOException{
+    client = create(false, 0);
+    serve("/api/v1/dataresources/resource-1/data/generated/a.elastic.json", this::receiveUpload);
+    Assert.assertEquals(HttpStatus.CREATED, client.uploadData("resource-1", "generated/a.elastic.json", stream(CONTENT), null, true));
+    Assert.assertTrue(uploads.get(0), uploads.get(0).startsWith("null "));
+    Assert.assertTrue(uploads.get(0), uploads.get(0).contains(CONTENT));
+  }
+
+  @Test
+  public void testPageWithContentRange(){
+    client = create(false, 0);
+    serve("/api/v1/dataresources", (exchange, request) -> {
+      exchange.getResponseHeaders().add("Content-Range", "0-1/5");
+      respond(exchange, 200, "application/json", "[{\"id\":\"resource-1\"},{\"id\":\"resource-2\"}]");
+    });
+    SimpleServiceClient.ResultPage<DataResource> page = client.getResources(0, 2);
+    Assert.assertEquals(2, page.getResources().length);
+    Assert.assertEquals("resource-2", page.getResources()[1].getId());
+    Assert.assertEquals(5, page.getContentRange().getTotalElements());
+  }
+
+  @Test
+  public void testPageWithoutContentRange(){
+    client = create(false, 0);
+    serve("/api/v1/dataresources", (exchange, request) -> respond(exchange, 200, "application/json", "[{\"id\":\"resource-1\"}]"));
+    //a missing Content-Range header is no error
+    SimpleServiceClient.ResultPage<DataResource> page = client.getResources(0, 2);
+    Assert.assertEquals(1, page.getResources().length);
+    Assert.assertNotNull(page.getContentRange());
+  }
+
+  @Test
+  public void testContentInformation(){
+    client = create(false, 1);
+    serve("/api/v1/dataresources/resource-1/data/generated/a.elastic.json", (exchange, request) -> respond(exchange, 200, "application/json", "{\"relativePath\":\"generated/a.elastic.json\",\"uploader\":\"gemma\"}"));
+    serve("/api/v1/dataresources/resource-1/data/generated/b.elastic.json", (exchange, request) -> respond(exchange, 404, "application/json", "{}"));
+    ContentInformation info = client.getContentInformation("resource-1", "generated/a.elastic.json");
+    Assert.assertEquals("gemma", info.getUploader());
+    try{
+      client.getContentInformation("resource-1", "generated/b.elastic.json");
+      Assert.fail("Missing content information was returned.");
+    } catch(HttpClientErrorException.NotFound ex){
+      //expected
+    }
+    //missing content is no repository failure
+    Assert.assertTrue(client.isAvailable());
+  }
+
+  @Test
+  public void testServerErrorsOpenCircuit(){
+    client = create(false, 2);
+    serve("/api/v1/dataresources/resource-1", (exchange, request) -> respond(exchange, 503, "text/plain", "unavailable"));
+    for(int i = 0; i < 2; i++){
+      try{
+        client.getResource("resource-1");
+        Assert.fail("Request did not fail.");
+      } catch(HttpServerErrorException ex){
+        Assert.assertTrue(RepositoryClient.isTransient(ex));
+      }
+    }
+    Assert.assertFalse(client.isAvailable());
+    try{
+      client.getResource("resource-1");
+      Assert.fail("Request did not fail fast.");
+    } catch(RepositoryClient.CircuitOpenException ex){
+      Assert.assertTrue(RepositoryClient.isTransient(ex));
+    }
+    //no request was sent while the circuit is open
+    Assert.assertEquals(2, requests.get());
+  }
+
+  private RepositoryClient create(boolean compressRequests, int failureThreshold){
+    String baseUrl = "http://localhost:" + server.getAddress().getPort() + "/api/v1/dataresources/";
+    return new RepositoryClient(baseUrl, 4, 30000, 5000, 5000, compressRequests, failureThreshold, 60000);
+  }
+
+  private void receiveUpload(HttpExchange exchange, int request) throws IOException{
+    String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+    InputStream in = "gzip".equals(encoding) ? new GZIPInputStream(exchange.getRequestBody()) : exchange.getRequestBody();
+    uploads.add(encoding + " " + new String(in.readAllBytes(), StandardCharsets.UTF_8));
+    respond(exchange, 201, "text/plain", "");
+  }
+
+  private void serve(String path, Handler handler){
+    server.createContext(path, (exchange) -> {
+      try{
+        ports.add(exchange.getRemoteAddress().getPort());
+        handler.handle(exchange, requests.incrementAndGet());
+      } finally{
+        exchange.close();
+      }
+    });
+  }
+
+  private static InputStream stream(String content){
+    return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException{
+    byte[] data = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    if(data.length == 0){
+      exchange.sendResponseHeaders(status, -1);
+      return;
+    }
+    exchange.sendResponseHeaders(status, data.length);
+    try(OutputStream out = exchange.getResponseBody()){
+      out.write(data);
+    }
+  }
+
+  /**
+   * Handler of a request, receiving the number of the request.
+   */
+  private interface Handler{
+
+    void handle(HttpExchange exchange, int request) throws IOException;
+  }
+}
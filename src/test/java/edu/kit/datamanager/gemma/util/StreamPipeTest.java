@@ -0,0 +1,124 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for deferred start, status checking and aborting of stream pipes.
+ *
+ * @author jejkal
+ */
+public class StreamPipeTest{
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  @After
+  public void tearDown(){
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testProducerStartsOnFirstRead() throws IOException, InterruptedException{
+    AtomicBoolean started = new AtomicBoolean(false);
+    StreamPipe pipe = StreamPipe.create(executor, 16, (out) -> {
+      started.set(true);
+      //more data than fits into the pipe buffer
+      for(int i = 0; i < 100; i++){
+        out.write("0123456789".getBytes(StandardCharsets.UTF_8));
+      }
+      return 0;
+    });
+    Thread.sleep(100);
+    Assert.assertFalse(started.get());
+    Assert.assertFalse(pipe.isStarted());
+    Assert.assertEquals(1000, read(pipe.getInputStream()).length());
+    Assert.assertTrue(started.get());
+    Assert.assertEquals(0, pipe.getResult());
+  }
+
+  @Test
+  public void testFailedProducerStatusFailsConsumer() throws IOException{
+    StreamPipe pipe = StreamPipe.create(executor, 16, (out) -> {
+      out.write("partial".getBytes(StandardCharsets.UTF_8));
+      return 1;
+    });
+    try{
+      read(pipe.getInputStream());
+      Assert.fail("Partial result was read without error.");
+    } catch(IOException ex){
+      Assert.assertTrue(ex.getMessage().contains("status 1"));
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testProducerExceptionFailsConsumer() throws IOException{
+    StreamPipe pipe = StreamPipe.create(executor, 16, (out) -> {
+      throw new IOException("Producer failure");
+    });
+    read(pipe.getInputStream());
+  }
+
+  @Test
+  public void testAbortBeforeStartNeverRunsProducer() throws IOException, InterruptedException{
+    AtomicBoolean started = new AtomicBoolean(false);
+    StreamPipe pipe = StreamPipe.create(executor, 16, (out) -> {
+      started.set(true);
+      return 0;
+    });
+    pipe.abort();
+    try{
+      pipe.getInputStream().read();
+      Assert.fail("Aborted pipe was read without error.");
+    } catch(IOException ex){
+      //expected
+    }
+    Thread.sleep(100);
+    Assert.assertFalse(started.get());
+  }
+
+  @Test
+  public void testAbortStopsRunningProducer() throws IOException, InterruptedException{
+    AtomicBoolean interrupted = new AtomicBoolean(false);
+    StreamPipe pipe = StreamPipe.create(executor, 16, (out) -> {
+      try{
+        Thread.sleep(10000);
+      } catch(InterruptedException ex){
+        interrupted.set(true);
+      }
+      return 0;
+    });
+    Assert.assertEquals(0, pipe.getInputStream().available());
+    pipe.getInputStream().skip(0);
+    Assert.assertTrue(pipe.isStarted());
+    Thread.sleep(100);
+    pipe.abort();
+    Thread.sleep(100);
+    Assert.assertTrue(interrupted.get());
+  }
+
+  private static String read(InputStream in) throws IOException{
+    return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+  }
+}
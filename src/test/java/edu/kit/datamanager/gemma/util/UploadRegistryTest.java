@@ -0,0 +1,74 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the registry of the plugin's own uploads.
+ *
+ * @author jejkal
+ */
+public class UploadRegistryTest{
+
+  @Test
+  public void testRegisteredPathIsContained(){
+    UploadRegistry registry = new UploadRegistry(60000, 10);
+    registry.register("resource-1", "metadata.elastic.json");
+    Assert.assertTrue(registry.contains("resource-1", "metadata.elastic.json"));
+    //leading slashes are ignored
+    Assert.assertTrue(registry.contains("resource-1", "/metadata.elastic.json"));
+    Assert.assertFalse(registry.contains("resource-1", "other.elastic.json"));
+    Assert.assertFalse(registry.contains("resource-2", "metadata.elastic.json"));
+  }
+
+  @Test
+  public void testEntriesExpire() throws InterruptedException{
+    UploadRegistry registry = new UploadRegistry(100, 10);
+    registry.register("resource-1", "a.elastic.json");
+    Assert.assertTrue(registry.contains("resource-1", "a.elastic.json"));
+    Thread.sleep(200);
+    Assert.assertFalse(registry.contains("resource-1", "a.elastic.json"));
+    Assert.assertEquals(0, registry.size());
+  }
+
+  @Test
+  public void testRegisteringAgainRenewsEntry() throws InterruptedException{
+    UploadRegistry registry = new UploadRegistry(300, 10);
+    registry.register("resource-1", "a.elastic.json");
+    registry.register("resource-1", "b.elastic.json");
+    Thread.sleep(200);
+    registry.register("resource-1", "a.elastic.json");
+    Thread.sleep(200);
+    //'b' expired, the renewed 'a' did not, although it was registered first
+    Assert.assertFalse(registry.contains("resource-1", "b.elastic.json"));
+    Assert.assertTrue(registry.contains("resource-1", "a.elastic.json"));
+    Assert.assertEquals(1, registry.size());
+  }
+
+  @Test
+  public void testOldestEntryIsDropped(){
+    UploadRegistry registry = new UploadRegistry(60000, 2);
+    registry.register("resource-1", "a.elastic.json");
+    registry.register("resource-2", "a.elastic.json");
+    registry.register("resource-3", "a.elastic.json");
+    Assert.assertEquals(2, registry.size());
+    Assert.assertFalse(registry.contains("resource-1", "a.elastic.json"));
+    Assert.assertTrue(registry.contains("resource-2", "a.elastic.json"));
+    Assert.assertTrue(registry.contains("resource-3", "a.elastic.json"));
+  }
+}
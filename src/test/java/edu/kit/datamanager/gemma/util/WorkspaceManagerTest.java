@@ -0,0 +1,178 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.gemma.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for quota backpressure, accounting and removal of workspaces.
+ *
+ * @author jejkal
+ */
+public class WorkspaceManagerTest{
+
+  private static final long TIMEOUT = 5000;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path root;
+  private WorkspaceManager manager;
+
+  @Before
+  public void setUp(){
+    root = folder.getRoot().toPath().resolve("workspaces");
+  }
+
+  @After
+  public void tearDown(){
+    if(manager != null){
+      manager.close();
+    }
+  }
+
+  @Test
+  public void testOpenBlocksUntilQuotaIsReleased() throws Exception{
+    manager = create(100, TIMEOUT);
+    WorkspaceManager.Workspace first = manager.open(80);
+    CompletableFuture<WorkspaceManager.Workspace> second = CompletableFuture.supplyAsync(() -> {
+      try{
+        return manager.open(80);
+      } catch(IOException ex){
+        throw new IllegalStateException(ex);
+      }
+    });
+    Thread.sleep(200);
+    Assert.assertFalse(second.isDone());
+    first.close();
+    WorkspaceManager.Workspace workspace = second.get(TIMEOUT, TimeUnit.MILLISECONDS);
+    Assert.assertEquals(1, manager.getOpen());
+    Assert.assertEquals(80, manager.getUsed());
+    workspace.close();
+  }
+
+  @Test
+  public void testOpenFailsAfterTimeout() throws IOException{
+    manager = create(100, 200);
+    WorkspaceManager.Workspace first = manager.open(80);
+    long start = System.currentTimeMillis();
+    try{
+      manager.open(80);
+      Assert.fail("Workspace was opened although the quota is used up.");
+    } catch(IOException ex){
+      Assert.assertTrue(System.currentTimeMillis() - start >= 200);
+    }
+    Assert.assertEquals(1, manager.getOpen());
+    first.close();
+  }
+
+  @Test
+  public void testOpenWorkspacesCountAgainstQuota() throws IOException{
+    manager = create(2 * WorkspaceManager.DEFAULT_RESERVATION, 200);
+    //workspaces of unknown size which were not updated yet still fill the quota
+    WorkspaceManager.Workspace first = manager.open(-1);
+    WorkspaceManager.Workspace second = manager.open(0);
+    Assert.assertEquals(2 * WorkspaceManager.DEFAULT_RESERVATION, manager.getUsed());
+    try{
+      manager.open(-1);
+      Assert.fail("Workspace was opened although the quota is reserved.");
+    } catch(IOException ex){
+      //expected
+    }
+    first.close();
+    second.close();
+  }
+
+  @Test
+  public void testSingleWorkspaceMayExceedQuota() throws IOException{
+    manager = create(100, 200);
+    WorkspaceManager.Workspace workspace = manager.open(1000);
+    Assert.assertEquals(1000, manager.getUsed());
+    workspace.close();
+    Assert.assertEquals(0, manager.getUsed());
+  }
+
+  @Test
+  public void testUpdateAccountsAtLeastReservation() throws IOException{
+    manager = create(0, TIMEOUT);
+    WorkspaceManager.Workspace workspace = manager.open(100);
+    Files.write(workspace.resolve("small.json"), new byte[10]);
+    workspace.update();
+    Assert.assertEquals(100, manager.getUsed());
+    Files.write(workspace.resolve("large.json"), new byte[500]);
+    workspace.update();
+    Assert.assertEquals(510, manager.getUsed());
+  }
+
+  @Test
+  public void testCloseRemovesWorkspaceAndReleasesQuota() throws IOException{
+    manager = create(1000, TIMEOUT);
+    WorkspaceManager.Workspace workspace = manager.open(100);
+    Path file = workspace.resolve("a/b.json");
+    Assert.assertEquals(workspace.getDirectory().resolve("a_b.json"), file);
+    Files.write(file, new byte[200]);
+    workspace.update();
+    workspace.close();
+    Assert.assertFalse(Files.exists(workspace.getDirectory()));
+    Assert.assertEquals(0, manager.getUsed());
+    Assert.assertEquals(0, manager.getOpen());
+    //closing again and updating a closed workspace has no effect
+    workspace.close();
+    workspace.update();
+    Assert.assertEquals(0, manager.getUsed());
+    Assert.assertEquals(0, manager.getOpen());
+  }
+
+  @Test
+  public void testOrphanedWorkspacesAreRemovedOnInit() throws IOException{
+    Files.createDirectories(root.resolve("job-orphan").resolve("nested"));
+    Files.write(root.resolve("job-orphan").resolve("nested").resolve("output.json"), new byte[10]);
+    Files.write(root.resolve("other.txt"), new byte[10]);
+    manager = create(0, TIMEOUT);
+    Assert.assertFalse(Files.exists(root.resolve("job-orphan")));
+    Assert.assertTrue(Files.exists(root.resolve("other.txt")));
+  }
+
+  @Test
+  public void testWorkspacesOfLockedRootAreKept() throws IOException{
+    manager = create(0, TIMEOUT);
+    WorkspaceManager.Workspace workspace = manager.open(-1);
+    //a second manager does not obtain the lock, thus it must not remove the open workspace
+    WorkspaceManager other = create(0, TIMEOUT);
+    try{
+      Assert.assertTrue(Files.exists(workspace.getDirectory()));
+    } finally{
+      other.close();
+    }
+    workspace.close();
+  }
+
+  private WorkspaceManager create(long quota, long timeout) throws IOException{
+    WorkspaceManager result = new WorkspaceManager(root, quota, timeout);
+    result.init();
+    return result;
+  }
+}